@@ -16,20 +16,20 @@
  */
 package org.hawkular.bus.common;
 
-import java.io.ByteArrayOutputStream;
+import java.io.IOException;
 import java.io.InputStream;
-import java.lang.reflect.Method;
+import java.io.StringWriter;
 import java.util.Collections;
 import java.util.HashMap;
 import java.util.Map;
 
-import org.hawkular.bus.common.msg.features.FailOnUnknownProperties;
+import org.hawkular.bus.common.codec.MessageSerializer;
 
 import com.fasterxml.jackson.annotation.JsonAutoDetect;
 import com.fasterxml.jackson.annotation.JsonIgnore;
 import com.fasterxml.jackson.core.JsonFactory;
+import com.fasterxml.jackson.core.JsonGenerator;
 import com.fasterxml.jackson.core.JsonParser;
-import com.fasterxml.jackson.core.JsonParser.Feature;
 import com.fasterxml.jackson.core.JsonProcessingException;
 import com.fasterxml.jackson.databind.DeserializationFeature;
 import com.fasterxml.jackson.databind.ObjectMapper;
@@ -47,6 +47,9 @@ import com.fasterxml.jackson.databind.ObjectMapper;
  * The {@link #getHeaders() headers} are normally those out-of-band properties that are sent with the message.
  */
 public abstract class AbstractMessage implements BasicMessage {
+    // used with the generated serializers, see JsonCodecRegistry
+    private static final JsonFactory JSON_FACTORY = new JsonFactory();
+
     // these are passed out-of-band of the message body - these attributes will therefore not be JSON encoded
     @JsonIgnore
     private MessageId _messageId;
@@ -65,14 +68,13 @@ public abstract class AbstractMessage implements BasicMessage {
      */
     public static <T extends BasicMessage> T fromJSON(String json, Class<T> clazz) {
         try {
-            Method buildObjectMapperForDeserializationMethod = findBuildObjectMapperForDeserializationMethod(clazz);
-
-            final ObjectMapper mapper = (ObjectMapper) buildObjectMapperForDeserializationMethod.invoke(null);
-            if (FailOnUnknownProperties.class.isAssignableFrom(clazz)) {
-                mapper.configure(DeserializationFeature.FAIL_ON_UNKNOWN_PROPERTIES, true);
+            MessageSerializer<T> serializer = JsonCodecRegistry.serializerFor(clazz);
+            if (serializer != null) {
+                try (JsonParser parser = JSON_FACTORY.createParser(json)) {
+                    return serializer.deserialize(parser);
+                }
             }
-
-            return mapper.readValue(json, clazz);
+            return JsonCodecRegistry.readerFor(clazz).readValue(json);
         } catch (Exception e) {
             throw new IllegalStateException("JSON message cannot be converted to object of type [" + clazz + "]", e);
         }
@@ -97,35 +99,7 @@ public abstract class AbstractMessage implements BasicMessage {
      *         can use to stream any additional data that came in the given input stream.
      */
     public static <T extends BasicMessage> BasicMessageWithExtraData<T> fromJSON(InputStream in, Class<T> clazz) {
-        final T obj;
-        final byte[] remainder;
-        try (JsonParser parser = new JsonFactory().configure(Feature.AUTO_CLOSE_SOURCE, false).createParser(in)) {
-            Method buildObjectMapperForDeserializationMethod = findBuildObjectMapperForDeserializationMethod(clazz);
-
-            final ObjectMapper mapper = (ObjectMapper) buildObjectMapperForDeserializationMethod.invoke(null);
-            if (FailOnUnknownProperties.class.isAssignableFrom(clazz)) {
-                mapper.configure(DeserializationFeature.FAIL_ON_UNKNOWN_PROPERTIES, true);
-            }
-
-            obj = mapper.readValue(parser, clazz);
-            final ByteArrayOutputStream remainderStream = new ByteArrayOutputStream();
-            final int released = parser.releaseBuffered(remainderStream);
-            remainder = (released > 0) ? remainderStream.toByteArray() : new byte[0];
-        } catch (Exception e) {
-            throw new IllegalArgumentException("Stream cannot be converted to JSON object of type [" + clazz + "]", e);
-        }
-        return new BasicMessageWithExtraData<T>(obj, new BinaryData(remainder, in));
-    }
-
-    private static Method findBuildObjectMapperForDeserializationMethod(Class<? extends BasicMessage> clazz) {
-        try {
-            Method m = clazz.getDeclaredMethod("buildObjectMapperForDeserialization");
-            return m;
-        } catch (NoSuchMethodException e) {
-            // the given subclass doesn't have a method to build a mapper, maybe its superclass does.
-            // eventually we'll get to the AbstractMessage class and we know it does have one.
-            return findBuildObjectMapperForDeserializationMethod((Class<? extends BasicMessage>) clazz.getSuperclass());
-        }
+        return MessageCodecs.json().decode(in, clazz);
     }
 
     /**
@@ -135,6 +109,9 @@ public abstract class AbstractMessage implements BasicMessage {
      * that want to provide their own ObjectMapper will define their own
      * method that matches the signature of this method and it will be used.
      *
+     * Note that if a subclass does not define its own method, the mapper built
+     * by this method is created only once and shared (see {@link JsonCodecRegistry}).
+     *
      * @return object mapper to be used for deserializing JSON.
      */
     protected static ObjectMapper buildObjectMapperForDeserialization() {
@@ -150,15 +127,30 @@ public abstract class AbstractMessage implements BasicMessage {
      */
     @Override
     public String toJSON() {
-        final ObjectMapper mapper = buildObjectMapperForSerialization();
+        @SuppressWarnings("unchecked")
+        MessageSerializer<AbstractMessage> serializer = (MessageSerializer<AbstractMessage>) JsonCodecRegistry
+                .serializerFor(getClass());
+        if (serializer != null) {
+            StringWriter json = new StringWriter();
+            try (JsonGenerator generator = JSON_FACTORY.createGenerator(json)) {
+                serializer.serialize(this, generator);
+            } catch (IOException e) {
+                throw new IllegalStateException("Object cannot be parsed as JSON.", e);
+            }
+            return json.toString();
+        }
+
         try {
-            return mapper.writeValueAsString(this);
+            return JsonCodecRegistry.writerFor(this).writeValueAsString(this);
         } catch (JsonProcessingException e) {
             throw new IllegalStateException("Object cannot be parsed as JSON.", e);
         }
     }
 
     /**
+     * Subclasses that override this will have it called each time they are serialized. If it is not
+     * overridden, the mapper built by this method is created only once and shared (see {@link JsonCodecRegistry}).
+     *
      * @return object mapper to be used to serialize a message to JSON
      */
     protected ObjectMapper buildObjectMapperForSerialization() {
@@ -219,13 +211,17 @@ public abstract class AbstractMessage implements BasicMessage {
         if (_headers == null) {
             return Collections.emptyMap();
         }
+        if (_headers instanceof ReadOnlyHeaders) {
+            return _headers;
+        }
         return Collections.unmodifiableMap(_headers);
     }
 
     /**
      * Sets headers that will be sent with the message when the message gets delivered.
      * This completely replaces any existing headers already associated with this message.
-     * Note that the given name/value pairs will be copied to an internal map.
+     * Note that the given name/value pairs will be copied to an internal map, unless they are
+     * {@link ReadOnlyHeaders} which cannot change and so are kept as-is.
      * If the given map is null or empty, this message's internal map will be destroyed
      * and {@link #getHeaders()} will return an empty map.
      *
@@ -235,16 +231,13 @@ public abstract class AbstractMessage implements BasicMessage {
      */
     @Override
     public void setHeaders(Map<String, String> headers) {
-        if (headers == null || headers.isEmpty()) {
+        if (headers instanceof ReadOnlyHeaders) {
+            // no need to copy what cannot change; and asking a lazy view if it is empty would defeat its purpose
+            this._headers = headers;
+        } else if (headers == null || headers.isEmpty()) {
             this._headers = null;
         } else {
-            if (this._headers == null) {
-                this._headers = new HashMap<String, String>(headers);
-            } else {
-                // we want to replace what we had with the new headers
-                this._headers.clear();
-                this._headers.putAll(headers);
-            }
+            this._headers = new HashMap<String, String>(headers);
         }
     }
 
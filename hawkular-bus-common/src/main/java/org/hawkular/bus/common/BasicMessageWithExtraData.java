@@ -33,6 +33,15 @@ public class BasicMessageWithExtraData<T extends BasicMessage> {
 
     }
 
+    /**
+     * For subclasses that obtain the message and its binary data some other way, e.g. only when they are first asked
+     * for them. Such subclasses must override both {@link #getBasicMessage()} and {@link #getBinaryData()}.
+     */
+    protected BasicMessageWithExtraData() {
+        this.basicMessage = null;
+        this.binaryData = null;
+    }
+
     public T getBasicMessage() {
         return basicMessage;
     }
@@ -16,43 +16,188 @@
  */
 package org.hawkular.bus.common;
 
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+
 import javax.annotation.PostConstruct;
+import javax.annotation.PreDestroy;
 import javax.annotation.Resource;
 import javax.enterprise.context.ApplicationScoped;
 import javax.jms.ConnectionFactory;
 import javax.jms.Destination;
 import javax.jms.JMSContext;
+import javax.jms.JMSProducer;
 
+import com.fasterxml.jackson.annotation.JsonAutoDetect;
 import com.fasterxml.jackson.core.JsonProcessingException;
 import com.fasterxml.jackson.databind.ObjectMapper;
+import com.fasterxml.jackson.databind.ObjectWriter;
 
 /**
+ * Sends values as JSON text messages.
+ *
+ * {@link BasicMessage}s are converted with {@link BasicMessage#toJSON()}. Other values are converted with the same
+ * field visibility rules {@link AbstractMessage} uses, by a writer that is built once per value type.
+ *
+ * The {@link JMSContext}s used to send are pooled together with their {@link JMSProducer}s, so sending does not
+ * create and close a context each time. A context is used by one sender at a time; contexts that fail while
+ * sending are closed rather than reused.
+ *
  * @author jsanda
  */
 @ApplicationScoped
 public class Bus {
 
+    /**
+     * The number of idle contexts that are kept for reuse. More contexts are created if more threads send at the
+     * same time, but they are closed when they are no longer used.
+     */
+    private static final int MAX_IDLE_CONTEXTS = 16;
+
     @Resource(name = "java:/ConnectionFactory")
     private ConnectionFactory connectionFactory;
 
     private ObjectMapper mapper;
 
+    private final ConcurrentMap<Class<?>, ObjectWriter> writers = new ConcurrentHashMap<>();
+
+    private final BlockingQueue<PooledContext> idleContexts = new ArrayBlockingQueue<>(MAX_IDLE_CONTEXTS);
+
+    private volatile Destination defaultDestination;
+
+    private volatile boolean closed;
+
+    public Bus() {
+    }
+
+    /**
+     * Creates a bus that sends with the given factory, for use outside a container.
+     */
+    Bus(ConnectionFactory connectionFactory) {
+        this.connectionFactory = connectionFactory;
+        initMapper();
+    }
+
     @PostConstruct
-    private void initMapper() {
+    void initMapper() {
         mapper = new ObjectMapper();
+        mapper.setVisibilityChecker(mapper.getSerializationConfig().getDefaultVisibilityChecker()
+                .withFieldVisibility(JsonAutoDetect.Visibility.ANY)
+                .withGetterVisibility(JsonAutoDetect.Visibility.NONE)
+                .withSetterVisibility(JsonAutoDetect.Visibility.NONE)
+                .withCreatorVisibility(JsonAutoDetect.Visibility.NONE));
     }
 
-    public void send(String s) {
+    @PreDestroy
+    void closeContexts() {
+        closed = true;
+        PooledContext pooled;
+        while ((pooled = idleContexts.poll()) != null) {
+            pooled.close();
+        }
     }
 
+    /**
+     * @return the destination {@link #send(String)} sends to, or <code>null</code> if none has been set
+     */
+    public Destination getDefaultDestination() {
+        return defaultDestination;
+    }
+
+    public void setDefaultDestination(Destination defaultDestination) {
+        this.defaultDestination = defaultDestination;
+    }
+
+    /**
+     * Sends the given text, which is expected to already be JSON, to the {@link #getDefaultDestination() default
+     * destination}.
+     *
+     * @param s the message body
+     * @throws IllegalStateException if no default destination has been set
+     */
+    public void send(String s) {
+        Destination destination = defaultDestination;
+        if (destination == null) {
+            throw new IllegalStateException("No default destination has been set");
+        }
+        sendText(destination, s);
+    }
 
     public <T> void send(Destination destination, T value) {
-        try (JMSContext context = connectionFactory.createContext()) {
-            String json = mapper.writeValueAsString(value);
-            context.createProducer().send(destination, json);
+        if (destination == null) {
+            throw new IllegalArgumentException("destination must not be null");
+        }
+        final String json;
+        try {
+            json = toJSON(value);
         } catch (JsonProcessingException e) {
             throw new RuntimeException(e);
         }
+        sendText(destination, json);
+    }
+
+    private String toJSON(Object value) throws JsonProcessingException {
+        if (value instanceof BasicMessage) {
+            return ((BasicMessage) value).toJSON();
+        }
+        if (value == null) {
+            return mapper.writeValueAsString(null);
+        }
+        Class<?> type = value.getClass();
+        ObjectWriter writer = writers.get(type);
+        if (writer == null) {
+            ObjectWriter newWriter = mapper.writerFor(type);
+            writer = writers.putIfAbsent(type, newWriter);
+            if (writer == null) {
+                writer = newWriter;
+            }
+        }
+        return writer.writeValueAsString(value);
     }
 
+    private void sendText(Destination destination, String text) {
+        if (closed) {
+            throw new IllegalStateException("The bus has been shut down");
+        }
+        PooledContext pooled = idleContexts.poll();
+        if (pooled == null) {
+            pooled = new PooledContext(connectionFactory.createContext());
+        }
+
+        boolean reusable = false;
+        try {
+            pooled.producer.send(destination, text);
+            reusable = true;
+        } finally {
+            if (!reusable || !idleContexts.offer(pooled)) {
+                pooled.close();
+            } else if (closed) {
+                closeContexts(); // we were shut down while sending; do not leave the context behind
+            }
+        }
+    }
+
+    /**
+     * A context and the producer created from it.
+     */
+    private static final class PooledContext {
+        private final JMSContext context;
+        private final JMSProducer producer;
+
+        PooledContext(JMSContext context) {
+            this.context = context;
+            try {
+                this.producer = context.createProducer();
+            } catch (RuntimeException e) {
+                context.close();
+                throw e;
+            }
+        }
+
+        void close() {
+            context.close();
+        }
+    }
 }
@@ -24,6 +24,8 @@ import javax.jms.Destination;
 import javax.jms.JMSException;
 import javax.jms.Session;
 
+import org.hawkular.bus.common.consumer.RPCResponseDispatcher;
+
 /**
  * This is a simple POJO that just contains objects related to particular connection. This object does not distinguish
  * between a producer's connection or consumer's connection - that is the job of the subclasses.
@@ -78,6 +80,7 @@ public class ConnectionContext implements Closeable {
             }
         }
         if (connection != null) {
+            RPCResponseDispatcher.closeForConnection(connection);
             try {
                 connection.close();
             } catch (JMSException e) {
@@ -16,6 +16,12 @@
  */
 package org.hawkular.bus.common;
 
+import java.util.Iterator;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.TimeUnit;
+
 import javax.jms.Connection;
 import javax.jms.ConnectionFactory;
 import javax.jms.Destination;
@@ -25,8 +31,10 @@ import javax.jms.MessageProducer;
 import javax.jms.Session;
 
 import org.hawkular.bus.common.consumer.ConsumerConnectionContext;
+import org.hawkular.bus.common.consumer.RPCResponseDispatcher;
 import org.hawkular.bus.common.log.MsgLogger;
 import org.hawkular.bus.common.producer.ProducerConnectionContext;
+import org.hawkular.bus.common.producer.ProducerOptions;
 import org.jboss.logging.Logger;
 
 /**
@@ -38,6 +46,9 @@ import org.jboss.logging.Logger;
  * {@link #createOrReuseConnection(ConnectionContext, boolean)}. If this object was told not to reuse
  * its connection, it will create a new connection for each context is creates.
  *
+ * A factory that reuses its connection can also bind a producer context to each thread that sends messages, see
+ * {@link #getThreadProducerConnectionContext(Endpoint)}.
+ *
  * When you are done with sending and receiving messages through the created contexts, you should call {@link #close()}
  * to free up resources and close the connection to the broker.
  *
@@ -45,6 +56,8 @@ import org.jboss.logging.Logger;
  */
 public class ConnectionContextFactory implements AutoCloseable {
 
+    private static final long DEAD_THREAD_SWEEP_INTERVAL_NANOS = TimeUnit.MINUTES.toNanos(1);
+
     private final MsgLogger msglog = MsgLogger.LOGGER;
     private final Logger log = Logger.getLogger(ConnectionContextFactory.class);
     private boolean reuseConnection;
@@ -53,6 +66,15 @@ public class ConnectionContextFactory implements AutoCloseable {
 
     private Connection connection;
 
+    // producer contexts bound to threads; the registry lets us close the contexts of other threads
+    private final ThreadLocal<Map<Endpoint, ProducerConnectionContext>> threadContexts = new ThreadLocal<>();
+    private final ConcurrentMap<Thread, Map<Endpoint, ProducerConnectionContext>> threadContextRegistry =
+            new ConcurrentHashMap<>();
+    // when the contexts of threads that died are next looked for, in System.nanoTime() terms
+    private volatile long nextDeadThreadSweep = System.nanoTime() + DEAD_THREAD_SWEEP_INTERVAL_NANOS;
+    // set once the factory is closed, after which no more thread-bound contexts are handed out
+    private volatile boolean threadContextsClosed;
+
     /**
      * Initializes with the given factory.
      *
@@ -98,6 +120,133 @@ public class ConnectionContextFactory implements AutoCloseable {
         return context;
     }
 
+    /**
+     * Creates a new producer connection context, reusing any existing connection that might have already been created.
+     * Its producer is anonymous: it has no destination of its own, so it can send to any destination with
+     * {@link MessageProcessor#sendTo(ProducerConnectionContext, Destination, BasicMessage)}. This suits sending
+     * responses to the destinations requests ask them to be sent to.
+     *
+     * @return the new producer connection context, populated with all but a destination
+     * @throws JMSException any error
+     */
+    public ProducerConnectionContext createAnonymousProducerConnectionContext() throws JMSException {
+        ProducerConnectionContext context = new ProducerConnectionContext();
+        createOrReuseConnection(context, true);
+        createSession(context);
+        context.setMessageProducer(context.getSession().createProducer(null));
+        return context;
+    }
+
+    /**
+     * Creates a new producer connection context like {@link #createProducerConnectionContext(Endpoint)} does, but its
+     * producer is configured with the given options.
+     *
+     * @param endpoint where the producer will send messages
+     * @param options how the producer sends messages; if <code>null</code> the JMS defaults are used
+     * @return the new producer connection context fully populated
+     * @throws JMSException any error
+     */
+    public ProducerConnectionContext createProducerConnectionContext(Endpoint endpoint, ProducerOptions options)
+            throws JMSException {
+        ProducerConnectionContext context = new ProducerConnectionContext();
+        createOrReuseConnection(context, true);
+        createSession(context);
+        createDestination(context, endpoint);
+        createProducer(context, options);
+        return context;
+    }
+
+    /**
+     * Returns the producer connection context bound to the current thread for the given endpoint, creating it on the
+     * first call. Each thread gets its own session and producer on the shared connection, so threads can send at the
+     * same time without handing contexts to each other or waiting for one another.
+     *
+     * The returned context must only be used by the current thread and must not be closed by the caller. It is
+     * closed when the thread calls {@link #releaseThreadProducerConnectionContexts()} or when this factory is closed.
+     * The contexts of threads that died are closed when any thread is bound a new context or releases its contexts,
+     * and at most a minute later by the next thread to get its context.
+     *
+     * @param endpoint where the producer will send messages
+     * @return the producer connection context of the current thread
+     * @throws JMSException any error
+     * @throws IllegalStateException if this factory does not reuse its connection or has been closed
+     */
+    public ProducerConnectionContext getThreadProducerConnectionContext(Endpoint endpoint) throws JMSException {
+        if (endpoint == null) {
+            throw new IllegalArgumentException("endpoint must not be null");
+        }
+        if (!isReuseConnection()) {
+            throw new IllegalStateException("Thread-bound contexts need a factory that reuses its connection");
+        }
+
+        if (threadContextsClosed) {
+            throw new IllegalStateException("The connection context factory has been closed");
+        }
+
+        Map<Endpoint, ProducerConnectionContext> contexts = threadContexts.get();
+        if (contexts == null) {
+            contexts = new ConcurrentHashMap<>();
+            threadContexts.set(contexts);
+        }
+        ProducerConnectionContext context = contexts.get(endpoint);
+        if (context != null) {
+            if (System.nanoTime() - nextDeadThreadSweep >= 0) {
+                synchronized (this) {
+                    closeDeadThreadProducerConnectionContexts();
+                }
+            }
+        } else {
+            // the connection is shared so only one thread at a time may create it
+            synchronized (this) {
+                if (threadContextsClosed) {
+                    throw new IllegalStateException("The connection context factory has been closed");
+                }
+                closeDeadThreadProducerConnectionContexts();
+                context = createProducerConnectionContext(endpoint);
+                contexts.put(endpoint, context);
+                threadContextRegistry.put(Thread.currentThread(), contexts);
+            }
+        }
+        return context;
+    }
+
+    /**
+     * Closes the producer connection contexts bound to the current thread by
+     * {@link #getThreadProducerConnectionContext(Endpoint)}. Threads that are about to be returned to a pool for
+     * good, or that are short-lived, should call this when they are done sending.
+     */
+    public void releaseThreadProducerConnectionContexts() {
+        Map<Endpoint, ProducerConnectionContext> contexts = threadContexts.get();
+        threadContexts.remove();
+        synchronized (this) {
+            if (contexts != null) {
+                threadContextRegistry.remove(Thread.currentThread(), contexts);
+                closeThreadProducerConnectionContexts(contexts);
+            }
+            closeDeadThreadProducerConnectionContexts();
+        }
+    }
+
+    /**
+     * Creates a new producer connection context like {@link #createProducerConnectionContext(Endpoint)} does, but its
+     * session is transacted: messages sent with it are only delivered once the session is committed. Use this with
+     * {@link MessageProcessor#sendBatch(ProducerConnectionContext, java.util.Collection)} to send many messages with a
+     * single round-trip to the broker.
+     *
+     * @param endpoint where the producer will send messages
+     * @return the new producer connection context fully populated
+     * @throws JMSException any error
+     */
+    public ProducerConnectionContext createTransactedProducerConnectionContext(Endpoint endpoint)
+            throws JMSException {
+        ProducerConnectionContext context = new ProducerConnectionContext();
+        createOrReuseConnection(context, true);
+        createTransactedSession(context);
+        createDestination(context, endpoint);
+        createProducer(context);
+        return context;
+    }
+
     /**
      * Creates a new consumer connection context, reusing any existing connection that might have already been created.
      * The destination of the connection's session will be that of the given endpoint.
@@ -135,16 +284,62 @@ public class ConnectionContextFactory implements AutoCloseable {
      * This will close its open connection that it has cached, thus freeing up resources.
      * This method should be called when this context factory is no longer needed. But realize
      * that any contexts that were created with the cached connection will be invalidated
-     * since this method will close that connection.
+     * since this method will close that connection. The contexts bound to threads are closed, and
+     * {@link #getThreadProducerConnectionContext(Endpoint)} can no longer be called.
      *
      * @throws JMSException any error
      */
     @Override
     public void close() throws JMSException {
+        synchronized (this) {
+            threadContextsClosed = true;
+            for (Map<Endpoint, ProducerConnectionContext> contexts : threadContextRegistry.values()) {
+                closeThreadProducerConnectionContexts(contexts);
+            }
+            threadContextRegistry.clear();
+        }
         cacheConnection(null, true);
         log.debugf("%s has been closed", this);
     }
 
+    /**
+     * Closes the producer connection contexts of threads that have died. Must be called while holding the lock of
+     * this factory.
+     */
+    private void closeDeadThreadProducerConnectionContexts() {
+        nextDeadThreadSweep = System.nanoTime() + DEAD_THREAD_SWEEP_INTERVAL_NANOS;
+        Iterator<Map.Entry<Thread, Map<Endpoint, ProducerConnectionContext>>> i;
+        for (i = threadContextRegistry.entrySet().iterator(); i.hasNext();) {
+            Map.Entry<Thread, Map<Endpoint, ProducerConnectionContext>> entry = i.next();
+            if (!entry.getKey().isAlive()) {
+                log.debugf("Closing the producers of thread [%s] that has died", entry.getKey().getName());
+                closeThreadProducerConnectionContexts(entry.getValue());
+                i.remove();
+            }
+        }
+    }
+
+    /**
+     * Closes the given thread-bound contexts, but not their connection since that is shared, and empties the map so
+     * its thread creates new contexts if it sends again.
+     */
+    private void closeThreadProducerConnectionContexts(Map<Endpoint, ProducerConnectionContext> contexts) {
+        for (Iterator<ProducerConnectionContext> i = contexts.values().iterator(); i.hasNext();) {
+            ProducerConnectionContext context = i.next();
+            i.remove();
+            try {
+                if (context.getMessageProducer() != null) {
+                    context.getMessageProducer().close();
+                }
+                if (context.getSession() != null) {
+                    context.getSession().close();
+                }
+            } catch (JMSException e) {
+                msglog.errorFailedToClosePooledProducer(e);
+            }
+        }
+    }
+
     /**
      * @return true if this factory will reuse its connection. Otherwise,
      *         it will always create new connections for each context it creates.
@@ -193,6 +388,7 @@ public class ConnectionContextFactory implements AutoCloseable {
         if (this.connection != null && closeExistingConnection) {
             try {
                 // make sure it is closed to free up any resources it was using
+                RPCResponseDispatcher.closeForConnection(this.connection);
                 this.connection.close();
             } catch (JMSException e) {
                 msglog.errorCannotCloseConnectionMemoryMightLeak(e);
@@ -300,6 +496,25 @@ public class ConnectionContextFactory implements AutoCloseable {
         context.setSession(session);
     }
 
+    /**
+     * Creates a transacted session using the context's connection. Subclasses are free to override this behavior.
+     *
+     * @param context the context where the new session is stored
+     * @throws JMSException any error
+     * @throws IllegalStateException if the context is null or the context's connection is null
+     */
+    protected void createTransactedSession(ConnectionContext context) throws JMSException {
+        if (context == null) {
+            throw new IllegalStateException("The context is null");
+        }
+        Connection conn = context.getConnection();
+        if (conn == null) {
+            throw new IllegalStateException("The context had a null connection");
+        }
+        Session session = conn.createSession(true, Session.SESSION_TRANSACTED);
+        context.setSession(session);
+    }
+
     /**
      * Creates a destination using the context's session. The destination correlates to the given named queue or topic.
      *
@@ -369,6 +584,31 @@ public class ConnectionContextFactory implements AutoCloseable {
         context.setMessageProducer(producer);
     }
 
+    /**
+     * Creates a message producer like {@link #createProducer(ProducerConnectionContext)} does and configures it with
+     * the given options.
+     *
+     * @param context the context where the new producer is stored
+     * @param options how the producer sends messages; if <code>null</code> the producer is left as created
+     * @throws JMSException any error
+     * @throws IllegalStateException if the context is null or the context's session is null
+     *                               or the context's destination is null
+     */
+    protected void createProducer(ProducerConnectionContext context, ProducerOptions options) throws JMSException {
+        createProducer(context);
+        if (options == null) {
+            return;
+        }
+        MessageProducer producer = context.getMessageProducer();
+        producer.setDeliveryMode(options.getDeliveryMode());
+        producer.setPriority(options.getPriority());
+        producer.setTimeToLive(options.getTimeToLive());
+        producer.setDeliveryDelay(options.getDeliveryDelay());
+        producer.setDisableMessageID(options.isDisableMessageID());
+        producer.setDisableMessageTimestamp(options.isDisableMessageTimestamp());
+        log.debugf("Created producer for [%s] with %s", context.getDestination(), options);
+    }
+
     /**
      * Creates a message consumer using the context's session and destination.
      *
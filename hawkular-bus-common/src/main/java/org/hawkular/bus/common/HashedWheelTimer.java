@@ -0,0 +1,359 @@
+/*
+ * Copyright 2015 Red Hat, Inc. and/or its affiliates
+ * and other contributors as indicated by the @author tags.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.hawkular.bus.common;
+
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.jboss.logging.Logger;
+
+/**
+ * Runs tasks after a delay, trading precision for being able to keep very many of them pending cheaply. Tasks are
+ * kept in a wheel of buckets that a single thread visits one per tick; scheduling and cancelling a task take constant
+ * time, and a task runs within a tick after its delay. This suits timeouts, most of which are cancelled long before
+ * they expire.
+ *
+ * Tasks run on the thread of the timer, so they must be short. The thread is only started when the first task is
+ * scheduled. Use {@link #getDefault()} rather than creating timers unless tasks need a different precision.
+ */
+public final class HashedWheelTimer implements AutoCloseable {
+
+    private static final Logger log = Logger.getLogger(HashedWheelTimer.class);
+
+    private static final long DEFAULT_TICK_MILLIS = 10L;
+    private static final int DEFAULT_TICKS_PER_WHEEL = 512;
+
+    private static final int STATE_NEW = 0;
+    private static final int STATE_STARTED = 1;
+    private static final int STATE_CLOSED = 2;
+
+    private static volatile HashedWheelTimer defaultTimer;
+
+    private final String threadName;
+    private final long tickNanos;
+    private final Bucket[] wheel;
+    private final int mask;
+
+    private final Queue<Timeout> scheduled = new ConcurrentLinkedQueue<>();
+    private final Queue<Timeout> cancelled = new ConcurrentLinkedQueue<>();
+    private final AtomicInteger state = new AtomicInteger(STATE_NEW);
+    private final AtomicLong pendingCount = new AtomicLong();
+
+    private volatile long startNanos;
+    private Thread worker;
+
+    /**
+     * @return the timer shared by everything that does not need a timer of its own; it ticks every 10 milliseconds
+     */
+    public static HashedWheelTimer getDefault() {
+        HashedWheelTimer timer = defaultTimer;
+        if (timer == null) {
+            synchronized (HashedWheelTimer.class) {
+                timer = defaultTimer;
+                if (timer == null) {
+                    timer = new HashedWheelTimer("hawkular-bus-timer", DEFAULT_TICK_MILLIS, TimeUnit.MILLISECONDS,
+                            DEFAULT_TICKS_PER_WHEEL);
+                    defaultTimer = timer;
+                }
+            }
+        }
+        return timer;
+    }
+
+    /**
+     * @param threadName the name of the thread that runs the tasks
+     * @param tickDuration how often the thread looks for tasks to run; this is the precision of the timer
+     * @param unit the unit of the tick duration
+     * @param ticksPerWheel the number of buckets in the wheel, rounded up to a power of two; tasks due within one turn
+     *            of the wheel are each visited once
+     */
+    public HashedWheelTimer(String threadName, long tickDuration, TimeUnit unit, int ticksPerWheel) {
+        if (threadName == null) {
+            throw new IllegalArgumentException("threadName must not be null");
+        }
+        if (tickDuration <= 0) {
+            throw new IllegalArgumentException("tickDuration must be positive: " + tickDuration);
+        }
+        if (unit == null) {
+            throw new IllegalArgumentException("unit must not be null");
+        }
+        if (ticksPerWheel < 1 || ticksPerWheel > (1 << 30)) {
+            throw new IllegalArgumentException("ticksPerWheel must be between 1 and 2^30: " + ticksPerWheel);
+        }
+        this.threadName = threadName;
+        this.tickNanos = unit.toNanos(tickDuration);
+        int size = Integer.highestOneBit(ticksPerWheel);
+        if (size < ticksPerWheel) {
+            size <<= 1;
+        }
+        this.wheel = new Bucket[size];
+        for (int i = 0; i < size; i++) {
+            this.wheel[i] = new Bucket();
+        }
+        this.mask = size - 1;
+    }
+
+    /**
+     * Runs the given task once the delay has passed.
+     *
+     * @param task what to run; exceptions it throws are logged
+     * @param delay how long to wait before running the task
+     * @param unit the unit of the delay
+     * @return the handle that cancels the task
+     */
+    public Timeout schedule(Runnable task, long delay, TimeUnit unit) {
+        if (task == null) {
+            throw new IllegalArgumentException("task must not be null");
+        }
+        if (unit == null) {
+            throw new IllegalArgumentException("unit must not be null");
+        }
+        start();
+        long deadline = System.nanoTime() + Math.max(unit.toNanos(delay), 0L) - startNanos;
+        Timeout timeout = new Timeout(this, task, deadline);
+        pendingCount.incrementAndGet();
+        scheduled.add(timeout);
+        return timeout;
+    }
+
+    /**
+     * @return the number of tasks that have neither run nor been cancelled
+     */
+    public long getPendingCount() {
+        return pendingCount.get();
+    }
+
+    /**
+     * Stops the thread of the timer. Tasks that have not run yet never will and no more tasks can be scheduled. The
+     * {@link #getDefault() default timer} cannot be closed.
+     */
+    @Override
+    public void close() {
+        if (this == defaultTimer) {
+            throw new IllegalStateException("The default timer cannot be closed");
+        }
+        if (state.getAndSet(STATE_CLOSED) == STATE_STARTED) {
+            worker.interrupt();
+            boolean interrupted = false;
+            while (worker.isAlive()) {
+                try {
+                    worker.join();
+                } catch (InterruptedException e) {
+                    interrupted = true;
+                }
+            }
+            if (interrupted) {
+                Thread.currentThread().interrupt();
+            }
+        }
+    }
+
+    private void start() {
+        switch (state.get()) {
+            case STATE_STARTED:
+                return;
+            case STATE_CLOSED:
+                throw new IllegalStateException("The timer has been closed");
+            default:
+                synchronized (this) {
+                    if (state.get() == STATE_NEW) {
+                        startNanos = System.nanoTime();
+                        worker = new Thread(new Worker(), threadName);
+                        worker.setDaemon(true);
+                        // the worker stops as soon as it finds the timer is not started
+                        state.set(STATE_STARTED);
+                        worker.start();
+                    } else if (state.get() == STATE_CLOSED) {
+                        throw new IllegalStateException("The timer has been closed");
+                    }
+                }
+        }
+    }
+
+    private final class Worker implements Runnable {
+        private long tick;
+
+        @Override
+        public void run() {
+            while (state.get() == STATE_STARTED) {
+                if (!waitForNextTick()) {
+                    break;
+                }
+                removeCancelled();
+                addScheduled();
+                wheel[(int) (tick & mask)].expire(tick * tickNanos + tickNanos);
+                tick++;
+            }
+        }
+
+        private boolean waitForNextTick() {
+            long wakeUp = startNanos + (tick + 1) * tickNanos;
+            for (;;) {
+                long sleepNanos = wakeUp - System.nanoTime();
+                if (sleepNanos <= 0) {
+                    return true;
+                }
+                try {
+                    TimeUnit.NANOSECONDS.sleep(sleepNanos);
+                } catch (InterruptedException e) {
+                    if (state.get() != STATE_STARTED) {
+                        return false;
+                    }
+                }
+            }
+        }
+
+        private void removeCancelled() {
+            for (Timeout timeout = cancelled.poll(); timeout != null; timeout = cancelled.poll()) {
+                if (timeout.bucket != null) {
+                    timeout.bucket.remove(timeout);
+                }
+            }
+        }
+
+        private void addScheduled() {
+            for (Timeout timeout = scheduled.poll(); timeout != null; timeout = scheduled.poll()) {
+                if (timeout.state.get() != Timeout.PENDING) {
+                    continue;
+                }
+                // tasks already due go into the current bucket so they run on this tick
+                long dueTick = Math.max(timeout.deadlineNanos / tickNanos, tick);
+                timeout.remainingRounds = (dueTick - tick) / wheel.length;
+                wheel[(int) (dueTick & mask)].add(timeout);
+            }
+        }
+    }
+
+    /**
+     * A task scheduled with a {@link HashedWheelTimer}.
+     */
+    public static final class Timeout {
+        private static final int PENDING = 0;
+        private static final int CANCELLED = 1;
+        private static final int EXPIRED = 2;
+
+        private final HashedWheelTimer timer;
+        private final Runnable task;
+        private final long deadlineNanos;
+        private final AtomicInteger state = new AtomicInteger(PENDING);
+
+        // only used by the thread of the timer
+        private long remainingRounds;
+        private Bucket bucket;
+        private Timeout next;
+        private Timeout previous;
+
+        private Timeout(HashedWheelTimer timer, Runnable task, long deadlineNanos) {
+            this.timer = timer;
+            this.task = task;
+            this.deadlineNanos = deadlineNanos;
+        }
+
+        /**
+         * Makes sure the task does not run.
+         *
+         * @return false if the task already ran or was already cancelled
+         */
+        public boolean cancel() {
+            if (!state.compareAndSet(PENDING, CANCELLED)) {
+                return false;
+            }
+            timer.pendingCount.decrementAndGet();
+            timer.cancelled.add(this);
+            return true;
+        }
+
+        public boolean isCancelled() {
+            return state.get() == CANCELLED;
+        }
+
+        /**
+         * @return true if the task ran or is running
+         */
+        public boolean isExpired() {
+            return state.get() == EXPIRED;
+        }
+
+        private void expire() {
+            if (!state.compareAndSet(PENDING, EXPIRED)) {
+                return;
+            }
+            timer.pendingCount.decrementAndGet();
+            try {
+                task.run();
+            } catch (Throwable t) {
+                log.warnf(t, "Timer task [%s] failed", task);
+            }
+        }
+    }
+
+    // a doubly-linked list so cancelled tasks can be taken out of it in constant time
+    private static final class Bucket {
+        private Timeout head;
+        private Timeout tail;
+
+        void add(Timeout timeout) {
+            timeout.bucket = this;
+            if (head == null) {
+                head = timeout;
+                tail = timeout;
+            } else {
+                tail.next = timeout;
+                timeout.previous = tail;
+                tail = timeout;
+            }
+        }
+
+        void expire(long tickEndNanos) {
+            Timeout timeout = head;
+            while (timeout != null) {
+                Timeout next = timeout.next;
+                if (timeout.remainingRounds <= 0 && timeout.deadlineNanos < tickEndNanos) {
+                    remove(timeout);
+                    timeout.expire();
+                } else if (timeout.isCancelled()) {
+                    remove(timeout);
+                } else {
+                    timeout.remainingRounds--;
+                }
+                timeout = next;
+            }
+        }
+
+        void remove(Timeout timeout) {
+            if (timeout.bucket != this) {
+                return;
+            }
+            if (timeout.previous != null) {
+                timeout.previous.next = timeout.next;
+            } else {
+                head = timeout.next;
+            }
+            if (timeout.next != null) {
+                timeout.next.previous = timeout.previous;
+            } else {
+                tail = timeout.previous;
+            }
+            timeout.next = null;
+            timeout.previous = null;
+            timeout.bucket = null;
+        }
+    }
+}
@@ -0,0 +1,142 @@
+/*
+ * Copyright 2015 Red Hat, Inc. and/or its affiliates
+ * and other contributors as indicated by the @author tags.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.hawkular.bus.common;
+
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.Set;
+
+import javax.jms.JMSException;
+import javax.jms.Message;
+
+/**
+ * Headers that are checked once and then applied to any number of messages without further work. Use a template
+ * for the constant headers sent with many messages: pass it wherever headers are accepted, either to
+ * {@link MessageProcessor} or to {@link BasicMessage#setHeaders(Map)}, and {@link MessageProcessor} sets the headers
+ * with {@link #applyTo(Message)} rather than looking them up one map entry at a time.
+ *
+ * The header names are checked to be valid JMS property identifiers when the template is built, so mistakes show
+ * up at that time rather than when the first message is sent.
+ */
+public final class HeaderTemplate extends ReadOnlyHeaders {
+
+    private static final Set<String> RESERVED_WORDS = new HashSet<>(Arrays.asList("NULL", "TRUE", "FALSE", "NOT",
+            "AND", "OR", "BETWEEN", "LIKE", "IN", "IS", "ESCAPE"));
+
+    private final String[] names;
+    private final String[] values;
+    private final Map<String, String> headers;
+
+    private HeaderTemplate(Map<String, String> headers) {
+        this.headers = Collections.unmodifiableMap(headers);
+        this.names = headers.keySet().toArray(new String[headers.size()]);
+        this.values = headers.values().toArray(new String[headers.size()]);
+    }
+
+    /**
+     * Builds a template of the given headers. Changes made to the given map afterwards are not seen by the template.
+     *
+     * @param headers the header names and values
+     * @return the template
+     * @throws IllegalArgumentException if a name is not a valid JMS property name or a value is null
+     */
+    public static HeaderTemplate of(Map<String, String> headers) {
+        if (headers instanceof HeaderTemplate) {
+            return (HeaderTemplate) headers;
+        }
+        if (headers == null) {
+            throw new IllegalArgumentException("headers must not be null");
+        }
+        Map<String, String> copy = new LinkedHashMap<>(headers);
+        for (Map.Entry<String, String> header : copy.entrySet()) {
+            validateName(header.getKey());
+            if (header.getValue() == null) {
+                throw new IllegalArgumentException("Header [" + header.getKey() + "] has a null value");
+            }
+        }
+        return new HeaderTemplate(copy);
+    }
+
+    /**
+     * Returns a template with the headers of this one plus the given header, which replaces a header of this
+     * template with the same name.
+     *
+     * @param name the name of the header
+     * @param value the value of the header
+     * @return the new template
+     */
+    public HeaderTemplate with(String name, String value) {
+        Map<String, String> copy = new LinkedHashMap<>(headers);
+        copy.put(name, value);
+        return of(copy);
+    }
+
+    /**
+     * Sets the headers as string properties of the given message.
+     *
+     * @param message the message to set the headers on
+     * @throws JMSException if a property cannot be set
+     */
+    public void applyTo(Message message) throws JMSException {
+        for (int i = 0; i < names.length; i++) {
+            message.setStringProperty(names[i], values[i]);
+        }
+    }
+
+    @Override
+    public String get(Object key) {
+        return headers.get(key);
+    }
+
+    @Override
+    public boolean containsKey(Object key) {
+        return headers.containsKey(key);
+    }
+
+    @Override
+    public int size() {
+        return names.length;
+    }
+
+    @Override
+    public Set<Map.Entry<String, String>> entrySet() {
+        return headers.entrySet();
+    }
+
+    private static void validateName(String name) {
+        if (name == null || name.isEmpty()) {
+            throw new IllegalArgumentException("Header names must not be null or empty");
+        }
+        if (!Character.isJavaIdentifierStart(name.charAt(0))) {
+            throw new IllegalArgumentException("Header name [" + name + "] is not a valid JMS property name");
+        }
+        for (int i = 1; i < name.length(); i++) {
+            if (!Character.isJavaIdentifierPart(name.charAt(i))) {
+                throw new IllegalArgumentException("Header name [" + name + "] is not a valid JMS property name");
+            }
+        }
+        if (RESERVED_WORDS.contains(name.toUpperCase())) {
+            throw new IllegalArgumentException("Header name [" + name + "] is a reserved word");
+        }
+        if (name.startsWith("JMS")) {
+            throw new IllegalArgumentException("Header name [" + name + "] uses the reserved JMS prefix");
+        }
+    }
+}
@@ -0,0 +1,110 @@
+/*
+ * Copyright 2015 Red Hat, Inc. and/or its affiliates
+ * and other contributors as indicated by the @author tags.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.hawkular.bus.common;
+
+import java.util.Collections;
+import java.util.Enumeration;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.Set;
+
+import javax.jms.JMSException;
+import javax.jms.Message;
+
+/**
+ * A read-only view of the properties of a JMS {@link Message} as string headers.
+ *
+ * Properties are fetched from the message only when they are accessed. Looking up a single header is a single
+ * property lookup; only operations that need all headers (such as iterating them or asking for the size) read all
+ * of the properties, and they do that only once.
+ *
+ * The view assumes the properties of the message no longer change, which is the case for received messages.
+ * Any {@link JMSException} thrown by the message is rethrown as an {@link IllegalStateException}.
+ */
+public class JMSMessageHeaders extends ReadOnlyHeaders {
+    private final Message message;
+
+    // all properties, read the first time they are all needed
+    private volatile Map<String, String> allHeaders;
+
+    public JMSMessageHeaders(Message message) {
+        if (message == null) {
+            throw new IllegalArgumentException("message must not be null");
+        }
+        this.message = message;
+    }
+
+    @Override
+    public String get(Object key) {
+        if (!(key instanceof String)) {
+            return null;
+        }
+        Map<String, String> all = allHeaders;
+        if (all != null) {
+            return all.get(key);
+        }
+        try {
+            return message.getStringProperty((String) key);
+        } catch (JMSException e) {
+            throw new IllegalStateException("Cannot read header [" + key + "] of message", e);
+        }
+    }
+
+    @Override
+    public boolean containsKey(Object key) {
+        if (!(key instanceof String)) {
+            return false;
+        }
+        Map<String, String> all = allHeaders;
+        if (all != null) {
+            return all.containsKey(key);
+        }
+        try {
+            return message.propertyExists((String) key);
+        } catch (JMSException e) {
+            throw new IllegalStateException("Cannot read header [" + key + "] of message", e);
+        }
+    }
+
+    @Override
+    public int size() {
+        return getAllHeaders().size();
+    }
+
+    @Override
+    public Set<Map.Entry<String, String>> entrySet() {
+        return getAllHeaders().entrySet();
+    }
+
+    private Map<String, String> getAllHeaders() {
+        Map<String, String> all = allHeaders;
+        if (all == null) {
+            try {
+                HashMap<String, String> rawHeaders = new HashMap<String, String>();
+                for (Enumeration<?> propNames = message.getPropertyNames(); propNames.hasMoreElements();) {
+                    String propName = propNames.nextElement().toString();
+                    rawHeaders.put(propName, message.getStringProperty(propName));
+                }
+                all = Collections.unmodifiableMap(rawHeaders);
+            } catch (JMSException e) {
+                throw new IllegalStateException("Cannot read headers of message", e);
+            }
+            allHeaders = all;
+        }
+        return all;
+    }
+}
@@ -0,0 +1,250 @@
+/*
+ * Copyright 2015 Red Hat, Inc. and/or its affiliates
+ * and other contributors as indicated by the @author tags.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.hawkular.bus.common;
+
+import java.lang.reflect.Method;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+
+import org.hawkular.bus.common.codec.MessageSerializer;
+import org.hawkular.bus.common.msg.features.FailOnUnknownProperties;
+
+import com.fasterxml.jackson.databind.DeserializationFeature;
+import com.fasterxml.jackson.databind.ObjectMapper;
+import com.fasterxml.jackson.databind.ObjectReader;
+import com.fasterxml.jackson.databind.ObjectWriter;
+
+/**
+ * Thread-safe registry of the Jackson {@link ObjectReader readers} and {@link ObjectWriter writers} used to convert
+ * messages to and from JSON. Readers and writers are immutable, so one of each is built per message class and
+ * shared by all threads rather than building a new {@link ObjectMapper} for every message.
+ *
+ * The mapper hooks of {@link AbstractMessage} are still honored. The static
+ * {@code buildObjectMapperForDeserialization} method and the {@code buildObjectMapperForSerialization} method are
+ * looked up once per message class. If a message class does not override them, the mapper they build is
+ * created once and the per-class reader/writer derived from it is cached. If a message class does override them, the
+ * override is called every time because it is free to return a differently configured mapper on each call.
+ *
+ * Readers for message classes that implement {@link FailOnUnknownProperties} will fail on unknown properties.
+ *
+ * Message classes can also have a {@link MessageSerializer} generated for them at compile time. It is looked up once
+ * per message class by its name (see {@link MessageSerializer#GENERATED_CLASS_SUFFIX}) and callers should prefer it
+ * over the reader and writer when there is one. Generated serializers are ignored for classes that override the
+ * mapper hooks.
+ */
+public final class JsonCodecRegistry {
+
+    private static final String DESERIALIZATION_HOOK = "buildObjectMapperForDeserialization";
+    private static final String SERIALIZATION_HOOK = "buildObjectMapperForSerialization";
+
+    private static final ConcurrentMap<Class<?>, Codec> CODECS = new ConcurrentHashMap<>();
+
+    private static volatile ObjectMapper defaultDeserializationMapper;
+    private static volatile ObjectMapper defaultSerializationMapper;
+
+    private JsonCodecRegistry() {
+    }
+
+    /**
+     * Returns the reader that converts JSON to objects of the given class.
+     *
+     * @param clazz the message class to be read
+     * @return the reader for the message class
+     */
+    public static ObjectReader readerFor(Class<? extends BasicMessage> clazz) {
+        if (clazz == null) {
+            throw new IllegalArgumentException("clazz must not be null");
+        }
+        return getCodec(clazz).getReader();
+    }
+
+    /**
+     * Returns the writer that converts the given message to JSON.
+     *
+     * @param message the message to be written
+     * @return the writer for the message's class
+     */
+    public static ObjectWriter writerFor(AbstractMessage message) {
+        if (message == null) {
+            throw new IllegalArgumentException("message must not be null");
+        }
+        return getCodec(message.getClass()).getWriter(message);
+    }
+
+    /**
+     * Returns the serializer that was generated for the given message class.
+     *
+     * @param clazz the message class
+     * @return the generated serializer or <code>null</code> if the reader and writer are to be used
+     */
+    @SuppressWarnings("unchecked")
+    public static <T extends BasicMessage> MessageSerializer<T> serializerFor(Class<T> clazz) {
+        if (clazz == null) {
+            throw new IllegalArgumentException("clazz must not be null");
+        }
+        return (MessageSerializer<T>) getCodec(clazz).serializer;
+    }
+
+    private static Codec getCodec(Class<?> clazz) {
+        Codec codec = CODECS.get(clazz);
+        if (codec == null) {
+            Codec newCodec = new Codec(clazz);
+            codec = CODECS.putIfAbsent(clazz, newCodec);
+            if (codec == null) {
+                codec = newCodec;
+            }
+        }
+        return codec;
+    }
+
+    private static ObjectMapper getDefaultDeserializationMapper() {
+        ObjectMapper mapper = defaultDeserializationMapper;
+        if (mapper == null) {
+            // a race here only means the default mapper is built more than once, which is harmless
+            mapper = AbstractMessage.buildObjectMapperForDeserialization();
+            defaultDeserializationMapper = mapper;
+        }
+        return mapper;
+    }
+
+    private static ObjectMapper getDefaultSerializationMapper(AbstractMessage message) {
+        ObjectMapper mapper = defaultSerializationMapper;
+        if (mapper == null) {
+            // the hook is not overridden so it is the AbstractMessage implementation that is called here
+            mapper = message.buildObjectMapperForSerialization();
+            defaultSerializationMapper = mapper;
+        }
+        return mapper;
+    }
+
+    /**
+     * Walks up the class hierarchy looking for the class that declares the named method with no parameters.
+     *
+     * @return the method or <code>null</code> if neither the class nor its superclasses declare it
+     */
+    private static Method findDeclaredMethod(Class<?> clazz, String name) {
+        for (Class<?> c = clazz; c != null; c = c.getSuperclass()) {
+            try {
+                return c.getDeclaredMethod(name);
+            } catch (NoSuchMethodException e) {
+                // the given class doesn't declare the method, maybe its superclass does.
+            }
+        }
+        return null;
+    }
+
+    /**
+     * Looks for the serializer generated for the given class. This is done only once per class, so failures are
+     * silently treated as if there were no generated serializer.
+     *
+     * @return a new instance of the generated serializer or <code>null</code> if there is none
+     */
+    private static MessageSerializer<?> findGeneratedSerializer(Class<?> clazz) {
+        ClassLoader cl = clazz.getClassLoader();
+        if (cl == null) {
+            return null;
+        }
+        try {
+            Class<?> serializerClass = Class.forName(clazz.getName() + MessageSerializer.GENERATED_CLASS_SUFFIX,
+                    true, cl);
+            if (!MessageSerializer.class.isAssignableFrom(serializerClass)) {
+                return null;
+            }
+            return (MessageSerializer<?>) serializerClass.newInstance();
+        } catch (ClassNotFoundException e) {
+            return null;
+        } catch (Exception | LinkageError e) {
+            // the generated code is unusable (e.g. built against another version of Jackson); databind still works
+            return null;
+        }
+    }
+
+    /**
+     * The cached JSON conversion information of a single message class.
+     */
+    private static final class Codec {
+        private final Class<?> clazz;
+        private final boolean failOnUnknownProperties;
+
+        // the overriding deserialization hook, or null if the AbstractMessage one is to be used
+        private final Method deserializationHook;
+        // true if the class overrides the serialization hook so it must be called for each message
+        private final boolean serializationHookOverridden;
+
+        // the generated serializer, or null if the reader and writer are to be used
+        private final MessageSerializer<?> serializer;
+
+        private volatile ObjectReader reader;
+        private volatile ObjectWriter writer;
+
+        Codec(Class<?> clazz) {
+            this.clazz = clazz;
+            this.failOnUnknownProperties = FailOnUnknownProperties.class.isAssignableFrom(clazz);
+
+            Method hook = findDeclaredMethod(clazz, DESERIALIZATION_HOOK);
+            if (hook == null || hook.getDeclaringClass() == AbstractMessage.class) {
+                this.deserializationHook = null;
+            } else {
+                hook.setAccessible(true);
+                this.deserializationHook = hook;
+            }
+
+            hook = findDeclaredMethod(clazz, SERIALIZATION_HOOK);
+            this.serializationHookOverridden = (hook != null && hook.getDeclaringClass() != AbstractMessage.class);
+
+            // a generated serializer cannot know what a custom mapper would have done
+            this.serializer = (deserializationHook == null && !serializationHookOverridden)
+                    ? findGeneratedSerializer(clazz) : null;
+        }
+
+        ObjectReader getReader() {
+            if (deserializationHook != null) {
+                final ObjectMapper mapper;
+                try {
+                    mapper = (ObjectMapper) deserializationHook.invoke(null);
+                } catch (Exception e) {
+                    throw new IllegalStateException("Cannot build object mapper for [" + clazz + "]", e);
+                }
+                return configure(mapper.readerFor(clazz));
+            }
+
+            ObjectReader r = reader;
+            if (r == null) {
+                r = configure(getDefaultDeserializationMapper().readerFor(clazz));
+                reader = r;
+            }
+            return r;
+        }
+
+        ObjectWriter getWriter(AbstractMessage message) {
+            if (serializationHookOverridden) {
+                return message.buildObjectMapperForSerialization().writerFor(clazz);
+            }
+
+            ObjectWriter w = writer;
+            if (w == null) {
+                w = getDefaultSerializationMapper(message).writerFor(clazz);
+                writer = w;
+            }
+            return w;
+        }
+
+        private ObjectReader configure(ObjectReader r) {
+            return (failOnUnknownProperties) ? r.with(DeserializationFeature.FAIL_ON_UNKNOWN_PROPERTIES) : r;
+        }
+    }
+}
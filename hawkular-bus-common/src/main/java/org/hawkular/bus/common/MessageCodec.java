@@ -0,0 +1,68 @@
+/*
+ * Copyright 2015 Red Hat, Inc. and/or its affiliates
+ * and other contributors as indicated by the @author tags.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.hawkular.bus.common;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+
+/**
+ * Converts messages to and from the bytes that are sent over the wire.
+ *
+ * The producer names the codec it used in the {@link MessageProcessor#HEADER_MESSAGE_CODEC} header so the listener
+ * can look up the same codec by {@link #getName() name} via {@link MessageCodecs#forName(String)}. Messages without
+ * that header are assumed to be JSON encoded.
+ *
+ * Additional codecs can be provided through the {@link java.util.ServiceLoader} mechanism by listing them in a
+ * {@code META-INF/services/org.hawkular.bus.common.MessageCodec} file. Implementations must be thread-safe.
+ */
+public interface MessageCodec {
+
+    /**
+     * @return the name that identifies this codec in the {@link MessageProcessor#HEADER_MESSAGE_CODEC} header
+     */
+    String getName();
+
+    /**
+     * Encodes the given message.
+     *
+     * @param basicMessage the message to encode
+     * @return the encoded message
+     */
+    byte[] encode(BasicMessage basicMessage);
+
+    /**
+     * Encodes the given message straight into the given stream without building an intermediate copy of the
+     * encoded message. The stream is flushed but not closed.
+     *
+     * @param basicMessage the message to encode
+     * @param out where the encoded message is written
+     * @throws IOException if the stream cannot be written to
+     */
+    void encode(BasicMessage basicMessage, OutputStream out) throws IOException;
+
+    /**
+     * Decodes a message found at the head of the given stream. The input stream will remain open so the caller can
+     * stream any extra data that might appear after it - see {@link AbstractMessage#fromJSON(InputStream, Class)}
+     * for the semantics of the returned object.
+     *
+     * @param in input stream that has an encoded message at the head
+     * @param clazz the class whose instance is represented by the encoded message
+     * @return a POJO that contains the decoded message and the extra data that followed it in the stream
+     */
+    <T extends BasicMessage> BasicMessageWithExtraData<T> decode(InputStream in, Class<T> clazz);
+}
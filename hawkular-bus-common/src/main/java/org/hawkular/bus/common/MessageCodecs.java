@@ -0,0 +1,136 @@
+/*
+ * Copyright 2015 Red Hat, Inc. and/or its affiliates
+ * and other contributors as indicated by the @author tags.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.hawkular.bus.common;
+
+import java.util.Collection;
+import java.util.Collections;
+import java.util.Iterator;
+import java.util.ServiceConfigurationError;
+import java.util.ServiceLoader;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+
+import org.hawkular.bus.common.codec.CborMessageCodec;
+import org.hawkular.bus.common.codec.JsonMessageCodec;
+import org.hawkular.bus.common.codec.SmileMessageCodec;
+import org.jboss.logging.Logger;
+
+/**
+ * Registry of the {@link MessageCodec codecs} known to this JVM, keyed by their names.
+ *
+ * JSON is always available. Smile and CBOR are registered if their optional Jackson data format libraries are on the
+ * classpath. Codecs listed in {@code META-INF/services/org.hawkular.bus.common.MessageCodec} files are registered
+ * too, and others can be added at runtime via {@link #register(MessageCodec)}.
+ */
+public final class MessageCodecs {
+    private static final Logger log = Logger.getLogger(MessageCodecs.class);
+
+    private static final MessageCodec JSON = new JsonMessageCodec();
+
+    private static final ConcurrentMap<String, MessageCodec> CODECS = new ConcurrentHashMap<>();
+
+    static {
+        register(JSON);
+
+        try {
+            register(new SmileMessageCodec());
+        } catch (LinkageError e) {
+            log.debugf("Smile codec is not available: %s", e);
+        }
+
+        try {
+            register(new CborMessageCodec());
+        } catch (LinkageError e) {
+            log.debugf("CBOR codec is not available: %s", e);
+        }
+
+        Iterator<MessageCodec> providers = ServiceLoader.load(MessageCodec.class, MessageCodecs.class.getClassLoader())
+                .iterator();
+        while (true) {
+            try {
+                if (!providers.hasNext()) {
+                    break;
+                }
+                register(providers.next());
+            } catch (ServiceConfigurationError | LinkageError e) {
+                log.warnf(e, "Skipping a message codec that could not be loaded");
+            }
+        }
+    }
+
+    private MessageCodecs() {
+    }
+
+    /**
+     * @return the JSON codec which is the default codec
+     */
+    public static MessageCodec json() {
+        return JSON;
+    }
+
+    /**
+     * Returns the codec with the given name.
+     *
+     * @param name the codec name; if <code>null</code> the {@link #json() JSON codec} is returned since that is what
+     *            messages that do not name their codec are encoded with
+     * @return the codec
+     * @throws IllegalArgumentException if there is no codec with the given name
+     */
+    public static MessageCodec forName(String name) {
+        if (name == null) {
+            return JSON;
+        }
+        MessageCodec codec = CODECS.get(name);
+        if (codec == null) {
+            throw new IllegalArgumentException("Unknown message codec [" + name + "]; known codecs are "
+                    + CODECS.keySet());
+        }
+        return codec;
+    }
+
+    /**
+     * @return true if there is a codec with the given name
+     */
+    public static boolean isAvailable(String name) {
+        return name != null && CODECS.containsKey(name);
+    }
+
+    /**
+     * Registers a codec, replacing any codec that was registered with the same name.
+     *
+     * @param codec the codec to register
+     */
+    public static void register(MessageCodec codec) {
+        if (codec == null) {
+            throw new IllegalArgumentException("codec must not be null");
+        }
+        if (codec.getName() == null) {
+            throw new IllegalArgumentException("codec must have a name: " + codec);
+        }
+        MessageCodec old = CODECS.put(codec.getName(), codec);
+        if (old != null && old != codec) {
+            log.debugf("Message codec [%s] replaced [%s]", codec, old);
+        }
+    }
+
+    /**
+     * @return a read-only view of all registered codecs
+     */
+    public static Collection<MessageCodec> getAll() {
+        return Collections.unmodifiableCollection(CODECS.values());
+    }
+}
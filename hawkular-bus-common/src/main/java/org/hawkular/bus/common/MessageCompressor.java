@@ -0,0 +1,60 @@
+/*
+ * Copyright 2015 Red Hat, Inc. and/or its affiliates
+ * and other contributors as indicated by the @author tags.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.hawkular.bus.common;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+
+/**
+ * Compresses message bodies. Like {@link MessageCodec codecs}, compressors are identified by {@link #getName() name}:
+ * the producer names the compressor it used in the {@link MessageProcessor#HEADER_MESSAGE_COMPRESSION} header and the
+ * listener looks up the same compressor via {@link MessageCompressors#forName(String)}. Messages without that header
+ * are not compressed.
+ *
+ * Additional compressors (e.g. LZ4) can be provided through the {@link java.util.ServiceLoader} mechanism by listing
+ * them in a {@code META-INF/services/org.hawkular.bus.common.MessageCompressor} file. Implementations must be
+ * thread-safe.
+ */
+public interface MessageCompressor {
+
+    /**
+     * @return the name that identifies this compressor in the {@link MessageProcessor#HEADER_MESSAGE_COMPRESSION}
+     *         header
+     */
+    String getName();
+
+    /**
+     * Wraps the given stream so the data written to the returned stream is written compressed to the given stream.
+     * Closing the returned stream must finish the compressed data but must not close the given stream.
+     *
+     * @param out where the compressed data is written
+     * @return the stream to write the uncompressed data to
+     * @throws IOException if the stream cannot be written to
+     */
+    OutputStream compress(OutputStream out) throws IOException;
+
+    /**
+     * Wraps the given stream so the data read from the returned stream is the decompressed data of the given stream.
+     * The data is decompressed as it is read.
+     *
+     * @param in where the compressed data is read from
+     * @return the stream to read the uncompressed data from
+     * @throws IOException if the stream cannot be read
+     */
+    InputStream decompress(InputStream in) throws IOException;
+}
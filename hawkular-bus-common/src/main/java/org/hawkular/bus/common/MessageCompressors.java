@@ -0,0 +1,117 @@
+/*
+ * Copyright 2015 Red Hat, Inc. and/or its affiliates
+ * and other contributors as indicated by the @author tags.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.hawkular.bus.common;
+
+import java.util.Collection;
+import java.util.Collections;
+import java.util.Iterator;
+import java.util.ServiceConfigurationError;
+import java.util.ServiceLoader;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+
+import org.hawkular.bus.common.compression.GzipMessageCompressor;
+import org.jboss.logging.Logger;
+
+/**
+ * Registry of the {@link MessageCompressor compressors} known to this JVM, keyed by their names.
+ *
+ * Gzip is always available. Compressors listed in {@code META-INF/services/org.hawkular.bus.common.MessageCompressor}
+ * files are registered too, and others can be added at runtime via {@link #register(MessageCompressor)}.
+ */
+public final class MessageCompressors {
+    private static final Logger log = Logger.getLogger(MessageCompressors.class);
+
+    private static final MessageCompressor GZIP = new GzipMessageCompressor();
+
+    private static final ConcurrentMap<String, MessageCompressor> COMPRESSORS = new ConcurrentHashMap<>();
+
+    static {
+        register(GZIP);
+
+        Iterator<MessageCompressor> providers = ServiceLoader.load(MessageCompressor.class,
+                MessageCompressors.class.getClassLoader()).iterator();
+        while (true) {
+            try {
+                if (!providers.hasNext()) {
+                    break;
+                }
+                register(providers.next());
+            } catch (ServiceConfigurationError | LinkageError e) {
+                log.warnf(e, "Skipping a message compressor that could not be loaded");
+            }
+        }
+    }
+
+    private MessageCompressors() {
+    }
+
+    /**
+     * @return the gzip compressor
+     */
+    public static MessageCompressor gzip() {
+        return GZIP;
+    }
+
+    /**
+     * Returns the compressor with the given name.
+     *
+     * @param name the compressor name
+     * @return the compressor
+     * @throws IllegalArgumentException if there is no compressor with the given name
+     */
+    public static MessageCompressor forName(String name) {
+        MessageCompressor compressor = (name != null) ? COMPRESSORS.get(name) : null;
+        if (compressor == null) {
+            throw new IllegalArgumentException("Unknown message compressor [" + name + "]; known compressors are "
+                    + COMPRESSORS.keySet());
+        }
+        return compressor;
+    }
+
+    /**
+     * @return true if there is a compressor with the given name
+     */
+    public static boolean isAvailable(String name) {
+        return name != null && COMPRESSORS.containsKey(name);
+    }
+
+    /**
+     * Registers a compressor, replacing any compressor that was registered with the same name.
+     *
+     * @param compressor the compressor to register
+     */
+    public static void register(MessageCompressor compressor) {
+        if (compressor == null) {
+            throw new IllegalArgumentException("compressor must not be null");
+        }
+        if (compressor.getName() == null) {
+            throw new IllegalArgumentException("compressor must have a name: " + compressor);
+        }
+        MessageCompressor old = COMPRESSORS.put(compressor.getName(), compressor);
+        if (old != null && old != compressor) {
+            log.debugf("Message compressor [%s] replaced [%s]", compressor, old);
+        }
+    }
+
+    /**
+     * @return a read-only view of all registered compressors
+     */
+    public static Collection<MessageCompressor> getAll() {
+        return Collections.unmodifiableCollection(COMPRESSORS.values());
+    }
+}
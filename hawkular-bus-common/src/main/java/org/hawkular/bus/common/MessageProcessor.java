@@ -19,23 +19,44 @@ package org.hawkular.bus.common;
 import java.io.File;
 import java.io.FileInputStream;
 import java.io.FileNotFoundException;
+import java.io.IOException;
 import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.charset.StandardCharsets;
+import java.security.DigestOutputStream;
+import java.security.MessageDigest;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.LinkedHashMap;
+import java.util.List;
 import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.TimeUnit;
 
 import javax.jms.BytesMessage;
+import javax.jms.CompletionListener;
+import javax.jms.Destination;
 import javax.jms.JMSException;
 import javax.jms.Message;
 import javax.jms.MessageConsumer;
 import javax.jms.MessageProducer;
 import javax.jms.Session;
 import javax.jms.TemporaryQueue;
-import javax.jms.TextMessage;
 
+import org.hawkular.bus.common.codec.JsonMessageCodec;
+import org.hawkular.bus.common.compression.CompressingInputStream;
+import org.hawkular.bus.common.compression.ThresholdCompressingOutputStream;
 import org.hawkular.bus.common.consumer.AbstractBasicMessageListener;
 import org.hawkular.bus.common.consumer.BasicMessageListener;
 import org.hawkular.bus.common.consumer.ConsumerConnectionContext;
 import org.hawkular.bus.common.consumer.RPCConnectionContext;
+import org.hawkular.bus.common.consumer.RPCResponseDispatcher;
+import org.hawkular.bus.common.producer.BatchSendResult;
+import org.hawkular.bus.common.producer.BytesMessageOutputStream;
+import org.hawkular.bus.common.producer.DuplicateDetection;
 import org.hawkular.bus.common.producer.ProducerConnectionContext;
+import org.hawkular.bus.common.producer.RateLimiter;
 import org.jboss.logging.Logger;
 
 /**
@@ -50,6 +71,104 @@ public class MessageProcessor {
 
     public static final String HEADER_BASIC_MESSAGE_CLASS = "basicMessageClassName";
 
+    /**
+     * Names the {@link MessageCodec} that encoded the message. Messages without this header are JSON encoded.
+     */
+    public static final String HEADER_MESSAGE_CODEC = "messageCodec";
+
+    /**
+     * Names the {@link MessageCompressor} that compressed the message body. Messages without this header are not
+     * compressed.
+     */
+    public static final String HEADER_MESSAGE_COMPRESSION = "messageCompression";
+
+    /**
+     * Marks a message whose body carries binary data after the encoded message. Listeners only hand out
+     * {@link BinaryData} for messages with this header.
+     */
+    public static final String HEADER_BINARY_DATA = "binaryData";
+
+    /**
+     * The class name header value of each message class, so it is not looked up for every message.
+     */
+    private static final ClassValue<String> MESSAGE_CLASS_NAMES = new ClassValue<String>() {
+        @Override
+        protected String computeValue(Class<?> type) {
+            return type.getName();
+        }
+    };
+
+    private final MessageCodec codec;
+    private final MessageCompressor compressor;
+    private final int compressionThreshold;
+
+    /**
+     * Creates a processor that encodes messages as JSON.
+     */
+    public MessageProcessor() {
+        this(MessageCodecs.json());
+    }
+
+    /**
+     * Creates a processor that encodes the messages it sends with the given codec. Listeners look up the codec by
+     * the name found in the {@link #HEADER_MESSAGE_CODEC} header, so the codec must be
+     * {@link MessageCodecs#register(MessageCodec) registered} in the JVMs of the listeners too.
+     *
+     * Note that only listeners that know about codecs can read messages that are not JSON encoded.
+     *
+     * @param codec encodes the messages that are sent
+     */
+    public MessageProcessor(MessageCodec codec) {
+        this(codec, null, 0);
+    }
+
+    /**
+     * Creates a processor that encodes the messages it sends with the given codec and compresses those that are
+     * larger than the given threshold once encoded. Messages sent with binary data are always compressed, along
+     * with their binary data, since the size of the binary data is not known up front. Listeners look up the
+     * compressor by the name found in the {@link #HEADER_MESSAGE_COMPRESSION} header, so the compressor must be
+     * {@link MessageCompressors#register(MessageCompressor) registered} in the JVMs of the listeners too.
+     *
+     * Note that only listeners that know about compression can read compressed messages.
+     *
+     * @param codec encodes the messages that are sent
+     * @param compressor compresses the messages that are sent, or <code>null</code> to not compress them
+     * @param compressionThreshold messages that are at most this many bytes once encoded are not compressed
+     */
+    public MessageProcessor(MessageCodec codec, MessageCompressor compressor, int compressionThreshold) {
+        if (codec == null) {
+            throw new IllegalArgumentException("codec must not be null");
+        }
+        if (compressionThreshold < 0) {
+            throw new IllegalArgumentException("compressionThreshold must not be negative: " + compressionThreshold);
+        }
+        this.codec = codec;
+        this.compressor = compressor;
+        this.compressionThreshold = compressionThreshold;
+    }
+
+    /**
+     * @return the codec that encodes the messages this processor sends
+     */
+    public MessageCodec getCodec() {
+        return codec;
+    }
+
+    /**
+     * @return the compressor that compresses the messages this processor sends or <code>null</code> if they are not
+     *         compressed
+     */
+    public MessageCompressor getCompressor() {
+        return compressor;
+    }
+
+    /**
+     * @return the size in bytes of the largest encoded message that is not compressed
+     */
+    public int getCompressionThreshold() {
+        return compressionThreshold;
+    }
+
     /**
      * Listens for messages.
      *
@@ -86,14 +205,16 @@ public class MessageProcessor {
 
     /**
      * Send the given message to its destinations across the message bus. Once sent, the message will get assigned a
-     * generated message ID. That message ID will also be returned by this method.
+     * generated message ID. That message ID will also be returned by this method. If the context has a
+     * {@link ProducerConnectionContext#getRateLimiter() rate limiter}, this waits until the limiter allows the
+     * message to be sent.
      *
      * Since this is fire-and-forget - no response is expected of the remote endpoint.
      *
      * @param context information that determines where the message is sent
      * @param basicMessage the message to send with optional headers included
      * @param headers headers for the JMS transport that will override same-named headers in the basic message
-     * @return the message ID
+     * @return the message ID, or <code>null</code> if the producer does not generate message IDs
      * @throws JMSException any error
      *
      * @see ConnectionContextFactory#createProducerConnectionContext(Endpoint)
@@ -107,8 +228,106 @@ public class MessageProcessor {
             throw new IllegalArgumentException("message must not be null");
         }
 
+        RateLimiter rateLimiter = context.getRateLimiter();
+        if (rateLimiter != null) {
+            acquire(rateLimiter);
+        }
+        return doSend(context, basicMessage, headers);
+    }
+
+    /**
+     * Same as {@link #sendTo(ProducerConnectionContext, Destination, BasicMessage, Map)} with <code>null</code>
+     * headers.
+     */
+    public MessageId sendTo(ProducerConnectionContext context, Destination destination, BasicMessage basicMessage)
+            throws JMSException {
+        return sendTo(context, destination, basicMessage, null);
+    }
+
+    /**
+     * Sends the given message like {@link #send(ProducerConnectionContext, BasicMessage, Map)} does, but to the given
+     * destination. The producer of the context must be anonymous, that is, created without a destination; one such
+     * producer can send to any number of destinations, which saves creating a producer for each of them, for example
+     * when replying to requests.
+     *
+     * @param context information that determines how the message is sent; its producer must be anonymous
+     * @param destination where the message is sent
+     * @param basicMessage the message to send with optional headers included
+     * @param headers headers for the JMS transport that will override same-named headers in the basic message
+     * @return the message ID, or <code>null</code> if the producer does not generate message IDs
+     * @throws JMSException any error
+     */
+    public MessageId sendTo(ProducerConnectionContext context, Destination destination, BasicMessage basicMessage,
+            Map<String, String> headers) throws JMSException {
+        if (context == null) {
+            throw new IllegalArgumentException("context must not be null");
+        }
+        if (destination == null) {
+            throw new IllegalArgumentException("destination must not be null");
+        }
+        if (basicMessage == null) {
+            throw new IllegalArgumentException("message must not be null");
+        }
+
+        RateLimiter rateLimiter = context.getRateLimiter();
+        if (rateLimiter != null) {
+            acquire(rateLimiter);
+        }
+        return doSend(context, basicMessage, headers, destination, null);
+    }
+
+    /**
+     * Same as {@link #trySend(ProducerConnectionContext, BasicMessage, Map)} with <code>null</code> headers.
+     */
+    public boolean trySend(ProducerConnectionContext context, BasicMessage basicMessage) throws JMSException {
+        return trySend(context, basicMessage, null);
+    }
+
+    /**
+     * Sends the given message like {@link #send(ProducerConnectionContext, BasicMessage, Map)} does, unless the
+     * context's {@link ProducerConnectionContext#getRateLimiter() rate limiter} has no budget left, in which case
+     * this returns immediately without sending the message. Once sent, the message ID is found in the basic message.
+     *
+     * @param context information that determines where the message is sent
+     * @param basicMessage the message to send with optional headers included
+     * @param headers headers for the JMS transport that will override same-named headers in the basic message
+     * @return true if the message was sent, false if the rate limit did not allow it to be sent now
+     * @throws JMSException any error
+     */
+    public boolean trySend(ProducerConnectionContext context, BasicMessage basicMessage, Map<String, String> headers)
+            throws JMSException {
+        if (context == null) {
+            throw new IllegalArgumentException("context must not be null");
+        }
+        if (basicMessage == null) {
+            throw new IllegalArgumentException("message must not be null");
+        }
+
+        RateLimiter rateLimiter = context.getRateLimiter();
+        if (rateLimiter != null && !rateLimiter.tryAcquire()) {
+            return false;
+        }
+        doSend(context, basicMessage, headers);
+        return true;
+    }
+
+    private MessageId doSend(ProducerConnectionContext context, BasicMessage basicMessage, Map<String, String> headers)
+            throws JMSException {
+        return doSend(context, basicMessage, headers, null, null);
+    }
+
+    /**
+     * @param destination where to send the message if the producer is anonymous, <code>null</code> to send it to
+     *            the destination of the producer
+     * @param replyTo where responses to the message are to be sent, if anywhere
+     */
+    private MessageId doSend(ProducerConnectionContext context, BasicMessage basicMessage, Map<String, String> headers,
+            Destination destination, Destination replyTo) throws JMSException {
         // create the JMS message to be sent
         Message msg = createMessage(context, basicMessage, headers);
+        if (replyTo != null) {
+            msg.setJMSReplyTo(replyTo);
+        }
 
         // if the message is correlated with another, put the correlation ID in the Message to be sent
         if (basicMessage.getCorrelationId() != null) {
@@ -127,15 +346,225 @@ public class MessageProcessor {
             throw new IllegalStateException("context had a null producer");
         }
 
-        producer.send(msg);
+        RateLimiter rateLimiter = context.getRateLimiter();
+        long start = System.nanoTime();
+        try {
+            if (destination != null) {
+                producer.send(destination, msg);
+            } else {
+                producer.send(msg);
+            }
+        } catch (JMSException | RuntimeException e) {
+            if (rateLimiter != null) {
+                rateLimiter.recordSendFailure();
+            }
+            throw e;
+        }
+        if (rateLimiter != null) {
+            rateLimiter.recordSendLatency(System.nanoTime() - start);
+        }
 
         // put message ID into the message in case the caller wants to correlate it with another record
-        MessageId messageId = new MessageId(msg.getJMSMessageID());
+        MessageId messageId = getMessageId(msg);
         basicMessage.setMessageId(messageId);
 
         return messageId;
     }
 
+    /**
+     * Same as {@link #sendAsync(ProducerConnectionContext, BasicMessage, Map)} with <code>null</code> headers.
+     */
+    public CompletableFuture<MessageId> sendAsync(ProducerConnectionContext context, BasicMessage basicMessage)
+            throws JMSException {
+        return sendAsync(context, basicMessage, null);
+    }
+
+    /**
+     * Sends the message to its destination across the message bus without waiting for the broker to acknowledge
+     * it. The returned future completes with the message ID once the broker has acknowledged the message, at which
+     * point the ID is also put in the basic message, or completes exceptionally if the message could not be sent.
+     *
+     * No more than {@link ProducerConnectionContext#getMaxAsyncSendsInFlight()} messages sent through the same
+     * context can wait for their acknowledgement; if that many are in flight, this method blocks until one of them is
+     * acknowledged. As with any use of a JMS session, the context must not be used by several threads at once, and
+     * the future may complete on a thread of the JMS provider so callbacks attached to it should not block. If the
+     * context has a {@link ProducerConnectionContext#getRateLimiter() rate limiter}, this also waits for its budget
+     * and tells it how long the broker took to acknowledge the message.
+     *
+     * Since this is fire-and-forget - no response is expected of the remote endpoint.
+     *
+     * @param context information that determines where the message is sent
+     * @param basicMessage the message to send with optional headers included
+     * @param headers headers for the JMS transport that will override same-named headers in the basic message
+     * @return the future message ID, which is <code>null</code> if the producer does not generate message IDs
+     * @throws JMSException if the message could not be handed to the JMS provider or the caller was interrupted while
+     *             waiting for room in the window of in-flight messages
+     *
+     * @see ConnectionContextFactory#createProducerConnectionContext(Endpoint)
+     */
+    public CompletableFuture<MessageId> sendAsync(ProducerConnectionContext context, BasicMessage basicMessage,
+            Map<String, String> headers) throws JMSException {
+        if (context == null) {
+            throw new IllegalArgumentException("context must not be null");
+        }
+        if (basicMessage == null) {
+            throw new IllegalArgumentException("message must not be null");
+        }
+        MessageProducer producer = context.getMessageProducer();
+        if (producer == null) {
+            throw new IllegalStateException("context had a null producer");
+        }
+
+        Message msg = createMessage(context, basicMessage, headers);
+        if (basicMessage.getCorrelationId() != null) {
+            msg.setJMSCorrelationID(basicMessage.getCorrelationId().toString());
+        }
+        if (basicMessage.getMessageId() != null) {
+            log.debugf("Non-null message ID [%s] will be ignored and a new one generated",
+                    basicMessage.getMessageId());
+            basicMessage.setMessageId(null);
+        }
+
+        final RateLimiter rateLimiter = context.getRateLimiter();
+        if (rateLimiter != null) {
+            acquire(rateLimiter);
+        }
+
+        // the window may be resized while we wait, so release to the same permits that were acquired
+        final Semaphore permits = context.getAsyncSendPermits();
+        try {
+            permits.acquire();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            JMSException jmsException = new JMSException("Interrupted while waiting to send a message");
+            jmsException.setLinkedException(e);
+            throw jmsException;
+        }
+
+        final CompletableFuture<MessageId> future = new CompletableFuture<>();
+        final long start = System.nanoTime();
+        try {
+            producer.send(msg, new CompletionListener() {
+                @Override
+                public void onCompletion(Message message) {
+                    permits.release();
+                    if (rateLimiter != null) {
+                        rateLimiter.recordSendLatency(System.nanoTime() - start);
+                    }
+                    try {
+                        MessageId messageId = getMessageId(message);
+                        basicMessage.setMessageId(messageId);
+                        future.complete(messageId);
+                    } catch (JMSException | RuntimeException e) {
+                        future.completeExceptionally(e);
+                    }
+                }
+
+                @Override
+                public void onException(Message message, Exception exception) {
+                    permits.release();
+                    if (rateLimiter != null) {
+                        rateLimiter.recordSendFailure();
+                    }
+                    future.completeExceptionally(exception);
+                }
+            });
+        } catch (JMSException | RuntimeException e) {
+            permits.release();
+            throw e;
+        }
+        return future;
+    }
+
+    /**
+     * Same as {@link #sendBatch(ProducerConnectionContext, Collection, Map)} with <code>null</code> headers.
+     */
+    public BatchSendResult sendBatch(ProducerConnectionContext context,
+            Collection<? extends BasicMessage> basicMessages) throws JMSException {
+        return sendBatch(context, basicMessages, null);
+    }
+
+    /**
+     * Sends the given messages to their destinations across the message bus in a single transaction, so the broker
+     * is only waited for once for the whole batch rather than once for each message. The context must have a
+     * transacted session (see {@link ConnectionContextFactory#createTransactedProducerConnectionContext(Endpoint)}).
+     *
+     * A message that cannot be sent (e.g. because it cannot be encoded) does not fail the batch; its error is
+     * reported in the returned result and the other messages are still sent. Once the batch is committed, each
+     * message that was sent is assigned its message ID, which is also found in the returned result. If the commit
+     * fails, the transaction is rolled back and none of the messages are sent.
+     *
+     * Since this is fire-and-forget - no response is expected of the remote endpoints.
+     *
+     * @param context information that determines where the messages are sent
+     * @param basicMessages the messages to send with optional headers included
+     * @param headers headers for the JMS transport that will override same-named headers in the basic messages
+     * @return the message IDs and the errors of the messages that could not be sent
+     * @throws JMSException if the batch could not be committed
+     * @throws IllegalArgumentException if the context's session is not transacted
+     */
+    public BatchSendResult sendBatch(ProducerConnectionContext context,
+            Collection<? extends BasicMessage> basicMessages, Map<String, String> headers) throws JMSException {
+        if (context == null) {
+            throw new IllegalArgumentException("context must not be null");
+        }
+        if (basicMessages == null) {
+            throw new IllegalArgumentException("messages must not be null");
+        }
+        Session session = context.getSession();
+        if (session == null || !session.getTransacted()) {
+            throw new IllegalArgumentException("context must have a transacted session");
+        }
+        MessageProducer producer = context.getMessageProducer();
+        if (producer == null) {
+            throw new IllegalStateException("context had a null producer");
+        }
+
+        List<MessageId> messageIds = new ArrayList<>(basicMessages.size());
+        Map<Integer, Exception> failures = new LinkedHashMap<>();
+        int index = 0;
+        for (BasicMessage basicMessage : basicMessages) {
+            try {
+                if (basicMessage == null) {
+                    throw new IllegalArgumentException("message must not be null");
+                }
+                Message msg = createMessage(context, basicMessage, headers);
+                if (basicMessage.getCorrelationId() != null) {
+                    msg.setJMSCorrelationID(basicMessage.getCorrelationId().toString());
+                }
+                basicMessage.setMessageId(null);
+                producer.send(msg);
+                messageIds.add(getMessageId(msg));
+            } catch (JMSException | RuntimeException e) {
+                log.debugf(e, "Message [%d] of the batch will not be sent", index);
+                messageIds.add(null);
+                failures.put(index, e);
+            }
+            index++;
+        }
+
+        try {
+            session.commit();
+        } catch (JMSException e) {
+            try {
+                session.rollback();
+            } catch (JMSException rollbackFailure) {
+                log.debugf(rollbackFailure, "Cannot roll back the batch that failed to commit");
+            }
+            throw e;
+        }
+
+        // the messages are only really sent once committed, so only now do they get their message IDs
+        index = 0;
+        for (BasicMessage basicMessage : basicMessages) {
+            if (basicMessage != null && !failures.containsKey(index)) {
+                basicMessage.setMessageId(messageIds.get(index));
+            }
+            index++;
+        }
+        return new BatchSendResult(messageIds, failures);
+    }
+
     /**
      * Same as {@link #sendWithBinaryData(ProducerConnectionContext, BasicMessage, InputStream, Map)} with
      * <code>null</code> headers.
@@ -175,7 +604,7 @@ public class MessageProcessor {
      * @param context information that determines where the message is sent
      * @param message the message to send
      * @param headers headers for the JMS transport that will override same-named headers in the basic message
-     * @return the message ID
+     * @return the message ID, or <code>null</code> if the producer does not generate message IDs
      * @throws JMSException any error
      */
     public <T extends BasicMessage> MessageId send(ProducerConnectionContext context,
@@ -191,13 +620,15 @@ public class MessageProcessor {
      * Send the given message along with the stream of binary data to its destinations across the message bus. Once
      * sent, the message will get assigned a generated message ID. That message ID will also be returned by this method.
      *
-     * Since this is fire-and-forget - no response is expected of the remote endpoint.
+     * Since this is fire-and-forget - no response is expected of the remote endpoint. If the context has a
+     * {@link ProducerConnectionContext#getRateLimiter() rate limiter}, this waits until the limiter allows the
+     * message to be sent.
      *
      * @param context information that determines where the message is sent
      * @param basicMessage the message to send with optional headers included
      * @param inputStream binary data that will be sent with the message
      * @param headers headers for the JMS transport that will override same-named headers in the basic message
-     * @return the message ID
+     * @return the message ID, or <code>null</code> if the producer does not generate message IDs
      * @throws JMSException any error
      *
      * @see ConnectionContextFactory#createProducerConnectionContext(Endpoint)
@@ -214,6 +645,11 @@ public class MessageProcessor {
             throw new IllegalArgumentException("binary data must not be null");
         }
 
+        RateLimiter rateLimiter = context.getRateLimiter();
+        if (rateLimiter != null) {
+            acquire(rateLimiter);
+        }
+
         // create the JMS message to be sent
         Message msg = createMessageWithBinaryData(context, basicMessage, inputStream, headers);
 
@@ -234,10 +670,21 @@ public class MessageProcessor {
             throw new IllegalStateException("context had a null producer");
         }
 
-        producer.send(msg);
+        long start = System.nanoTime();
+        try {
+            producer.send(msg);
+        } catch (JMSException | RuntimeException e) {
+            if (rateLimiter != null) {
+                rateLimiter.recordSendFailure();
+            }
+            throw e;
+        }
+        if (rateLimiter != null) {
+            rateLimiter.recordSendLatency(System.nanoTime() - start);
+        }
 
         // put message ID into the message in case the caller wants to correlate it with another record
-        MessageId messageId = new MessageId(msg.getJMSMessageID());
+        MessageId messageId = getMessageId(msg);
         basicMessage.setMessageId(messageId);
 
         return messageId;
@@ -278,6 +725,28 @@ public class MessageProcessor {
     public <T extends BasicMessage> RPCConnectionContext sendAndListen(ProducerConnectionContext context,
             BasicMessage basicMessage, BasicMessageListener<T> responseListener, Map<String, String> headers)
                     throws JMSException {
+        return sendAndListen(context, basicMessage, responseListener, headers, 0L, TimeUnit.MILLISECONDS);
+    }
+
+    /**
+     * Same as {@link #sendAndListen(ProducerConnectionContext, BasicMessage, BasicMessageListener, Map)}, except that
+     * listening for responses stops once the timeout has passed, as if {@link RPCConnectionContext#cancel()} had been
+     * called, so the consumer and temporary queue do not leak if the response is lost. Call
+     * {@link RPCConnectionContext#cancel()} to stop listening earlier.
+     *
+     * @param context information that determines where the message is sent
+     * @param basicMessage the request message to send with optional headers included
+     * @param responseListener The listener that will process the response of the request.
+     * @param headers headers for the JMS transport that will override same-named headers in the basic message
+     * @param timeout how long to listen for responses; zero or less to listen until the consumer is closed
+     * @param unit the unit of the timeout
+     *
+     * @return the RPC context which includes information about the handling of the expected response
+     * @throws JMSException any error
+     */
+    public <T extends BasicMessage> RPCConnectionContext sendAndListen(ProducerConnectionContext context,
+            BasicMessage basicMessage, BasicMessageListener<T> responseListener, Map<String, String> headers,
+            long timeout, TimeUnit unit) throws JMSException {
 
         if (context == null) {
             throw new IllegalArgumentException("context must not be null");
@@ -288,6 +757,9 @@ public class MessageProcessor {
         if (responseListener == null) {
             throw new IllegalArgumentException("response listener must not be null");
         }
+        if (unit == null) {
+            throw new IllegalArgumentException("unit must not be null");
+        }
 
         // create the JMS message to be sent
         Message msg = createMessage(context, basicMessage, headers);
@@ -328,16 +800,126 @@ public class MessageProcessor {
 
         msg.setJMSReplyTo(responseQueue);
 
+        if (timeout > 0) {
+            final RPCConnectionContext expiringContext = rpcContext;
+            rpcContext.setResponseTimeout(HashedWheelTimer.getDefault().schedule(new Runnable() {
+                @Override
+                public void run() {
+                    log.debugf("No longer listening for responses to [%s]", expiringContext.getRequestMessage());
+                    expiringContext.cancel();
+                }
+            }, timeout, unit));
+        }
+
         // now send the message to the broker
-        producer.send(msg);
+        try {
+            producer.send(msg);
+        } catch (JMSException | RuntimeException e) {
+            rpcContext.cancel();
+            throw e;
+        }
 
         // put message ID into the message in case the caller wants to correlate it with another record
-        MessageId messageId = new MessageId(msg.getJMSMessageID());
+        MessageId messageId = getMessageId(msg);
         basicMessage.setMessageId(messageId);
 
         return rpcContext;
     }
 
+    /**
+     * Same as {@link #sendRPC(ProducerConnectionContext, BasicMessage, Class, Map)} with <code>null</code> headers.
+     */
+    public <R extends BasicMessage> CompletableFuture<BasicMessageWithExtraData<R>> sendRPC(
+            ProducerConnectionContext context, BasicMessage basicMessage, Class<R> expectedResponseMessageClass)
+                    throws JMSException {
+        return sendRPC(context, basicMessage, expectedResponseMessageClass, null);
+    }
+
+    /**
+     * Same as {@link #sendRPC(ProducerConnectionContext, BasicMessage, Class, Map, long, TimeUnit)} without a
+     * timeout.
+     */
+    public <R extends BasicMessage> CompletableFuture<BasicMessageWithExtraData<R>> sendRPC(
+            ProducerConnectionContext context, BasicMessage basicMessage, Class<R> expectedResponseMessageClass,
+            Map<String, String> headers) throws JMSException {
+        return sendRPC(context, basicMessage, expectedResponseMessageClass, headers, 0L, TimeUnit.MILLISECONDS);
+    }
+
+    /**
+     * Send the given request message to its destinations across the message bus and returns a future that is
+     * completed with the response. Unlike {@link #sendAndListen(ProducerConnectionContext, BasicMessage,
+     * BasicMessageListener, Map)}, this does not create a queue and consumer for each request: the responses to all
+     * requests sent over a connection are received by its {@link RPCResponseDispatcher}, which routes them to their
+     * futures by correlation ID. The responder must therefore set the correlation ID of the response to the message
+     * ID of the request, as {@link org.hawkular.bus.common.consumer.RPCBasicMessageListener} does.
+     *
+     * Cancelling the future stops waiting for the response. The future is completed exceptionally with a
+     * {@link java.util.concurrent.TimeoutException} if the response does not arrive in time, or with an
+     * {@link IllegalStateException} if the connection is closed before the response arrives.
+     *
+     * @param context information that determines where the message is sent; its producer must generate message IDs
+     * @param basicMessage the request message to send with optional headers included
+     * @param expectedResponseMessageClass the class the response is decoded to
+     * @param headers headers for the JMS transport that will override same-named headers in the basic message
+     * @param timeout how long to wait for the response; zero or less to wait as long as the connection is open
+     * @param unit the unit of the timeout
+     * @return the future that is completed with the response
+     * @throws JMSException if the request could not be sent
+     *
+     * @see ConnectionContextFactory#createProducerConnectionContext(Endpoint)
+     */
+    public <R extends BasicMessage> CompletableFuture<BasicMessageWithExtraData<R>> sendRPC(
+            ProducerConnectionContext context, BasicMessage basicMessage, Class<R> expectedResponseMessageClass,
+            Map<String, String> headers, long timeout, TimeUnit unit) throws JMSException {
+        if (context == null) {
+            throw new IllegalArgumentException("context must not be null");
+        }
+        if (basicMessage == null) {
+            throw new IllegalArgumentException("message must not be null");
+        }
+        if (expectedResponseMessageClass == null) {
+            throw new IllegalArgumentException("response message class must not be null");
+        }
+        if (unit == null) {
+            throw new IllegalArgumentException("unit must not be null");
+        }
+        if (context.getConnection() == null) {
+            throw new IllegalArgumentException("context had a null connection");
+        }
+        MessageProducer producer = context.getMessageProducer();
+        if (producer != null && producer.getDisableMessageID()) {
+            throw new IllegalStateException("Responses cannot be correlated with requests without message IDs");
+        }
+
+        RPCResponseDispatcher dispatcher = RPCResponseDispatcher.forConnection(context.getConnection());
+        RateLimiter rateLimiter = context.getRateLimiter();
+        if (rateLimiter != null) {
+            acquire(rateLimiter);
+        }
+        MessageId messageId = doSend(context, basicMessage, headers, null, dispatcher.getReplyTo());
+        return dispatcher.register(messageId.getId(), expectedResponseMessageClass, timeout, unit);
+    }
+
+    private static void acquire(RateLimiter rateLimiter) throws JMSException {
+        try {
+            rateLimiter.acquire();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            JMSException jmsException = new JMSException("Interrupted while waiting for the rate limiter");
+            jmsException.setLinkedException(e);
+            throw jmsException;
+        }
+    }
+
+    /**
+     * @return the ID the JMS provider assigned to the sent message, or <code>null</code> if the producer was told not
+     *         to generate message IDs (see {@link org.hawkular.bus.common.producer.ProducerOptions})
+     */
+    private static MessageId getMessageId(Message msg) throws JMSException {
+        String id = msg.getJMSMessageID();
+        return (id == null || id.isEmpty()) ? null : new MessageId(id);
+    }
+
     /**
      * Same as {@link #createMessage(ConnectionContext, BasicMessage, Map)} with <code>null</code> headers.
      */
@@ -346,10 +928,19 @@ public class MessageProcessor {
     }
 
     /**
-     * Creates a text message that can be send via a producer that contains the given BasicMessage's JSON encoded data.
+     * Creates a message that can be send via a producer that contains the given BasicMessage's encoded data.
+     * JSON encoded messages are sent as text messages when this processor has no compressor, since listeners that
+     * know nothing about codecs, including those of earlier releases, only read the message of a text message and
+     * take a bytes message to carry binary data. Otherwise the message is a bytes message that this processor's
+     * {@link #getCodec() codec} encodes directly into the message body, which only listeners that look at the
+     * {@link #HEADER_MESSAGE_CODEC codec header} can read.
+     * If this processor has a {@link #getCompressor() compressor}, the body is compressed if it is larger than the
+     * {@link #getCompressionThreshold() threshold}. If the context is a producer context with
+     * {@link ProducerConnectionContext#getDuplicateDetection() duplicate detection}, the message is given its
+     * duplicate detection ID.
      *
      * @param context the context whose session is used to create the message
-     * @param basicMessage contains the data that will be JSON-encoded and encapsulated in the created message, with
+     * @param basicMessage contains the data that will be encoded and encapsulated in the created message, with
      *            optional headers included
      * @param headers headers for the Message that will override same-named headers in the basic message
      * @return the message that can be produced
@@ -369,20 +960,71 @@ public class MessageProcessor {
         if (session == null) {
             throw new IllegalArgumentException("The context had a null session");
         }
-        TextMessage msg = session.createTextMessage(basicMessage.toJSON());
+        DuplicateDetection duplicateDetection = (context instanceof ProducerConnectionContext)
+                ? ((ProducerConnectionContext) context).getDuplicateDetection() : null;
+        MessageDigest contentDigest = (duplicateDetection == null) ? null : duplicateDetection.newContentDigest();
+
+        Message msg;
+        boolean compressed = false;
+        try {
+            if (compressor == null && JsonMessageCodec.NAME.equals(codec.getName())) {
+                byte[] json = codec.encode(basicMessage);
+                if (contentDigest != null) {
+                    contentDigest.update(json);
+                }
+                msg = session.createTextMessage(new String(json, StandardCharsets.UTF_8));
+            } else {
+                // encode straight into the message body - no intermediate String or byte array copies of the message
+                BytesMessage bytesMsg = session.createBytesMessage();
+                msg = bytesMsg;
+                if (compressor == null) {
+                    codec.encode(basicMessage, digesting(new BytesMessageOutputStream(bytesMsg), contentDigest));
+                } else {
+                    try (ThresholdCompressingOutputStream out = new ThresholdCompressingOutputStream(
+                            new BytesMessageOutputStream(bytesMsg), compressor, compressionThreshold)) {
+                        codec.encode(basicMessage, digesting(out, contentDigest));
+                        compressed = out.isCompressed();
+                    }
+                }
+            }
+        } catch (IOException e) {
+            JMSException jmse = new JMSException("Cannot encode message with codec [" + codec.getName() + "]: " + e);
+            jmse.setLinkedException(e);
+            throw jmse;
+        }
+
+        log.debugf("Created [%s] encoded message [%s]", codec.getName(), msg);
 
         setHeaders(basicMessage, headers, msg);
 
-        log.infof("Created text message [%s] with text [%s]", msg, msg.getText());
+        if (compressed) {
+            log.debugf("Message body was compressed with [%s]", compressor.getName());
+            msg.setStringProperty(HEADER_MESSAGE_COMPRESSION, compressor.getName());
+        }
+
+        if (duplicateDetection != null) {
+            msg.setStringProperty(DuplicateDetection.HEADER_DUPLICATE_ID,
+                    duplicateDetection.createId(basicMessage, headers, contentDigest));
+        }
 
         return msg;
     }
 
+    /**
+     * @return a stream that also writes to the digest, or the given stream if there is no digest
+     */
+    private static OutputStream digesting(OutputStream out, MessageDigest digest) {
+        return (digest == null) ? out : new DigestOutputStream(out, digest);
+    }
+
     /**
      * First sets the {@link MessageProcessor#HEADER_BASIC_MESSAGE_CLASS} string property of {@code destination} to
-     * {@code basicMessage.getClass().getName()}, then copies all headers from {@code basicMessage.getHeaders()} to
-     * {@code destination} using {@link Message#setStringProperty(String, String)} and then does the same thing with the
-     * supplied {@code headers}.
+     * {@code basicMessage.getClass().getName()}, then copies the headers from {@code basicMessage.getHeaders()}, other
+     * than those describing how a received message was sent, to {@code destination} using
+     * {@link Message#setStringProperty(String, String)} and then does the same thing with the supplied
+     * {@code headers}. Finally the {@link MessageProcessor#HEADER_MESSAGE_CODEC} string property is set to the
+     * name of this processor's codec. Headers given as a {@link HeaderTemplate} are applied without looking at them
+     * one map entry at a time.
      *
      * @param basicMessage the {@link BasicMessage} to copy headers from
      * @param headers the headers to copy to {@code destination}
@@ -391,21 +1033,63 @@ public class MessageProcessor {
      */
     protected void setHeaders(BasicMessage basicMessage, Map<String, String> headers, Message destination)
             throws JMSException {
-        log.infof("Setting [%s] = [%s] on a message of type [%s]", MessageProcessor.HEADER_BASIC_MESSAGE_CLASS,
-                basicMessage.getClass().getName(), destination.getClass().getName());
-        destination.setStringProperty(MessageProcessor.HEADER_BASIC_MESSAGE_CLASS, basicMessage.getClass().getName());
+        String className = MESSAGE_CLASS_NAMES.get(basicMessage.getClass());
+        log.tracef("Setting [%s] = [%s] on a message of type [%s]", MessageProcessor.HEADER_BASIC_MESSAGE_CLASS,
+                className, destination.getClass().getName());
+        destination.setStringProperty(MessageProcessor.HEADER_BASIC_MESSAGE_CLASS, className);
 
         // if the basicMessage has headers, use those first
-        Map<String, String> basicMessageHeaders = basicMessage.getHeaders();
-        if (basicMessageHeaders != null) {
-            for (Map.Entry<String, String> entry : basicMessageHeaders.entrySet()) {
-                destination.setStringProperty(entry.getKey(), entry.getValue());
-            }
-        }
+        setOwnHeaders(basicMessage.getHeaders(), destination);
 
         // If we were given headers separately, add those now.
         // Notice these will override same-named headers that were found in the basic message itself.
-        if (headers != null) {
+        setHeaders(headers, destination);
+
+        // this is set last because the listener needs the real codec to be able to decode the message
+        destination.setStringProperty(MessageProcessor.HEADER_MESSAGE_CODEC, codec.getName());
+    }
+
+    /**
+     * Copies the headers of the message itself, leaving out the {@link #isTransportHeader(String) transport headers}
+     * a received message carries, so a received message can be sent on without claiming to be encoded the way it was
+     * when it was received.
+     */
+    private static void setOwnHeaders(Map<String, String> headers, Message destination) throws JMSException {
+        if (headers instanceof HeaderTemplate) {
+            // templates are built by the sender, never taken from a received message
+            ((HeaderTemplate) headers).applyTo(destination);
+        } else if (headers != null && !headers.isEmpty()) {
+            for (Map.Entry<String, String> entry : headers.entrySet()) {
+                if (!isTransportHeader(entry.getKey())) {
+                    destination.setStringProperty(entry.getKey(), entry.getValue());
+                }
+            }
+        }
+    }
+
+    /**
+     * Tells whether a header of a received message describes how that message was encoded on the wire. Such headers
+     * must not be copied from the headers of a message onto a message that is sent on, since that message is encoded
+     * anew.
+     *
+     * The {@link DuplicateDetection#HEADER_DUPLICATE_ID duplicate detection ID} is one of them: the broker would
+     * otherwise drop a forwarded message as a duplicate of the one it was received as. A message sent on is given
+     * a duplicate detection ID of its own only if that send uses {@link DuplicateDetection}.
+     *
+     * @param name the header name
+     * @return true if the header is one of the {@link #HEADER_MESSAGE_CODEC codec},
+     *         {@link #HEADER_MESSAGE_COMPRESSION compression}, {@link #HEADER_BINARY_DATA binary data} or
+     *         {@link DuplicateDetection#HEADER_DUPLICATE_ID duplicate detection ID} headers
+     */
+    public static boolean isTransportHeader(String name) {
+        return HEADER_MESSAGE_CODEC.equals(name) || HEADER_MESSAGE_COMPRESSION.equals(name)
+                || HEADER_BINARY_DATA.equals(name) || DuplicateDetection.HEADER_DUPLICATE_ID.equals(name);
+    }
+
+    private static void setHeaders(Map<String, String> headers, Message destination) throws JMSException {
+        if (headers instanceof HeaderTemplate) {
+            ((HeaderTemplate) headers).applyTo(destination);
+        } else if (headers != null && !headers.isEmpty()) {
             for (Map.Entry<String, String> entry : headers.entrySet()) {
                 destination.setStringProperty(entry.getKey(), entry.getValue());
             }
@@ -421,11 +1105,16 @@ public class MessageProcessor {
     }
 
     /**
-     * Creates a blob message that can be send via a producer that contains the given BasicMessage's JSON encoded data
-     * along with binary data.
+     * Creates a blob message that can be send via a producer that contains the given BasicMessage's encoded data
+     * along with binary data. If this processor has a {@link #getCompressor() compressor}, both are compressed as
+     * the binary data is streamed. If the context is a producer context whose
+     * {@link ProducerConnectionContext#getDuplicateDetection() duplicate detection} does not depend on the encoded
+     * message, such as {@link DuplicateDetection#byKey(java.util.function.Function)}, the message is given its
+     * duplicate detection ID. Content hashes are not supported since the binary data is only read when the message
+     * is sent, so such messages get no ID.
      *
      * @param context the context whose session is used to create the message
-     * @param basicMessage contains the data that will be JSON-encoded and encapsulated in the created message, with
+     * @param basicMessage contains the data that will be encoded and encapsulated in the created message, with
      *            optional headers included
      * @param inputStream binary data that will be sent with the message
      * @param headers headers for the Message that will override same-named headers in the basic message
@@ -450,15 +1139,37 @@ public class MessageProcessor {
             throw new IllegalArgumentException("The context had a null session");
         }
 
-        // we are going to use BinaryData which allows us to prefix the binary data with the JSON message
-        BinaryData messagePlusBinaryData = new BinaryData(basicMessage.toJSON().getBytes(), inputStream);
+        // we are going to use BinaryData which allows us to prefix the binary data with the encoded message
+        InputStream messagePlusBinaryData = new BinaryData(codec.encode(basicMessage), inputStream);
+        if (compressor != null) {
+            try {
+                messagePlusBinaryData = new CompressingInputStream(messagePlusBinaryData, compressor);
+            } catch (IOException e) {
+                JMSException jmse = new JMSException("Cannot compress message with [" + compressor.getName() + "]: "
+                        + e);
+                jmse.setLinkedException(e);
+                throw jmse;
+            }
+        }
 
         BytesMessage msg = session.createBytesMessage();
         msg.setObjectProperty("JMS_AMQ_InputStream", messagePlusBinaryData);
 
         setHeaders(basicMessage, headers, msg);
+        msg.setStringProperty(HEADER_BINARY_DATA, "true");
+
+        if (compressor != null) {
+            msg.setStringProperty(HEADER_MESSAGE_COMPRESSION, compressor.getName());
+        }
+
+        DuplicateDetection duplicateDetection = (context instanceof ProducerConnectionContext)
+                ? ((ProducerConnectionContext) context).getDuplicateDetection() : null;
+        if (duplicateDetection != null && duplicateDetection.newContentDigest() == null) {
+            msg.setStringProperty(DuplicateDetection.HEADER_DUPLICATE_ID,
+                    duplicateDetection.createId(basicMessage, headers, null));
+        }
 
-        log.infof("Created binary message [%s]", msg);
+        log.debugf("Created binary message [%s]", msg);
 
         return msg;
     }
@@ -20,8 +20,9 @@ import java.io.IOException;
 
 import com.fasterxml.jackson.annotation.JsonAutoDetect;
 import com.fasterxml.jackson.annotation.JsonIgnore;
-import com.fasterxml.jackson.annotation.JsonInclude;
+import com.fasterxml.jackson.annotation.JsonProperty;
 import com.fasterxml.jackson.core.JsonProcessingException;
+import com.fasterxml.jackson.databind.JsonNode;
 import com.fasterxml.jackson.databind.ObjectMapper;
 
 /**
@@ -29,24 +30,32 @@ import com.fasterxml.jackson.databind.ObjectMapper;
  *
  * Use this class to send and receive ad-hoc objects - that is, ones that do not extend from {@link AbstractMessage}.
  *
+ * The object is embedded in the message as a JSON tree (in the "object" property) rather than as an escaped JSON
+ * string, and it is converted to an object of the {@link #getObjectClass() object class} only once, the first time
+ * {@link #getObject()} is called. Messages in the older format, where the object was a JSON string found in the
+ * "message" property, can still be read; the string is parsed into a tree when the message is read.
+ *
  * @author Heiko W. Rupp
  * @author John Mazzitelli
  */
 public class ObjectMessage extends AbstractMessage {
-    @JsonInclude
-    private String message; // the object in JSON form
+    // shared by all instances; it is thread-safe once configured
+    private static final ObjectMapper MAPPER = new ObjectMapper();
+    static {
+        MAPPER.setVisibilityChecker(MAPPER.getSerializationConfig().getDefaultVisibilityChecker()
+            .withFieldVisibility(JsonAutoDetect.Visibility.ANY)
+            .withGetterVisibility(JsonAutoDetect.Visibility.NONE)
+            .withSetterVisibility(JsonAutoDetect.Visibility.NONE));
+    }
+
+    @JsonProperty("object")
+    private JsonNode object; // the object in JSON tree form
 
     @JsonIgnore
     private Class<?> objectClass; // the ad-hoc class that this object message represents
 
     @JsonIgnore
-    private final ObjectMapper mapper = new ObjectMapper();
-    {
-        mapper.setVisibilityChecker(mapper.getSerializationConfig().getDefaultVisibilityChecker()
-            .withFieldVisibility(JsonAutoDetect.Visibility.ANY)
-            .withGetterVisibility(JsonAutoDetect.Visibility.NONE)
-            .withSetterVisibility(JsonAutoDetect.Visibility.NONE));
-    }
+    private volatile Object cachedObject; // the object converted from the JSON tree
 
     public ObjectMessage() {
     }
@@ -57,11 +66,9 @@ public class ObjectMessage extends AbstractMessage {
         }
         setObjectClass(object.getClass());
 
-        final String msg;
         try {
-            msg = mapper.writeValueAsString(object);
-            setMessage(msg);
-        } catch (JsonProcessingException e) {
+            this.object = MAPPER.valueToTree(object);
+        } catch (IllegalArgumentException e) {
             throw new IllegalStateException("Object cannot be parsed as JSON.", e);
         }
     }
@@ -79,11 +86,31 @@ public class ObjectMessage extends AbstractMessage {
      * @return message string as a JSON string
      */
     public String getMessage() {
-        return message;
+        if (object == null) {
+            return null;
+        }
+        try {
+            return MAPPER.writeValueAsString(object);
+        } catch (JsonProcessingException e) {
+            throw new IllegalStateException("Object cannot be parsed as JSON.", e);
+        }
     }
 
+    /**
+     * Sets the object in its JSON string form. This is also how messages in the older format, where the object
+     * was a JSON string in the "message" property, are read.
+     *
+     * @param msg the JSON representation of the object
+     * @throws IllegalStateException if the string is not JSON
+     */
+    @JsonProperty("message")
     protected void setMessage(String msg) {
-        this.message = msg;
+        try {
+            this.object = (msg == null) ? null : MAPPER.readTree(msg);
+        } catch (IOException e) {
+            throw new IllegalStateException("JSON message cannot be converted to object.", e);
+        }
+        this.cachedObject = null;
     }
 
     public Class<?> getObjectClass() {
@@ -92,18 +119,34 @@ public class ObjectMessage extends AbstractMessage {
 
     public void setObjectClass(Class<?> objectClass) {
         this.objectClass = objectClass;
+        this.cachedObject = null;
     }
 
+    /**
+     * Converts the JSON data to an object of the {@link #getObjectClass() object class}. The conversion is done only
+     * once; later calls return the same object.
+     *
+     * @return the object
+     */
     public Object getObject() {
         Class<?> clazz = getObjectClass();
         if (clazz == null) {
             throw new IllegalStateException("Do not know what the class is that represents the JSON data");
         }
 
-        try {
-            return mapper.readValue(getMessage(), clazz);
-        } catch (IOException e) {
-            throw new IllegalStateException("JSON message cannot be converted to object.", e);
+        Object obj = cachedObject;
+        if (obj == null) {
+            JsonNode tree = object;
+            if (tree == null) {
+                throw new IllegalStateException("There is no JSON data to convert to an object");
+            }
+            try {
+                obj = MAPPER.treeToValue(tree, clazz);
+            } catch (IOException e) {
+                throw new IllegalStateException("JSON message cannot be converted to object.", e);
+            }
+            cachedObject = obj;
         }
+        return obj;
     }
 }
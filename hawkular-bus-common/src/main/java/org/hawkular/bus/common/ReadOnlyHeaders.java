@@ -0,0 +1,90 @@
+/*
+ * Copyright 2015 Red Hat, Inc. and/or its affiliates
+ * and other contributors as indicated by the @author tags.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.hawkular.bus.common;
+
+import java.util.AbstractMap;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.Set;
+
+/**
+ * A header map that can never change. Messages share these maps rather than making their own copy of them (see
+ * {@link AbstractMessage#setHeaders(Map)}), so when the same headers are sent with many messages, build them once
+ * with {@link #copyOf(Map)} and pass that to each message.
+ *
+ * All mutator methods throw {@link UnsupportedOperationException}.
+ */
+public abstract class ReadOnlyHeaders extends AbstractMap<String, String> {
+
+    private static final ReadOnlyHeaders EMPTY = new Copy(Collections.<String, String> emptyMap());
+
+    /**
+     * Returns read-only headers with the same name/value pairs as the given map. Changes made to the given map
+     * afterwards are not seen by the returned headers.
+     *
+     * @param headers the headers to copy; may be null
+     * @return the read-only headers; if the given headers were already read-only, they are returned as-is
+     */
+    public static ReadOnlyHeaders copyOf(Map<String, String> headers) {
+        if (headers instanceof ReadOnlyHeaders) {
+            return (ReadOnlyHeaders) headers;
+        }
+        if (headers == null || headers.isEmpty()) {
+            return EMPTY;
+        }
+        return new Copy(new HashMap<String, String>(headers));
+    }
+
+    /**
+     * @return read-only headers with no name/value pairs
+     */
+    public static ReadOnlyHeaders empty() {
+        return EMPTY;
+    }
+
+    protected ReadOnlyHeaders() {
+    }
+
+    private static final class Copy extends ReadOnlyHeaders {
+        private final Map<String, String> headers;
+
+        Copy(Map<String, String> headers) {
+            this.headers = Collections.unmodifiableMap(headers);
+        }
+
+        @Override
+        public String get(Object key) {
+            return headers.get(key);
+        }
+
+        @Override
+        public boolean containsKey(Object key) {
+            return headers.containsKey(key);
+        }
+
+        @Override
+        public int size() {
+            return headers.size();
+        }
+
+        @Override
+        public Set<Map.Entry<String, String>> entrySet() {
+            return headers.entrySet();
+        }
+    }
+}
@@ -0,0 +1,139 @@
+/*
+ * Copyright 2015 Red Hat, Inc. and/or its affiliates
+ * and other contributors as indicated by the @author tags.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.hawkular.bus.common.codec;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+
+import org.hawkular.bus.common.AbstractMessage;
+import org.hawkular.bus.common.BasicMessage;
+import org.hawkular.bus.common.BasicMessageWithExtraData;
+import org.hawkular.bus.common.BinaryData;
+import org.hawkular.bus.common.JsonCodecRegistry;
+import org.hawkular.bus.common.MessageCodec;
+
+import com.fasterxml.jackson.core.JsonFactory;
+import com.fasterxml.jackson.core.JsonGenerator;
+import com.fasterxml.jackson.core.JsonParser;
+import com.fasterxml.jackson.databind.JsonNode;
+import com.fasterxml.jackson.databind.ObjectMapper;
+
+/**
+ * A codec for any of the data formats Jackson supports through a {@link JsonFactory}. The messages are mapped using
+ * the same readers and writers that are used for JSON (see {@link JsonCodecRegistry}) so the mapper hooks of
+ * {@link AbstractMessage} apply to all formats. Only the parsers and generators differ. Message classes that have a
+ * generated {@link MessageSerializer} are written and read by it instead.
+ */
+public abstract class AbstractJacksonMessageCodec implements MessageCodec {
+
+    // only used for messages that are not AbstractMessages - all they can give us is their JSON
+    private static final ObjectMapper JSON_TREE_MAPPER = new ObjectMapper();
+
+    private final String name;
+    private final JsonFactory factory;
+
+    /**
+     * @param name the codec name
+     * @param factory creates the parsers and generators of the codec's data format. It will be configured to leave
+     *            open the streams it reads and writes; extra data may follow an encoded message in either direction.
+     */
+    protected AbstractJacksonMessageCodec(String name, JsonFactory factory) {
+        if (name == null) {
+            throw new IllegalArgumentException("name must not be null");
+        }
+        if (factory == null) {
+            throw new IllegalArgumentException("factory must not be null");
+        }
+        this.name = name;
+        this.factory = factory.configure(JsonParser.Feature.AUTO_CLOSE_SOURCE, false)
+                .configure(JsonGenerator.Feature.AUTO_CLOSE_TARGET, false);
+    }
+
+    @Override
+    public String getName() {
+        return name;
+    }
+
+    protected JsonFactory getFactory() {
+        return factory;
+    }
+
+    @Override
+    public byte[] encode(BasicMessage basicMessage) {
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        try {
+            encode(basicMessage, out);
+        } catch (IOException e) {
+            throw new IllegalStateException("Message cannot be encoded as " + name, e);
+        }
+        return out.toByteArray();
+    }
+
+    @Override
+    public void encode(BasicMessage basicMessage, OutputStream out) throws IOException {
+        if (basicMessage == null) {
+            throw new IllegalArgumentException("message must not be null");
+        }
+        if (out == null) {
+            throw new IllegalArgumentException("output stream must not be null");
+        }
+        try (JsonGenerator generator = factory.createGenerator(out)) {
+            MessageSerializer<BasicMessage> serializer = serializerFor(basicMessage);
+            if (serializer != null) {
+                serializer.serialize(basicMessage, generator);
+            } else if (basicMessage instanceof AbstractMessage) {
+                JsonCodecRegistry.writerFor((AbstractMessage) basicMessage).writeValue(generator, basicMessage);
+            } else {
+                JsonNode tree = JSON_TREE_MAPPER.readTree(basicMessage.toJSON());
+                JSON_TREE_MAPPER.writeTree(generator, tree);
+            }
+        }
+    }
+
+    @Override
+    public <T extends BasicMessage> BasicMessageWithExtraData<T> decode(InputStream in, Class<T> clazz) {
+        final T obj;
+        final byte[] remainder;
+        try (JsonParser parser = factory.createParser(in)) {
+            MessageSerializer<T> serializer = JsonCodecRegistry.serializerFor(clazz);
+            if (serializer != null) {
+                obj = serializer.deserialize(parser);
+            } else {
+                obj = JsonCodecRegistry.readerFor(clazz).readValue(parser);
+            }
+            final ByteArrayOutputStream remainderStream = new ByteArrayOutputStream();
+            final int released = parser.releaseBuffered(remainderStream);
+            remainder = (released > 0) ? remainderStream.toByteArray() : new byte[0];
+        } catch (Exception e) {
+            throw new IllegalArgumentException("Stream cannot be converted to " + name + " object of type [" + clazz
+                    + "]", e);
+        }
+        return new BasicMessageWithExtraData<T>(obj, new BinaryData(remainder, in));
+    }
+
+    @SuppressWarnings("unchecked")
+    private static MessageSerializer<BasicMessage> serializerFor(BasicMessage basicMessage) {
+        return (MessageSerializer<BasicMessage>) JsonCodecRegistry.serializerFor(basicMessage.getClass());
+    }
+
+    @Override
+    public String toString() {
+        return getClass().getSimpleName() + ": [name=" + name + "]";
+    }
+}
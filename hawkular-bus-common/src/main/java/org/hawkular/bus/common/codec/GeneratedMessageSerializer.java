@@ -0,0 +1,266 @@
+/*
+ * Copyright 2015 Red Hat, Inc. and/or its affiliates
+ * and other contributors as indicated by the @author tags.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.hawkular.bus.common.codec;
+
+import java.io.IOException;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+import org.hawkular.bus.common.BasicMessage;
+import org.hawkular.bus.common.msg.features.FailOnUnknownProperties;
+
+import com.fasterxml.jackson.core.JsonGenerator;
+import com.fasterxml.jackson.core.JsonParser;
+import com.fasterxml.jackson.core.JsonToken;
+import com.fasterxml.jackson.databind.JsonMappingException;
+
+/**
+ * The superclass of the generated {@link MessageSerializer}s. It reads the object structure and leaves the
+ * properties to the generated subclass. The helper methods read and write property values the same way Jackson
+ * databind does for the types the generator supports, so generated and databind code can read each other's output.
+ *
+ * Unknown properties are skipped unless the message class implements {@link FailOnUnknownProperties}.
+ *
+ * @param <T> the message class
+ */
+public abstract class GeneratedMessageSerializer<T extends BasicMessage> implements MessageSerializer<T> {
+
+    private final Class<T> messageClass;
+    private final boolean failOnUnknownProperties;
+
+    protected GeneratedMessageSerializer(Class<T> messageClass) {
+        if (messageClass == null) {
+            throw new IllegalArgumentException("messageClass must not be null");
+        }
+        this.messageClass = messageClass;
+        this.failOnUnknownProperties = FailOnUnknownProperties.class.isAssignableFrom(messageClass);
+    }
+
+    public Class<T> getMessageClass() {
+        return messageClass;
+    }
+
+    @Override
+    public T deserialize(JsonParser parser) throws IOException {
+        JsonToken token = parser.getCurrentToken();
+        if (token == null) {
+            token = parser.nextToken();
+        }
+        if (token == JsonToken.VALUE_NULL) {
+            return null;
+        }
+        if (token != JsonToken.START_OBJECT) {
+            throw JsonMappingException.from(parser, "Expected an object of type [" + messageClass.getName()
+                    + "] but found " + token);
+        }
+
+        T message = newMessage();
+        while (parser.nextToken() == JsonToken.FIELD_NAME) {
+            String name = parser.getCurrentName();
+            parser.nextToken();
+            if (!readProperty(message, name, parser)) {
+                if (failOnUnknownProperties) {
+                    throw JsonMappingException.from(parser, "Unrecognized field \"" + name + "\" of type ["
+                            + messageClass.getName() + "]");
+                }
+                parser.skipChildren();
+            }
+        }
+        return message;
+    }
+
+    /**
+     * @return a new empty message that {@link #readProperty(BasicMessage, String, JsonParser)} will fill in
+     */
+    protected abstract T newMessage();
+
+    /**
+     * Reads the value of the named property into the message. The parser is positioned at the value.
+     *
+     * @param message the message being read
+     * @param name the property name
+     * @param parser where the value is read from
+     * @return <code>true</code> if the property is known, <code>false</code> if it was not read
+     * @throws IOException if the value cannot be read
+     */
+    protected abstract boolean readProperty(T message, String name, JsonParser parser) throws IOException;
+
+    protected static void writeString(JsonGenerator generator, String name, String value) throws IOException {
+        generator.writeFieldName(name);
+        if (value == null) {
+            generator.writeNull();
+        } else {
+            generator.writeString(value);
+        }
+    }
+
+    protected static void writeEnum(JsonGenerator generator, String name, Enum<?> value) throws IOException {
+        writeString(generator, name, (value == null) ? null : value.name());
+    }
+
+    protected static void writeBoolean(JsonGenerator generator, String name, Boolean value) throws IOException {
+        generator.writeFieldName(name);
+        if (value == null) {
+            generator.writeNull();
+        } else {
+            generator.writeBoolean(value.booleanValue());
+        }
+    }
+
+    protected static void writeNumber(JsonGenerator generator, String name, Number value) throws IOException {
+        generator.writeFieldName(name);
+        if (value == null) {
+            generator.writeNull();
+        } else if (value instanceof Long) {
+            generator.writeNumber(value.longValue());
+        } else if (value instanceof Double) {
+            generator.writeNumber(value.doubleValue());
+        } else if (value instanceof Float) {
+            generator.writeNumber(value.floatValue());
+        } else {
+            // Integer, Short and Byte are all written as int by databind
+            generator.writeNumber(value.intValue());
+        }
+    }
+
+    protected static void writeStringMap(JsonGenerator generator, String name, Map<String, String> value)
+            throws IOException {
+        generator.writeFieldName(name);
+        if (value == null) {
+            generator.writeNull();
+            return;
+        }
+        generator.writeStartObject();
+        for (Map.Entry<String, String> entry : value.entrySet()) {
+            writeString(generator, entry.getKey(), entry.getValue());
+        }
+        generator.writeEndObject();
+    }
+
+    protected static String readString(JsonParser parser) throws IOException {
+        JsonToken token = parser.getCurrentToken();
+        if (token == JsonToken.VALUE_NULL) {
+            return null;
+        }
+        if (token != null && token.isScalarValue()) {
+            return parser.getText();
+        }
+        throw JsonMappingException.from(parser, "Expected a string but found " + token);
+    }
+
+    protected static <E extends Enum<E>> E readEnum(JsonParser parser, Class<E> enumClass) throws IOException {
+        String value = readString(parser);
+        if (value == null) {
+            return null;
+        }
+        try {
+            return Enum.valueOf(enumClass, value);
+        } catch (IllegalArgumentException e) {
+            throw JsonMappingException.from(parser, "[" + value + "] is not one of the values of ["
+                    + enumClass.getName() + "]");
+        }
+    }
+
+    protected static Boolean readBoolean(JsonParser parser) throws IOException {
+        JsonToken token = parser.getCurrentToken();
+        if (token == JsonToken.VALUE_NULL) {
+            return null;
+        } else if (token == JsonToken.VALUE_TRUE) {
+            return Boolean.TRUE;
+        } else if (token == JsonToken.VALUE_FALSE) {
+            return Boolean.FALSE;
+        } else if (token == JsonToken.VALUE_NUMBER_INT) {
+            return parser.getIntValue() != 0;
+        } else if (token == JsonToken.VALUE_STRING) {
+            String text = parser.getText().trim();
+            if ("true".equals(text)) {
+                return Boolean.TRUE;
+            }
+            if ("false".equals(text)) {
+                return Boolean.FALSE;
+            }
+        }
+        throw JsonMappingException.from(parser, "Expected a boolean but found " + token);
+    }
+
+    protected static Integer readInteger(JsonParser parser) throws IOException {
+        Number number = readNumber(parser);
+        return (number == null) ? null : Integer.valueOf(number.intValue());
+    }
+
+    protected static Long readLong(JsonParser parser) throws IOException {
+        Number number = readNumber(parser);
+        return (number == null) ? null : Long.valueOf(number.longValue());
+    }
+
+    protected static Short readShort(JsonParser parser) throws IOException {
+        Number number = readNumber(parser);
+        return (number == null) ? null : Short.valueOf(number.shortValue());
+    }
+
+    protected static Byte readByte(JsonParser parser) throws IOException {
+        Number number = readNumber(parser);
+        return (number == null) ? null : Byte.valueOf(number.byteValue());
+    }
+
+    protected static Float readFloat(JsonParser parser) throws IOException {
+        Number number = readNumber(parser);
+        return (number == null) ? null : Float.valueOf(number.floatValue());
+    }
+
+    protected static Double readDouble(JsonParser parser) throws IOException {
+        Number number = readNumber(parser);
+        return (number == null) ? null : Double.valueOf(number.doubleValue());
+    }
+
+    protected static Map<String, String> readStringMap(JsonParser parser) throws IOException {
+        JsonToken token = parser.getCurrentToken();
+        if (token == JsonToken.VALUE_NULL) {
+            return null;
+        }
+        if (token != JsonToken.START_OBJECT) {
+            throw JsonMappingException.from(parser, "Expected an object but found " + token);
+        }
+        Map<String, String> map = new LinkedHashMap<>();
+        while (parser.nextToken() == JsonToken.FIELD_NAME) {
+            String key = parser.getCurrentName();
+            parser.nextToken();
+            map.put(key, readString(parser));
+        }
+        return map;
+    }
+
+    private static Number readNumber(JsonParser parser) throws IOException {
+        JsonToken token = parser.getCurrentToken();
+        if (token == JsonToken.VALUE_NULL) {
+            return null;
+        } else if (token == JsonToken.VALUE_NUMBER_INT || token == JsonToken.VALUE_NUMBER_FLOAT) {
+            return parser.getNumberValue();
+        } else if (token == JsonToken.VALUE_STRING) {
+            String text = parser.getText().trim();
+            try {
+                if (text.indexOf('.') < 0 && text.indexOf('e') < 0 && text.indexOf('E') < 0) {
+                    return Long.valueOf(text);
+                }
+                return Double.valueOf(text);
+            } catch (NumberFormatException e) {
+                throw JsonMappingException.from(parser, "[" + text + "] is not a number");
+            }
+        }
+        throw JsonMappingException.from(parser, "Expected a number but found " + token);
+    }
+}
@@ -0,0 +1,49 @@
+/*
+ * Copyright 2015 Red Hat, Inc. and/or its affiliates
+ * and other contributors as indicated by the @author tags.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.hawkular.bus.common.codec;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.charset.StandardCharsets;
+
+import org.hawkular.bus.common.AbstractMessage;
+import org.hawkular.bus.common.BasicMessage;
+
+import com.fasterxml.jackson.core.JsonFactory;
+
+/**
+ * Encodes messages as UTF-8 JSON. This is the default codec and the one every listener assumes when a message does
+ * not say which codec encoded it.
+ */
+public class JsonMessageCodec extends AbstractJacksonMessageCodec {
+    public static final String NAME = "json";
+
+    public JsonMessageCodec() {
+        super(NAME, new JsonFactory());
+    }
+
+    @Override
+    public void encode(BasicMessage basicMessage, OutputStream out) throws IOException {
+        if (basicMessage instanceof AbstractMessage || basicMessage == null) {
+            super.encode(basicMessage, out);
+        } else {
+            // no need to go through a JSON tree - the message already gives us JSON
+            out.write(basicMessage.toJSON().getBytes(StandardCharsets.UTF_8));
+            out.flush();
+        }
+    }
+}
@@ -0,0 +1,62 @@
+/*
+ * Copyright 2015 Red Hat, Inc. and/or its affiliates
+ * and other contributors as indicated by the @author tags.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.hawkular.bus.common.codec;
+
+import java.io.IOException;
+
+import org.hawkular.bus.common.BasicMessage;
+import org.hawkular.bus.common.JsonCodecRegistry;
+
+import com.fasterxml.jackson.core.JsonGenerator;
+import com.fasterxml.jackson.core.JsonParser;
+
+/**
+ * Writes and reads messages of one class with the Jackson streaming API rather than with Jackson databind.
+ *
+ * Implementations are normally generated at compile time by the hawkular-bus-processor annotation processor, which
+ * names them after the message class with the {@link #GENERATED_CLASS_SUFFIX} appended. {@link JsonCodecRegistry}
+ * finds them by that name and uses them in place of the databind readers and writers. Implementations must be
+ * thread-safe.
+ *
+ * @param <T> the message class
+ */
+public interface MessageSerializer<T extends BasicMessage> {
+
+    /**
+     * Appended to the binary name of a message class to get the name of its generated serializer.
+     */
+    String GENERATED_CLASS_SUFFIX = "_MessageSerializer";
+
+    /**
+     * Writes the given message as an object.
+     *
+     * @param message the message to write
+     * @param generator where the message is written to
+     * @throws IOException if the message cannot be written
+     */
+    void serialize(T message, JsonGenerator generator) throws IOException;
+
+    /**
+     * Reads a message object. The parser is either positioned at the start of the object or has not been advanced
+     * at all. When this returns, the parser is positioned at the end of the object.
+     *
+     * @param parser where the message is read from
+     * @return the message that was read, or <code>null</code> if a null value was read
+     * @throws IOException if the message cannot be read
+     */
+    T deserialize(JsonParser parser) throws IOException;
+}
@@ -0,0 +1,124 @@
+/*
+ * Copyright 2015 Red Hat, Inc. and/or its affiliates
+ * and other contributors as indicated by the @author tags.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.hawkular.bus.common.compression;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+
+import org.hawkular.bus.common.MessageCompressor;
+
+/**
+ * A stream whose data is the compressed data of another stream. The data is compressed as it is read, a chunk at a
+ * time, so streams of any size can be compressed without being held in memory.
+ */
+public class CompressingInputStream extends InputStream {
+
+    private static final int CHUNK_SIZE = 8192;
+
+    private final InputStream source;
+    private final CompressedData compressed = new CompressedData();
+    private final OutputStream compressing;
+    private final byte[] chunk = new byte[CHUNK_SIZE];
+
+    // how much of the compressed data has been read
+    private int position;
+    private boolean finished;
+
+    /**
+     * @param source the uncompressed data
+     * @param compressor compresses the data
+     * @throws IOException if the compressor cannot be initialized
+     */
+    public CompressingInputStream(InputStream source, MessageCompressor compressor) throws IOException {
+        if (source == null) {
+            throw new IllegalArgumentException("source must not be null");
+        }
+        if (compressor == null) {
+            throw new IllegalArgumentException("compressor must not be null");
+        }
+        this.source = source;
+        this.compressing = compressor.compress(compressed);
+    }
+
+    @Override
+    public int read() throws IOException {
+        byte[] b = new byte[1];
+        int read = read(b, 0, 1);
+        return (read < 0) ? -1 : (b[0] & 0xff);
+    }
+
+    @Override
+    public int read(byte[] b, int off, int len) throws IOException {
+        if (len == 0) {
+            return 0;
+        }
+        // the compressor may need several chunks before it has any output for us
+        while (position == compressed.size()) {
+            if (finished) {
+                return -1;
+            }
+            compressed.reset();
+            position = 0;
+            int read = source.read(chunk);
+            if (read < 0) {
+                compressing.close();
+                finished = true;
+            } else {
+                compressing.write(chunk, 0, read);
+            }
+        }
+        int read = Math.min(len, compressed.size() - position);
+        System.arraycopy(compressed.buffer(), position, b, off, read);
+        position += read;
+        return read;
+    }
+
+    @Override
+    public int available() {
+        return compressed.size() - position;
+    }
+
+    @Override
+    public void close() throws IOException {
+        try {
+            if (!finished) {
+                // frees the compressor's native resources; what it writes on closing is of no use to anyone
+                finished = true;
+                compressing.close();
+                compressed.reset();
+                position = 0;
+            }
+        } finally {
+            source.close();
+        }
+    }
+
+    /**
+     * Gives access to the buffered data so it need not be copied.
+     */
+    private static class CompressedData extends ByteArrayOutputStream {
+        CompressedData() {
+            super(CHUNK_SIZE);
+        }
+
+        byte[] buffer() {
+            return buf;
+        }
+    }
+}
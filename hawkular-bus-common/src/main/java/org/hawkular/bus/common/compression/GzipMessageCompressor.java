@@ -0,0 +1,80 @@
+/*
+ * Copyright 2015 Red Hat, Inc. and/or its affiliates
+ * and other contributors as indicated by the @author tags.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.hawkular.bus.common.compression;
+
+import java.io.FilterOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.util.zip.GZIPInputStream;
+import java.util.zip.GZIPOutputStream;
+
+import org.hawkular.bus.common.MessageCompressor;
+
+/**
+ * Compresses message bodies with gzip.
+ */
+public class GzipMessageCompressor implements MessageCompressor {
+    public static final String NAME = "gzip";
+
+    private static final int BUFFER_SIZE = 8192;
+
+    @Override
+    public String getName() {
+        return NAME;
+    }
+
+    @Override
+    public OutputStream compress(OutputStream out) throws IOException {
+        if (out == null) {
+            throw new IllegalArgumentException("output stream must not be null");
+        }
+        return new GZIPOutputStream(new NonClosingOutputStream(out), BUFFER_SIZE);
+    }
+
+    @Override
+    public InputStream decompress(InputStream in) throws IOException {
+        if (in == null) {
+            throw new IllegalArgumentException("input stream must not be null");
+        }
+        return new GZIPInputStream(in, BUFFER_SIZE);
+    }
+
+    @Override
+    public String toString() {
+        return getClass().getSimpleName() + ": [name=" + NAME + "]";
+    }
+
+    /**
+     * Closing the gzip stream finishes the compressed data; whatever it was written to stays open.
+     */
+    private static class NonClosingOutputStream extends FilterOutputStream {
+        NonClosingOutputStream(OutputStream out) {
+            super(out);
+        }
+
+        @Override
+        public void write(byte[] b, int off, int len) throws IOException {
+            out.write(b, off, len);
+        }
+
+        @Override
+        public void close() throws IOException {
+            flush();
+        }
+    }
+}
@@ -0,0 +1,121 @@
+/*
+ * Copyright 2015 Red Hat, Inc. and/or its affiliates
+ * and other contributors as indicated by the @author tags.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.hawkular.bus.common.compression;
+
+import java.io.IOException;
+import java.io.OutputStream;
+
+import org.hawkular.bus.common.MessageCompressor;
+
+/**
+ * Buffers the data written to it until more than a threshold number of bytes have been written. Small data is then
+ * written as-is to the target stream when this stream is closed; larger data is compressed as it is written, so it
+ * is never buffered in full. Use {@link #isCompressed()} to find out which happened.
+ *
+ * Closing this stream does not close the target stream.
+ */
+public class ThresholdCompressingOutputStream extends OutputStream {
+
+    private final OutputStream target;
+    private final MessageCompressor compressor;
+    private final int threshold;
+
+    private byte[] buffer;
+    private int count;
+    private OutputStream compressing;
+    private boolean closed;
+
+    /**
+     * @param target where the data is written to
+     * @param compressor compresses the data if there is more than {@code threshold} bytes of it
+     * @param threshold the number of bytes that can be written without them being compressed
+     */
+    public ThresholdCompressingOutputStream(OutputStream target, MessageCompressor compressor, int threshold) {
+        if (target == null) {
+            throw new IllegalArgumentException("target must not be null");
+        }
+        if (compressor == null) {
+            throw new IllegalArgumentException("compressor must not be null");
+        }
+        if (threshold < 0) {
+            throw new IllegalArgumentException("threshold must not be negative: " + threshold);
+        }
+        this.target = target;
+        this.compressor = compressor;
+        this.threshold = threshold;
+        this.buffer = new byte[Math.min(threshold, 1024)];
+    }
+
+    /**
+     * @return true if the data is being compressed because more than the threshold number of bytes were written
+     */
+    public boolean isCompressed() {
+        return compressing != null;
+    }
+
+    @Override
+    public void write(int b) throws IOException {
+        write(new byte[] { (byte) b }, 0, 1);
+    }
+
+    @Override
+    public void write(byte[] b, int off, int len) throws IOException {
+        if (closed) {
+            throw new IOException("Stream is closed");
+        }
+        if (compressing != null) {
+            compressing.write(b, off, len);
+        } else if (count + len <= threshold) {
+            if (count + len > buffer.length) {
+                byte[] bigger = new byte[Math.min(threshold, Math.max(count + len, buffer.length * 2))];
+                System.arraycopy(buffer, 0, bigger, 0, count);
+                buffer = bigger;
+            }
+            System.arraycopy(b, off, buffer, count, len);
+            count += len;
+        } else {
+            compressing = compressor.compress(target);
+            compressing.write(buffer, 0, count);
+            compressing.write(b, off, len);
+            buffer = null;
+            count = 0;
+        }
+    }
+
+    @Override
+    public void flush() throws IOException {
+        // until the threshold is reached we cannot know whether to compress, so only compressed data is flushed
+        if (compressing != null) {
+            compressing.flush();
+        }
+    }
+
+    @Override
+    public void close() throws IOException {
+        if (closed) {
+            return;
+        }
+        closed = true;
+        if (compressing != null) {
+            compressing.close();
+        } else {
+            target.write(buffer, 0, count);
+            target.flush();
+            buffer = null;
+        }
+    }
+}
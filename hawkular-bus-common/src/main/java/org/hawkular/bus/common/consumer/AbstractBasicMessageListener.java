@@ -20,8 +20,9 @@ import java.io.InputStream;
 import java.lang.reflect.ParameterizedType;
 import java.lang.reflect.Type;
 import java.lang.reflect.TypeVariable;
-import java.util.Enumeration;
-import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
 
 import javax.jms.BytesMessage;
 import javax.jms.JMSException;
@@ -32,6 +33,10 @@ import javax.jms.TextMessage;
 import org.hawkular.bus.common.AbstractMessage;
 import org.hawkular.bus.common.BasicMessage;
 import org.hawkular.bus.common.BasicMessageWithExtraData;
+import org.hawkular.bus.common.JMSMessageHeaders;
+import org.hawkular.bus.common.MessageCodec;
+import org.hawkular.bus.common.MessageCodecs;
+import org.hawkular.bus.common.MessageCompressors;
 import org.hawkular.bus.common.MessageId;
 import org.hawkular.bus.common.MessageProcessor;
 import org.hawkular.bus.common.log.MsgLogger;
@@ -39,7 +44,9 @@ import org.jboss.logging.Logger;
 
 /**
  * A message listener that expects to receive a JSON-encoded BasicMessage or one of its subclasses; the JSON decoding is
- * handled for you.
+ * handled for you. Binary messages encoded with another {@link MessageCodec} are decoded with the codec named in the
+ * {@link MessageProcessor#HEADER_MESSAGE_CODEC} header. Message bodies compressed by the producer are decompressed
+ * with the compressor named in the {@link MessageProcessor#HEADER_MESSAGE_COMPRESSION} header.
  *
  * Subclasses will typically override {@link #AbstractBasicMessageListener(Class)} or
  * {@link #determineBasicMessageClass()} unless either (a) the subclass hierarchy has generic types that are specific
@@ -62,6 +69,17 @@ public abstract class AbstractBasicMessageListener<T extends BasicMessage> imple
 
     private final ClassLoader basicMessageClassLoader;
 
+    // Resolving the class named in the message header is done once per class name since class loading can be
+    // contended. Both caches are keyed by the received class name. Names that cannot be resolved are remembered
+    // too, but only up to a limit so garbage names sent to us cannot grow the cache forever.
+    private static final int MAX_UNRESOLVABLE_CLASS_NAMES = 256;
+    private final ConcurrentMap<String, Class<?>> resolvedClasses = new ConcurrentHashMap<>();
+    private final ConcurrentMap<String, ClassNotFoundException> unresolvableClasses = new ConcurrentHashMap<>();
+
+    private volatile BasicMessageClassRegistry messageClassRegistry;
+
+    private volatile boolean deferBodyParsing;
+
     public AbstractBasicMessageListener() {
         this.jsonDecoderRing = determineBasicMessageClass();
         this.basicMessageClassLoader = null;
@@ -110,16 +128,74 @@ public abstract class AbstractBasicMessageListener<T extends BasicMessage> imple
         this.consumerConnectionContext = consumerConnectionContext;
     }
 
+    /**
+     * @return the allow-list of message classes or <code>null</code> if there is none
+     */
+    public BasicMessageClassRegistry getMessageClassRegistry() {
+        return messageClassRegistry;
+    }
+
+    /**
+     * Restricts the messages this listener deserializes based on the class name in their
+     * {@link MessageProcessor#HEADER_BASIC_MESSAGE_CLASS} header to those whose classes are in the given registry.
+     * The classes are taken from the registry, so no class loading is done for them, and messages naming other
+     * classes are skipped.
+     *
+     * @param messageClassRegistry the allow-list of message classes or <code>null</code> to allow any class that
+     *            can be loaded
+     */
+    public void setMessageClassRegistry(BasicMessageClassRegistry messageClassRegistry) {
+        this.messageClassRegistry = messageClassRegistry;
+        this.resolvedClasses.clear();
+        this.unresolvableClasses.clear();
+    }
+
+    /**
+     * @return <code>true</code> if received messages are handed out with their bodies not yet decoded
+     * @see #setDeferBodyParsing(boolean)
+     */
+    public boolean isDeferBodyParsing() {
+        return deferBodyParsing;
+    }
+
+    /**
+     * When set, {@link #parseMessage(Message)} does not decode the message body but returns a
+     * {@link DeferredBasicMessageWithExtraData} that decodes it the first time the message or its binary data is
+     * asked for. Listeners can then look at {@link DeferredBasicMessageWithExtraData#getHeaders() the headers} and
+     * drop messages they are not interested in without paying for decoding them. Note that with deferred parsing an
+     * undecodable message is only detected when it is first accessed.
+     *
+     * @param deferBodyParsing <code>true</code> to decode message bodies only on first access
+     */
+    public void setDeferBodyParsing(boolean deferBodyParsing) {
+        this.deferBodyParsing = deferBodyParsing;
+    }
+
+    /**
+     * Called with the headers of each received message before its body is decoded. Messages that are not accepted
+     * are skipped without being decoded at all, so filtering on headers here is much cheaper than filtering on the
+     * decoded message.
+     *
+     * This implementation accepts all messages. Subclasses are free to override.
+     *
+     * @param headers the headers of the received message; only the headers that are looked at are read
+     * @return <code>true</code> if the message is to be processed, <code>false</code> if it is to be skipped
+     */
+    protected boolean accept(Map<String, String> headers) {
+        return true;
+    }
+
     /**
      * Given the BasicMessage received over the wire, convert it to our T representation of the message and keep any
      * extra data that came with it.
      * <p>
      * The class T is determined as follows: First, the property {@link MessageProcessor#HEADER_BASIC_MESSAGE_CLASS} is
-     * looked up in the given {@code message}'s properties if there is a class name set and if
-     * {@link #basicMessageClassLoader} is not {@code null}, the class is gotten using
-     * {@code Class.forName(className, true, basicMessageClassLoader)} (may throw an unchecked
-     * {@link ClassNotFoundException}), otherwise {@link #getBasicMessageClass()} is used to get the Java type to
-     * deserialize to.
+     * looked up in the given {@code message}'s properties and if there is a class name set, the class is
+     * resolved via {@link #resolveBasicMessageClass(String)}, otherwise {@link #getBasicMessageClass()} is used to get
+     * the Java type to deserialize to.
+     * <p>
+     * Messages not {@link #accept(Map) accepted} are skipped. If {@link #setDeferBodyParsing(boolean) deferred
+     * parsing} is enabled, the returned object decodes the body only when it is first asked for it.
      *
      * @param message the over-the-wire message
      *
@@ -129,58 +205,36 @@ public abstract class AbstractBasicMessageListener<T extends BasicMessage> imple
     protected BasicMessageWithExtraData<T> parseMessage(final Message message) {
         BasicMessageWithExtraData<T> retVal;
         try {
+            // the headers are only read from the message when they are asked for
+            JMSMessageHeaders headers = new JMSMessageHeaders(message);
+            if (!accept(headers)) {
+                getLog().tracef("Skipping message [%s] that was not accepted", message.getJMSMessageID());
+                return null;
+            }
+
             Class<T> basicMessageClass = null;
 
             // If a basic message class name was provided to us in the header, we will try our best to use that
             // unless a subclass wants to substitute another class for it.
-            String basicMessageClassName = message.getStringProperty(MessageProcessor.HEADER_BASIC_MESSAGE_CLASS);
+            String basicMessageClassName = headers.get(MessageProcessor.HEADER_BASIC_MESSAGE_CLASS);
             if (basicMessageClassName != null) {
-                String desired = convertReceivedMessageClassNameToDesiredMessageClassName(basicMessageClassName);
-                if (desired != null) {
-                    basicMessageClassName = desired;
+                basicMessageClass = (Class<T>) resolveBasicMessageClass(basicMessageClassName);
+                if (basicMessageClass == null) {
+                    msglog.errorMessageClassNotAllowed(basicMessageClassName);
+                    return null;
                 }
-                ClassLoader cl = (basicMessageClassLoader != null) ? basicMessageClassLoader
-                        : this.getClass().getClassLoader();
-                basicMessageClass = (Class<T>) Class.forName(basicMessageClassName, true, cl);
             } else {
                 basicMessageClass = getBasicMessageClass();
             }
             log.debugf("Effective message type [%s]", basicMessageClass);
 
-            if (message instanceof TextMessage) {
-                String receivedBody = ((TextMessage) message).getText();
-                T basicMessage = AbstractMessage.fromJSON(receivedBody, basicMessageClass);
-                retVal = new BasicMessageWithExtraData<T>(basicMessage, null);
-
-            } else if (message instanceof BytesMessage) {
-
-                BytesMessage bytesMessage = (BytesMessage) message;
-                InputStream receivedBody = new BytesMessageInputStream(bytesMessage);
-                retVal = AbstractMessage.fromJSON(receivedBody, basicMessageClass);
+            if (deferBodyParsing) {
+                retVal = new DeferredBasicMessageWithExtraData<T>(message, basicMessageClass, headers);
             } else {
-                throw new Exception("Unexpected implementation of " + Message.class.getName() + ": "
-                        + message.getClass() + " expected " + TextMessage.class.getName() + " or "
-                        + BytesMessage.class.getName() + ". Please report this bug.");
-            }
-
-            // grab some headers and put them in the message
-            retVal.getBasicMessage().setMessageId(new MessageId(message.getJMSMessageID()));
-            if (message.getJMSCorrelationID() != null) {
-                MessageId correlationId = new MessageId(message.getJMSCorrelationID());
-                retVal.getBasicMessage().setCorrelationId(correlationId);
+                retVal = decodeMessage(message, basicMessageClass, headers);
+                getLog().tracef("Received basic message: %s", retVal.getBasicMessage().getClass());
             }
 
-            HashMap<String, String> rawHeaders = new HashMap<String, String>();
-            for (Enumeration<?> propNames = message.getPropertyNames(); propNames.hasMoreElements();) {
-                String propName = propNames.nextElement().toString();
-                rawHeaders.put(propName, message.getStringProperty(propName));
-            }
-            if (!rawHeaders.isEmpty()) {
-                retVal.getBasicMessage().setHeaders(rawHeaders);
-            }
-
-            getLog().tracef("Received basic message: %s", retVal.getBasicMessage().getClass());
-
         } catch (JMSException e) {
             msglog.errorNotValidTextMessage(e);
             retVal = null;
@@ -191,6 +245,121 @@ public abstract class AbstractBasicMessageListener<T extends BasicMessage> imple
         return retVal;
     }
 
+    /**
+     * Decodes the body of the given message and fills in the message ID, correlation ID and headers of the decoded
+     * message.
+     *
+     * @param message the over-the-wire message
+     * @param basicMessageClass the class to decode the message body to
+     * @param headers the headers of the message
+     * @return the decoded message with any extra data that came with it
+     * @throws Exception if the message cannot be decoded
+     */
+    static <T extends BasicMessage> BasicMessageWithExtraData<T> decodeMessage(Message message,
+            Class<T> basicMessageClass, JMSMessageHeaders headers) throws Exception {
+        BasicMessageWithExtraData<T> retVal;
+
+        if (message instanceof TextMessage) {
+            String receivedBody = ((TextMessage) message).getText();
+            T basicMessage = AbstractMessage.fromJSON(receivedBody, basicMessageClass);
+            retVal = new BasicMessageWithExtraData<T>(basicMessage, null);
+
+        } else if (message instanceof BytesMessage) {
+            // the producer tells us how the message was encoded; if it doesn't, it is JSON
+            MessageCodec codec = MessageCodecs.forName(headers.get(MessageProcessor.HEADER_MESSAGE_CODEC));
+            BytesMessage bytesMessage = (BytesMessage) message;
+            InputStream receivedBody = new BytesMessageInputStream(bytesMessage);
+
+            // compressed bodies, including any binary data, are decompressed as they are read
+            String compression = headers.get(MessageProcessor.HEADER_MESSAGE_COMPRESSION);
+            if (compression != null) {
+                receivedBody = MessageCompressors.forName(compression).decompress(receivedBody);
+            }
+            retVal = codec.decode(receivedBody, basicMessageClass);
+
+            // only messages sent with binary data have any; producers from before codecs existed only sent bytes
+            // messages with binary data, and they sent no codec header
+            if (headers.get(MessageProcessor.HEADER_BINARY_DATA) == null
+                    && headers.get(MessageProcessor.HEADER_MESSAGE_CODEC) != null) {
+                retVal = new BasicMessageWithExtraData<T>(retVal.getBasicMessage(), null);
+            }
+        } else {
+            throw new Exception("Unexpected implementation of " + Message.class.getName() + ": "
+                    + message.getClass() + " expected " + TextMessage.class.getName() + " or "
+                    + BytesMessage.class.getName() + ". Please report this bug.");
+        }
+
+        // grab some headers and put them in the message
+        // producers may have been told not to generate message IDs
+        if (message.getJMSMessageID() != null) {
+            retVal.getBasicMessage().setMessageId(new MessageId(message.getJMSMessageID()));
+        }
+        if (message.getJMSCorrelationID() != null) {
+            MessageId correlationId = new MessageId(message.getJMSCorrelationID());
+            retVal.getBasicMessage().setCorrelationId(correlationId);
+        }
+        retVal.getBasicMessage().setHeaders(headers);
+
+        return retVal;
+    }
+
+    /**
+     * Resolves the class named in the {@link MessageProcessor#HEADER_BASIC_MESSAGE_CLASS} header of a received
+     * message. The name is first passed to {@link #convertReceivedMessageClassNameToDesiredMessageClassName(String)}.
+     * If this listener has a {@link #setMessageClassRegistry(BasicMessageClassRegistry) registry}, the class is
+     * taken from it; otherwise it is loaded by the class loader given to this listener, or the class loader of this
+     * listener if it was not given one.
+     *
+     * Results are cached per received class name, so the conversion and class loading happen only once per name,
+     * and names that cannot be loaded are remembered so they fail fast.
+     *
+     * @param receivedClassName the class name found in the message header
+     * @return the message class or <code>null</code> if the class is not in this listener's registry
+     * @throws ClassNotFoundException if the class cannot be loaded or is not a {@link BasicMessage}
+     */
+    protected Class<?> resolveBasicMessageClass(String receivedClassName) throws ClassNotFoundException {
+        Class<?> clazz = resolvedClasses.get(receivedClassName);
+        if (clazz != null) {
+            return clazz;
+        }
+        ClassNotFoundException notFound = unresolvableClasses.get(receivedClassName);
+        if (notFound != null) {
+            throw notFound;
+        }
+
+        String className = convertReceivedMessageClassNameToDesiredMessageClassName(receivedClassName);
+        if (className == null) {
+            className = receivedClassName;
+        }
+
+        BasicMessageClassRegistry registry = messageClassRegistry;
+        if (registry != null) {
+            clazz = registry.getMessageClass(className);
+            if (clazz == null) {
+                return null; // not allowed; not cached since the class might get registered later
+            }
+        } else {
+            try {
+                ClassLoader cl = (basicMessageClassLoader != null) ? basicMessageClassLoader
+                        : this.getClass().getClassLoader();
+                // do not run static initializers of classes we are not going to use
+                clazz = Class.forName(className, false, cl);
+                if (!BasicMessage.class.isAssignableFrom(clazz)) {
+                    throw new ClassNotFoundException("Class [" + className + "] is not a "
+                            + BasicMessage.class.getName());
+                }
+            } catch (ClassNotFoundException e) {
+                if (unresolvableClasses.size() < MAX_UNRESOLVABLE_CLASS_NAMES) {
+                    unresolvableClasses.putIfAbsent(receivedClassName, e);
+                }
+                throw e;
+            }
+        }
+
+        resolvedClasses.putIfAbsent(receivedClassName, clazz);
+        return clazz;
+    }
+
     protected Class<T> getBasicMessageClass() {
         return jsonDecoderRing;
     }
@@ -238,7 +407,8 @@ public abstract class AbstractBasicMessageListener<T extends BasicMessage> imple
      * This is helpful if the JSON classname is not available on the classloader, but the listener instead
      * has another class that can be used to deserialize the JSON.
      *
-     * This implementation always returns null. Subclasses are free to override.
+     * This implementation always returns null. Subclasses are free to override. Note that this is called only once
+     * per received class name since the resolved class is cached (see {@link #resolveBasicMessageClass(String)}).
      *
      * @param className the received JSON can be handled by this class
      * @return if not null, this will be the name of another class that is to be used to deserialize a JSON message
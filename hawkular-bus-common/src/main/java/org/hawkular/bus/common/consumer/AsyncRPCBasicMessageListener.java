@@ -0,0 +1,220 @@
+/*
+ * Copyright 2015 Red Hat, Inc. and/or its affiliates
+ * and other contributors as indicated by the @author tags.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.hawkular.bus.common.consumer;
+
+import java.util.Deque;
+import java.util.concurrent.CompletionStage;
+import java.util.concurrent.ConcurrentLinkedDeque;
+import java.util.concurrent.Semaphore;
+import java.util.function.BiConsumer;
+
+import javax.jms.Connection;
+import javax.jms.JMSException;
+import javax.jms.Message;
+import javax.jms.Session;
+
+import org.hawkular.bus.common.BasicMessage;
+import org.hawkular.bus.common.BasicMessageWithExtraData;
+import org.hawkular.bus.common.MessageProcessor;
+import org.hawkular.bus.common.log.MsgLogger;
+import org.hawkular.bus.common.producer.ProducerConnectionContext;
+
+/**
+ * A listener that processes incoming requests asynchronously. Subclasses implement
+ * {@link #onBasicMessageAsync(BasicMessageWithExtraData)}, which returns as soon as the work for the request is
+ * started, for example a call to storage or another service, instead of blocking the thread that delivers the
+ * messages. The response is sent when the returned stage completes.
+ *
+ * At most a given number of requests are processed at once. When that many are in flight, the delivery thread waits
+ * in {@link #onMessage(Message)} until one of them completes, so the consumer stops taking more requests than the
+ * listener can handle.
+ *
+ * Since responses are sent from whatever thread completes the stage, they cannot be sent with the session of the
+ * consumer. They are sent with sessions of the consumer's connection, each with an anonymous producer, which are
+ * kept for the next responses; there are never more of them than requests in flight.
+ *
+ * @param <T> the type of the incoming request message
+ * @param <U> the type of the response message that is to be sent back to the request sender
+ */
+public abstract class AsyncRPCBasicMessageListener<T extends BasicMessage, U extends BasicMessage> extends
+        RPCBasicMessageListener<T, U> {
+
+    /**
+     * How many requests are processed at once unless configured otherwise.
+     */
+    public static final int DEFAULT_MAX_IN_FLIGHT_REQUESTS = 100;
+
+    private final MsgLogger msglog = MsgLogger.LOGGER;
+
+    private final int maxInFlightRequests;
+    private final Semaphore inFlightPermits;
+    private final Deque<ProducerConnectionContext> idleReplyContexts = new ConcurrentLinkedDeque<>();
+
+    public AsyncRPCBasicMessageListener() {
+        this(DEFAULT_MAX_IN_FLIGHT_REQUESTS);
+    }
+
+    /**
+     * @param maxInFlightRequests how many requests can be processed at once
+     */
+    public AsyncRPCBasicMessageListener(int maxInFlightRequests) {
+        super();
+        this.maxInFlightRequests = checkMaxInFlightRequests(maxInFlightRequests);
+        this.inFlightPermits = new Semaphore(maxInFlightRequests);
+    }
+
+    /**
+     * @param messageSender sends the responses
+     * @param maxInFlightRequests how many requests can be processed at once
+     */
+    public AsyncRPCBasicMessageListener(MessageProcessor messageSender, int maxInFlightRequests) {
+        super(messageSender);
+        this.maxInFlightRequests = checkMaxInFlightRequests(maxInFlightRequests);
+        this.inFlightPermits = new Semaphore(maxInFlightRequests);
+    }
+
+    /**
+     * @param jsonDecoderRing the class representation of the generic type T
+     * @param maxInFlightRequests how many requests can be processed at once
+     */
+    protected AsyncRPCBasicMessageListener(Class<T> jsonDecoderRing, int maxInFlightRequests) {
+        super(jsonDecoderRing);
+        this.maxInFlightRequests = checkMaxInFlightRequests(maxInFlightRequests);
+        this.inFlightPermits = new Semaphore(maxInFlightRequests);
+    }
+
+    private static int checkMaxInFlightRequests(int maxInFlightRequests) {
+        if (maxInFlightRequests < 1) {
+            throw new IllegalArgumentException("maxInFlightRequests must be at least 1: " + maxInFlightRequests);
+        }
+        return maxInFlightRequests;
+    }
+
+    public int getMaxInFlightRequests() {
+        return maxInFlightRequests;
+    }
+
+    /**
+     * @return the number of requests whose responses have not been sent yet
+     */
+    public int getInFlightRequestCount() {
+        return maxInFlightRequests - inFlightPermits.availablePermits();
+    }
+
+    @Override
+    public void onMessage(final Message message) {
+        BasicMessageWithExtraData<T> msgWithExtraData = parseMessage(message);
+        if (msgWithExtraData == null) {
+            return; // either we are not to process this message or some error occurred, so we skip it
+        }
+
+        try {
+            inFlightPermits.acquire();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            msglog.errorFailedToProcessRPCRequest(e);
+            return;
+        }
+
+        CompletionStage<U> response;
+        try {
+            response = onBasicMessageAsync(msgWithExtraData);
+        } catch (RuntimeException e) {
+            inFlightPermits.release();
+            msglog.errorFailedToProcessRPCRequest(e);
+            return;
+        }
+        if (response == null) {
+            inFlightPermits.release();
+            getLog().debug("No response to the request will be sent");
+            return;
+        }
+
+        response.whenComplete(new BiConsumer<U, Throwable>() {
+            @Override
+            public void accept(U responseBasicMessage, Throwable error) {
+                try {
+                    if (error != null) {
+                        msglog.errorFailedToProcessRPCRequest(error);
+                    } else {
+                        sendResponse(message, responseBasicMessage);
+                    }
+                } finally {
+                    inFlightPermits.release();
+                }
+            }
+        });
+    }
+
+    /**
+     * Subclasses implement this method to start processing the received request.
+     *
+     * @param msgWithExtraData the request received with any extra data that came with it
+     * @return the stage that completes with the response to be forwarded to the sender of the request, or
+     *         <code>null</code> if no response is to be sent; if the stage completes exceptionally, no response is
+     *         sent
+     */
+    protected abstract CompletionStage<U> onBasicMessageAsync(BasicMessageWithExtraData<T> msgWithExtraData);
+
+    /**
+     * Returns an idle reply context or creates one with a new session of the consumer's connection.
+     */
+    @Override
+    protected ProducerConnectionContext getReplyConnectionContext() throws JMSException {
+        ProducerConnectionContext replyContext = idleReplyContexts.pollFirst();
+        if (replyContext != null) {
+            return replyContext;
+        }
+
+        ConsumerConnectionContext consumerConnectionContext = getConsumerConnectionContext();
+        if (consumerConnectionContext == null) {
+            msglog.errorNoConnectionContextInListener();
+            return null;
+        }
+        Connection connection = consumerConnectionContext.getConnection();
+        if (connection == null) {
+            throw new IllegalStateException("The consumer context has no connection to send responses with");
+        }
+        Session session = connection.createSession(false, Session.AUTO_ACKNOWLEDGE);
+        replyContext = new ProducerConnectionContext();
+        replyContext.setConnection(connection);
+        replyContext.setSession(session);
+        try {
+            replyContext.setMessageProducer(session.createProducer(null));
+        } catch (JMSException | RuntimeException e) {
+            session.close();
+            throw e;
+        }
+        return replyContext;
+    }
+
+    /**
+     * Keeps the context for the next response, or closes its session if the response could not be sent.
+     */
+    @Override
+    protected void releaseReplyConnectionContext(ProducerConnectionContext replyContext, boolean failed) {
+        if (!failed) {
+            idleReplyContexts.offerFirst(replyContext);
+            return;
+        }
+        try {
+            replyContext.getSession().close();
+        } catch (JMSException e) {
+            msglog.errorFailedToCloseResourcesToRPCClient(e);
+        }
+    }
+}
@@ -0,0 +1,88 @@
+/*
+ * Copyright 2015 Red Hat, Inc. and/or its affiliates
+ * and other contributors as indicated by the @author tags.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.hawkular.bus.common.consumer;
+
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+
+import org.hawkular.bus.common.BasicMessage;
+import org.hawkular.bus.common.MessageProcessor;
+
+/**
+ * An allow-list of the message classes a listener is willing to deserialize, keyed by the class names found in the
+ * {@link MessageProcessor#HEADER_BASIC_MESSAGE_CLASS} header (after the listener had a chance to
+ * {@link AbstractBasicMessageListener#convertReceivedMessageClassNameToDesiredMessageClassName(String) convert}
+ * them).
+ *
+ * When a listener is given a registry (see
+ * {@link AbstractBasicMessageListener#setMessageClassRegistry(BasicMessageClassRegistry)}), message classes are
+ * taken from the registry rather than loaded by name, and messages naming a class that is not registered are
+ * rejected without any class loading being attempted.
+ *
+ * This object is thread-safe. Classes can be registered while listeners are using it but never unregistered.
+ */
+public class BasicMessageClassRegistry {
+    private final ConcurrentMap<String, Class<? extends BasicMessage>> classes = new ConcurrentHashMap<>();
+
+    /**
+     * Allows messages of the given class, identified by the class' name.
+     *
+     * @param clazz the message class
+     * @return this registry
+     */
+    public BasicMessageClassRegistry register(Class<? extends BasicMessage> clazz) {
+        if (clazz == null) {
+            throw new IllegalArgumentException("clazz must not be null");
+        }
+        return register(clazz.getName(), clazz);
+    }
+
+    /**
+     * Allows messages that name the given class name and deserializes them as the given class. This allows a
+     * listener to accept a class name that is not available to it.
+     *
+     * @param className the class name as found in the message header
+     * @param clazz the message class to deserialize those messages as
+     * @return this registry
+     */
+    public BasicMessageClassRegistry register(String className, Class<? extends BasicMessage> clazz) {
+        if (className == null) {
+            throw new IllegalArgumentException("className must not be null");
+        }
+        if (clazz == null) {
+            throw new IllegalArgumentException("clazz must not be null");
+        }
+        classes.put(className, clazz);
+        return this;
+    }
+
+    /**
+     * @param className the class name as found in the message header
+     * @return the registered message class or <code>null</code> if messages naming that class are not allowed
+     */
+    public Class<? extends BasicMessage> getMessageClass(String className) {
+        return (className == null) ? null : classes.get(className);
+    }
+
+    /**
+     * @param className the class name as found in the message header
+     * @return true if messages naming the class are allowed
+     */
+    public boolean isRegistered(String className) {
+        return getMessageClass(className) != null;
+    }
+}
@@ -21,6 +21,7 @@ import java.io.InputStream;
 
 import javax.jms.BytesMessage;
 import javax.jms.JMSException;
+import javax.jms.MessageEOFException;
 
 /**
  * @author <a href="https://github.com/ppalaga">Peter Palaga</a>
@@ -30,6 +31,9 @@ public class BytesMessageInputStream extends InputStream {
 
     private final BytesMessage delegate;
 
+    // only used when reading into an array at a non-zero offset
+    private byte[] offsetBuffer;
+
     public BytesMessageInputStream(BytesMessage delegate) {
         super();
         this.delegate = delegate;
@@ -39,7 +43,9 @@ public class BytesMessageInputStream extends InputStream {
     @Override
     public int read() throws IOException {
         try {
-            return delegate.readByte();
+            return delegate.readUnsignedByte();
+        } catch (MessageEOFException e) {
+            return -1;
         } catch (JMSException e) {
             throw new IOException(e);
         }
@@ -56,14 +62,23 @@ public class BytesMessageInputStream extends InputStream {
 
     @Override
     public int read(byte[] b, int off, int len) throws IOException {
-        if (off == 0) {
-            try {
+        try {
+            if (off == 0) {
                 return delegate.readBytes(b, len);
-            } catch (JMSException e) {
-                throw new IOException(e);
             }
-        } else {
-            return super.read(b, off, len);
+
+            // BytesMessage can only read into the start of an array; parsers do ask for an offset so avoid
+            // falling back to reading one byte at a time
+            if (offsetBuffer == null || offsetBuffer.length < len) {
+                offsetBuffer = new byte[Math.max(len, 8192)];
+            }
+            int read = delegate.readBytes(offsetBuffer, len);
+            if (read > 0) {
+                System.arraycopy(offsetBuffer, 0, b, off, read);
+            }
+            return read;
+        } catch (JMSException e) {
+            throw new IOException(e);
         }
     }
 
@@ -0,0 +1,110 @@
+/*
+ * Copyright 2015 Red Hat, Inc. and/or its affiliates
+ * and other contributors as indicated by the @author tags.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.hawkular.bus.common.consumer;
+
+import java.util.Map;
+
+import javax.jms.Message;
+
+import org.hawkular.bus.common.BasicMessage;
+import org.hawkular.bus.common.BasicMessageWithExtraData;
+import org.hawkular.bus.common.BinaryData;
+import org.hawkular.bus.common.JMSMessageHeaders;
+
+/**
+ * A received message whose body is decoded only when the message or its binary data is first asked for. Its
+ * {@link #getHeaders() headers} can be looked at without decoding the body, so listeners can cheaply skip messages
+ * they are not interested in.
+ *
+ * This is what {@link AbstractBasicMessageListener#parseMessage(Message)} returns when
+ * {@link AbstractBasicMessageListener#setDeferBodyParsing(boolean) deferred parsing} is enabled. The body is
+ * decoded at most once, even when accessed from several threads.
+ */
+public class DeferredBasicMessageWithExtraData<T extends BasicMessage> extends BasicMessageWithExtraData<T> {
+    private final Message message;
+    private final Class<T> basicMessageClass;
+    private final JMSMessageHeaders headers;
+
+    private volatile BasicMessageWithExtraData<T> decoded;
+
+    DeferredBasicMessageWithExtraData(Message message, Class<T> basicMessageClass, JMSMessageHeaders headers) {
+        if (message == null) {
+            throw new IllegalArgumentException("message cannot be null");
+        }
+        if (basicMessageClass == null) {
+            throw new IllegalArgumentException("basicMessageClass cannot be null");
+        }
+        this.message = message;
+        this.basicMessageClass = basicMessageClass;
+        this.headers = (headers != null) ? headers : new JMSMessageHeaders(message);
+    }
+
+    /**
+     * @return the headers of the received message, available without decoding the message body
+     */
+    public Map<String, String> getHeaders() {
+        return headers;
+    }
+
+    /**
+     * @return <code>true</code> if the message body has already been decoded
+     */
+    public boolean isDecoded() {
+        return decoded != null;
+    }
+
+    /**
+     * Decodes the message body if it has not been decoded yet.
+     *
+     * @throws IllegalStateException if the message body cannot be decoded
+     */
+    @Override
+    public T getBasicMessage() {
+        return decode().getBasicMessage();
+    }
+
+    /**
+     * Decodes the message body if it has not been decoded yet.
+     *
+     * @throws IllegalStateException if the message body cannot be decoded
+     */
+    @Override
+    public BinaryData getBinaryData() {
+        return decode().getBinaryData();
+    }
+
+    private BasicMessageWithExtraData<T> decode() {
+        BasicMessageWithExtraData<T> result = decoded;
+        if (result == null) {
+            synchronized (this) {
+                result = decoded;
+                if (result == null) {
+                    try {
+                        result = AbstractBasicMessageListener.decodeMessage(message, basicMessageClass, headers);
+                    } catch (RuntimeException e) {
+                        throw e;
+                    } catch (Exception e) {
+                        throw new IllegalStateException("Cannot decode message of type [" + basicMessageClass
+                                + "]", e);
+                    }
+                    decoded = result;
+                }
+            }
+        }
+        return result;
+    }
+}
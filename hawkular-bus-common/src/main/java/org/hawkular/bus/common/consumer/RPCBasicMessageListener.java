@@ -16,15 +16,15 @@
  */
 package org.hawkular.bus.common.consumer;
 
-import java.io.IOException;
-
 import javax.jms.Destination;
+import javax.jms.JMSException;
 import javax.jms.Message;
 import javax.jms.Session;
 
 import org.hawkular.bus.common.AbstractMessage;
 import org.hawkular.bus.common.BasicMessage;
 import org.hawkular.bus.common.BasicMessageWithExtraData;
+import org.hawkular.bus.common.MessageId;
 import org.hawkular.bus.common.MessageProcessor;
 import org.hawkular.bus.common.log.MsgLogger;
 import org.hawkular.bus.common.producer.ProducerConnectionContext;
@@ -35,6 +35,9 @@ import org.hawkular.bus.common.producer.ProducerConnectionContext;
  * Subclasses must override one and only one of the {@link #onBasicMessage(BasicMessageWithExtraData)} or
  * {@link #onBasicMessage(AbstractMessage)} methods.
  *
+ * Unless the response already has a correlation ID, it is correlated with the request by setting its correlation ID
+ * to the message ID of the request, which is what {@link MessageProcessor#sendRPC} expects.
+ *
  * @author John Mazzitelli
  *
  * @param <T> the type of the incoming request message
@@ -48,6 +51,9 @@ public abstract class RPCBasicMessageListener<T extends BasicMessage, U extends
     // this will be used to send our reply
     private MessageProcessor messageSender;
 
+    // sends the replies to all requests received by our consumer's session
+    private ProducerConnectionContext replyConnectionContext;
+
     /**
      * Initialize with a default message sender.
      */
@@ -87,11 +93,27 @@ public abstract class RPCBasicMessageListener<T extends BasicMessage, U extends
         }
 
         U responseBasicMessage = onBasicMessage(msgWithExtraData);
+        sendResponse(message, responseBasicMessage);
+    }
+
+    /**
+     * Sends the response to where the request asked it to be sent, if anywhere. Unless the response already has a
+     * correlation ID, it is set to the message ID of the request.
+     *
+     * @param request the request message that was received
+     * @param responseBasicMessage the response to send; if <code>null</code> no response is sent
+     */
+    protected void sendResponse(Message request, U responseBasicMessage) {
+        if (responseBasicMessage == null) {
+            // not a failure, so it must not cost the reply context
+            getLog().debug("No response to the request will be sent");
+            return;
+        }
 
-        // send the response back to the sender of the request
-        ConsumerConnectionContext consumerConnectionContext = null;
+        ProducerConnectionContext replyContext = null;
+        boolean failed = false;
         try {
-            Destination replyTo = message.getJMSReplyTo();
+            Destination replyTo = request.getJMSReplyTo();
 
             if (replyTo != null) {
                 getLog().debugf("RPC client asked to get response sent to [%s]", replyTo);
@@ -102,42 +124,92 @@ public abstract class RPCBasicMessageListener<T extends BasicMessage, U extends
                     return;
                 }
 
-                consumerConnectionContext = getConsumerConnectionContext();
-                if (consumerConnectionContext == null) {
-                    msglog.errorNoConnectionContextInListener();
-                    return;
+                // let the client match the response with its request, see MessageProcessor.sendRPC
+                String requestMessageId = request.getJMSMessageID();
+                if (responseBasicMessage.getCorrelationId() == null && requestMessageId != null) {
+                    responseBasicMessage.setCorrelationId(new MessageId(requestMessageId));
                 }
 
-                // create a producer connection context so it uses the same connection information as our consumer, but
-                // ensure that we send the response to where the client told us to send it.
-                ProducerConnectionContext producerContext = new ProducerConnectionContext();
-                producerContext.copy(consumerConnectionContext);
-                producerContext.setDestination(replyTo);
-                Session session = producerContext.getSession();
-                if (session == null) {
-                    msglog.errorNoSessionInListener();
-                } else {
-                    producerContext.setMessageProducer(session.createProducer(replyTo));
-                    sender.send(producerContext, responseBasicMessage);
+                replyContext = getReplyConnectionContext();
+                if (replyContext != null) {
+                    sender.sendTo(replyContext, replyTo, responseBasicMessage);
                 }
 
             } else {
                 getLog().debug("Sender did not tell us where to reply - will not send any response back");
             }
         } catch (Exception e) {
+            failed = true;
             msglog.errorFailedToSendResponse(e);
-            return;
         } finally {
-            if (consumerConnectionContext != null) {
-                try {
-                    consumerConnectionContext.close();
-                } catch (IOException e) {
-                    msglog.errorFailedToCloseResourcesToRPCClient(e);
-                }
+            if (replyContext != null) {
+                releaseReplyConnectionContext(replyContext, failed);
             }
         }
     }
 
+    /**
+     * Returns the context used to send responses. Its producer is anonymous, so the same producer sends the responses
+     * to all requests no matter where they are to be sent; see
+     * {@link MessageProcessor#sendTo(ProducerConnectionContext, Destination, BasicMessage)}.
+     *
+     * This implementation creates the context from the session of the {@link #getConsumerConnectionContext()
+     * consumer context} the first time a response is sent and keeps it for as long as the consumer context has the
+     * same session. Subclasses that do not send responses with the session of their consumer override this together
+     * with {@link #releaseReplyConnectionContext(ProducerConnectionContext, boolean)}.
+     *
+     * @return the context that sends responses, or <code>null</code> if responses cannot be sent
+     * @throws JMSException if the producer could not be created
+     */
+    protected ProducerConnectionContext getReplyConnectionContext() throws JMSException {
+        ConsumerConnectionContext consumerConnectionContext = getConsumerConnectionContext();
+        if (consumerConnectionContext == null) {
+            msglog.errorNoConnectionContextInListener();
+            return null;
+        }
+        Session session = consumerConnectionContext.getSession();
+        if (session == null) {
+            msglog.errorNoSessionInListener();
+            return null;
+        }
+
+        synchronized (this) {
+            if (replyConnectionContext == null || replyConnectionContext.getSession() != session) {
+                // use the same connection information as our consumer, but no particular destination
+                ProducerConnectionContext producerContext = new ProducerConnectionContext();
+                producerContext.copy(consumerConnectionContext);
+                producerContext.setDestination(null);
+                producerContext.setMessageProducer(session.createProducer(null));
+                replyConnectionContext = producerContext;
+            }
+            return replyConnectionContext;
+        }
+    }
+
+    /**
+     * Called after a response has been sent with the context returned by {@link #getReplyConnectionContext()}. This
+     * implementation keeps the context for the next response unless sending failed, in which case its producer is
+     * closed and a new one is created for the next response. The session is left alone since it is the consumer's.
+     *
+     * @param replyContext the context the response was sent with
+     * @param failed true if the response could not be sent
+     */
+    protected void releaseReplyConnectionContext(ProducerConnectionContext replyContext, boolean failed) {
+        if (!failed) {
+            return;
+        }
+        synchronized (this) {
+            if (replyConnectionContext == replyContext) {
+                replyConnectionContext = null;
+            }
+        }
+        try {
+            replyContext.getMessageProducer().close();
+        } catch (JMSException e) {
+            msglog.errorFailedToCloseResourcesToRPCClient(e);
+        }
+    }
+
     /**
      * Subclasses implement this method to process the received message.
      *
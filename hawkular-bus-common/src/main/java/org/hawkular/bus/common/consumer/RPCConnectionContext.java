@@ -16,7 +16,14 @@
  */
 package org.hawkular.bus.common.consumer;
 
+import javax.jms.Destination;
+import javax.jms.JMSException;
 import javax.jms.Message;
+import javax.jms.MessageConsumer;
+import javax.jms.TemporaryQueue;
+
+import org.hawkular.bus.common.HashedWheelTimer;
+import org.hawkular.bus.common.log.MsgLogger;
 
 /**
  * This is a context that will be associated with an incoming RPC call (that is, a request is sent and a response is
@@ -32,8 +39,12 @@ import javax.jms.Message;
  * @author John Mazzitelli
  */
 public class RPCConnectionContext extends ConsumerConnectionContext {
+    private final MsgLogger msglog = MsgLogger.LOGGER;
+
     private Message requestMessage;
     private BasicMessageListener<?> responseListener;
+    private volatile HashedWheelTimer.Timeout responseTimeout;
+    private volatile boolean cancelled;
 
     /**
      * This is the request message that was sent. A response is expected from this request message. When the message is
@@ -61,4 +72,53 @@ public class RPCConnectionContext extends ConsumerConnectionContext {
     public void setResponseListener(BasicMessageListener<?> responseListener) {
         this.responseListener = responseListener;
     }
+
+    /**
+     * @return the timeout that {@link #cancel() cancels} listening for responses, or <code>null</code> if there is
+     *         none
+     */
+    public HashedWheelTimer.Timeout getResponseTimeout() {
+        return responseTimeout;
+    }
+
+    public void setResponseTimeout(HashedWheelTimer.Timeout responseTimeout) {
+        this.responseTimeout = responseTimeout;
+    }
+
+    /**
+     * Stops listening for responses. The consumer is closed and the temporary queue the responses were to be sent to
+     * is deleted, but the session and connection are left open since they are shared with the context the request
+     * was sent with.
+     *
+     * @return false if listening had already been cancelled
+     */
+    public boolean cancel() {
+        synchronized (this) {
+            if (cancelled) {
+                return false;
+            }
+            cancelled = true;
+        }
+        HashedWheelTimer.Timeout timeout = responseTimeout;
+        if (timeout != null) {
+            timeout.cancel();
+        }
+        try {
+            MessageConsumer consumer = getMessageConsumer();
+            if (consumer != null) {
+                consumer.close();
+            }
+            Destination destination = getDestination();
+            if (destination instanceof TemporaryQueue) {
+                ((TemporaryQueue) destination).delete();
+            }
+        } catch (JMSException e) {
+            msglog.errorConsumerCloseFailureOnFutureCancel();
+        }
+        return true;
+    }
+
+    public boolean isCancelled() {
+        return cancelled;
+    }
 }
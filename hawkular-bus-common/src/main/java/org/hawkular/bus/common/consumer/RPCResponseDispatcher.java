@@ -0,0 +1,360 @@
+/*
+ * Copyright 2015 Red Hat, Inc. and/or its affiliates
+ * and other contributors as indicated by the @author tags.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.hawkular.bus.common.consumer;
+
+import java.util.Iterator;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.function.BiConsumer;
+
+import javax.jms.Connection;
+import javax.jms.Destination;
+import javax.jms.ExceptionListener;
+import javax.jms.JMSException;
+import javax.jms.Message;
+import javax.jms.MessageConsumer;
+import javax.jms.MessageListener;
+import javax.jms.Session;
+import javax.jms.TemporaryQueue;
+
+import org.hawkular.bus.common.BasicMessage;
+import org.hawkular.bus.common.BasicMessageWithExtraData;
+import org.hawkular.bus.common.HashedWheelTimer;
+import org.hawkular.bus.common.JMSMessageHeaders;
+import org.hawkular.bus.common.MessageProcessor;
+import org.hawkular.bus.common.log.MsgLogger;
+import org.jboss.logging.Logger;
+
+/**
+ * Receives the responses to the requests sent with {@link MessageProcessor#sendRPC} over a connection. Each connection
+ * has one dispatcher with its own session, temporary queue and consumer that live as long as the connection does;
+ * the requests name the queue as their reply-to destination and their responses are routed to the waiting futures by
+ * their correlation ID, which responders set to the message ID of the request.
+ *
+ * A response can arrive before its request was registered, since the message ID is only known once the request is
+ * sent. Such responses are kept for a while so they are found when the request is registered.
+ *
+ * The dispatcher is closed when its connection is closed through {@link org.hawkular.bus.common.ConnectionContext}
+ * or {@link org.hawkular.bus.common.ConnectionContextFactory}, or when the connection fails, so it does not outlive
+ * its connection. Where exception listeners are allowed, the dispatcher listens for failures of its connection and
+ * passes them on to any listener the connection already had.
+ *
+ * Requests can be given a timeout after which their futures fail. The timeouts are kept by the
+ * {@link HashedWheelTimer#getDefault() default timer}, so many requests can wait for their responses cheaply.
+ *
+ * Futures are completed by the thread of the dispatcher's session, so callers should not do lengthy work in the
+ * functions they attach to them directly; they should use the asynchronous variants of the
+ * {@link CompletableFuture} methods instead. In particular, the connection cannot be closed from that thread.
+ */
+public final class RPCResponseDispatcher implements MessageListener, AutoCloseable {
+
+    private static final Logger log = Logger.getLogger(RPCResponseDispatcher.class);
+
+    private static final long EARLY_RESPONSE_RETENTION_NANOS = TimeUnit.SECONDS.toNanos(30);
+
+    private static final ConcurrentMap<Connection, RPCResponseDispatcher> DISPATCHERS = new ConcurrentHashMap<>();
+
+    private final Connection connection;
+    private final Session session;
+    private final TemporaryQueue responseQueue;
+    private final MessageConsumer responseConsumer;
+
+    // values are the futures of registered requests or responses that arrived before their requests were registered
+    private final ConcurrentMap<String, Object> correlations = new ConcurrentHashMap<>();
+    private volatile long lastEarlyResponseSweepNanos = System.nanoTime();
+    private volatile boolean closed;
+
+    /**
+     * Returns the dispatcher of the given connection, creating it if the connection does not have one yet. The
+     * connection is started, since responses cannot be received otherwise.
+     *
+     * @param connection the connection the requests are sent over
+     * @return the dispatcher that receives the responses to the requests
+     * @throws JMSException if the dispatcher could not be created
+     */
+    public static RPCResponseDispatcher forConnection(Connection connection) throws JMSException {
+        if (connection == null) {
+            throw new IllegalArgumentException("connection must not be null");
+        }
+        RPCResponseDispatcher dispatcher = DISPATCHERS.get(connection);
+        if (dispatcher == null) {
+            synchronized (DISPATCHERS) {
+                dispatcher = DISPATCHERS.get(connection);
+                if (dispatcher == null) {
+                    dispatcher = new RPCResponseDispatcher(connection);
+                    DISPATCHERS.put(connection, dispatcher);
+                }
+            }
+        }
+        return dispatcher;
+    }
+
+    /**
+     * Closes the dispatcher of the given connection if it has one. This must be called before the connection is
+     * closed; {@link org.hawkular.bus.common.ConnectionContext#close()} does this.
+     *
+     * @param connection the connection that is about to be closed
+     */
+    public static void closeForConnection(Connection connection) {
+        if (connection != null) {
+            RPCResponseDispatcher dispatcher = DISPATCHERS.get(connection);
+            if (dispatcher != null) {
+                dispatcher.close();
+            }
+        }
+    }
+
+    private RPCResponseDispatcher(Connection connection) throws JMSException {
+        this.connection = connection;
+        this.session = connection.createSession(false, Session.AUTO_ACKNOWLEDGE);
+        try {
+            this.responseQueue = session.createTemporaryQueue();
+            this.responseConsumer = session.createConsumer(responseQueue);
+            this.responseConsumer.setMessageListener(this);
+            listenForFailure();
+            connection.start();
+        } catch (JMSException | RuntimeException e) {
+            session.close();
+            throw e;
+        }
+    }
+
+    /**
+     * Closes this dispatcher when the connection fails, since its futures would otherwise wait for responses that
+     * cannot arrive and the dispatcher would be kept for a connection that nobody closes.
+     */
+    private void listenForFailure() {
+        try {
+            final ExceptionListener previous = connection.getExceptionListener();
+            connection.setExceptionListener(new ExceptionListener() {
+                @Override
+                public void onException(JMSException e) {
+                    log.debugf(e, "The connection failed, closing its response dispatcher");
+                    close();
+                    if (previous != null) {
+                        previous.onException(e);
+                    }
+                }
+            });
+        } catch (JMSException e) {
+            log.debugf(e, "Cannot listen for failures of the connection of the response dispatcher");
+        }
+    }
+
+    /**
+     * @return the destination requests must name as their reply-to destination
+     */
+    public Destination getReplyTo() {
+        return responseQueue;
+    }
+
+    /**
+     * @return the number of requests waiting for their responses
+     */
+    public int getPendingCount() {
+        int count = 0;
+        for (Object value : correlations.values()) {
+            if (value instanceof CompletableFuture) {
+                count++;
+            }
+        }
+        return count;
+    }
+
+    /**
+     * Same as {@link #register(String, Class, long, TimeUnit)} without a timeout.
+     */
+    public <R extends BasicMessage> CompletableFuture<BasicMessageWithExtraData<R>> register(
+            String requestMessageId, Class<R> responseMessageClass) {
+        return register(requestMessageId, responseMessageClass, 0L, TimeUnit.MILLISECONDS);
+    }
+
+    /**
+     * Registers a request that was sent so its response completes the returned future. The future is unregistered
+     * when it completes for any reason, including being cancelled or timing out.
+     *
+     * The future can be cancelled at any time, except that <code>cancel(false)</code> fails while the response is
+     * being decoded.
+     *
+     * @param requestMessageId the message ID of the sent request
+     * @param responseMessageClass the class the response is decoded to
+     * @param timeout how long to wait for the response before the future is completed with a
+     *            {@link TimeoutException}; zero or less to wait until the connection is closed
+     * @param unit the unit of the timeout
+     * @return the future that will be completed with the response
+     */
+    public <R extends BasicMessage> CompletableFuture<BasicMessageWithExtraData<R>> register(
+            final String requestMessageId, final Class<R> responseMessageClass, final long timeout,
+            final TimeUnit unit) {
+        if (requestMessageId == null) {
+            throw new IllegalArgumentException("requestMessageId must not be null");
+        }
+        if (responseMessageClass == null) {
+            throw new IllegalArgumentException("responseMessageClass must not be null");
+        }
+        if (unit == null) {
+            throw new IllegalArgumentException("unit must not be null");
+        }
+
+        final PendingResponse<R> pending = new PendingResponse<>(responseMessageClass);
+        if (closed) {
+            pending.completeExceptionally(new IllegalStateException("The response dispatcher has been closed"));
+            return pending;
+        }
+
+        if (timeout > 0) {
+            pending.timeout = HashedWheelTimer.getDefault().schedule(new Runnable() {
+                @Override
+                public void run() {
+                    pending.completeExceptionally(new TimeoutException("No response to request ["
+                            + requestMessageId + "] within [" + unit.toMillis(timeout) + "] ms"));
+                }
+            }, timeout, unit);
+        }
+        pending.whenComplete(new BiConsumer<Object, Throwable>() {
+            @Override
+            public void accept(Object response, Throwable error) {
+                correlations.remove(requestMessageId, pending);
+                if (pending.timeout != null) {
+                    pending.timeout.cancel();
+                }
+            }
+        });
+
+        Object prior = correlations.putIfAbsent(requestMessageId, pending);
+        if (prior instanceof EarlyResponse && correlations.remove(requestMessageId, prior)) {
+            pending.completeWith(((EarlyResponse) prior).message);
+        } else if (prior != null) {
+            pending.completeExceptionally(new IllegalStateException("A request with message ID ["
+                    + requestMessageId + "] is already waiting for its response"));
+        } else if (pending.isDone()) {
+            // timed out before it was registered
+            correlations.remove(requestMessageId, pending);
+        }
+        return pending;
+    }
+
+    @Override
+    public void onMessage(Message message) {
+        String correlationId;
+        try {
+            correlationId = message.getJMSCorrelationID();
+        } catch (JMSException e) {
+            log.debugf(e, "Cannot read the correlation ID of a response; dropping it");
+            return;
+        }
+        if (correlationId == null) {
+            log.debugf("Dropping response [%s] without a correlation ID", message);
+            return;
+        }
+
+        Object prior = correlations.putIfAbsent(correlationId, new EarlyResponse(message));
+        if (prior instanceof PendingResponse && correlations.remove(correlationId, prior)) {
+            ((PendingResponse<?>) prior).completeWith(message);
+        } else if (prior != null) {
+            log.debugf("Dropping duplicate response to request [%s]", correlationId);
+        } else {
+            sweepEarlyResponses();
+        }
+    }
+
+    /**
+     * Stops receiving responses. The futures still waiting for their responses are completed exceptionally.
+     */
+    @Override
+    public void close() {
+        if (closed) {
+            return;
+        }
+        closed = true;
+        DISPATCHERS.remove(connection, this);
+        try {
+            session.close();
+            responseQueue.delete();
+        } catch (JMSException e) {
+            log.debugf(e, "Failed to close the session of the response dispatcher");
+        }
+
+        for (Iterator<Object> iter = correlations.values().iterator(); iter.hasNext();) {
+            Object value = iter.next();
+            iter.remove();
+            if (value instanceof PendingResponse) {
+                ((PendingResponse<?>) value).completeExceptionally(new IllegalStateException(
+                        "The connection was closed or failed before the response was received"));
+            }
+        }
+    }
+
+    // forget responses to requests that will never be registered, such as requests that were cancelled
+    private void sweepEarlyResponses() {
+        long now = System.nanoTime();
+        if (now - lastEarlyResponseSweepNanos < EARLY_RESPONSE_RETENTION_NANOS) {
+            return;
+        }
+        lastEarlyResponseSweepNanos = now;
+        for (Map.Entry<String, Object> entry : correlations.entrySet()) {
+            Object value = entry.getValue();
+            if (value instanceof EarlyResponse
+                    && now - ((EarlyResponse) value).receivedNanos >= EARLY_RESPONSE_RETENTION_NANOS) {
+                correlations.remove(entry.getKey(), value);
+            }
+        }
+    }
+
+    private static final class EarlyResponse {
+        final Message message;
+        final long receivedNanos = System.nanoTime();
+
+        EarlyResponse(Message message) {
+            this.message = message;
+        }
+    }
+
+    private static final class PendingResponse<R extends BasicMessage>
+            extends CompletableFuture<BasicMessageWithExtraData<R>> {
+        private final Class<R> responseMessageClass;
+        private volatile boolean delivering;
+        volatile HashedWheelTimer.Timeout timeout;
+
+        PendingResponse(Class<R> responseMessageClass) {
+            this.responseMessageClass = responseMessageClass;
+        }
+
+        @Override
+        public boolean cancel(boolean mayInterruptIfRunning) {
+            if (delivering && !mayInterruptIfRunning && !isDone()) {
+                MsgLogger.LOGGER.errorCannotCancelRunningFuture();
+                return false;
+            }
+            return super.cancel(mayInterruptIfRunning);
+        }
+
+        void completeWith(Message message) {
+            delivering = true;
+            try {
+                complete(AbstractBasicMessageListener.decodeMessage(message, responseMessageClass,
+                        new JMSMessageHeaders(message)));
+            } catch (Exception e) {
+                completeExceptionally(e);
+            }
+        }
+    }
+}
@@ -84,4 +84,44 @@ public interface MsgLogger extends BasicLogger {
     @LogMessage(level = Level.ERROR)
     @Message(id = 100012, value = "Failed to close resources used to reply to RPC client")
     void errorFailedToCloseResourcesToRPCClient(@Cause Throwable t);
+
+    @LogMessage(level = Level.ERROR)
+    @Message(id = 100013, value = "A message of type [%s] was received but that type is not allowed; skipping it")
+    void errorMessageClassNotAllowed(String className);
+
+    @LogMessage(level = Level.ERROR)
+    @Message(id = 100014, value = "Failed to send a batch of [%d] messages; none of them were sent")
+    void errorFailedToSendBatch(int size, @Cause Throwable t);
+
+    @LogMessage(level = Level.ERROR)
+    @Message(id = 100015, value = "Message [%d] of a batch of [%d] messages was not sent")
+    void errorFailedToSendBatchedMessage(int index, int size, @Cause Throwable t);
+
+    @LogMessage(level = Level.ERROR)
+    @Message(id = 100016, value = "Failed to close a pooled producer session; resources might leak")
+    void errorFailedToClosePooledProducer(@Cause Throwable t);
+
+    @LogMessage(level = Level.ERROR)
+    @Message(id = 100017, value = "Failed to send the latest of [%d] coalesced messages")
+    void errorFailedToSendCoalescedMessage(int count, @Cause Throwable t);
+
+    @LogMessage(level = Level.ERROR)
+    @Message(id = 100018, value = "Outbox journal file [%s] is corrupt at position [%d]; skipping the rest of it")
+    void errorCorruptOutboxJournal(String file, int position);
+
+    @LogMessage(level = Level.ERROR)
+    @Message(id = 100019, value = "Failed to forward messages from the outbox; will keep retrying")
+    void errorFailedToForwardFromOutbox(@Cause Throwable t);
+
+    @LogMessage(level = Level.ERROR)
+    @Message(id = 100020, value = "Discarding an outbox record that cannot be read")
+    void errorDiscardingUnreadableOutboxRecord(@Cause Throwable t);
+
+    @LogMessage(level = Level.ERROR)
+    @Message(id = 100021, value = "Failed to process an RPC request; no response will be sent")
+    void errorFailedToProcessRPCRequest(@Cause Throwable t);
+
+    @LogMessage(level = Level.ERROR)
+    @Message(id = 100022, value = "Outbox journal is corrupt; the outbox has stopped forwarding messages")
+    void errorOutboxStoppedOnCorruptJournal(@Cause Throwable t);
 }
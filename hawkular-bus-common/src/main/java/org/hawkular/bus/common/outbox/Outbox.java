@@ -0,0 +1,386 @@
+/*
+ * Copyright 2015 Red Hat, Inc. and/or its affiliates
+ * and other contributors as indicated by the @author tags.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.hawkular.bus.common.outbox;
+
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+
+import javax.jms.BytesMessage;
+import javax.jms.ConnectionFactory;
+import javax.jms.JMSException;
+import javax.jms.Message;
+
+import org.hawkular.bus.common.BasicMessage;
+import org.hawkular.bus.common.ConnectionContextFactory;
+import org.hawkular.bus.common.Endpoint;
+import org.hawkular.bus.common.MessageCodec;
+import org.hawkular.bus.common.MessageCompressor;
+import org.hawkular.bus.common.MessageProcessor;
+import org.hawkular.bus.common.codec.JsonMessageCodec;
+import org.hawkular.bus.common.compression.ThresholdCompressingOutputStream;
+import org.hawkular.bus.common.log.MsgLogger;
+import org.hawkular.bus.common.producer.ProducerConnectionContext;
+import org.jboss.logging.Logger;
+
+/**
+ * Store-and-forward sending of messages. Messages are encoded and appended to a journal of memory-mapped files in a
+ * local directory, which takes no longer than copying them into memory, and a background thread forwards them to the
+ * broker in the order they were enqueued. Producers are therefore neither slowed down nor failed by a broker that is
+ * slow or down: while the broker cannot be reached, the drainer keeps retrying with a growing delay and messages
+ * wait in the journal, surviving restarts of the process.
+ *
+ * Messages are encoded, compressed and given their headers the way the given {@link MessageProcessor} would send
+ * them, so listeners cannot tell them apart from messages sent directly. A message is removed from the journal only
+ * after the broker has accepted it, so a message may be forwarded twice if the process dies right after forwarding
+ * it. Temporary endpoints cannot be used since they do not outlive the connection that created them.
+ *
+ * The journal is only written to disk by the operating system in its own time unless {@link #force()} is called, so
+ * messages survive the process dying but might be lost if the whole machine goes down.
+ *
+ * Enqueued messages are not forwarded until the outbox is {@link #start() started}. Each directory must only be used
+ * by one outbox at a time.
+ *
+ * If the journal turns out to be corrupt while messages are read from it, the outbox stops forwarding messages and
+ * {@link #isFailed() fails}: the error is logged and enqueuing messages and waiting for them to be forwarded fail
+ * from then on. The messages before the damage are recovered when an outbox is opened on the directory again.
+ */
+public class Outbox implements AutoCloseable {
+
+    /**
+     * The size of the journal files unless configured otherwise.
+     */
+    public static final int DEFAULT_SEGMENT_SIZE = 16 * 1024 * 1024;
+
+    private static final long MIN_RETRY_DELAY_MILLIS = 100L;
+    private static final long MAX_RETRY_DELAY_MILLIS = 30000L;
+    private static final long POLL_MILLIS = 1000L;
+
+    private final MsgLogger msglog = MsgLogger.LOGGER;
+    private final Logger log = Logger.getLogger(Outbox.class);
+
+    private final OutboxJournal journal;
+    private final ConnectionContextFactory contextFactory;
+    private final MessageProcessor processor;
+
+    // only used by the drainer thread
+    private final Map<Endpoint, ProducerConnectionContext> contexts = new HashMap<>();
+
+    private Thread drainer;
+    private volatile boolean running;
+    private volatile IllegalStateException failure;
+
+    /**
+     * Opens an outbox with the default journal file size that encodes messages like a default
+     * {@link MessageProcessor}.
+     *
+     * @param directory where the journal is kept
+     * @param connectionFactory used to connect to the broker that messages are forwarded to
+     * @throws IOException if the journal cannot be opened
+     * @throws JMSException any error
+     */
+    public Outbox(File directory, ConnectionFactory connectionFactory) throws IOException, JMSException {
+        this(directory, connectionFactory, new MessageProcessor(), DEFAULT_SEGMENT_SIZE);
+    }
+
+    /**
+     * Opens the outbox, recovering the messages that were enqueued but not forwarded when it was last used.
+     *
+     * @param directory where the journal is kept
+     * @param connectionFactory used to connect to the broker that messages are forwarded to
+     * @param processor whose codec and compressor are used to encode messages
+     * @param segmentSize the size of each journal file
+     * @throws IOException if the journal cannot be opened
+     * @throws JMSException any error
+     */
+    public Outbox(File directory, ConnectionFactory connectionFactory, MessageProcessor processor, int segmentSize)
+            throws IOException, JMSException {
+        if (directory == null) {
+            throw new IllegalArgumentException("directory must not be null");
+        }
+        if (connectionFactory == null) {
+            throw new IllegalArgumentException("connectionFactory must not be null");
+        }
+        if (processor == null) {
+            throw new IllegalArgumentException("processor must not be null");
+        }
+        this.processor = processor;
+        this.contextFactory = new ConnectionContextFactory(true, connectionFactory);
+        this.journal = new OutboxJournal(directory, segmentSize);
+    }
+
+    /**
+     * Starts forwarding the enqueued messages to the broker.
+     */
+    public synchronized void start() {
+        if (drainer != null) {
+            throw new IllegalStateException("The outbox has already been started");
+        }
+        running = true;
+        drainer = new Thread(new Runnable() {
+            @Override
+            public void run() {
+                drain();
+            }
+        }, "hawkular-bus-outbox");
+        drainer.setDaemon(true);
+        drainer.start();
+    }
+
+    /**
+     * Same as {@link #enqueue(Endpoint, BasicMessage, Map)} with <code>null</code> headers.
+     */
+    public void enqueue(Endpoint endpoint, BasicMessage basicMessage) throws IOException {
+        enqueue(endpoint, basicMessage, null);
+    }
+
+    /**
+     * Stores the message in the outbox to be forwarded to the given endpoint. Unlike messages sent by
+     * {@link MessageProcessor}, the message is not assigned a message ID.
+     *
+     * @param endpoint where the message is sent
+     * @param basicMessage the message to send with optional headers included
+     * @param headers headers for the JMS transport that will override same-named headers in the basic message
+     * @throws IOException if the message cannot be encoded or stored, or the outbox has {@link #isFailed() failed}
+     */
+    public void enqueue(Endpoint endpoint, BasicMessage basicMessage, Map<String, String> headers)
+            throws IOException {
+        if (failure != null) {
+            throw new IOException("The outbox stopped forwarding messages because its journal is corrupt", failure);
+        }
+        if (endpoint == null) {
+            throw new IllegalArgumentException("endpoint must not be null");
+        }
+        if (endpoint.isTemporary()) {
+            throw new IllegalArgumentException("Temporary endpoints cannot be used with an outbox: " + endpoint);
+        }
+        if (basicMessage == null) {
+            throw new IllegalArgumentException("message must not be null");
+        }
+
+        MessageCodec codec = processor.getCodec();
+        MessageCompressor compressor = processor.getCompressor();
+        ByteArrayOutputStream body = new ByteArrayOutputStream();
+        boolean compressed = false;
+        if (compressor == null) {
+            codec.encode(basicMessage, body);
+        } else {
+            try (ThresholdCompressingOutputStream out = new ThresholdCompressingOutputStream(body, compressor,
+                    processor.getCompressionThreshold())) {
+                codec.encode(basicMessage, out);
+                compressed = out.isCompressed();
+            }
+        }
+
+        // the same properties MessageProcessor sets, in the same order
+        Map<String, String> properties = new LinkedHashMap<>();
+        properties.put(MessageProcessor.HEADER_BASIC_MESSAGE_CLASS, basicMessage.getClass().getName());
+        if (basicMessage.getHeaders() != null) {
+            for (Map.Entry<String, String> header : basicMessage.getHeaders().entrySet()) {
+                if (!MessageProcessor.isTransportHeader(header.getKey())) {
+                    properties.put(header.getKey(), header.getValue());
+                }
+            }
+        }
+        if (headers != null) {
+            properties.putAll(headers);
+        }
+        properties.put(MessageProcessor.HEADER_MESSAGE_CODEC, codec.getName());
+        if (compressed) {
+            properties.put(MessageProcessor.HEADER_MESSAGE_COMPRESSION, compressor.getName());
+        }
+
+        String correlationId = (basicMessage.getCorrelationId() == null) ? null
+                : basicMessage.getCorrelationId().toString();
+        journal.append(new OutboxRecord(endpoint, correlationId, properties, body.toByteArray()).toBytes());
+    }
+
+    /**
+     * @return the number of messages that have not been forwarded yet
+     */
+    public long getPendingCount() {
+        return journal.getPendingCount();
+    }
+
+    /**
+     * Waits for all enqueued messages to be forwarded.
+     *
+     * @param timeout how long to wait
+     * @param unit the unit of the timeout
+     * @return true if all messages were forwarded, false if the timeout elapsed first
+     * @throws InterruptedException if interrupted while waiting
+     * @throws IllegalStateException if the outbox has {@link #isFailed() failed}
+     */
+    public boolean awaitForwarded(long timeout, TimeUnit unit) throws InterruptedException {
+        long deadline = System.nanoTime() + unit.toNanos(timeout);
+        while (journal.getPendingCount() > 0) {
+            if (failure != null) {
+                throw new IllegalStateException("The outbox stopped forwarding messages", failure);
+            }
+            if (System.nanoTime() >= deadline) {
+                return false;
+            }
+            Thread.sleep(10);
+        }
+        return true;
+    }
+
+    /**
+     * @return true if the outbox stopped forwarding messages because its journal is corrupt
+     */
+    public boolean isFailed() {
+        return failure != null;
+    }
+
+    /**
+     * Writes the enqueued messages to the disk so they survive the machine going down.
+     */
+    public void force() {
+        journal.force();
+    }
+
+    /**
+     * Stops forwarding messages and closes the journal. Messages that were not forwarded yet are kept in the journal
+     * and forwarded once an outbox is opened on the same directory again.
+     *
+     * @throws JMSException if the connection to the broker cannot be closed
+     */
+    @Override
+    public void close() throws JMSException {
+        Thread stopping;
+        synchronized (this) {
+            running = false;
+            stopping = drainer;
+        }
+        if (stopping != null) {
+            stopping.interrupt();
+            try {
+                stopping.join();
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+        }
+        journal.close();
+        contextFactory.close();
+    }
+
+    private void drain() {
+        long retryDelay = MIN_RETRY_DELAY_MILLIS;
+        boolean failing = false;
+        try {
+            while (running) {
+                byte[] data;
+                try {
+                    data = journal.peek(POLL_MILLIS, TimeUnit.MILLISECONDS);
+                } catch (IllegalStateException e) {
+                    // the journal is corrupt, or closed if we are being closed
+                    if (running) {
+                        msglog.errorOutboxStoppedOnCorruptJournal(e);
+                        failure = e;
+                        running = false;
+                    }
+                    return;
+                }
+                if (data == null) {
+                    continue;
+                }
+
+                OutboxRecord record;
+                try {
+                    record = OutboxRecord.fromBytes(data);
+                } catch (IOException | RuntimeException e) {
+                    msglog.errorDiscardingUnreadableOutboxRecord(e);
+                    journal.remove();
+                    continue;
+                }
+
+                try {
+                    forward(record);
+                    journal.remove();
+                    retryDelay = MIN_RETRY_DELAY_MILLIS;
+                    failing = false;
+                } catch (JMSException | RuntimeException e) {
+                    if (failing) {
+                        log.debugf(e, "Still failing to forward messages from the outbox");
+                    } else {
+                        msglog.errorFailedToForwardFromOutbox(e);
+                        failing = true;
+                    }
+                    closeContexts();
+                    Thread.sleep(retryDelay);
+                    retryDelay = Math.min(MAX_RETRY_DELAY_MILLIS, retryDelay * 2);
+                }
+            }
+        } catch (InterruptedException e) {
+            // we are being closed
+        } finally {
+            closeContexts();
+        }
+    }
+
+    private void forward(OutboxRecord record) throws JMSException {
+        ProducerConnectionContext context = contexts.get(record.endpoint);
+        if (context == null) {
+            context = contextFactory.createProducerConnectionContext(record.endpoint);
+            contexts.put(record.endpoint, context);
+        }
+
+        Message msg;
+        if (JsonMessageCodec.NAME.equals(record.properties.get(MessageProcessor.HEADER_MESSAGE_CODEC))
+                && !record.properties.containsKey(MessageProcessor.HEADER_MESSAGE_COMPRESSION)) {
+            // sent as text like MessageProcessor does, so listeners that know nothing about codecs can read it
+            msg = context.getSession().createTextMessage(new String(record.body, StandardCharsets.UTF_8));
+        } else {
+            BytesMessage bytesMsg = context.getSession().createBytesMessage();
+            bytesMsg.writeBytes(record.body);
+            msg = bytesMsg;
+        }
+        for (Map.Entry<String, String> property : record.properties.entrySet()) {
+            msg.setStringProperty(property.getKey(), property.getValue());
+        }
+        if (record.correlationId != null) {
+            msg.setJMSCorrelationID(record.correlationId);
+        }
+        context.getMessageProducer().send(msg);
+        log.tracef("Forwarded message [%s] from the outbox to [%s]", msg.getJMSMessageID(), record.endpoint);
+    }
+
+    /**
+     * Closes the producers and the connection so that the next attempt to forward starts afresh.
+     */
+    private void closeContexts() {
+        for (ProducerConnectionContext context : contexts.values()) {
+            try {
+                context.getMessageProducer().close();
+                context.getSession().close();
+            } catch (JMSException e) {
+                log.debugf(e, "Cannot close outbox producer for [%s]", context.getDestination());
+            }
+        }
+        contexts.clear();
+        try {
+            contextFactory.close();
+        } catch (JMSException e) {
+            log.debugf(e, "Cannot close the outbox connection");
+        }
+    }
+}
@@ -0,0 +1,385 @@
+/*
+ * Copyright 2015 Red Hat, Inc. and/or its affiliates
+ * and other contributors as indicated by the @author tags.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.hawkular.bus.common.outbox;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.TreeMap;
+import java.util.concurrent.TimeUnit;
+import java.util.zip.CRC32;
+
+import org.hawkular.bus.common.log.MsgLogger;
+import org.jboss.logging.Logger;
+
+/**
+ * An append-only journal of records kept in memory-mapped segment files, read in the order the records were
+ * appended. Each record is written as its length, the CRC32 checksum of its data and the data itself. Segments are
+ * zero-filled when created, so a zero length marks the end of the records written so far; a segment that is full is
+ * sealed with a length of -1.
+ *
+ * The position of the next record to read is kept in a checkpoint file with two slots that are written in turn, so
+ * the checkpoint survives a crash in the middle of writing it. On opening, the journal is recovered from the
+ * checkpoint: the records after it are scanned and the first one that is incomplete or fails its checksum ends the
+ * journal. Records that were read but not yet {@link #remove() removed} when the process died are read again.
+ *
+ * Segments that have been read completely are deleted. Writes reach the operating system as soon as they are made
+ * and so survive the process dying; {@link #force()} also writes them to the disk.
+ */
+final class OutboxJournal implements AutoCloseable {
+    private static final MsgLogger msglog = MsgLogger.LOGGER;
+    private static final Logger log = Logger.getLogger(OutboxJournal.class);
+
+    static final String SEGMENT_SUFFIX = ".segment";
+    static final String CHECKPOINT_FILE = "checkpoint";
+
+    private static final int RECORD_HEADER_SIZE = 8;
+    private static final int SEALED = -1;
+    private static final int CHECKPOINT_SLOT_SIZE = 32;
+
+    private final File directory;
+    private final int segmentSize;
+    private final MappedByteBuffer checkpoint;
+    private final TreeMap<Long, MappedByteBuffer> segments = new TreeMap<>();
+
+    private long writeSegment;
+    private int writePosition;
+    private long readSegment;
+    private int readPosition;
+    private long checkpointCounter;
+    private long pendingCount;
+    private boolean readerWaiting;
+    private boolean closed;
+
+    /**
+     * Opens the journal in the given directory, creating it if needed, and recovers the records that have not been
+     * removed yet.
+     *
+     * @param directory where the segment and checkpoint files are kept
+     * @param segmentSize the size of each segment file; records larger than this get a segment of their own
+     * @throws IOException if the journal cannot be opened
+     */
+    OutboxJournal(File directory, int segmentSize) throws IOException {
+        if (segmentSize <= RECORD_HEADER_SIZE) {
+            throw new IllegalArgumentException("segmentSize is too small: " + segmentSize);
+        }
+        if (!directory.isDirectory() && !directory.mkdirs()) {
+            throw new IOException("Cannot create the outbox directory [" + directory + "]");
+        }
+        this.directory = directory;
+        this.segmentSize = segmentSize;
+        this.checkpoint = map(new File(directory, CHECKPOINT_FILE), 2 * CHECKPOINT_SLOT_SIZE, false);
+        recover();
+    }
+
+    /**
+     * Appends a record.
+     *
+     * @param data the data of the record
+     */
+    synchronized void append(byte[] data) throws IOException {
+        if (closed) {
+            throw new IllegalStateException("The journal has been closed");
+        }
+        if (data.length == 0) {
+            throw new IllegalArgumentException("Records must not be empty");
+        }
+        MappedByteBuffer segment = segments.get(writeSegment);
+        int needed = RECORD_HEADER_SIZE + data.length;
+        if (writePosition + needed > segment.capacity()) {
+            if (writePosition + 4 <= segment.capacity()) {
+                segment.putInt(writePosition, SEALED);
+            }
+            writeSegment++;
+            writePosition = 0;
+            segment = createSegment(writeSegment, Math.max(segmentSize, needed));
+        }
+
+        // the checksum and data go in before the length so the record never appears before it is complete
+        put(segment, writePosition + RECORD_HEADER_SIZE, data);
+        segment.putInt(writePosition + 4, checksum(data));
+        segment.putInt(writePosition, data.length);
+        writePosition += needed;
+        pendingCount++;
+
+        if (readerWaiting) {
+            notifyAll();
+        }
+    }
+
+    /**
+     * Returns the oldest record that has not been removed, waiting for one to be appended if there is none.
+     *
+     * @param timeout how long to wait for a record
+     * @param unit the unit of the timeout
+     * @return the data of the record, or <code>null</code> if there was none within the timeout
+     * @throws InterruptedException if interrupted while waiting
+     */
+    synchronized byte[] peek(long timeout, TimeUnit unit) throws InterruptedException {
+        long deadline = System.nanoTime() + unit.toNanos(timeout);
+        while (true) {
+            if (closed) {
+                throw new IllegalStateException("The journal has been closed");
+            }
+            byte[] data = readRecord();
+            if (data != null) {
+                return data;
+            }
+            long remaining = deadline - System.nanoTime();
+            if (remaining <= 0) {
+                return null;
+            }
+            readerWaiting = true;
+            try {
+                TimeUnit.NANOSECONDS.timedWait(this, remaining);
+            } finally {
+                readerWaiting = false;
+            }
+        }
+    }
+
+    /**
+     * Removes the record last returned by {@link #peek(long, TimeUnit)} and checkpoints the journal after it.
+     */
+    synchronized void remove() {
+        MappedByteBuffer segment = segments.get(readSegment);
+        int length = segment.getInt(readPosition);
+        readPosition += RECORD_HEADER_SIZE + length;
+        pendingCount--;
+        writeCheckpoint();
+    }
+
+    /**
+     * @return the number of records that have not been removed
+     */
+    synchronized long getPendingCount() {
+        return pendingCount;
+    }
+
+    /**
+     * Writes the appended records and the checkpoint to the disk.
+     */
+    synchronized void force() {
+        segments.get(writeSegment).force();
+        checkpoint.force();
+    }
+
+    @Override
+    public synchronized void close() {
+        if (!closed) {
+            force();
+            closed = true;
+            segments.clear();
+            notifyAll();
+        }
+    }
+
+    /**
+     * Reads the record at the read position, moving on to the next segment if the current one has been read
+     * completely. Returns <code>null</code> if all records have been read.
+     */
+    private byte[] readRecord() {
+        while (true) {
+            MappedByteBuffer segment = segments.get(readSegment);
+            if (readSegment == writeSegment) {
+                if (readPosition >= writePosition) {
+                    return null;
+                }
+                byte[] data = validRecord(segment, readPosition);
+                if (data == null) {
+                    throw new IllegalStateException("Outbox journal segment [" + readSegment
+                            + "] is corrupt at position [" + readPosition + "]");
+                }
+                return data;
+            }
+
+            byte[] data = validRecord(segment, readPosition);
+            if (data != null) {
+                return data;
+            }
+            if (readPosition + 4 <= segment.capacity() && segment.getInt(readPosition) > 0) {
+                // a sealed segment only ends with a zero or sealing length, anything else is damage
+                msglog.errorCorruptOutboxJournal(segmentFile(readSegment).getPath(), readPosition);
+            }
+            nextReadSegment();
+        }
+    }
+
+    private void nextReadSegment() {
+        long finished = readSegment;
+        readSegment = segments.higherKey(finished);
+        readPosition = 0;
+        writeCheckpoint();
+        segments.remove(finished);
+        File file = segmentFile(finished);
+        if (!file.delete()) {
+            log.debugf("Cannot delete outbox journal segment [%s]", file);
+        }
+    }
+
+    /**
+     * @return the data of the record at the given position or <code>null</code> if there is no complete record with a
+     *         valid checksum there
+     */
+    private static byte[] validRecord(MappedByteBuffer segment, int position) {
+        if (position + RECORD_HEADER_SIZE > segment.capacity()) {
+            return null;
+        }
+        int length = segment.getInt(position);
+        if (length <= 0 || length > segment.capacity() - position - RECORD_HEADER_SIZE) {
+            return null;
+        }
+        byte[] data = new byte[length];
+        get(segment, position + RECORD_HEADER_SIZE, data);
+        return (checksum(data) == segment.getInt(position + 4)) ? data : null;
+    }
+
+    private void recover() throws IOException {
+        File[] files = directory.listFiles();
+        if (files != null) {
+            for (File file : files) {
+                String name = file.getName();
+                if (name.endsWith(SEGMENT_SUFFIX)) {
+                    try {
+                        long number = Long.parseLong(name.substring(0, name.length() - SEGMENT_SUFFIX.length()));
+                        segments.put(number, map(file, 0, true));
+                    } catch (NumberFormatException e) {
+                        log.debugf("Ignoring file [%s] in the outbox directory", file);
+                    }
+                }
+            }
+        }
+
+        readCheckpoint();
+        if (segments.isEmpty()) {
+            createSegment(readSegment, segmentSize);
+            readPosition = 0;
+        } else if (!segments.containsKey(readSegment)) {
+            // the checkpointed segment was deleted after it was read completely
+            readSegment = segments.firstKey();
+            readPosition = 0;
+        }
+        for (Long number : segments.headMap(readSegment).keySet().toArray(new Long[0])) {
+            segments.remove(number);
+            segmentFile(number).delete();
+        }
+
+        // count the records after the checkpoint; the first damaged one ends the last segment
+        writeSegment = segments.lastKey();
+        for (Long number : segments.keySet()) {
+            MappedByteBuffer segment = segments.get(number);
+            int position = (number == readSegment) ? readPosition : 0;
+            byte[] data;
+            while ((data = validRecord(segment, position)) != null) {
+                position += RECORD_HEADER_SIZE + data.length;
+                pendingCount++;
+            }
+            if (number == writeSegment) {
+                writePosition = position;
+                // wipe what is left of a record that was being written when the process died
+                byte[] zeros = new byte[Math.min(64 * 1024, segment.capacity())];
+                for (int i = position; i < segment.capacity(); i += zeros.length) {
+                    ByteBuffer tail = segment.duplicate();
+                    tail.position(i);
+                    tail.put(zeros, 0, Math.min(zeros.length, segment.capacity() - i));
+                }
+            }
+        }
+        writeCheckpoint();
+        log.debugf("Recovered outbox journal in [%s] with [%d] pending records", directory, pendingCount);
+    }
+
+    private void readCheckpoint() {
+        long bestCounter = -1;
+        for (int slot = 0; slot < 2; slot++) {
+            int offset = slot * CHECKPOINT_SLOT_SIZE;
+            long counter = checkpoint.getLong(offset);
+            long segment = checkpoint.getLong(offset + 8);
+            long position = checkpoint.getLong(offset + 16);
+            long crc = checkpoint.getLong(offset + 24);
+            if (crc == checkpointChecksum(counter, segment, position) && counter > bestCounter) {
+                bestCounter = counter;
+                readSegment = segment;
+                readPosition = (int) position;
+            }
+        }
+        checkpointCounter = Math.max(bestCounter, 0);
+    }
+
+    private void writeCheckpoint() {
+        checkpointCounter++;
+        int offset = (int) (checkpointCounter % 2) * CHECKPOINT_SLOT_SIZE;
+        checkpoint.putLong(offset, checkpointCounter);
+        checkpoint.putLong(offset + 8, readSegment);
+        checkpoint.putLong(offset + 16, readPosition);
+        checkpoint.putLong(offset + 24, checkpointChecksum(checkpointCounter, readSegment, readPosition));
+    }
+
+    private static long checkpointChecksum(long counter, long segment, long position) {
+        CRC32 crc = new CRC32();
+        for (long value : new long[] { counter, segment, position }) {
+            for (int shift = 56; shift >= 0; shift -= 8) {
+                crc.update((int) (value >>> shift));
+            }
+        }
+        return crc.getValue();
+    }
+
+    private static int checksum(byte[] data) {
+        CRC32 crc = new CRC32();
+        crc.update(data, 0, data.length);
+        return (int) crc.getValue();
+    }
+
+    private static void put(ByteBuffer buffer, int position, byte[] data) {
+        ByteBuffer target = buffer.duplicate();
+        target.position(position);
+        target.put(data);
+    }
+
+    private static void get(ByteBuffer buffer, int position, byte[] data) {
+        ByteBuffer source = buffer.duplicate();
+        source.position(position);
+        source.get(data);
+    }
+
+    private MappedByteBuffer createSegment(long number, int size) throws IOException {
+        MappedByteBuffer segment = map(segmentFile(number), size, false);
+        segments.put(number, segment);
+        return segment;
+    }
+
+    private File segmentFile(long number) {
+        return new File(directory, String.format("%020d%s", number, SEGMENT_SUFFIX));
+    }
+
+    /**
+     * Maps the whole file, first growing it to the given size unless it already exists and keepSize is true. The
+     * mapping stays valid after the file is closed.
+     */
+    private static MappedByteBuffer map(File file, int size, boolean keepSize) throws IOException {
+        try (RandomAccessFile raf = new RandomAccessFile(file, "rw")) {
+            if (!keepSize && raf.length() < size) {
+                raf.setLength(size);
+            }
+            return raf.getChannel().map(FileChannel.MapMode.READ_WRITE, 0, raf.length());
+        }
+    }
+}
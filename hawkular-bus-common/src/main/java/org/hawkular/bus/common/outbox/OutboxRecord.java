@@ -0,0 +1,108 @@
+/*
+ * Copyright 2015 Red Hat, Inc. and/or its affiliates
+ * and other contributors as indicated by the @author tags.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.hawkular.bus.common.outbox;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+import org.hawkular.bus.common.Endpoint;
+
+/**
+ * A message waiting in the outbox: where it goes, its JMS properties and correlation ID, and its encoded body.
+ */
+final class OutboxRecord {
+    private static final int VERSION = 2;
+
+    // records written before property values could be null or longer than 64K
+    private static final int VERSION_MODIFIED_UTF8 = 1;
+
+    final Endpoint endpoint;
+    final String correlationId;
+    final Map<String, String> properties;
+    final byte[] body;
+
+    OutboxRecord(Endpoint endpoint, String correlationId, Map<String, String> properties, byte[] body) {
+        this.endpoint = endpoint;
+        this.correlationId = correlationId;
+        this.properties = properties;
+        this.body = body;
+    }
+
+    byte[] toBytes() throws IOException {
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream(body.length + 256);
+        DataOutputStream out = new DataOutputStream(bytes);
+        out.writeByte(VERSION);
+        out.writeByte(endpoint.getType().ordinal());
+        out.writeUTF(endpoint.getName());
+        writeString(out, correlationId);
+        out.writeInt(properties.size());
+        for (Map.Entry<String, String> property : properties.entrySet()) {
+            out.writeUTF(property.getKey());
+            writeString(out, property.getValue());
+        }
+        out.writeInt(body.length);
+        out.write(body);
+        out.flush();
+        return bytes.toByteArray();
+    }
+
+    static OutboxRecord fromBytes(byte[] data) throws IOException {
+        DataInputStream in = new DataInputStream(new ByteArrayInputStream(data));
+        int version = in.readUnsignedByte();
+        if (version != VERSION && version != VERSION_MODIFIED_UTF8) {
+            throw new IOException("Unknown outbox record version [" + version + "]");
+        }
+        boolean modifiedUtf8 = (version == VERSION_MODIFIED_UTF8);
+        Endpoint endpoint = new Endpoint(Endpoint.Type.values()[in.readUnsignedByte()], in.readUTF());
+        String correlationId = modifiedUtf8 ? (in.readBoolean() ? in.readUTF() : null) : readString(in);
+        int propertyCount = in.readInt();
+        Map<String, String> properties = new LinkedHashMap<>();
+        for (int i = 0; i < propertyCount; i++) {
+            properties.put(in.readUTF(), modifiedUtf8 ? in.readUTF() : readString(in));
+        }
+        byte[] body = new byte[in.readInt()];
+        in.readFully(body);
+        return new OutboxRecord(endpoint, correlationId, properties, body);
+    }
+
+    /**
+     * Writes a string that may be null and of any length, unlike {@link DataOutputStream#writeUTF(String)}.
+     */
+    private static void writeString(DataOutputStream out, String value) throws IOException {
+        out.writeBoolean(value != null);
+        if (value != null) {
+            byte[] bytes = value.getBytes(StandardCharsets.UTF_8);
+            out.writeInt(bytes.length);
+            out.write(bytes);
+        }
+    }
+
+    private static String readString(DataInputStream in) throws IOException {
+        if (!in.readBoolean()) {
+            return null;
+        }
+        byte[] bytes = new byte[in.readInt()];
+        in.readFully(bytes);
+        return new String(bytes, StandardCharsets.UTF_8);
+    }
+}
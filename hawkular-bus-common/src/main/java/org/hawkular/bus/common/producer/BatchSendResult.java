@@ -0,0 +1,79 @@
+/*
+ * Copyright 2015 Red Hat, Inc. and/or its affiliates
+ * and other contributors as indicated by the @author tags.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.hawkular.bus.common.producer;
+
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+
+import org.hawkular.bus.common.MessageId;
+
+/**
+ * The outcome of sending a batch of messages: the IDs of the messages that were sent and the errors of those that
+ * were not, both indexed by the position of the message in the batch.
+ */
+public class BatchSendResult {
+    private final List<MessageId> messageIds;
+    private final Map<Integer, Exception> failures;
+
+    /**
+     * @param messageIds the message IDs in the order of the batch, <code>null</code> for messages that were not sent
+     * @param failures the errors of the messages that were not sent, keyed by their position in the batch
+     */
+    public BatchSendResult(List<MessageId> messageIds, Map<Integer, Exception> failures) {
+        if (messageIds == null) {
+            throw new IllegalArgumentException("messageIds must not be null");
+        }
+        this.messageIds = Collections.unmodifiableList(messageIds);
+        this.failures = (failures == null) ? Collections.<Integer, Exception> emptyMap()
+                : Collections.unmodifiableMap(failures);
+    }
+
+    /**
+     * @return the number of messages in the batch
+     */
+    public int size() {
+        return messageIds.size();
+    }
+
+    /**
+     * @return the IDs of the messages in the order they were in the batch. The ID of a message that was not sent is
+     *         <code>null</code>, as is the ID of a message sent by a producer that does not generate IDs.
+     */
+    public List<MessageId> getMessageIds() {
+        return messageIds;
+    }
+
+    /**
+     * @return the errors of the messages that were not sent, keyed by the position of the message in the batch
+     */
+    public Map<Integer, Exception> getFailures() {
+        return failures;
+    }
+
+    /**
+     * @return true if all messages of the batch were sent
+     */
+    public boolean isSuccessful() {
+        return failures.isEmpty();
+    }
+
+    @Override
+    public String toString() {
+        return getClass().getSimpleName() + ": [size=" + size() + ", failures=" + failures.keySet() + "]";
+    }
+}
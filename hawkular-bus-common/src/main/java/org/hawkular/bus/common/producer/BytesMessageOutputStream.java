@@ -0,0 +1,57 @@
+/*
+ * Copyright 2015 Red Hat, Inc. and/or its affiliates
+ * and other contributors as indicated by the @author tags.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.hawkular.bus.common.producer;
+
+import java.io.IOException;
+import java.io.OutputStream;
+
+import javax.jms.BytesMessage;
+import javax.jms.JMSException;
+
+import org.hawkular.bus.common.consumer.BytesMessageInputStream;
+
+/**
+ * Writes straight into the body of a {@link BytesMessage}. This is the producer-side counterpart of
+ * {@link BytesMessageInputStream}.
+ */
+public class BytesMessageOutputStream extends OutputStream {
+
+    private final BytesMessage delegate;
+
+    public BytesMessageOutputStream(BytesMessage delegate) {
+        super();
+        this.delegate = delegate;
+    }
+
+    @Override
+    public void write(int b) throws IOException {
+        try {
+            delegate.writeByte((byte) b);
+        } catch (JMSException e) {
+            throw new IOException(e);
+        }
+    }
+
+    @Override
+    public void write(byte[] b, int off, int len) throws IOException {
+        try {
+            delegate.writeBytes(b, off, len);
+        } catch (JMSException e) {
+            throw new IOException(e);
+        }
+    }
+}
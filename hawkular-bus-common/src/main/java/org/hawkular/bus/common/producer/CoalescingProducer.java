@@ -0,0 +1,279 @@
+/*
+ * Copyright 2015 Red Hat, Inc. and/or its affiliates
+ * and other contributors as indicated by the @author tags.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.hawkular.bus.common.producer;
+
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Deque;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.TimeUnit;
+import java.util.function.Function;
+
+import javax.jms.JMSException;
+
+import org.hawkular.bus.common.BasicMessage;
+import org.hawkular.bus.common.MessageProcessor;
+import org.hawkular.bus.common.log.MsgLogger;
+
+/**
+ * Sends only the latest message of each key, for streams where newer messages make older ones obsolete, such as
+ * availability or state updates of a resource. Messages are keyed with a user function and held until the next
+ * flush; a message that arrives while another one with the same key is pending replaces it. The sent message
+ * carries the {@link #HEADER_COALESCED_COUNT} header that says how many messages it stands for.
+ *
+ * Pending messages are flushed at a fixed rate by a task scheduled with the given scheduler, when a message with a
+ * new key arrives while the maximum number of keys are already pending, or when explicitly {@link #flush() flushed}.
+ * Without a scheduler, messages are only sent in the last two cases. A message that fills up the pending keys is
+ * flushed by the scheduler if there is one, otherwise by the thread that sends it. Messages are sent without holding
+ * the lock that {@link #send(BasicMessage)} takes, so senders are not held up by flushes, and are sent in the order
+ * they were flushed.
+ *
+ * The context must be used by nothing but this producer. Closing the producer sends the pending messages but does
+ * not close the context. This class is thread-safe. Messages that cannot be sent are reported to
+ * {@link #sendFailed(BasicMessage, int, Exception)}.
+ *
+ * @param <T> the type of the messages
+ */
+public class CoalescingProducer<T extends BasicMessage> implements AutoCloseable {
+
+    /**
+     * The header that says how many messages were coalesced into the sent one, including itself.
+     */
+    public static final String HEADER_COALESCED_COUNT = "coalescedCount";
+
+    private final MsgLogger msglog = MsgLogger.LOGGER;
+
+    private final MessageProcessor processor;
+    private final ProducerConnectionContext context;
+    private final Function<? super T, ?> keyFunction;
+    private final int maxPendingKeys;
+    private final ScheduledExecutorService scheduler;
+    private final ScheduledFuture<?> scheduledFlush;
+    private final Runnable flushFullBatchesTask = new Runnable() {
+        @Override
+        public void run() {
+            flush(false);
+        }
+    };
+
+    // held while messages are sent, so batches are sent one at a time and in order
+    private final Object flushLock = new Object();
+
+    // guarded by this
+    private Map<Object, Pending<T>> pending = new LinkedHashMap<>();
+    // guarded by this; batches that filled up the pending keys and are waiting to be sent, oldest first
+    private final Deque<Map<Object, Pending<T>>> fullBatches = new ArrayDeque<>();
+    private long coalescedCount;
+    private boolean closed;
+
+    /**
+     * @param processor sends the messages
+     * @param context where the messages are sent
+     * @param keyFunction gives the key of a message; messages with equal keys are coalesced
+     * @param maxPendingKeys the number of keys that can have a message pending before they are all flushed
+     * @param flushInterval how often pending messages are sent
+     * @param unit the unit of the interval
+     * @param scheduler used to send pending messages at the given interval; may be <code>null</code>
+     */
+    public CoalescingProducer(MessageProcessor processor, ProducerConnectionContext context,
+            Function<? super T, ?> keyFunction, int maxPendingKeys, long flushInterval, TimeUnit unit,
+            ScheduledExecutorService scheduler) {
+        if (processor == null) {
+            throw new IllegalArgumentException("processor must not be null");
+        }
+        if (context == null) {
+            throw new IllegalArgumentException("context must not be null");
+        }
+        if (keyFunction == null) {
+            throw new IllegalArgumentException("keyFunction must not be null");
+        }
+        if (maxPendingKeys < 1) {
+            throw new IllegalArgumentException("maxPendingKeys must be at least 1: " + maxPendingKeys);
+        }
+        if (unit == null) {
+            throw new IllegalArgumentException("unit must not be null");
+        }
+        if (scheduler != null && flushInterval <= 0) {
+            throw new IllegalArgumentException("flushInterval must be positive: " + flushInterval);
+        }
+        this.processor = processor;
+        this.context = context;
+        this.keyFunction = keyFunction;
+        this.maxPendingKeys = maxPendingKeys;
+        this.scheduler = scheduler;
+        if (scheduler != null) {
+            this.scheduledFlush = scheduler.scheduleAtFixedRate(new Runnable() {
+                @Override
+                public void run() {
+                    flush();
+                }
+            }, flushInterval, flushInterval, unit);
+        } else {
+            this.scheduledFlush = null;
+        }
+    }
+
+    /**
+     * Holds the message until the next flush, replacing the pending message with the same key if there is one.
+     *
+     * @param message the message to send
+     */
+    public void send(T message) {
+        if (message == null) {
+            throw new IllegalArgumentException("message must not be null");
+        }
+        Object key = keyFunction.apply(message);
+        if (key == null) {
+            throw new IllegalArgumentException("The key function returned null for " + message);
+        }
+
+        synchronized (this) {
+            if (closed) {
+                throw new IllegalStateException("The coalescing producer has been closed");
+            }
+            Pending<T> existing = pending.get(key);
+            if (existing != null) {
+                existing.message = message;
+                existing.count++;
+                coalescedCount++;
+                return;
+            }
+            boolean full = pending.size() >= maxPendingKeys;
+            if (full) {
+                fullBatches.add(pending);
+                pending = new LinkedHashMap<>();
+            }
+            pending.put(key, new Pending<T>(message));
+            if (!full) {
+                return;
+            }
+        }
+
+        if (scheduler != null) {
+            try {
+                scheduler.execute(flushFullBatchesTask);
+                return;
+            } catch (RejectedExecutionException e) {
+                // the scheduler was shut down, so send the batch ourselves
+            }
+        }
+        flush(false);
+    }
+
+    /**
+     * Sends the pending messages now.
+     *
+     * @return the number of messages that were sent
+     */
+    public int flush() {
+        return flush(true);
+    }
+
+    /**
+     * @param all if false, only the batches that filled up the pending keys are sent
+     */
+    private int flush(boolean all) {
+        synchronized (flushLock) {
+            // taken while holding the flush lock so that no other flush can send newer messages first
+            List<Map<Object, Pending<T>>> toSend;
+            synchronized (this) {
+                toSend = new ArrayList<>(fullBatches);
+                fullBatches.clear();
+                if (all && !pending.isEmpty()) {
+                    toSend.add(pending);
+                    pending = new LinkedHashMap<>();
+                }
+            }
+
+            int sent = 0;
+            for (Map<Object, Pending<T>> batch : toSend) {
+                for (Pending<T> p : batch.values()) {
+                    try {
+                        processor.send(context, p.message,
+                                Collections.singletonMap(HEADER_COALESCED_COUNT, String.valueOf(p.count)));
+                        sent++;
+                    } catch (JMSException | RuntimeException e) {
+                        sendFailed(p.message, p.count, e);
+                    }
+                }
+            }
+            return sent;
+        }
+    }
+
+    /**
+     * @return the number of keys that have a message waiting to be sent
+     */
+    public synchronized int getPendingCount() {
+        int count = pending.size();
+        for (Map<Object, Pending<T>> batch : fullBatches) {
+            count += batch.size();
+        }
+        return count;
+    }
+
+    /**
+     * @return the number of messages that were replaced by newer ones and so were never sent
+     */
+    public synchronized long getCoalescedCount() {
+        return coalescedCount;
+    }
+
+    /**
+     * Stops the scheduled flushes and sends the pending messages. Messages cannot be sent once the producer is
+     * closed.
+     */
+    @Override
+    public void close() {
+        synchronized (this) {
+            if (closed) {
+                return;
+            }
+            closed = true;
+        }
+        if (scheduledFlush != null) {
+            scheduledFlush.cancel(false);
+        }
+        flush();
+    }
+
+    /**
+     * Called when a message could not be sent. This implementation logs the failure.
+     *
+     * @param message the message that was not sent
+     * @param count the number of messages that were coalesced into it
+     * @param e the error
+     */
+    protected void sendFailed(T message, int count, Exception e) {
+        msglog.errorFailedToSendCoalescedMessage(count, e);
+    }
+
+    private static class Pending<T> {
+        T message;
+        int count = 1;
+
+        Pending(T message) {
+            this.message = message;
+        }
+    }
+}
@@ -0,0 +1,156 @@
+/*
+ * Copyright 2015 Red Hat, Inc. and/or its affiliates
+ * and other contributors as indicated by the @author tags.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.hawkular.bus.common.producer;
+
+import java.nio.charset.StandardCharsets;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.function.Function;
+
+import org.hawkular.bus.common.BasicMessage;
+
+/**
+ * Gives each message a duplicate detection ID so that the broker drops the message if it has already received one
+ * with the same ID. Sending a message again after a failure whose outcome is unknown, such as a timeout, then cannot
+ * create a duplicate, and consumers do not have to filter duplicates themselves. The ID is sent in the
+ * {@link #HEADER_DUPLICATE_ID} property, which is the one ActiveMQ Artemis uses for duplicate detection.
+ *
+ * The ID must be the same every time the same message is sent; it is either derived from a key of the message given
+ * by a user function, see {@link #byKey(Function)}, or is a hash of the encoded message and its headers, see
+ * {@link #byContentHash()}. Messages sent with binary data are only given an ID derived from a key, since their
+ * binary data is not read until they are sent; with a content hash they get no ID.
+ *
+ * @see ProducerConnectionContext#setDuplicateDetection(DuplicateDetection)
+ */
+public abstract class DuplicateDetection {
+
+    /**
+     * The property that holds the duplicate detection ID.
+     */
+    public static final String HEADER_DUPLICATE_ID = "_AMQ_DUPL_ID";
+
+    /**
+     * @param keyFunction gives the key of a message; it must be unique for each distinct message and never null
+     * @return duplicate detection that uses the keys of the messages as their IDs
+     */
+    public static DuplicateDetection byKey(final Function<? super BasicMessage, String> keyFunction) {
+        if (keyFunction == null) {
+            throw new IllegalArgumentException("keyFunction must not be null");
+        }
+        return new DuplicateDetection() {
+            @Override
+            public MessageDigest newContentDigest() {
+                return null;
+            }
+
+            @Override
+            public String createId(BasicMessage basicMessage, Map<String, String> headers,
+                    MessageDigest contentDigest) {
+                String key = keyFunction.apply(basicMessage);
+                if (key == null || key.isEmpty()) {
+                    throw new IllegalArgumentException("The key function gave no key for " + basicMessage);
+                }
+                return key;
+            }
+        };
+    }
+
+    /**
+     * @return duplicate detection that uses the SHA-256 hash of the encoded message, its class and its headers as
+     *         the ID, so messages with the same content are treated as duplicates
+     */
+    public static DuplicateDetection byContentHash() {
+        return new DuplicateDetection() {
+            @Override
+            public MessageDigest newContentDigest() {
+                try {
+                    return MessageDigest.getInstance("SHA-256");
+                } catch (NoSuchAlgorithmException e) {
+                    throw new IllegalStateException("Every JVM is required to support SHA-256", e);
+                }
+            }
+
+            @Override
+            public String createId(BasicMessage basicMessage, Map<String, String> headers,
+                    MessageDigest contentDigest) {
+                // sort the headers so the order they happen to be in does not change the hash
+                Map<String, String> allHeaders = new TreeMap<>();
+                if (basicMessage.getHeaders() != null) {
+                    allHeaders.putAll(basicMessage.getHeaders());
+                }
+                if (headers != null) {
+                    allHeaders.putAll(headers);
+                }
+                update(contentDigest, basicMessage.getClass().getName());
+                for (Map.Entry<String, String> header : allHeaders.entrySet()) {
+                    update(contentDigest, header.getKey());
+                    update(contentDigest, header.getValue());
+                }
+                return toHex(contentDigest.digest());
+            }
+        };
+    }
+
+    /**
+     * @return a digest that the encoded message is written to before {@link #createId} is called, or
+     *         <code>null</code> if the ID does not depend on the encoded message
+     */
+    public abstract MessageDigest newContentDigest();
+
+    /**
+     * Creates the duplicate detection ID of a message that is about to be sent.
+     *
+     * @param basicMessage the message
+     * @param headers the headers given in addition to the message's own headers; may be null
+     * @param contentDigest the digest returned by {@link #newContentDigest()} after the encoded message was written
+     *            to it
+     * @return the ID
+     */
+    public abstract String createId(BasicMessage basicMessage, Map<String, String> headers,
+            MessageDigest contentDigest);
+
+    private static void update(MessageDigest digest, String value) {
+        if (value == null) {
+            // no string has a negative length, so null never hashes like a value does
+            updateLength(digest, -1);
+            return;
+        }
+        byte[] bytes = value.getBytes(StandardCharsets.UTF_8);
+        // the length keeps ("ab", "c") and ("a", "bc") apart
+        updateLength(digest, bytes.length);
+        digest.update(bytes);
+    }
+
+    private static void updateLength(MessageDigest digest, int length) {
+        digest.update((byte) (length >>> 24));
+        digest.update((byte) (length >>> 16));
+        digest.update((byte) (length >>> 8));
+        digest.update((byte) length);
+    }
+
+    private static String toHex(byte[] bytes) {
+        char[] hex = new char[bytes.length * 2];
+        String digits = "0123456789abcdef";
+        for (int i = 0; i < bytes.length; i++) {
+            hex[i * 2] = digits.charAt((bytes[i] >> 4) & 0xf);
+            hex[i * 2 + 1] = digits.charAt(bytes[i] & 0xf);
+        }
+        return new String(hex);
+    }
+}
@@ -0,0 +1,214 @@
+/*
+ * Copyright 2015 Red Hat, Inc. and/or its affiliates
+ * and other contributors as indicated by the @author tags.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.hawkular.bus.common.producer;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.TimeUnit;
+
+import javax.jms.JMSException;
+
+import org.hawkular.bus.common.BasicMessage;
+import org.hawkular.bus.common.ConnectionContextFactory;
+import org.hawkular.bus.common.Endpoint;
+import org.hawkular.bus.common.MessageId;
+import org.hawkular.bus.common.MessageProcessor;
+import org.hawkular.bus.common.log.MsgLogger;
+
+/**
+ * Collects messages and sends them in batches with
+ * {@link MessageProcessor#sendBatch(ProducerConnectionContext, java.util.Collection)}. A batch is sent once it has
+ * reached its maximum size, once its oldest message has waited for the maximum delay, or when it is explicitly
+ * {@link #flush() flushed}.
+ *
+ * The delay is enforced by a task scheduled with the given scheduler. Without a scheduler, the delay is only checked
+ * when messages are added, so a batch that stops growing is not sent until it is flushed.
+ *
+ * The context must have a transacted session (see
+ * {@link ConnectionContextFactory#createTransactedProducerConnectionContext(Endpoint)}) that is used by nothing but
+ * this batcher. Closing the batcher sends the last batch but does not close the context.
+ *
+ * This class is thread-safe. Every batch that is sent is reported to {@link #batchSent(List, BatchSendResult)} or
+ * {@link #batchFailed(List, JMSException)}, which subclasses are free to override; this is the only way to learn
+ * the outcome of batches sent by the scheduler.
+ */
+public class MessageBatcher implements AutoCloseable {
+
+    private final MsgLogger msglog = MsgLogger.LOGGER;
+
+    private final MessageProcessor processor;
+    private final ProducerConnectionContext context;
+    private final int maxBatchSize;
+    private final long maxBatchDelayNanos;
+    private final ScheduledExecutorService scheduler;
+
+    private List<BasicMessage> pending = new ArrayList<>();
+    private long pendingSinceNanos;
+    private ScheduledFuture<?> scheduledFlush;
+    private boolean closed;
+
+    /**
+     * @param processor sends the batches
+     * @param context where the batches are sent; its session must be transacted
+     * @param maxBatchSize the number of messages that causes a batch to be sent
+     * @param maxBatchDelay how long the oldest message of a batch can wait before the batch is sent
+     * @param unit the unit of the delay
+     * @param scheduler used to send batches once they have waited for the delay; may be <code>null</code>
+     */
+    public MessageBatcher(MessageProcessor processor, ProducerConnectionContext context, int maxBatchSize,
+            long maxBatchDelay, TimeUnit unit, ScheduledExecutorService scheduler) {
+        if (processor == null) {
+            throw new IllegalArgumentException("processor must not be null");
+        }
+        if (context == null) {
+            throw new IllegalArgumentException("context must not be null");
+        }
+        if (maxBatchSize < 1) {
+            throw new IllegalArgumentException("maxBatchSize must be at least 1: " + maxBatchSize);
+        }
+        if (maxBatchDelay < 0) {
+            throw new IllegalArgumentException("maxBatchDelay must not be negative: " + maxBatchDelay);
+        }
+        if (unit == null) {
+            throw new IllegalArgumentException("unit must not be null");
+        }
+        this.processor = processor;
+        this.context = context;
+        this.maxBatchSize = maxBatchSize;
+        this.maxBatchDelayNanos = unit.toNanos(maxBatchDelay);
+        this.scheduler = scheduler;
+    }
+
+    /**
+     * Adds a message to the current batch, sending the batch if this makes it reach its maximum size or if it has
+     * waited long enough.
+     *
+     * @param message the message to send
+     * @throws JMSException if the batch was sent but could not be committed
+     */
+    public synchronized void add(BasicMessage message) throws JMSException {
+        if (message == null) {
+            throw new IllegalArgumentException("message must not be null");
+        }
+        if (closed) {
+            throw new IllegalStateException("The batcher has been closed");
+        }
+
+        pending.add(message);
+        if (pending.size() == 1) {
+            pendingSinceNanos = System.nanoTime();
+            if (scheduler != null && maxBatchSize > 1) {
+                scheduledFlush = scheduler.schedule(new Runnable() {
+                    @Override
+                    public void run() {
+                        flushOnSchedule();
+                    }
+                }, maxBatchDelayNanos, TimeUnit.NANOSECONDS);
+            }
+        }
+
+        if (pending.size() >= maxBatchSize || System.nanoTime() - pendingSinceNanos >= maxBatchDelayNanos) {
+            send();
+        }
+    }
+
+    /**
+     * Sends the current batch now.
+     *
+     * @return the result of sending the batch; empty if there were no messages to send
+     * @throws JMSException if the batch could not be committed
+     */
+    public synchronized BatchSendResult flush() throws JMSException {
+        if (pending.isEmpty()) {
+            return new BatchSendResult(Collections.<MessageId> emptyList(), null);
+        }
+        return send();
+    }
+
+    /**
+     * @return the number of messages waiting to be sent
+     */
+    public synchronized int getPendingCount() {
+        return pending.size();
+    }
+
+    /**
+     * Sends the last batch. Messages cannot be added once the batcher is closed.
+     *
+     * @throws JMSException if the last batch could not be committed
+     */
+    @Override
+    public synchronized void close() throws JMSException {
+        if (!closed) {
+            closed = true;
+            flush();
+        }
+    }
+
+    /**
+     * Called after a batch was sent. This implementation logs the messages that could not be sent.
+     *
+     * @param batch the messages of the batch
+     * @param result the result of sending the batch
+     */
+    protected void batchSent(List<BasicMessage> batch, BatchSendResult result) {
+        for (Map.Entry<Integer, Exception> failure : result.getFailures().entrySet()) {
+            msglog.errorFailedToSendBatchedMessage(failure.getKey(), result.size(), failure.getValue());
+        }
+    }
+
+    /**
+     * Called after a batch failed to be sent. None of its messages were sent. This implementation logs the failure.
+     *
+     * @param batch the messages of the batch
+     * @param e the error
+     */
+    protected void batchFailed(List<BasicMessage> batch, JMSException e) {
+        msglog.errorFailedToSendBatch(batch.size(), e);
+    }
+
+    private BatchSendResult send() throws JMSException {
+        if (scheduledFlush != null) {
+            scheduledFlush.cancel(false);
+            scheduledFlush = null;
+        }
+        List<BasicMessage> batch = pending;
+        pending = new ArrayList<>();
+
+        BatchSendResult result;
+        try {
+            result = processor.sendBatch(context, batch);
+        } catch (JMSException e) {
+            batchFailed(batch, e);
+            throw e;
+        }
+        batchSent(batch, result);
+        return result;
+    }
+
+    private synchronized void flushOnSchedule() {
+        try {
+            flush();
+        } catch (JMSException e) {
+            // already reported to batchFailed
+        }
+    }
+}
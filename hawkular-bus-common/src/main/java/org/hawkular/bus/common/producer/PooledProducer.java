@@ -0,0 +1,510 @@
+/*
+ * Copyright 2015 Red Hat, Inc. and/or its affiliates
+ * and other contributors as indicated by the @author tags.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.hawkular.bus.common.producer;
+
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentLinkedDeque;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.LongAdder;
+
+import javax.jms.Connection;
+import javax.jms.ConnectionFactory;
+import javax.jms.ExceptionListener;
+import javax.jms.InvalidDestinationException;
+import javax.jms.JMSException;
+import javax.jms.JMSSecurityException;
+import javax.jms.MessageFormatException;
+import javax.jms.MessageProducer;
+import javax.jms.Session;
+
+import org.hawkular.bus.common.BasicMessage;
+import org.hawkular.bus.common.ConnectionContextFactory;
+import org.hawkular.bus.common.Endpoint;
+import org.hawkular.bus.common.MessageId;
+import org.hawkular.bus.common.MessageProcessor;
+import org.hawkular.bus.common.log.MsgLogger;
+import org.jboss.logging.Logger;
+
+/**
+ * Sends messages from any number of threads at once. A JMS session must only be used by one thread at a time, so
+ * rather than creating a {@link ProducerConnectionContext} for every message, this keeps a bounded pool of sessions
+ * and producers for each {@link Endpoint}, all of them sharing a single connection. A thread that wants to send
+ * borrows a producer from the pool of the endpoint, waiting for one to be returned if all of them are in use.
+ *
+ * How long threads wait for producers is recorded so the pools can be sized; see {@link #getBorrowCount()},
+ * {@link #getTotalBorrowWaitNanos()} and {@link #getMaxBorrowWaitNanos()}.
+ *
+ * With {@link #setDuplicateDetection(DuplicateDetection) duplicate detection}, sending a message again cannot create
+ * a duplicate, so sends that fail for a reason that might go away are transparently retried with a new producer;
+ * see {@link #setMaxRetries(int)} and {@link #isTransient(JMSException)}.
+ *
+ * If the shared connection fails, e.g. because the broker was restarted, it is closed along with the idle producers
+ * and the next producer is created with a new connection; see {@link #isConnectionFailure(JMSException)}.
+ *
+ * When you are done sending messages, call {@link #close()} to close the producers and the shared connection.
+ */
+public class PooledProducer implements AutoCloseable {
+
+    /**
+     * The number of producers pooled for each endpoint unless configured otherwise.
+     */
+    public static final int DEFAULT_MAX_PRODUCERS_PER_ENDPOINT = 8;
+
+    /**
+     * How long a thread waits for a producer unless configured otherwise.
+     */
+    public static final long DEFAULT_BORROW_TIMEOUT_MILLIS = 30000L;
+
+    /**
+     * How many times a failed send is retried unless configured otherwise, if retrying is safe.
+     */
+    public static final int DEFAULT_MAX_RETRIES = 3;
+
+    private static final long RETRY_DELAY_MILLIS = 100L;
+
+    private final MsgLogger msglog = MsgLogger.LOGGER;
+    private final Logger log = Logger.getLogger(PooledProducer.class);
+
+    private final ConnectionContextFactory contextFactory;
+    private final MessageProcessor processor;
+    private final ProducerOptions options;
+    private final int maxProducersPerEndpoint;
+    private final ConcurrentMap<Endpoint, EndpointPool> pools = new ConcurrentHashMap<>();
+    // the connection shared by the producers, guarded by contextFactory but read without it
+    private volatile Connection connection;
+    private volatile long borrowTimeoutNanos = TimeUnit.MILLISECONDS.toNanos(DEFAULT_BORROW_TIMEOUT_MILLIS);
+    private volatile boolean closed;
+    private volatile DuplicateDetection duplicateDetection;
+    private volatile int maxRetries = DEFAULT_MAX_RETRIES;
+
+    private final LongAdder retryCount = new LongAdder();
+    private final LongAdder borrowCount = new LongAdder();
+    private final LongAdder borrowTimeoutCount = new LongAdder();
+    private final LongAdder totalBorrowWaitNanos = new LongAdder();
+    private final AtomicLong maxBorrowWaitNanos = new AtomicLong();
+
+    /**
+     * Creates a pool with the default settings.
+     *
+     * @param connectionFactory creates the connection that all producers share
+     * @throws JMSException any error
+     */
+    public PooledProducer(ConnectionFactory connectionFactory) throws JMSException {
+        this(connectionFactory, new MessageProcessor(), null, DEFAULT_MAX_PRODUCERS_PER_ENDPOINT);
+    }
+
+    /**
+     * @param connectionFactory creates the connection that all producers share
+     * @param processor sends the messages
+     * @param options how the producers send messages; if <code>null</code> the JMS defaults are used
+     * @param maxProducersPerEndpoint the number of producers each endpoint can have
+     * @throws JMSException any error
+     */
+    public PooledProducer(ConnectionFactory connectionFactory, MessageProcessor processor, ProducerOptions options,
+            int maxProducersPerEndpoint) throws JMSException {
+        if (connectionFactory == null) {
+            throw new IllegalArgumentException("connectionFactory must not be null");
+        }
+        if (processor == null) {
+            throw new IllegalArgumentException("processor must not be null");
+        }
+        if (maxProducersPerEndpoint < 1) {
+            throw new IllegalArgumentException("maxProducersPerEndpoint must be at least 1: "
+                    + maxProducersPerEndpoint);
+        }
+        this.contextFactory = new ConnectionContextFactory(true, connectionFactory);
+        this.processor = processor;
+        this.options = options;
+        this.maxProducersPerEndpoint = maxProducersPerEndpoint;
+    }
+
+    /**
+     * Same as {@link #send(Endpoint, BasicMessage, Map)} with <code>null</code> headers.
+     */
+    public MessageId send(Endpoint endpoint, BasicMessage basicMessage) throws JMSException {
+        return send(endpoint, basicMessage, null);
+    }
+
+    /**
+     * Sends the message to the given endpoint with a producer borrowed from the pool of that endpoint. If
+     * {@link #setDuplicateDetection(DuplicateDetection) duplicate detection} is used, a send that fails for a
+     * {@link #isTransient(JMSException) transient} reason is retried with another producer.
+     *
+     * @param endpoint where the message is sent
+     * @param basicMessage the message to send with optional headers included
+     * @param headers headers for the JMS transport that will override same-named headers in the basic message
+     * @return the message ID
+     * @throws JMSException if the message could not be sent or no producer became available in time
+     *
+     * @see MessageProcessor#send(ProducerConnectionContext, BasicMessage, Map)
+     */
+    public MessageId send(Endpoint endpoint, BasicMessage basicMessage, Map<String, String> headers)
+            throws JMSException {
+        if (endpoint == null) {
+            throw new IllegalArgumentException("endpoint must not be null");
+        }
+        if (basicMessage == null) {
+            throw new IllegalArgumentException("message must not be null");
+        }
+
+        DuplicateDetection dedup = duplicateDetection;
+        for (int attempt = 0;; attempt++) {
+            ProducerConnectionContext context = borrow(endpoint);
+            boolean broken = false;
+            try {
+                context.setDuplicateDetection(dedup);
+                return processor.send(context, basicMessage, headers);
+            } catch (JMSException e) {
+                // the session might no longer be usable, do not give it to anyone else
+                broken = true;
+                if (isConnectionFailure(e)) {
+                    connectionFailed(context.getConnection(), e);
+                }
+                if (dedup == null || attempt >= maxRetries || !isTransient(e)) {
+                    throw e;
+                }
+                log.debugf(e, "Send to [%s] failed, retrying it", endpoint);
+            } finally {
+                release(endpoint, context, broken);
+            }
+
+            retryCount.increment();
+            try {
+                Thread.sleep(RETRY_DELAY_MILLIS * (attempt + 1));
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                JMSException jmsException = new JMSException("Interrupted while waiting to retry a send");
+                jmsException.setLinkedException(e);
+                throw jmsException;
+            }
+        }
+    }
+
+    /**
+     * Tells whether a send that failed with the given error could succeed if it were tried again. This
+     * implementation treats all errors as transient except those about the destination, security or the format of
+     * the message.
+     *
+     * @param e the error
+     * @return true if the send should be retried
+     */
+    protected boolean isTransient(JMSException e) {
+        return !(e instanceof InvalidDestinationException || e instanceof JMSSecurityException
+                || e instanceof MessageFormatException);
+    }
+
+    /**
+     * Tells whether a send that failed with the given error failed because the shared connection can no longer be
+     * used. This implementation treats {@link javax.jms.IllegalStateException}, which is thrown when the connection
+     * or session has been closed, as such a failure.
+     *
+     * @param e the error
+     * @return true if the shared connection should be replaced by a new one
+     */
+    protected boolean isConnectionFailure(JMSException e) {
+        return e instanceof javax.jms.IllegalStateException;
+    }
+
+    /**
+     * Closes the given connection and the idle producers created with it, if it is still the shared connection, so
+     * that the next producer is created with a new connection. Producers of the failed connection that are in use
+     * are closed when they are released.
+     *
+     * @param failed the connection that failed
+     * @param cause why the connection is thought to have failed
+     */
+    protected void connectionFailed(Connection failed, JMSException cause) {
+        synchronized (contextFactory) {
+            if (failed == null || failed != connection) {
+                return; // already replaced
+            }
+            log.debugf(cause, "The shared connection failed, a new one will be created");
+            connection = null;
+            try {
+                contextFactory.close();
+            } catch (JMSException e) {
+                log.debugf(e, "Cannot close the failed shared connection");
+            }
+        }
+        for (EndpointPool pool : pools.values()) {
+            for (ProducerConnectionContext context : pool.idle) {
+                if (context.getConnection() == failed && pool.idle.remove(context)) {
+                    closeProducer(context);
+                }
+            }
+        }
+    }
+
+    /**
+     * Takes a producer out of the pool of the given endpoint, creating one if the pool is not full yet and waiting
+     * for one to be {@link #release(Endpoint, ProducerConnectionContext, boolean) released} otherwise.
+     *
+     * @param endpoint where the producer sends messages
+     * @return the borrowed producer that must be released when the caller is done with it
+     * @throws JMSException if no producer became available in time or a new one could not be created
+     */
+    protected ProducerConnectionContext borrow(Endpoint endpoint) throws JMSException {
+        if (closed) {
+            throw new IllegalStateException("The pooled producer has been closed");
+        }
+        EndpointPool pool = pools.get(endpoint);
+        if (pool == null) {
+            EndpointPool newPool = new EndpointPool(maxProducersPerEndpoint);
+            pool = pools.putIfAbsent(endpoint, newPool);
+            if (pool == null) {
+                pool = newPool;
+            }
+        }
+
+        long start = System.nanoTime();
+        boolean acquired;
+        try {
+            acquired = pool.permits.tryAcquire(borrowTimeoutNanos, TimeUnit.NANOSECONDS);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            JMSException jmsException = new JMSException("Interrupted while waiting for a producer for " + endpoint);
+            jmsException.setLinkedException(e);
+            throw jmsException;
+        }
+        recordBorrowWait(System.nanoTime() - start);
+        if (!acquired) {
+            borrowTimeoutCount.increment();
+            throw new JMSException("Timed out waiting for a producer for " + endpoint);
+        }
+
+        ProducerConnectionContext context = pool.idle.pollFirst();
+        if (context == null) {
+            try {
+                // the factory is not thread-safe and must only create the shared connection once
+                synchronized (contextFactory) {
+                    context = contextFactory.createProducerConnectionContext(endpoint, options);
+                    if (context.getConnection() != connection) {
+                        connection = context.getConnection();
+                        listenForFailure(connection);
+                    }
+                }
+                log.debugf("Created pooled producer for [%s]", endpoint);
+            } catch (JMSException | RuntimeException e) {
+                pool.permits.release();
+                throw e;
+            }
+        }
+        return context;
+    }
+
+    /**
+     * Gives a producer obtained from {@link #borrow(Endpoint)} back to the pool.
+     *
+     * @param endpoint the endpoint the producer was borrowed for
+     * @param context the borrowed producer
+     * @param broken if true the producer is closed rather than reused
+     */
+    protected void release(Endpoint endpoint, ProducerConnectionContext context, boolean broken) {
+        EndpointPool pool = pools.get(endpoint);
+        if (broken || closed || context.getConnection() != connection) {
+            closeProducer(context);
+        } else {
+            pool.idle.offerFirst(context);
+            // close() might have drained the pool before we put the producer back
+            if (closed && pool.idle.remove(context)) {
+                closeProducer(context);
+            }
+        }
+        pool.permits.release();
+    }
+
+    /**
+     * @return how long a thread waits for a producer before giving up, in milliseconds
+     */
+    public long getBorrowTimeout() {
+        return TimeUnit.NANOSECONDS.toMillis(borrowTimeoutNanos);
+    }
+
+    /**
+     * @param borrowTimeout how long a thread waits for a producer before giving up
+     * @param unit the unit of the timeout
+     */
+    public void setBorrowTimeout(long borrowTimeout, TimeUnit unit) {
+        if (borrowTimeout < 0) {
+            throw new IllegalArgumentException("borrowTimeout must not be negative: " + borrowTimeout);
+        }
+        this.borrowTimeoutNanos = unit.toNanos(borrowTimeout);
+    }
+
+    public DuplicateDetection getDuplicateDetection() {
+        return duplicateDetection;
+    }
+
+    /**
+     * @param duplicateDetection gives the sent messages duplicate detection IDs, which makes it safe to retry sends;
+     *            <code>null</code> to send messages without them and never retry
+     */
+    public void setDuplicateDetection(DuplicateDetection duplicateDetection) {
+        this.duplicateDetection = duplicateDetection;
+    }
+
+    public int getMaxRetries() {
+        return maxRetries;
+    }
+
+    /**
+     * @param maxRetries how many times a send that failed for a transient reason is retried; only used with
+     *            duplicate detection
+     */
+    public void setMaxRetries(int maxRetries) {
+        if (maxRetries < 0) {
+            throw new IllegalArgumentException("maxRetries must not be negative: " + maxRetries);
+        }
+        this.maxRetries = maxRetries;
+    }
+
+    /**
+     * @return the number of times a failed send was retried
+     */
+    public long getRetryCount() {
+        return retryCount.sum();
+    }
+
+    public int getMaxProducersPerEndpoint() {
+        return maxProducersPerEndpoint;
+    }
+
+    /**
+     * @return the number of times a producer was asked for, including the times none became available in time
+     */
+    public long getBorrowCount() {
+        return borrowCount.sum();
+    }
+
+    /**
+     * @return the number of times no producer became available in time
+     */
+    public long getBorrowTimeoutCount() {
+        return borrowTimeoutCount.sum();
+    }
+
+    /**
+     * @return how long threads have waited for producers, all together
+     */
+    public long getTotalBorrowWaitNanos() {
+        return totalBorrowWaitNanos.sum();
+    }
+
+    /**
+     * @return the longest time a thread has waited for a producer
+     */
+    public long getMaxBorrowWaitNanos() {
+        return maxBorrowWaitNanos.get();
+    }
+
+    /**
+     * @return the number of threads currently waiting for a producer, which is only an estimate
+     */
+    public int getWaitingThreadCount() {
+        int waiting = 0;
+        for (EndpointPool pool : pools.values()) {
+            waiting += pool.permits.getQueueLength();
+        }
+        return waiting;
+    }
+
+    /**
+     * @param endpoint the endpoint whose pool is looked at
+     * @return the number of producers of the endpoint that are not in use
+     */
+    public int getIdleCount(Endpoint endpoint) {
+        EndpointPool pool = pools.get(endpoint);
+        return (pool == null) ? 0 : pool.idle.size();
+    }
+
+    /**
+     * Closes the pooled producers and the connection they share. Producers that are in use when this is called are
+     * closed when they are released, but they can no longer send since their connection is closed.
+     *
+     * @throws JMSException if the connection could not be closed
+     */
+    @Override
+    public void close() throws JMSException {
+        closed = true;
+        for (EndpointPool pool : pools.values()) {
+            ProducerConnectionContext context;
+            while ((context = pool.idle.pollFirst()) != null) {
+                closeProducer(context);
+            }
+        }
+        synchronized (contextFactory) {
+            contextFactory.close();
+        }
+    }
+
+    /**
+     * Replaces the shared connection as soon as it fails, rather than when a send finds out. Containers that do not
+     * allow exception listeners are fine, the failure is then noticed by the next send.
+     */
+    private void listenForFailure(final Connection newConnection) {
+        try {
+            newConnection.setExceptionListener(new ExceptionListener() {
+                @Override
+                public void onException(JMSException e) {
+                    connectionFailed(newConnection, e);
+                }
+            });
+        } catch (JMSException e) {
+            log.debugf(e, "Cannot listen for failures of the shared connection");
+        }
+    }
+
+    private void recordBorrowWait(long waitNanos) {
+        borrowCount.increment();
+        totalBorrowWaitNanos.add(waitNanos);
+        long max = maxBorrowWaitNanos.get();
+        while (waitNanos > max && !maxBorrowWaitNanos.compareAndSet(max, waitNanos)) {
+            max = maxBorrowWaitNanos.get();
+        }
+    }
+
+    /**
+     * Closes the producer and session but not the connection since that is shared by all pooled producers.
+     */
+    private void closeProducer(ProducerConnectionContext context) {
+        try {
+            MessageProducer producer = context.getMessageProducer();
+            if (producer != null) {
+                producer.close();
+            }
+            Session session = context.getSession();
+            if (session != null) {
+                session.close();
+            }
+        } catch (JMSException e) {
+            msglog.errorFailedToClosePooledProducer(e);
+        }
+    }
+
+    private static class EndpointPool {
+        final Semaphore permits;
+        final ConcurrentLinkedDeque<ProducerConnectionContext> idle = new ConcurrentLinkedDeque<>();
+
+        EndpointPool(int maxProducers) {
+            this.permits = new Semaphore(maxProducers, true);
+        }
+    }
+}
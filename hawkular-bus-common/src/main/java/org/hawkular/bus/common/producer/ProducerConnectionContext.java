@@ -17,6 +17,7 @@
 package org.hawkular.bus.common.producer;
 
 import java.io.IOException;
+import java.util.concurrent.Semaphore;
 
 import javax.jms.JMSException;
 import javax.jms.MessageProducer;
@@ -24,7 +25,16 @@ import javax.jms.MessageProducer;
 import org.hawkular.bus.common.ConnectionContext;
 
 public class ProducerConnectionContext extends ConnectionContext {
+    /**
+     * The number of asynchronous sends that can be in flight at the same time unless configured otherwise.
+     */
+    public static final int DEFAULT_MAX_ASYNC_SENDS_IN_FLIGHT = 1000;
+
     private MessageProducer producer;
+    private volatile Semaphore asyncSendPermits = new Semaphore(DEFAULT_MAX_ASYNC_SENDS_IN_FLIGHT);
+    private volatile int maxAsyncSendsInFlight = DEFAULT_MAX_ASYNC_SENDS_IN_FLIGHT;
+    private volatile RateLimiter rateLimiter;
+    private volatile DuplicateDetection duplicateDetection;
 
     public MessageProducer getMessageProducer() {
         return producer;
@@ -34,6 +44,77 @@ public class ProducerConnectionContext extends ConnectionContext {
         this.producer = producer;
     }
 
+    /**
+     * @return the number of messages that can be sent asynchronously through this context and not yet be
+     *         acknowledged by the broker
+     */
+    public int getMaxAsyncSendsInFlight() {
+        return maxAsyncSendsInFlight;
+    }
+
+    /**
+     * Sets the size of the window of asynchronous sends. Once that many messages sent through this context wait for
+     * the broker to acknowledge them, further asynchronous sends block until some are acknowledged. This should be
+     * set before messages are sent; sends already in flight do not count against a new window.
+     *
+     * @param maxAsyncSendsInFlight the number of messages that can be in flight
+     *
+     * @see org.hawkular.bus.common.MessageProcessor#sendAsync(ProducerConnectionContext,
+     *      org.hawkular.bus.common.BasicMessage)
+     */
+    public void setMaxAsyncSendsInFlight(int maxAsyncSendsInFlight) {
+        if (maxAsyncSendsInFlight < 1) {
+            throw new IllegalArgumentException("maxAsyncSendsInFlight must be at least 1: " + maxAsyncSendsInFlight);
+        }
+        this.asyncSendPermits = new Semaphore(maxAsyncSendsInFlight);
+        this.maxAsyncSendsInFlight = maxAsyncSendsInFlight;
+    }
+
+    /**
+     * @return the permits of the asynchronous send window; one is acquired for each message until it is acknowledged
+     */
+    public Semaphore getAsyncSendPermits() {
+        return asyncSendPermits;
+    }
+
+    /**
+     * @return the limiter of the rate at which messages are sent through this context, or <code>null</code> if the
+     *         rate is not limited
+     */
+    public RateLimiter getRateLimiter() {
+        return rateLimiter;
+    }
+
+    /**
+     * @param rateLimiter limits the rate at which messages are sent through this context; <code>null</code> to not
+     *            limit it
+     *
+     * @see org.hawkular.bus.common.MessageProcessor#trySend(ProducerConnectionContext,
+     *      org.hawkular.bus.common.BasicMessage)
+     */
+    public void setRateLimiter(RateLimiter rateLimiter) {
+        this.rateLimiter = rateLimiter;
+    }
+
+    /**
+     * Messages sent with binary data only get an ID if it does not depend on the encoded message, since the binary
+     * data is only read when the message is sent; see {@link DuplicateDetection}.
+     *
+     * @return how messages sent through this context get their duplicate detection IDs, or <code>null</code> if they
+     *         get none
+     */
+    public DuplicateDetection getDuplicateDetection() {
+        return duplicateDetection;
+    }
+
+    /**
+     * @param duplicateDetection gives messages sent through this context duplicate detection IDs; <code>null</code>
+     *            to not give them any
+     */
+    public void setDuplicateDetection(DuplicateDetection duplicateDetection) {
+        this.duplicateDetection = duplicateDetection;
+    }
+
     @Override
     public void close() throws IOException {
         if (producer != null) {
@@ -0,0 +1,129 @@
+/*
+ * Copyright 2015 Red Hat, Inc. and/or its affiliates
+ * and other contributors as indicated by the @author tags.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.hawkular.bus.common.producer;
+
+import javax.jms.DeliveryMode;
+import javax.jms.Message;
+
+/**
+ * Settings of the message producer of a {@link ProducerConnectionContext}. The defaults are those of JMS: messages
+ * are persistent, have the default priority, never expire, are delivered immediately and get both a message ID and
+ * a timestamp.
+ *
+ * Messages sent with disabled message IDs have no {@link org.hawkular.bus.common.MessageId}; this is meant for
+ * high-volume fire-and-forget messages such as telemetry, and should not be used for messages that others reply to.
+ *
+ * @see org.hawkular.bus.common.ConnectionContextFactory#createProducerConnectionContext(
+ *      org.hawkular.bus.common.Endpoint, ProducerOptions)
+ */
+public class ProducerOptions {
+    private int deliveryMode = Message.DEFAULT_DELIVERY_MODE;
+    private int priority = Message.DEFAULT_PRIORITY;
+    private long timeToLive = Message.DEFAULT_TIME_TO_LIVE;
+    private long deliveryDelay = Message.DEFAULT_DELIVERY_DELAY;
+    private boolean disableMessageID;
+    private boolean disableMessageTimestamp;
+
+    /**
+     * @return {@link DeliveryMode#PERSISTENT} or {@link DeliveryMode#NON_PERSISTENT}
+     */
+    public int getDeliveryMode() {
+        return deliveryMode;
+    }
+
+    /**
+     * @param deliveryMode {@link DeliveryMode#PERSISTENT} or {@link DeliveryMode#NON_PERSISTENT}; non-persistent
+     *            messages are not written to disk by the broker and so are lost if the broker goes down
+     */
+    public void setDeliveryMode(int deliveryMode) {
+        if (deliveryMode != DeliveryMode.PERSISTENT && deliveryMode != DeliveryMode.NON_PERSISTENT) {
+            throw new IllegalArgumentException("Invalid delivery mode: " + deliveryMode);
+        }
+        this.deliveryMode = deliveryMode;
+    }
+
+    public int getPriority() {
+        return priority;
+    }
+
+    /**
+     * @param priority from 0 (lowest) to 9 (highest)
+     */
+    public void setPriority(int priority) {
+        if (priority < 0 || priority > 9) {
+            throw new IllegalArgumentException("Priority must be between 0 and 9: " + priority);
+        }
+        this.priority = priority;
+    }
+
+    public long getTimeToLive() {
+        return timeToLive;
+    }
+
+    /**
+     * @param timeToLive how many milliseconds messages live before they expire; 0 means they never expire
+     */
+    public void setTimeToLive(long timeToLive) {
+        if (timeToLive < 0) {
+            throw new IllegalArgumentException("Time to live must not be negative: " + timeToLive);
+        }
+        this.timeToLive = timeToLive;
+    }
+
+    public long getDeliveryDelay() {
+        return deliveryDelay;
+    }
+
+    /**
+     * @param deliveryDelay how many milliseconds after being sent messages are delivered to consumers
+     */
+    public void setDeliveryDelay(long deliveryDelay) {
+        if (deliveryDelay < 0) {
+            throw new IllegalArgumentException("Delivery delay must not be negative: " + deliveryDelay);
+        }
+        this.deliveryDelay = deliveryDelay;
+    }
+
+    public boolean isDisableMessageID() {
+        return disableMessageID;
+    }
+
+    /**
+     * @param disableMessageID if true, the JMS provider is told it does not need to generate message IDs
+     */
+    public void setDisableMessageID(boolean disableMessageID) {
+        this.disableMessageID = disableMessageID;
+    }
+
+    public boolean isDisableMessageTimestamp() {
+        return disableMessageTimestamp;
+    }
+
+    /**
+     * @param disableMessageTimestamp if true, the JMS provider is told it does not need to timestamp messages
+     */
+    public void setDisableMessageTimestamp(boolean disableMessageTimestamp) {
+        this.disableMessageTimestamp = disableMessageTimestamp;
+    }
+
+    @Override
+    public String toString() {
+        return "ProducerOptions[deliveryMode=" + deliveryMode + ", priority=" + priority + ", timeToLive="
+                + timeToLive + ", deliveryDelay=" + deliveryDelay + ", disableMessageID=" + disableMessageID
+                + ", disableMessageTimestamp=" + disableMessageTimestamp + "]";
+    }
+}
@@ -0,0 +1,218 @@
+/*
+ * Copyright 2015 Red Hat, Inc. and/or its affiliates
+ * and other contributors as indicated by the @author tags.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.hawkular.bus.common.producer;
+
+import java.util.concurrent.TimeUnit;
+
+/**
+ * A token bucket that limits how many messages per second are sent through the
+ * {@link ProducerConnectionContext producer contexts} it is {@link ProducerConnectionContext#setRateLimiter set on}.
+ * Share one limiter between several contexts to limit all of them together, e.g. all contexts of an endpoint.
+ *
+ * An adaptive limiter adjusts its rate to how long sends take, in the additive-increase/multiplicative-decrease
+ * (AIMD) style of TCP congestion control: each send that completes within the target latency raises the rate by
+ * a small step, while a send that takes longer or fails cuts the rate by a factor. The rate is cut at most once per
+ * target latency so that a burst of slow sends counts as one sign of congestion. Producers therefore slow down when
+ * the broker falls behind instead of piling up blocked senders, and speed up again once it has caught up.
+ *
+ * This class is thread-safe.
+ */
+public class RateLimiter {
+
+    /**
+     * By how much an adaptive limiter multiplies its rate when a send was too slow, unless configured otherwise.
+     */
+    public static final double DEFAULT_DECREASE_FACTOR = 0.5;
+
+    private final double minRate;
+    private final double maxRate;
+    private final double burst;
+    private final long targetLatencyNanos;
+    private volatile double increaseStep;
+    private volatile double decreaseFactor = DEFAULT_DECREASE_FACTOR;
+
+    private double rate;
+    private double tokens;
+    private long lastRefillNanos;
+    private long lastDecreaseNanos;
+
+    /**
+     * Creates a limiter with a fixed rate.
+     *
+     * @param rate the number of messages per second
+     * @param burst the number of messages that can be sent at once after a quiet period
+     */
+    public RateLimiter(double rate, int burst) {
+        this(rate, rate, rate, burst, 0, TimeUnit.NANOSECONDS);
+    }
+
+    /**
+     * Creates an adaptive limiter. It increases its rate by 1% of the maximum rate for each fast send; see
+     * {@link #setIncreaseStep(double)} and {@link #setDecreaseFactor(double)} to change this.
+     *
+     * @param initialRate the number of messages per second to start with
+     * @param minRate the rate is never decreased below this
+     * @param maxRate the rate is never increased above this
+     * @param burst the number of messages that can be sent at once after a quiet period
+     * @param targetLatency sends that take longer than this decrease the rate; 0 disables adapting the rate
+     * @param unit the unit of the target latency
+     */
+    public RateLimiter(double initialRate, double minRate, double maxRate, int burst, long targetLatency,
+            TimeUnit unit) {
+        if (minRate <= 0) {
+            throw new IllegalArgumentException("minRate must be positive: " + minRate);
+        }
+        if (initialRate < minRate || initialRate > maxRate) {
+            throw new IllegalArgumentException("initialRate [" + initialRate + "] must be between minRate ["
+                    + minRate + "] and maxRate [" + maxRate + "]");
+        }
+        if (burst < 1) {
+            throw new IllegalArgumentException("burst must be at least 1: " + burst);
+        }
+        if (targetLatency < 0) {
+            throw new IllegalArgumentException("targetLatency must not be negative: " + targetLatency);
+        }
+        this.minRate = minRate;
+        this.maxRate = maxRate;
+        this.burst = burst;
+        this.targetLatencyNanos = unit.toNanos(targetLatency);
+        this.increaseStep = maxRate / 100;
+        this.rate = initialRate;
+        this.tokens = burst;
+        this.lastRefillNanos = System.nanoTime();
+        this.lastDecreaseNanos = lastRefillNanos - targetLatencyNanos;
+    }
+
+    /**
+     * Takes a token if one is available.
+     *
+     * @return true if a message can be sent now, false if the budget is exhausted
+     */
+    public synchronized boolean tryAcquire() {
+        refill(System.nanoTime());
+        if (tokens >= 1) {
+            tokens -= 1;
+            return true;
+        }
+        return false;
+    }
+
+    /**
+     * Takes a token, waiting for one if none is available.
+     *
+     * @throws InterruptedException if interrupted while waiting
+     */
+    public void acquire() throws InterruptedException {
+        while (true) {
+            long waitNanos;
+            synchronized (this) {
+                refill(System.nanoTime());
+                if (tokens >= 1) {
+                    tokens -= 1;
+                    return;
+                }
+                waitNanos = (long) Math.ceil((1 - tokens) / rate * TimeUnit.SECONDS.toNanos(1));
+            }
+            TimeUnit.NANOSECONDS.sleep(Math.max(waitNanos, 1));
+        }
+    }
+
+    /**
+     * Tells an adaptive limiter how long a send took.
+     *
+     * @param latencyNanos the time it took to send a message
+     */
+    public synchronized void recordSendLatency(long latencyNanos) {
+        if (targetLatencyNanos == 0) {
+            return;
+        }
+        long now = System.nanoTime();
+        if (latencyNanos > targetLatencyNanos) {
+            decrease(now);
+        } else {
+            refill(now);
+            rate = Math.min(maxRate, rate + increaseStep);
+        }
+    }
+
+    /**
+     * Tells an adaptive limiter that a send failed, which is treated like a send that was too slow.
+     */
+    public synchronized void recordSendFailure() {
+        if (targetLatencyNanos != 0) {
+            decrease(System.nanoTime());
+        }
+    }
+
+    /**
+     * @return the current number of messages per second
+     */
+    public synchronized double getRate() {
+        return rate;
+    }
+
+    public double getIncreaseStep() {
+        return increaseStep;
+    }
+
+    /**
+     * @param increaseStep how many messages per second an adaptive limiter adds to its rate for each fast send
+     */
+    public void setIncreaseStep(double increaseStep) {
+        if (increaseStep < 0) {
+            throw new IllegalArgumentException("increaseStep must not be negative: " + increaseStep);
+        }
+        this.increaseStep = increaseStep;
+    }
+
+    public double getDecreaseFactor() {
+        return decreaseFactor;
+    }
+
+    /**
+     * @param decreaseFactor what an adaptive limiter multiplies its rate by when a send was too slow or failed
+     */
+    public void setDecreaseFactor(double decreaseFactor) {
+        if (decreaseFactor <= 0 || decreaseFactor > 1) {
+            throw new IllegalArgumentException("decreaseFactor must be in (0, 1]: " + decreaseFactor);
+        }
+        this.decreaseFactor = decreaseFactor;
+    }
+
+    private void decrease(long now) {
+        if (now - lastDecreaseNanos < targetLatencyNanos) {
+            return;
+        }
+        refill(now);
+        rate = Math.max(minRate, rate * decreaseFactor);
+        lastDecreaseNanos = now;
+    }
+
+    private void refill(long now) {
+        long elapsed = now - lastRefillNanos;
+        if (elapsed > 0) {
+            tokens = Math.min(burst, tokens + rate * elapsed / TimeUnit.SECONDS.toNanos(1));
+            lastRefillNanos = now;
+        }
+    }
+
+    @Override
+    public synchronized String toString() {
+        return "RateLimiter[rate=" + rate + ", minRate=" + minRate + ", maxRate=" + maxRate + ", burst=" + burst
+                + ", targetLatencyNanos=" + targetLatencyNanos + "]";
+    }
+}
@@ -0,0 +1,180 @@
+/*
+ * Copyright 2015 Red Hat, Inc. and/or its affiliates
+ * and other contributors as indicated by the @author tags.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.hawkular.bus.common;
+
+import java.lang.reflect.InvocationTargetException;
+import java.lang.reflect.Method;
+import java.lang.reflect.Proxy;
+
+import javax.jms.ConnectionFactory;
+import javax.jms.Destination;
+import javax.jms.JMSContext;
+import javax.jms.JMSProducer;
+import javax.jms.JMSRuntimeException;
+import javax.jms.TextMessage;
+
+import org.junit.Assert;
+import org.junit.Test;
+
+public class BusTest {
+
+    @Test
+    public void testContextsAreReused() throws Exception {
+        JMSFakes jms = new JMSFakes(false);
+        Bus bus = new Bus(jms.createConnectionFactory());
+        Destination queue = jms.getSession().createQueue("busQueue");
+
+        bus.send(queue, new SimpleBasicMessage("one"));
+        bus.send(queue, new SimpleBasicMessage("two"));
+        Assert.assertEquals(1, jms.getContextsCreated());
+        Assert.assertEquals(0, jms.getContextsClosed());
+        Assert.assertEquals(2, jms.getSent().size());
+        Assert.assertSame(queue, jms.getSent().get(0).getJMSDestination());
+        Assert.assertTrue(text(0, jms).contains("\"one\""));
+        Assert.assertTrue(text(1, jms).contains("\"two\""));
+    }
+
+    @Test
+    public void testValuesAreSentAsJson() throws Exception {
+        JMSFakes jms = new JMSFakes(false);
+        Bus bus = new Bus(jms.createConnectionFactory());
+        Destination queue = jms.getSession().createQueue("busQueue");
+
+        bus.send(queue, new Value("a", 1));
+        bus.send(queue, new Value("b", 2));
+        bus.send(queue, null);
+        Assert.assertEquals("{\"name\":\"a\",\"count\":1}", text(0, jms));
+        Assert.assertEquals("{\"name\":\"b\",\"count\":2}", text(1, jms));
+        Assert.assertEquals("null", text(2, jms));
+    }
+
+    @Test
+    public void testFailedContextIsDiscarded() throws Exception {
+        JMSFakes jms = new JMSFakes(false);
+        Bus bus = new Bus(jms.createConnectionFactory());
+        Destination queue = jms.getSession().createQueue("busQueue");
+
+        jms.setFailNextSends(1);
+        try {
+            bus.send(queue, new SimpleBasicMessage("failed"));
+            Assert.fail("The send should have failed");
+        } catch (JMSRuntimeException expected) {
+        }
+        Assert.assertEquals(1, jms.getContextsClosed());
+
+        bus.send(queue, new SimpleBasicMessage("sent"));
+        Assert.assertEquals(2, jms.getContextsCreated());
+        Assert.assertEquals(1, jms.getSent().size());
+    }
+
+    @Test
+    public void testIdleContextsAreClosedOnShutdown() throws Exception {
+        JMSFakes jms = new JMSFakes(false);
+        Bus bus = new Bus(jms.createConnectionFactory());
+        Destination queue = jms.getSession().createQueue("busQueue");
+        bus.send(queue, new SimpleBasicMessage("one"));
+
+        bus.closeContexts();
+        Assert.assertEquals(1, jms.getContextsClosed());
+        try {
+            bus.send(queue, new SimpleBasicMessage("two"));
+            Assert.fail("The bus was shut down");
+        } catch (IllegalStateException expected) {
+        }
+        Assert.assertEquals(1, jms.getContextsCreated());
+    }
+
+    @Test
+    public void testShutdownWhileSendingClosesTheContext() throws Exception {
+        final JMSFakes jms = new JMSFakes(false);
+        final Bus[] bus = new Bus[1];
+        // shuts the bus down in the middle of each send
+        final ConnectionFactory factory = jms.createConnectionFactory();
+        ConnectionFactory shuttingDown = intercept(ConnectionFactory.class, factory, (method, args) -> {
+            if (!method.getName().equals("createContext")) {
+                return method.invoke(factory, args);
+            }
+            JMSContext context = (JMSContext) method.invoke(factory, args);
+            return intercept(JMSContext.class, context, (contextMethod, contextArgs) -> {
+                Object result = contextMethod.invoke(context, contextArgs);
+                if (!contextMethod.getName().equals("createProducer")) {
+                    return result;
+                }
+                JMSProducer producer = (JMSProducer) result;
+                return intercept(JMSProducer.class, producer, (producerMethod, producerArgs) -> {
+                    bus[0].closeContexts();
+                    return producerMethod.invoke(producer, producerArgs);
+                });
+            });
+        });
+        bus[0] = new Bus(shuttingDown);
+
+        bus[0].send(jms.getSession().createQueue("busQueue"), new SimpleBasicMessage("last"));
+        Assert.assertEquals(1, jms.getSent().size());
+        Assert.assertEquals(1, jms.getContextsCreated());
+        Assert.assertEquals(1, jms.getContextsClosed());
+    }
+
+    @Test
+    public void testSendToDefaultDestination() throws Exception {
+        JMSFakes jms = new JMSFakes(false);
+        Bus bus = new Bus(jms.createConnectionFactory());
+        try {
+            bus.send("{}");
+            Assert.fail("There is no default destination");
+        } catch (IllegalStateException expected) {
+        }
+
+        Destination queue = jms.getSession().createQueue("defaultQueue");
+        bus.setDefaultDestination(queue);
+        Assert.assertSame(queue, bus.getDefaultDestination());
+        bus.send("{\"already\":\"json\"}");
+        Assert.assertSame(queue, jms.getSent().get(0).getJMSDestination());
+        Assert.assertEquals("{\"already\":\"json\"}", text(0, jms));
+    }
+
+    private static String text(int index, JMSFakes jms) throws Exception {
+        return ((TextMessage) jms.getSent().get(index)).getText();
+    }
+
+    private interface Interceptor {
+        Object invoke(Method method, Object[] args) throws Exception;
+    }
+
+    @SuppressWarnings("unchecked")
+    private static <T> T intercept(Class<T> type, T target, Interceptor interceptor) {
+        return (T) Proxy.newProxyInstance(BusTest.class.getClassLoader(), new Class<?>[] { type },
+                (proxy, method, args) -> {
+                    try {
+                        return interceptor.invoke(method, args);
+                    } catch (InvocationTargetException e) {
+                        throw e.getCause();
+                    }
+                });
+    }
+
+    @SuppressWarnings("unused")
+    private static class Value {
+        private final String name;
+        private final int count;
+
+        Value(String name, int count) {
+            this.name = name;
+            this.count = count;
+        }
+    }
+}
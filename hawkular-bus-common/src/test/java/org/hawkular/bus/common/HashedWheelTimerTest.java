@@ -0,0 +1,95 @@
+/*
+ * Copyright 2015 Red Hat, Inc. and/or its affiliates
+ * and other contributors as indicated by the @author tags.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.hawkular.bus.common;
+
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.junit.Assert;
+import org.junit.Test;
+
+public class HashedWheelTimerTest {
+
+    @Test
+    public void testTasksRunAfterTheirDelay() throws Exception {
+        try (HashedWheelTimer timer = new HashedWheelTimer("test-timer", 1, TimeUnit.MILLISECONDS, 8)) {
+            final int tasks = 1000;
+            final CountDownLatch done = new CountDownLatch(tasks);
+            final AtomicInteger early = new AtomicInteger();
+            for (int i = 0; i < tasks; i++) {
+                // many delays span several turns of the small wheel
+                final long delayMillis = i % 50;
+                final long scheduledNanos = System.nanoTime();
+                timer.schedule(new Runnable() {
+                    @Override
+                    public void run() {
+                        if (System.nanoTime() - scheduledNanos < TimeUnit.MILLISECONDS.toNanos(delayMillis)) {
+                            early.incrementAndGet();
+                        }
+                        done.countDown();
+                    }
+                }, delayMillis, TimeUnit.MILLISECONDS);
+            }
+            Assert.assertTrue(done.await(10, TimeUnit.SECONDS));
+            Assert.assertEquals(0, early.get());
+            Assert.assertEquals(0, timer.getPendingCount());
+        }
+    }
+
+    @Test
+    public void testCancel() throws Exception {
+        try (HashedWheelTimer timer = new HashedWheelTimer("test-timer", 1, TimeUnit.MILLISECONDS, 8)) {
+            final AtomicInteger runs = new AtomicInteger();
+            Runnable task = new Runnable() {
+                @Override
+                public void run() {
+                    runs.incrementAndGet();
+                }
+            };
+            HashedWheelTimer.Timeout cancelled = timer.schedule(task, 20, TimeUnit.MILLISECONDS);
+            HashedWheelTimer.Timeout expired = timer.schedule(task, 20, TimeUnit.MILLISECONDS);
+            Assert.assertEquals(2, timer.getPendingCount());
+
+            Assert.assertTrue(cancelled.cancel());
+            Assert.assertFalse(cancelled.cancel());
+            Assert.assertTrue(cancelled.isCancelled());
+            Assert.assertEquals(1, timer.getPendingCount());
+
+            long deadline = System.nanoTime() + TimeUnit.SECONDS.toNanos(10);
+            while (!expired.isExpired() && System.nanoTime() < deadline) {
+                Thread.sleep(5);
+            }
+            Thread.sleep(50);
+            Assert.assertTrue(expired.isExpired());
+            Assert.assertFalse(expired.cancel());
+            Assert.assertEquals(1, runs.get());
+            Assert.assertEquals(0, timer.getPendingCount());
+        }
+    }
+
+    @Test(expected = IllegalStateException.class)
+    public void testScheduleAfterClose() throws Exception {
+        HashedWheelTimer timer = new HashedWheelTimer("test-timer", 1, TimeUnit.MILLISECONDS, 8);
+        timer.close();
+        timer.schedule(new Runnable() {
+            @Override
+            public void run() {
+            }
+        }, 1, TimeUnit.MILLISECONDS);
+    }
+}
@@ -0,0 +1,91 @@
+/*
+ * Copyright 2015 Red Hat, Inc. and/or its affiliates
+ * and other contributors as indicated by the @author tags.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.hawkular.bus.common;
+
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+import javax.jms.Message;
+
+import org.hawkular.bus.common.producer.ProducerConnectionContext;
+import org.junit.Assert;
+import org.junit.Test;
+
+public class HeaderTemplateTest {
+
+    @Test
+    public void testTemplateIsAMap() {
+        Map<String, String> headers = new LinkedHashMap<>();
+        headers.put("MyFilter", "fnf");
+        headers.put("tenant", "acme");
+        HeaderTemplate template = HeaderTemplate.of(headers);
+        headers.put("later", "change");
+
+        Assert.assertEquals(2, template.size());
+        Assert.assertEquals("fnf", template.get("MyFilter"));
+        Assert.assertFalse(template.containsKey("later"));
+        Assert.assertSame(template, HeaderTemplate.of(template));
+        Assert.assertEquals("other", template.with("tenant", "other").get("tenant"));
+        Assert.assertEquals("acme", template.get("tenant"));
+
+        try {
+            template.put("tenant", "other");
+            Assert.fail("Templates cannot change");
+        } catch (UnsupportedOperationException expected) {
+        }
+    }
+
+    @Test
+    public void testInvalidNamesAreRejected() {
+        for (String name : new String[] { "", "1abc", "with space", "JMSType", "NULL", "between" }) {
+            try {
+                HeaderTemplate.of(Collections.singletonMap(name, "value"));
+                Assert.fail("Header name [" + name + "] should have been rejected");
+            } catch (IllegalArgumentException expected) {
+            }
+        }
+        try {
+            HeaderTemplate.of(Collections.singletonMap("name", (String) null));
+            Assert.fail("Null values should have been rejected");
+        } catch (IllegalArgumentException expected) {
+        }
+    }
+
+    @Test
+    public void testTemplatesAreSent() throws Exception {
+        JMSFakes jms = new JMSFakes(false);
+        ProducerConnectionContext context = new ProducerConnectionContext();
+        context.setSession(jms.getSession());
+        context.setMessageProducer(jms.createProducer(null));
+
+        SimpleBasicMessage message = new SimpleBasicMessage("templated");
+        message.setHeaders(HeaderTemplate.of(Collections.singletonMap("fromMessage", "1")));
+        Assert.assertTrue(message.getHeaders() instanceof HeaderTemplate);
+
+        Map<String, String> overrides = new LinkedHashMap<>();
+        overrides.put("fromMessage", "2");
+        overrides.put("extra", "3");
+        new MessageProcessor().send(context, message, HeaderTemplate.of(overrides));
+
+        Message sent = jms.getSent().get(0);
+        Assert.assertEquals("2", sent.getStringProperty("fromMessage"));
+        Assert.assertEquals("3", sent.getStringProperty("extra"));
+        Assert.assertEquals(SimpleBasicMessage.class.getName(),
+                sent.getStringProperty(MessageProcessor.HEADER_BASIC_MESSAGE_CLASS));
+    }
+}
@@ -0,0 +1,609 @@
+/*
+ * Copyright 2015 Red Hat, Inc. and/or its affiliates
+ * and other contributors as indicated by the @author tags.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.hawkular.bus.common;
+
+import java.io.ByteArrayOutputStream;
+import java.lang.reflect.InvocationHandler;
+import java.lang.reflect.InvocationTargetException;
+import java.lang.reflect.Method;
+import java.lang.reflect.Proxy;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import javax.jms.BytesMessage;
+import javax.jms.CompletionListener;
+import javax.jms.Connection;
+import javax.jms.ConnectionFactory;
+import javax.jms.Destination;
+import javax.jms.ExceptionListener;
+import javax.jms.JMSContext;
+import javax.jms.JMSException;
+import javax.jms.JMSProducer;
+import javax.jms.JMSRuntimeException;
+import javax.jms.Message;
+import javax.jms.MessageConsumer;
+import javax.jms.MessageEOFException;
+import javax.jms.MessageListener;
+import javax.jms.MessageProducer;
+import javax.jms.Queue;
+import javax.jms.Session;
+import javax.jms.TemporaryQueue;
+import javax.jms.TextMessage;
+import javax.jms.Topic;
+
+/**
+ * Just enough of a JMS session, producer, consumer and bytes message to test the sending side without a broker.
+ * Messages whose {@link #FAIL_PROPERTY} property is set cannot be sent. Asynchronous sends are only completed when the
+ * test calls {@link #completeAsyncSends()}, and messages only reach consumers when the test calls
+ * {@link #deliver(Destination, Message)}. {@link #killConnections(boolean)} makes the connections created so far fail
+ * as if the broker had been restarted.
+ */
+public class JMSFakes {
+
+    public static final String FAIL_PROPERTY = "failToSend";
+
+    private final AtomicInteger nextMessageId = new AtomicInteger();
+    private final boolean transacted;
+
+    private final List<Message> uncommitted = new ArrayList<>();
+    private final List<Message> sent = Collections.synchronizedList(new ArrayList<Message>());
+    private final AtomicInteger commits = new AtomicInteger();
+    private final AtomicInteger rollbacks = new AtomicInteger();
+    private final AtomicInteger sessionsCreated = new AtomicInteger();
+    private final AtomicInteger sessionsClosed = new AtomicInteger();
+    private final AtomicInteger connectionsCreated = new AtomicInteger();
+    private final AtomicInteger producersCreated = new AtomicInteger();
+    private final AtomicInteger contextsCreated = new AtomicInteger();
+    private final AtomicInteger contextsClosed = new AtomicInteger();
+    private volatile boolean failCommit;
+    private volatile boolean failSends;
+    private final AtomicInteger sendsToFail = new AtomicInteger();
+    private final List<Runnable> asyncCompletions = new ArrayList<>();
+    private final Map<Destination, MessageListener> listeners = new ConcurrentHashMap<>();
+    private final List<ConnectionHandler> connections =
+            Collections.synchronizedList(new ArrayList<ConnectionHandler>());
+    private volatile boolean connectionsDead;
+
+    private final Session session;
+
+    public JMSFakes(boolean transacted) {
+        this.transacted = transacted;
+        this.session = proxy(Session.class, new SessionHandler());
+    }
+
+    public Session getSession() {
+        return session;
+    }
+
+    /**
+     * @return a connection factory whose connections hand out this object's session, and whose JMS 2.0 contexts
+     *         send text messages through it
+     */
+    public ConnectionFactory createConnectionFactory() {
+        return proxy(ConnectionFactory.class, new Handler() {
+            @Override
+            Object handle(String name, Object[] args) throws Exception {
+                if (name.equals("createConnection")) {
+                    connectionsCreated.incrementAndGet();
+                    // the broker is back, but only for new connections
+                    connectionsDead = false;
+                    ConnectionHandler connection = new ConnectionHandler();
+                    connections.add(connection);
+                    return proxy(Connection.class, connection);
+                } else if (name.equals("createContext")) {
+                    contextsCreated.incrementAndGet();
+                    return proxy(JMSContext.class, new ContextHandler());
+                }
+                throw new UnsupportedOperationException("ConnectionFactory." + name);
+            }
+        });
+    }
+
+    public int getConnectionsCreated() {
+        return connectionsCreated.get();
+    }
+
+    public int getSessionsCreated() {
+        return sessionsCreated.get();
+    }
+
+    public int getSessionsClosed() {
+        return sessionsClosed.get();
+    }
+
+    public int getContextsCreated() {
+        return contextsCreated.get();
+    }
+
+    public int getContextsClosed() {
+        return contextsClosed.get();
+    }
+
+    public MessageProducer createProducer(Destination destination) {
+        producersCreated.incrementAndGet();
+        return proxy(MessageProducer.class, new ProducerHandler(destination));
+    }
+
+    public int getProducersCreated() {
+        return producersCreated.get();
+    }
+
+    public BytesMessage createBytesMessage() {
+        return proxy(BytesMessage.class, new MessageHandler());
+    }
+
+    public TextMessage createTextMessage(String text) {
+        MessageHandler handler = new MessageHandler();
+        if (text != null) {
+            handler.setText(text);
+        }
+        return proxy(TextMessage.class, handler);
+    }
+
+    /**
+     * @return the messages that were sent and, for a transacted session, committed
+     */
+    public List<Message> getSent() {
+        synchronized (sent) {
+            return new ArrayList<>(sent);
+        }
+    }
+
+    public int getCommits() {
+        return commits.get();
+    }
+
+    public int getRollbacks() {
+        return rollbacks.get();
+    }
+
+    public void setFailCommit(boolean failCommit) {
+        this.failCommit = failCommit;
+    }
+
+    /**
+     * @param failSends if true, all sends fail as if the broker could not be reached
+     */
+    public void setFailSends(boolean failSends) {
+        this.failSends = failSends;
+    }
+
+    /**
+     * @param count the number of upcoming sends that fail as if the broker could not be reached
+     */
+    public void setFailNextSends(int count) {
+        sendsToFail.set(count);
+    }
+
+    /**
+     * Makes the connections created so far fail, as if the broker had been restarted: sends fail with
+     * {@link javax.jms.IllegalStateException} until a new connection is created.
+     *
+     * @param notify if true the exception listeners of the connections are told about the failure
+     */
+    public void killConnections(boolean notify) {
+        connectionsDead = true;
+        List<ConnectionHandler> dead;
+        synchronized (connections) {
+            dead = new ArrayList<>(connections);
+            connections.clear();
+        }
+        if (notify) {
+            for (ConnectionHandler connection : dead) {
+                if (connection.exceptionListener != null) {
+                    connection.exceptionListener.onException(new JMSException("Connection failure"));
+                }
+            }
+        }
+    }
+
+    /**
+     * @return the number of asynchronous sends waiting to be completed
+     */
+    public int getPendingAsyncSends() {
+        synchronized (asyncCompletions) {
+            return asyncCompletions.size();
+        }
+    }
+
+    /**
+     * Completes the asynchronous sends made so far by calling their completion listeners.
+     */
+    public void completeAsyncSends() {
+        List<Runnable> completions;
+        synchronized (asyncCompletions) {
+            completions = new ArrayList<>(asyncCompletions);
+            asyncCompletions.clear();
+        }
+        for (Runnable completion : completions) {
+            completion.run();
+        }
+    }
+
+    /**
+     * Passes the given message to the listener of the consumer of the given destination, as if the message had been
+     * sent to that destination.
+     *
+     * @return false if no consumer of the destination has a listener
+     */
+    public boolean deliver(Destination destination, Message message) {
+        MessageListener listener = listeners.get(destination);
+        if (listener == null) {
+            return false;
+        }
+        listener.onMessage(message);
+        return true;
+    }
+
+    /**
+     * @return the body written to the given fake message; the UTF-8 encoded text of a text message
+     */
+    public static byte[] getBody(Message message) {
+        return ((MessageHandler) Proxy.getInvocationHandler(message)).body.toByteArray();
+    }
+
+    void send(Message message, boolean generateMessageID) throws JMSException {
+        if (connectionsDead) {
+            throw new javax.jms.IllegalStateException("The connection is closed");
+        }
+        if (failSends || message.propertyExists(FAIL_PROPERTY)
+                || sendsToFail.getAndUpdate(n -> Math.max(n - 1, 0)) > 0) {
+            throw new JMSException("Told to fail");
+        }
+        message.setJMSMessageID(generateMessageID ? "ID:" + nextMessageId.incrementAndGet() : null);
+        if (transacted) {
+            synchronized (uncommitted) {
+                uncommitted.add(message);
+            }
+        } else {
+            sent.add(message);
+        }
+    }
+
+    void sendAsync(final Message message, boolean generateMessageID, final CompletionListener listener) {
+        Runnable completion;
+        try {
+            send(message, generateMessageID);
+            completion = new Runnable() {
+                @Override
+                public void run() {
+                    listener.onCompletion(message);
+                }
+            };
+        } catch (final JMSException e) {
+            completion = new Runnable() {
+                @Override
+                public void run() {
+                    listener.onException(message, e);
+                }
+            };
+        }
+        synchronized (asyncCompletions) {
+            asyncCompletions.add(completion);
+        }
+    }
+
+    @SuppressWarnings("unchecked")
+    private static <T> T proxy(Class<T> type, InvocationHandler handler) {
+        return (T) Proxy.newProxyInstance(JMSFakes.class.getClassLoader(), new Class<?>[] { type }, handler);
+    }
+
+    private abstract static class Handler implements InvocationHandler {
+        @Override
+        public Object invoke(Object proxy, Method method, Object[] args) throws Throwable {
+            switch (method.getName()) {
+                case "hashCode":
+                    return System.identityHashCode(proxy);
+                case "equals":
+                    return proxy == args[0];
+                case "toString":
+                    return getClass().getSimpleName() + "@" + System.identityHashCode(proxy);
+                default:
+                    try {
+                        return handle(method.getName(), args);
+                    } catch (InvocationTargetException e) {
+                        throw e.getCause();
+                    }
+            }
+        }
+
+        abstract Object handle(String name, Object[] args) throws Exception;
+    }
+
+    private class SessionHandler extends Handler {
+        @Override
+        Object handle(String name, Object[] args) throws Exception {
+            switch (name) {
+                case "getTransacted":
+                    return transacted;
+                case "createBytesMessage":
+                    return createBytesMessage();
+                case "createTextMessage":
+                    return createTextMessage((args == null) ? null : (String) args[0]);
+                case "createProducer":
+                    return createProducer((Destination) args[0]);
+                case "commit":
+                    if (failCommit) {
+                        throw new JMSException("Told to fail the commit");
+                    }
+                    synchronized (uncommitted) {
+                        sent.addAll(uncommitted);
+                        uncommitted.clear();
+                    }
+                    commits.incrementAndGet();
+                    return null;
+                case "rollback":
+                    synchronized (uncommitted) {
+                        uncommitted.clear();
+                    }
+                    rollbacks.incrementAndGet();
+                    return null;
+                case "createQueue":
+                    return proxy(Queue.class, new NamedHandler((String) args[0]));
+                case "createTopic":
+                    return proxy(Topic.class, new NamedHandler((String) args[0]));
+                case "createTemporaryQueue":
+                    return proxy(TemporaryQueue.class, new NamedHandler("temp-" + nextMessageId.incrementAndGet()));
+                case "createConsumer":
+                    return proxy(MessageConsumer.class, new ConsumerHandler((Destination) args[0]));
+                case "close":
+                    sessionsClosed.incrementAndGet();
+                    return null;
+                default:
+                    throw new UnsupportedOperationException("Session." + name);
+            }
+        }
+    }
+
+    private class ConnectionHandler extends Handler {
+        volatile ExceptionListener exceptionListener;
+
+        @Override
+        Object handle(String name, Object[] args) throws Exception {
+            switch (name) {
+                case "createSession":
+                    sessionsCreated.incrementAndGet();
+                    return session;
+                case "setExceptionListener":
+                    exceptionListener = (ExceptionListener) args[0];
+                    return null;
+                case "getExceptionListener":
+                    return exceptionListener;
+                case "start":
+                case "close":
+                    return null;
+                default:
+                    throw new UnsupportedOperationException("Connection." + name);
+            }
+        }
+    }
+
+    private class ConsumerHandler extends Handler {
+        private final Destination destination;
+
+        ConsumerHandler(Destination destination) {
+            this.destination = destination;
+        }
+
+        @Override
+        Object handle(String name, Object[] args) throws Exception {
+            switch (name) {
+                case "setMessageListener":
+                    listeners.put(destination, (MessageListener) args[0]);
+                    return null;
+                case "close":
+                    listeners.remove(destination);
+                    return null;
+                default:
+                    throw new UnsupportedOperationException("MessageConsumer." + name);
+            }
+        }
+    }
+
+    private static class NamedHandler extends Handler {
+        private final String name;
+
+        NamedHandler(String name) {
+            this.name = name;
+        }
+
+        @Override
+        Object handle(String method, Object[] args) throws Exception {
+            if (method.equals("getQueueName") || method.equals("getTopicName")) {
+                return name;
+            } else if (method.equals("delete")) {
+                return null;
+            }
+            throw new UnsupportedOperationException(method);
+        }
+    }
+
+    private class ProducerHandler extends Handler {
+        private final Destination destination;
+        private final Map<String, Object> settings = new HashMap<>();
+
+        ProducerHandler(Destination destination) {
+            this.destination = destination;
+        }
+
+        @Override
+        Object handle(String name, Object[] args) throws Exception {
+            switch (name) {
+                case "send":
+                    boolean generateMessageID = !Boolean.TRUE.equals(settings.get("DisableMessageID"));
+                    Destination target = destination;
+                    if (args[0] instanceof Destination) {
+                        // anonymous producers are told where to send each message
+                        target = (Destination) args[0];
+                        args = Arrays.copyOfRange(args, 1, args.length);
+                    }
+                    ((Message) args[0]).setJMSDestination(target);
+                    if (args.length == 2 && args[1] instanceof CompletionListener) {
+                        sendAsync((Message) args[0], generateMessageID, (CompletionListener) args[1]);
+                    } else {
+                        send((Message) args[0], generateMessageID);
+                    }
+                    return null;
+                case "getDestination":
+                    return destination;
+                case "getDisableMessageID":
+                    return Boolean.TRUE.equals(settings.get("DisableMessageID"));
+                case "close":
+                    return null;
+                default:
+                    // remember the settings so tests can check them
+                    if (name.startsWith("set") && args.length == 1) {
+                        settings.put(name.substring(3), args[0]);
+                        return null;
+                    } else if (name.startsWith("get") && args == null) {
+                        return settings.get(name.substring(3));
+                    }
+                    throw new UnsupportedOperationException("MessageProducer." + name);
+            }
+        }
+    }
+
+    /**
+     * A JMS 2.0 context whose producers send text through the fake session.
+     */
+    private class ContextHandler extends Handler {
+        @Override
+        Object handle(String name, Object[] args) throws Exception {
+            switch (name) {
+                case "createProducer":
+                    return proxy(JMSProducer.class, new Handler() {
+                        @Override
+                        Object handle(String name, Object[] args) throws Exception {
+                            if (name.equals("send") && args[1] instanceof String) {
+                                TextMessage message = createTextMessage((String) args[1]);
+                                message.setJMSDestination((Destination) args[0]);
+                                try {
+                                    send(message, true);
+                                } catch (JMSException e) {
+                                    throw new JMSRuntimeException(e.getMessage(), e.getErrorCode(), e);
+                                }
+                                return null;
+                            }
+                            throw new UnsupportedOperationException("JMSProducer." + name);
+                        }
+                    });
+                case "close":
+                    contextsClosed.incrementAndGet();
+                    return null;
+                default:
+                    throw new UnsupportedOperationException("JMSContext." + name);
+            }
+        }
+    }
+
+    private static class MessageHandler extends Handler {
+        final Map<String, Object> properties = new HashMap<>();
+        final ByteArrayOutputStream body = new ByteArrayOutputStream();
+        int readPosition;
+        String messageId;
+        String correlationId;
+        Destination replyTo;
+        Destination destination;
+
+        @Override
+        Object handle(String name, Object[] args) throws Exception {
+            switch (name) {
+                case "setStringProperty":
+                case "setObjectProperty":
+                    properties.put((String) args[0], args[1]);
+                    return null;
+                case "getStringProperty":
+                    Object value = properties.get(args[0]);
+                    return (value == null) ? null : value.toString();
+                case "getObjectProperty":
+                    return properties.get(args[0]);
+                case "propertyExists":
+                    return properties.containsKey(args[0]);
+                case "getPropertyNames":
+                    return Collections.enumeration(new ArrayList<>(properties.keySet()));
+                case "writeByte":
+                    body.write((Byte) args[0]);
+                    return null;
+                case "writeBytes":
+                    byte[] bytes = (byte[]) args[0];
+                    if (args.length == 1) {
+                        body.write(bytes, 0, bytes.length);
+                    } else {
+                        body.write(bytes, (Integer) args[1], (Integer) args[2]);
+                    }
+                    return null;
+                case "setText":
+                    setText((String) args[0]);
+                    return null;
+                case "getText":
+                    return new String(body.toByteArray(), StandardCharsets.UTF_8);
+                case "readUnsignedByte":
+                    byte[] written = body.toByteArray();
+                    if (readPosition >= written.length) {
+                        throw new MessageEOFException("End of the body");
+                    }
+                    return written[readPosition++] & 0xff;
+                case "readBytes":
+                    byte[] into = (byte[]) args[0];
+                    int length = (args.length == 1) ? into.length : (Integer) args[1];
+                    int available = body.size() - readPosition;
+                    if (available <= 0) {
+                        return -1;
+                    }
+                    int read = Math.min(length, available);
+                    System.arraycopy(body.toByteArray(), readPosition, into, 0, read);
+                    readPosition += read;
+                    return read;
+                case "setJMSMessageID":
+                    messageId = (String) args[0];
+                    return null;
+                case "getJMSMessageID":
+                    return messageId;
+                case "setJMSCorrelationID":
+                    correlationId = (String) args[0];
+                    return null;
+                case "getJMSCorrelationID":
+                    return correlationId;
+                case "setJMSReplyTo":
+                    replyTo = (Destination) args[0];
+                    return null;
+                case "getJMSReplyTo":
+                    return replyTo;
+                case "setJMSDestination":
+                    destination = (Destination) args[0];
+                    return null;
+                case "getJMSDestination":
+                    return destination;
+                default:
+                    throw new UnsupportedOperationException("Message." + name);
+            }
+        }
+
+        void setText(String text) {
+            body.reset();
+            byte[] bytes = text.getBytes(StandardCharsets.UTF_8);
+            body.write(bytes, 0, bytes.length);
+        }
+    }
+}
@@ -0,0 +1,69 @@
+/*
+ * Copyright 2015 Red Hat, Inc. and/or its affiliates
+ * and other contributors as indicated by the @author tags.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.hawkular.bus.common;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotSame;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.fail;
+
+import org.hawkular.bus.common.msg.features.FailOnUnknownProperties;
+import org.junit.Test;
+
+public class JsonCodecRegistryTest {
+
+    @Test
+    public void testReadersAndWritersAreCached() {
+        assertSame(JsonCodecRegistry.readerFor(SimpleBasicMessage.class),
+                JsonCodecRegistry.readerFor(SimpleBasicMessage.class));
+        assertSame(JsonCodecRegistry.writerFor(new SimpleBasicMessage("one")),
+                JsonCodecRegistry.writerFor(new SimpleBasicMessage("two")));
+        assertNotSame(JsonCodecRegistry.readerFor(SimpleBasicMessage.class),
+                JsonCodecRegistry.readerFor(StrictMessage.class));
+    }
+
+    @Test
+    public void testOverriddenHooksAreNotCached() {
+        // AnotherMessage (see BasicMessageObjectMapperTest) builds its own mappers so they must be called each time
+        assertNotSame(JsonCodecRegistry.readerFor(AnotherMessage.class),
+                JsonCodecRegistry.readerFor(AnotherMessage.class));
+        assertNotSame(JsonCodecRegistry.writerFor(new AnotherMessage("1", "2")),
+                JsonCodecRegistry.writerFor(new AnotherMessage("1", "2")));
+    }
+
+    @Test
+    public void testFailOnUnknownProperties() {
+        String json = "{\"message\":\"hello\",\"wot\":\"gorilla\"}";
+
+        SimpleBasicMessage lenient = AbstractMessage.fromJSON(json, SimpleBasicMessage.class);
+        assertEquals("hello", lenient.getMessage());
+
+        try {
+            AbstractMessage.fromJSON(json, StrictMessage.class);
+            fail("Strict message should not have been able to deserialize unknown properties");
+        } catch (IllegalStateException expected) {
+        }
+
+        StrictMessage strict = AbstractMessage.fromJSON("{\"message\":\"hello\"}", StrictMessage.class);
+        assertEquals("hello", strict.getMessage());
+    }
+
+    static class StrictMessage extends SimpleBasicMessage implements FailOnUnknownProperties {
+        StrictMessage() {
+        }
+    }
+}
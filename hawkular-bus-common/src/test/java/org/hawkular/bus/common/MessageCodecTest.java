@@ -0,0 +1,124 @@
+/*
+ * Copyright 2015 Red Hat, Inc. and/or its affiliates
+ * and other contributors as indicated by the @author tags.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.hawkular.bus.common;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+import java.util.Collections;
+
+import org.hawkular.bus.common.codec.CborMessageCodec;
+import org.hawkular.bus.common.codec.JsonMessageCodec;
+import org.hawkular.bus.common.codec.SmileMessageCodec;
+import org.junit.Test;
+
+public class MessageCodecTest {
+
+    @Test
+    public void testBuiltInCodecsAreRegistered() {
+        assertSame(MessageCodecs.json(), MessageCodecs.forName(null));
+        assertSame(MessageCodecs.json(), MessageCodecs.forName(JsonMessageCodec.NAME));
+        assertTrue(MessageCodecs.isAvailable(SmileMessageCodec.NAME));
+        assertTrue(MessageCodecs.isAvailable(CborMessageCodec.NAME));
+
+        try {
+            MessageCodecs.forName("no-such-codec");
+            fail("Should not have found an unknown codec");
+        } catch (IllegalArgumentException expected) {
+        }
+    }
+
+    @Test
+    public void testJsonCodecIsPlainJson() {
+        SimpleBasicMessage msg = new SimpleBasicMessage("my msg", Collections.singletonMap("key1", "val1"));
+        byte[] encoded = MessageCodecs.json().encode(msg);
+        assertEquals(msg.toJSON(), new String(encoded, StandardCharsets.UTF_8));
+    }
+
+    @Test
+    public void testRoundTrip() throws IOException {
+        for (MessageCodec codec : MessageCodecs.getAll()) {
+            SimpleBasicMessage msg = new SimpleBasicMessage("my msg", Collections.singletonMap("key1", "val1"));
+            byte[] encoded = codec.encode(msg);
+
+            BasicMessageWithExtraData<SimpleBasicMessage> decoded = codec.decode(new ByteArrayInputStream(encoded),
+                    SimpleBasicMessage.class);
+            assertNotNull(codec.getName(), decoded);
+            assertEquals(codec.getName(), "my msg", decoded.getBasicMessage().getMessage());
+            assertEquals(codec.getName(), "val1", decoded.getBasicMessage().getDetails().get("key1"));
+            assertEquals(codec.getName(), -1, decoded.getBinaryData().read());
+        }
+    }
+
+    @Test
+    public void testRoundTripWithExtraData() throws IOException {
+        byte[] extraData = new byte[10000];
+        for (int i = 0; i < extraData.length; i++) {
+            extraData[i] = (byte) i;
+        }
+
+        for (MessageCodec codec : MessageCodecs.getAll()) {
+            SimpleBasicMessage msg = new SimpleBasicMessage("my msg");
+            byte[] encoded = codec.encode(msg);
+
+            BinaryData wire = new BinaryData(encoded, new ByteArrayInputStream(extraData));
+            BasicMessageWithExtraData<SimpleBasicMessage> decoded = codec.decode(wire, SimpleBasicMessage.class);
+            assertEquals(codec.getName(), "my msg", decoded.getBasicMessage().getMessage());
+
+            ByteArrayOutputStream received = new ByteArrayOutputStream();
+            byte[] buffer = new byte[1024];
+            for (int n = decoded.getBinaryData().read(buffer); n != -1; n = decoded.getBinaryData().read(buffer)) {
+                received.write(buffer, 0, n);
+            }
+            assertTrue(codec.getName(), Arrays.equals(extraData, received.toByteArray()));
+        }
+    }
+
+    @Test
+    public void testEncodeToStreamLeavesStreamOpen() throws IOException {
+        for (MessageCodec codec : MessageCodecs.getAll()) {
+            SimpleBasicMessage msg = new SimpleBasicMessage("my msg");
+
+            ByteArrayOutputStream out = new ByteArrayOutputStream() {
+                @Override
+                public void close() {
+                    fail("Codec must not close the stream");
+                }
+            };
+            codec.encode(msg, out);
+            assertTrue(codec.getName(), Arrays.equals(codec.encode(msg), out.toByteArray()));
+
+            // extra data can be written after the message
+            out.write(new byte[] { 1, 2, 3 });
+            BasicMessageWithExtraData<SimpleBasicMessage> decoded = codec.decode(
+                    new ByteArrayInputStream(out.toByteArray()), SimpleBasicMessage.class);
+            assertEquals(codec.getName(), "my msg", decoded.getBasicMessage().getMessage());
+            assertEquals(codec.getName(), 1, decoded.getBinaryData().read());
+            assertEquals(codec.getName(), 2, decoded.getBinaryData().read());
+            assertEquals(codec.getName(), 3, decoded.getBinaryData().read());
+            assertEquals(codec.getName(), -1, decoded.getBinaryData().read());
+        }
+    }
+}
@@ -0,0 +1,138 @@
+/*
+ * Copyright 2015 Red Hat, Inc. and/or its affiliates
+ * and other contributors as indicated by the @author tags.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.hawkular.bus.common;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.FilterOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.util.Arrays;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+import org.hawkular.bus.common.compression.CompressingInputStream;
+import org.hawkular.bus.common.compression.ThresholdCompressingOutputStream;
+import org.junit.Test;
+
+public class MessageCompressionTest {
+
+    @Test
+    public void testOnlyMessagesAboveThresholdAreCompressed() throws IOException {
+        MessageCodec codec = MessageCodecs.json();
+        MessageCompressor gzip = MessageCompressors.gzip();
+
+        SimpleBasicMessage small = new SimpleBasicMessage("small");
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        try (ThresholdCompressingOutputStream compressing = new ThresholdCompressingOutputStream(out, gzip, 1024)) {
+            codec.encode(small, compressing);
+            assertFalse(compressing.isCompressed());
+        }
+        assertTrue(Arrays.equals(codec.encode(small), out.toByteArray()));
+
+        SimpleBasicMessage large = new SimpleBasicMessage(repeat("large and very compressible ", 1000));
+        out = new ByteArrayOutputStream();
+        try (ThresholdCompressingOutputStream compressing = new ThresholdCompressingOutputStream(out, gzip, 1024)) {
+            codec.encode(large, compressing);
+            assertTrue(compressing.isCompressed());
+        }
+        byte[] encoded = codec.encode(large);
+        assertTrue("Message should have been compressed", out.size() < encoded.length / 10);
+        assertTrue(Arrays.equals(encoded, readFully(gzip.decompress(new ByteArrayInputStream(out.toByteArray())))));
+    }
+
+    @Test
+    public void testBinaryDataIsDecompressedAsItIsRead() throws IOException {
+        MessageCodec codec = MessageCodecs.json();
+        MessageCompressor gzip = MessageCompressors.forName(MessageCompressors.gzip().getName());
+
+        byte[] binaryData = repeat("binary data ", 100000).getBytes("UTF-8");
+        SimpleBasicMessage msg = new SimpleBasicMessage("with binary data");
+        InputStream body = new CompressingInputStream(
+                new BinaryData(codec.encode(msg), new ByteArrayInputStream(binaryData)), gzip);
+        byte[] compressed = readFully(body);
+        assertTrue("Message should have been compressed", compressed.length < binaryData.length / 10);
+
+        BasicMessageWithExtraData<SimpleBasicMessage> decoded = codec.decode(
+                gzip.decompress(new ByteArrayInputStream(compressed)), SimpleBasicMessage.class);
+        assertEquals("with binary data", decoded.getBasicMessage().getMessage());
+        assertTrue(Arrays.equals(binaryData, readFully(decoded.getBinaryData())));
+    }
+
+    @Test
+    public void testClosingBeforeTheEndClosesTheCompressor() throws IOException {
+        final MessageCompressor gzip = MessageCompressors.gzip();
+        final AtomicBoolean compressorClosed = new AtomicBoolean();
+        MessageCompressor tracking = new MessageCompressor() {
+            @Override
+            public String getName() {
+                return gzip.getName();
+            }
+
+            @Override
+            public OutputStream compress(OutputStream out) throws IOException {
+                return new FilterOutputStream(gzip.compress(out)) {
+                    @Override
+                    public void close() throws IOException {
+                        compressorClosed.set(true);
+                        super.close();
+                    }
+                };
+            }
+
+            @Override
+            public InputStream decompress(InputStream in) throws IOException {
+                return gzip.decompress(in);
+            }
+        };
+        final AtomicBoolean sourceClosed = new AtomicBoolean();
+        InputStream source = new ByteArrayInputStream(repeat("binary data ", 100000).getBytes("UTF-8")) {
+            @Override
+            public void close() throws IOException {
+                sourceClosed.set(true);
+            }
+        };
+
+        InputStream body = new CompressingInputStream(source, tracking);
+        body.read(new byte[16]);
+        body.close();
+        assertTrue(compressorClosed.get());
+        assertTrue(sourceClosed.get());
+        assertEquals(-1, body.read());
+    }
+
+    private static String repeat(String s, int times) {
+        StringBuilder str = new StringBuilder(s.length() * times);
+        for (int i = 0; i < times; i++) {
+            str.append(s);
+        }
+        return str.toString();
+    }
+
+    private static byte[] readFully(InputStream in) throws IOException {
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        byte[] buffer = new byte[4096];
+        for (int read = in.read(buffer); read >= 0; read = in.read(buffer)) {
+            out.write(buffer, 0, read);
+        }
+        return out.toByteArray();
+    }
+}
@@ -88,6 +88,40 @@ public class ObjectMessageTest {
         Assert.assertEquals("abc", ((MyObj) objectUnderTest.getObject()).letters);
         Assert.assertEquals(123, ((MyObj) objectUnderTest.getObject()).number);
     }
+
+    @Test
+    public void testObjectIsNotDoubleEncoded() {
+        MyObj myobj = new MyObj();
+        myobj.letters = "abc";
+        myobj.number = 123;
+        String jsonPayload = new ObjectMessage(myobj).toJSON();
+        Assert.assertTrue(jsonPayload, jsonPayload.contains("{\"letters\":\"abc\",\"number\":123}"));
+        Assert.assertFalse(jsonPayload, jsonPayload.contains("\\\""));
+    }
+
+    @Test
+    public void testReadingOldFormat() {
+        String oldJsonPayload = "{\"message\":\"{\\\"letters\\\":\\\"abc\\\",\\\"number\\\":123}\"}";
+        ObjectMessage objectUnderTest = AbstractMessage.fromJSON(oldJsonPayload, ObjectMessage.class);
+        objectUnderTest.setObjectClass(MyObj.class);
+        Assert.assertEquals("abc", ((MyObj) objectUnderTest.getObject()).letters);
+        Assert.assertEquals(123, ((MyObj) objectUnderTest.getObject()).number);
+        Assert.assertEquals("{\"letters\":\"abc\",\"number\":123}", objectUnderTest.getMessage());
+    }
+
+    @Test
+    public void testObjectIsMemoized() {
+        MyObj myobj = new MyObj();
+        myobj.letters = "abc";
+        ObjectMessage msg = AbstractMessage.fromJSON(new ObjectMessage(myobj).toJSON(), ObjectMessage.class);
+        msg.setObjectClass(MyObj.class);
+        Object o = msg.getObject();
+        Assert.assertSame(o, msg.getObject());
+
+        // changing the class means the object has to be converted again
+        msg.setObjectClass(MyObj.class);
+        Assert.assertNotSame(o, msg.getObject());
+    }
 }
 
 class MyObj {
@@ -0,0 +1,100 @@
+/*
+ * Copyright 2015 Red Hat, Inc. and/or its affiliates
+ * and other contributors as indicated by the @author tags.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.hawkular.bus.common;
+
+import java.lang.reflect.Proxy;
+
+import javax.jms.DeliveryMode;
+import javax.jms.Destination;
+import javax.jms.MessageProducer;
+
+import org.hawkular.bus.common.producer.ProducerConnectionContext;
+import org.hawkular.bus.common.producer.ProducerOptions;
+import org.junit.Assert;
+import org.junit.Test;
+
+public class ProducerOptionsTest {
+
+    @Test
+    public void testProducerIsConfigured() throws Exception {
+        ProducerOptions options = new ProducerOptions();
+        options.setDeliveryMode(DeliveryMode.NON_PERSISTENT);
+        options.setPriority(7);
+        options.setTimeToLive(60000L);
+        options.setDeliveryDelay(500L);
+        options.setDisableMessageID(true);
+        options.setDisableMessageTimestamp(true);
+
+        ProducerConnectionContext context = createContext(new JMSFakes(false));
+        try (ConnectionContextFactory factory = new ConnectionContextFactory(null)) {
+            factory.createProducer(context, options);
+        }
+
+        MessageProducer producer = context.getMessageProducer();
+        Assert.assertEquals(DeliveryMode.NON_PERSISTENT, producer.getDeliveryMode());
+        Assert.assertEquals(7, producer.getPriority());
+        Assert.assertEquals(60000L, producer.getTimeToLive());
+        Assert.assertEquals(500L, producer.getDeliveryDelay());
+        Assert.assertTrue(producer.getDisableMessageID());
+        Assert.assertTrue(producer.getDisableMessageTimestamp());
+    }
+
+    @Test
+    public void testSendWithoutMessageIds() throws Exception {
+        ProducerOptions options = new ProducerOptions();
+        options.setDisableMessageID(true);
+        JMSFakes jms = new JMSFakes(false);
+        ProducerConnectionContext context = createContext(jms);
+        try (ConnectionContextFactory factory = new ConnectionContextFactory(null)) {
+            factory.createProducer(context, options);
+        }
+
+        SimpleBasicMessage message = new SimpleBasicMessage("no id");
+        Assert.assertNull(new MessageProcessor().send(context, message));
+        Assert.assertNull(message.getMessageId());
+        Assert.assertEquals(1, jms.getSent().size());
+    }
+
+    @Test
+    public void testInvalidOptions() {
+        ProducerOptions options = new ProducerOptions();
+        try {
+            options.setDeliveryMode(0);
+            Assert.fail("Delivery mode should have been rejected");
+        } catch (IllegalArgumentException expected) {
+        }
+        try {
+            options.setPriority(10);
+            Assert.fail("Priority should have been rejected");
+        } catch (IllegalArgumentException expected) {
+        }
+        try {
+            options.setTimeToLive(-1L);
+            Assert.fail("Time to live should have been rejected");
+        } catch (IllegalArgumentException expected) {
+        }
+        Assert.assertEquals(DeliveryMode.PERSISTENT, options.getDeliveryMode());
+    }
+
+    private static ProducerConnectionContext createContext(JMSFakes jms) {
+        ProducerConnectionContext context = new ProducerConnectionContext();
+        context.setSession(jms.getSession());
+        context.setDestination((Destination) Proxy.newProxyInstance(Destination.class.getClassLoader(),
+                new Class<?>[] { Destination.class }, (proxy, method, args) -> null));
+        return context;
+    }
+}
@@ -0,0 +1,367 @@
+/*
+ * Copyright 2015 Red Hat, Inc. and/or its affiliates
+ * and other contributors as indicated by the @author tags.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.hawkular.bus.common;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionStage;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+
+import javax.jms.Connection;
+import javax.jms.ExceptionListener;
+import javax.jms.JMSException;
+import javax.jms.Message;
+
+import org.hawkular.bus.common.consumer.AsyncRPCBasicMessageListener;
+import org.hawkular.bus.common.consumer.BasicMessageListener;
+import org.hawkular.bus.common.consumer.ConsumerConnectionContext;
+import org.hawkular.bus.common.consumer.RPCBasicMessageListener;
+import org.hawkular.bus.common.consumer.RPCConnectionContext;
+import org.hawkular.bus.common.consumer.RPCResponseDispatcher;
+import org.hawkular.bus.common.producer.ProducerConnectionContext;
+import org.junit.Assert;
+import org.junit.Test;
+
+public class RPCTest {
+
+    @Test
+    public void testResponseFromListener() throws Exception {
+        JMSFakes client = new JMSFakes(false);
+        ProducerConnectionContext context = createContext(client);
+        CompletableFuture<BasicMessageWithExtraData<SimpleBasicMessage>> future = new MessageProcessor().sendRPC(
+                context, new SimpleBasicMessage("ping"), SimpleBasicMessage.class);
+        Message request = client.getSent().get(0);
+        Assert.assertNotNull(request.getJMSReplyTo());
+
+        // the server answers with a listener on its own connection
+        JMSFakes server = new JMSFakes(false);
+        ConsumerConnectionContext serverContext = new ConsumerConnectionContext();
+        serverContext.setSession(server.getSession());
+        RPCBasicMessageListener<SimpleBasicMessage, SimpleBasicMessage> listener = createEchoListener();
+        listener.setConsumerConnectionContext(serverContext);
+        listener.onMessage(request);
+        Message response = server.getSent().get(0);
+        Assert.assertEquals(request.getJMSMessageID(), response.getJMSCorrelationID());
+
+        Assert.assertFalse(future.isDone());
+        Assert.assertTrue(client.deliver(request.getJMSReplyTo(), response));
+        Assert.assertEquals("echo ping", future.get(1, TimeUnit.SECONDS).getBasicMessage().getMessage());
+        Assert.assertEquals(0, RPCResponseDispatcher.forConnection(context.getConnection()).getPendingCount());
+        context.close();
+    }
+
+    @Test
+    public void testListenerReusesAnonymousReplyProducer() throws Exception {
+        JMSFakes server = new JMSFakes(false);
+        ConsumerConnectionContext serverContext = new ConsumerConnectionContext();
+        serverContext.setSession(server.getSession());
+        RPCBasicMessageListener<SimpleBasicMessage, SimpleBasicMessage> listener = createEchoListener();
+        listener.setConsumerConnectionContext(serverContext);
+
+        // requests from two clients that want their responses on different queues
+        List<Message> requests = new ArrayList<>();
+        for (int i = 0; i < 2; i++) {
+            JMSFakes client = new JMSFakes(false);
+            ProducerConnectionContext context = createContext(client);
+            MessageProcessor processor = new MessageProcessor();
+            processor.sendRPC(context, new SimpleBasicMessage("first"), SimpleBasicMessage.class);
+            processor.sendRPC(context, new SimpleBasicMessage("second"), SimpleBasicMessage.class);
+            requests.addAll(client.getSent());
+        }
+        for (Message request : requests) {
+            listener.onMessage(request);
+        }
+
+        Assert.assertEquals(1, server.getProducersCreated());
+        Assert.assertEquals(0, server.getSessionsClosed());
+        Assert.assertEquals(requests.size(), server.getSent().size());
+        for (int i = 0; i < requests.size(); i++) {
+            Assert.assertSame(requests.get(i).getJMSReplyTo(), server.getSent().get(i).getJMSDestination());
+        }
+    }
+
+    @Test
+    public void testNoResponseKeepsTheReplyProducer() throws Exception {
+        JMSFakes server = new JMSFakes(false);
+        ConsumerConnectionContext serverContext = new ConsumerConnectionContext();
+        serverContext.setSession(server.getSession());
+        RPCBasicMessageListener<SimpleBasicMessage, SimpleBasicMessage> listener =
+                new RPCBasicMessageListener<SimpleBasicMessage, SimpleBasicMessage>() {
+                    @Override
+                    protected SimpleBasicMessage onBasicMessage(SimpleBasicMessage basicMessage) {
+                        return basicMessage.getMessage().equals("ignored") ? null
+                                : new SimpleBasicMessage("echo " + basicMessage.getMessage());
+                    }
+                };
+        listener.setConsumerConnectionContext(serverContext);
+
+        JMSFakes client = new JMSFakes(false);
+        ProducerConnectionContext context = createContext(client);
+        MessageProcessor processor = new MessageProcessor();
+        processor.sendRPC(context, new SimpleBasicMessage("answered"), SimpleBasicMessage.class);
+        processor.sendRPC(context, new SimpleBasicMessage("ignored"), SimpleBasicMessage.class);
+        processor.sendRPC(context, new SimpleBasicMessage("answered"), SimpleBasicMessage.class);
+        for (Message request : client.getSent()) {
+            listener.onMessage(request);
+        }
+
+        Assert.assertEquals(2, server.getSent().size());
+        Assert.assertEquals(1, server.getProducersCreated());
+        context.close();
+    }
+
+    @Test
+    public void testAsyncListener() throws Exception {
+        JMSFakes client = new JMSFakes(false);
+        ProducerConnectionContext context = createContext(client);
+        MessageProcessor processor = new MessageProcessor();
+        List<CompletableFuture<BasicMessageWithExtraData<SimpleBasicMessage>>> futures = new ArrayList<>();
+        for (int i = 0; i < 3; i++) {
+            futures.add(processor.sendRPC(context, new SimpleBasicMessage("request " + i), SimpleBasicMessage.class));
+        }
+
+        JMSFakes server = new JMSFakes(false);
+        ConsumerConnectionContext serverContext = new ConsumerConnectionContext();
+        serverContext.setConnection(server.createConnectionFactory().createConnection());
+        serverContext.setSession(server.getSession());
+        final List<CompletableFuture<SimpleBasicMessage>> handled = Collections.synchronizedList(
+                new ArrayList<CompletableFuture<SimpleBasicMessage>>());
+        final AsyncRPCBasicMessageListener<SimpleBasicMessage, SimpleBasicMessage> listener =
+                new AsyncRPCBasicMessageListener<SimpleBasicMessage, SimpleBasicMessage>(2) {
+                    @Override
+                    protected CompletionStage<SimpleBasicMessage> onBasicMessageAsync(
+                            BasicMessageWithExtraData<SimpleBasicMessage> msgWithExtraData) {
+                        CompletableFuture<SimpleBasicMessage> response = new CompletableFuture<>();
+                        handled.add(response);
+                        return response;
+                    }
+                };
+        listener.setConsumerConnectionContext(serverContext);
+
+        listener.onMessage(client.getSent().get(0));
+        listener.onMessage(client.getSent().get(1));
+        Assert.assertEquals(2, listener.getInFlightRequestCount());
+
+        // the third request waits until one of the others has been answered
+        final Message third = client.getSent().get(2);
+        Thread delivery = new Thread() {
+            @Override
+            public void run() {
+                listener.onMessage(third);
+            }
+        };
+        delivery.start();
+        delivery.join(100);
+        Assert.assertTrue(delivery.isAlive());
+        Assert.assertEquals(2, handled.size());
+
+        handled.get(0).complete(new SimpleBasicMessage("response 0"));
+        delivery.join(10000);
+        Assert.assertFalse(delivery.isAlive());
+        handled.get(1).complete(new SimpleBasicMessage("response 1"));
+        handled.get(2).complete(new SimpleBasicMessage("response 2"));
+        Assert.assertEquals(0, listener.getInFlightRequestCount());
+
+        // responses were sent with one reused session, not the consumer's
+        Assert.assertEquals(1, server.getSessionsCreated());
+        Assert.assertEquals(1, server.getProducersCreated());
+        for (Message response : server.getSent()) {
+            client.deliver(response.getJMSDestination(), response);
+        }
+        for (int i = 0; i < 3; i++) {
+            Assert.assertEquals("response " + i, futures.get(i).get(1, TimeUnit.SECONDS).getBasicMessage()
+                    .getMessage());
+        }
+        context.close();
+    }
+
+    @Test
+    public void testResponsesAreRoutedByCorrelationId() throws Exception {
+        JMSFakes client = new JMSFakes(false);
+        ProducerConnectionContext context = createContext(client);
+        MessageProcessor processor = new MessageProcessor();
+        List<CompletableFuture<BasicMessageWithExtraData<SimpleBasicMessage>>> futures = new ArrayList<>();
+        for (int i = 0; i < 5; i++) {
+            futures.add(processor.sendRPC(context, new SimpleBasicMessage("request " + i), SimpleBasicMessage.class));
+        }
+        Assert.assertEquals(5, RPCResponseDispatcher.forConnection(context.getConnection()).getPendingCount());
+
+        // a single reply queue is used for all requests and responses arrive in any order
+        JMSFakes server = new JMSFakes(false);
+        for (int i = 4; i >= 0; i--) {
+            Message request = client.getSent().get(i);
+            Assert.assertSame(client.getSent().get(0).getJMSReplyTo(), request.getJMSReplyTo());
+            client.deliver(request.getJMSReplyTo(), createResponse(server, request, "response " + i));
+        }
+        for (int i = 0; i < 5; i++) {
+            Assert.assertEquals("response " + i, futures.get(i).get(1, TimeUnit.SECONDS).getBasicMessage()
+                    .getMessage());
+        }
+        context.close();
+    }
+
+    @Test
+    public void testResponseBeforeRegistration() throws Exception {
+        JMSFakes client = new JMSFakes(false);
+        Connection connection = client.createConnectionFactory().createConnection();
+        RPCResponseDispatcher dispatcher = RPCResponseDispatcher.forConnection(connection);
+        Assert.assertSame(dispatcher, RPCResponseDispatcher.forConnection(connection));
+
+        Message response = createResponse(new JMSFakes(false), "ID:early", "early");
+        client.deliver(dispatcher.getReplyTo(), response);
+        CompletableFuture<BasicMessageWithExtraData<SimpleBasicMessage>> future = dispatcher.register("ID:early",
+                SimpleBasicMessage.class);
+        Assert.assertEquals("early", future.get(1, TimeUnit.SECONDS).getBasicMessage().getMessage());
+        dispatcher.close();
+    }
+
+    @Test
+    public void testCancelAndClose() throws Exception {
+        JMSFakes client = new JMSFakes(false);
+        ProducerConnectionContext context = createContext(client);
+        MessageProcessor processor = new MessageProcessor();
+        CompletableFuture<BasicMessageWithExtraData<SimpleBasicMessage>> cancelled = processor.sendRPC(context,
+                new SimpleBasicMessage("cancelled"), SimpleBasicMessage.class);
+        CompletableFuture<BasicMessageWithExtraData<SimpleBasicMessage>> abandoned = processor.sendRPC(context,
+                new SimpleBasicMessage("abandoned"), SimpleBasicMessage.class);
+        RPCResponseDispatcher dispatcher = RPCResponseDispatcher.forConnection(context.getConnection());
+
+        cancelled.cancel(false);
+        Assert.assertEquals(1, dispatcher.getPendingCount());
+
+        context.close();
+        try {
+            abandoned.get(1, TimeUnit.SECONDS);
+            Assert.fail("The future should have failed when the connection was closed");
+        } catch (ExecutionException expected) {
+            Assert.assertTrue(expected.getCause() instanceof IllegalStateException);
+        }
+        Assert.assertNotSame(dispatcher, RPCResponseDispatcher.forConnection(context.getConnection()));
+    }
+
+    @Test
+    public void testDispatcherIsClosedWhenTheConnectionFails() throws Exception {
+        JMSFakes client = new JMSFakes(false);
+        ProducerConnectionContext context = createContext(client);
+        final List<JMSException> passedOn = new ArrayList<>();
+        context.getConnection().setExceptionListener(new ExceptionListener() {
+            @Override
+            public void onException(JMSException e) {
+                passedOn.add(e);
+            }
+        });
+        CompletableFuture<BasicMessageWithExtraData<SimpleBasicMessage>> future = new MessageProcessor().sendRPC(
+                context, new SimpleBasicMessage("lost"), SimpleBasicMessage.class);
+        RPCResponseDispatcher dispatcher = RPCResponseDispatcher.forConnection(context.getConnection());
+
+        client.killConnections(true);
+        try {
+            future.get(1, TimeUnit.SECONDS);
+            Assert.fail("The future should have failed when the connection failed");
+        } catch (ExecutionException expected) {
+            Assert.assertTrue(expected.getCause() instanceof IllegalStateException);
+        }
+        Assert.assertEquals(0, dispatcher.getPendingCount());
+        Assert.assertEquals(1, passedOn.size());
+        Assert.assertNotSame(dispatcher, RPCResponseDispatcher.forConnection(context.getConnection()));
+        RPCResponseDispatcher.closeForConnection(context.getConnection());
+    }
+
+    @Test
+    public void testTimeout() throws Exception {
+        JMSFakes client = new JMSFakes(false);
+        ProducerConnectionContext context = createContext(client);
+        CompletableFuture<BasicMessageWithExtraData<SimpleBasicMessage>> future = new MessageProcessor().sendRPC(
+                context, new SimpleBasicMessage("lost"), SimpleBasicMessage.class, null, 50, TimeUnit.MILLISECONDS);
+        try {
+            future.get(10, TimeUnit.SECONDS);
+            Assert.fail("The future should have timed out");
+        } catch (ExecutionException expected) {
+            Assert.assertTrue(expected.getCause() instanceof TimeoutException);
+        }
+        Assert.assertEquals(0, RPCResponseDispatcher.forConnection(context.getConnection()).getPendingCount());
+
+        // a response arriving after the timeout is not given to anyone
+        Message request = client.getSent().get(0);
+        client.deliver(request.getJMSReplyTo(), createResponse(new JMSFakes(false), request, "late"));
+        Assert.assertTrue(future.isCompletedExceptionally());
+        context.close();
+    }
+
+    @Test
+    public void testSendAndListenTimeout() throws Exception {
+        JMSFakes client = new JMSFakes(false);
+        ProducerConnectionContext context = createContext(client);
+        RPCConnectionContext rpcContext = new MessageProcessor().sendAndListen(context,
+                new SimpleBasicMessage("lost"), new BasicMessageListener<SimpleBasicMessage>() {
+                }, null, 50, TimeUnit.MILLISECONDS);
+        Assert.assertNotNull(rpcContext.getResponseTimeout());
+
+        long deadline = System.nanoTime() + TimeUnit.SECONDS.toNanos(10);
+        while (!rpcContext.isCancelled() && System.nanoTime() < deadline) {
+            Thread.sleep(5);
+        }
+        Assert.assertTrue(rpcContext.isCancelled());
+        Assert.assertFalse(rpcContext.cancel());
+
+        // the consumer was closed
+        Message request = client.getSent().get(0);
+        Assert.assertFalse(client.deliver(request.getJMSReplyTo(), request));
+    }
+
+    @Test(expected = IllegalStateException.class)
+    public void testMessageIdsRequired() throws Exception {
+        JMSFakes client = new JMSFakes(false);
+        ProducerConnectionContext context = createContext(client);
+        context.getMessageProducer().setDisableMessageID(true);
+        new MessageProcessor().sendRPC(context, new SimpleBasicMessage("anonymous"), SimpleBasicMessage.class);
+    }
+
+    private static RPCBasicMessageListener<SimpleBasicMessage, SimpleBasicMessage> createEchoListener() {
+        return new RPCBasicMessageListener<SimpleBasicMessage, SimpleBasicMessage>() {
+            @Override
+            protected SimpleBasicMessage onBasicMessage(SimpleBasicMessage basicMessage) {
+                return new SimpleBasicMessage("echo " + basicMessage.getMessage());
+            }
+        };
+    }
+
+    private static ProducerConnectionContext createContext(JMSFakes jms) throws JMSException {
+        ProducerConnectionContext context = new ProducerConnectionContext();
+        context.setConnection(jms.createConnectionFactory().createConnection());
+        context.setSession(jms.getSession());
+        context.setMessageProducer(jms.createProducer(null));
+        return context;
+    }
+
+    private static Message createResponse(JMSFakes server, Message request, String text) throws JMSException {
+        return createResponse(server, request.getJMSMessageID(), text);
+    }
+
+    private static Message createResponse(JMSFakes server, String requestMessageId, String text)
+            throws JMSException {
+        SimpleBasicMessage response = new SimpleBasicMessage(text);
+        response.setCorrelationId(new MessageId(requestMessageId));
+        new MessageProcessor().send(createContext(server), response);
+        List<Message> sent = server.getSent();
+        return sent.get(sent.size() - 1);
+    }
+}
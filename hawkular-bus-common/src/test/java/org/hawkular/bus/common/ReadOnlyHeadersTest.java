@@ -0,0 +1,116 @@
+/*
+ * Copyright 2015 Red Hat, Inc. and/or its affiliates
+ * and other contributors as indicated by the @author tags.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.hawkular.bus.common;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+import java.lang.reflect.InvocationHandler;
+import java.lang.reflect.Method;
+import java.lang.reflect.Proxy;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.Map;
+
+import javax.jms.Message;
+
+import org.junit.Test;
+
+public class ReadOnlyHeadersTest {
+
+    @Test
+    public void testJMSMessageHeadersAreLazy() {
+        Map<String, String> props = new HashMap<>();
+        props.put("one", "111");
+        props.put("two", "222");
+        PropertiesMessage handler = new PropertiesMessage(props);
+        JMSMessageHeaders headers = new JMSMessageHeaders(handler.message);
+
+        assertEquals(0, handler.propertyNamesCalls);
+        assertEquals("111", headers.get("one"));
+        assertNull(headers.get("three"));
+        assertTrue(headers.containsKey("two"));
+        assertFalse(headers.containsKey("three"));
+        assertEquals("Single lookups must not read all properties", 0, handler.propertyNamesCalls);
+
+        assertEquals(props, headers);
+        assertEquals(2, headers.size());
+        assertEquals("All properties are read only once", 1, handler.propertyNamesCalls);
+
+        try {
+            headers.put("not-allowed", "not-allowed");
+            fail("Should not have been allowed to modify the headers");
+        } catch (UnsupportedOperationException expected) {
+        }
+    }
+
+    @Test
+    public void testReadOnlyHeadersAreNotCopied() {
+        Map<String, String> props = new HashMap<>();
+        props.put("one", "111");
+        ReadOnlyHeaders headers = ReadOnlyHeaders.copyOf(props);
+        assertSame(headers, ReadOnlyHeaders.copyOf(headers));
+
+        props.put("two", "222");
+        assertEquals(Collections.singletonMap("one", "111"), headers);
+
+        SimpleBasicMessage msg = new SimpleBasicMessage("my msg");
+        msg.setHeaders(headers);
+        assertSame(headers, msg.getHeaders());
+
+        JMSMessageHeaders lazy = new JMSMessageHeaders(new PropertiesMessage(props).message);
+        msg.setHeaders(lazy);
+        assertSame(lazy, msg.getHeaders());
+
+        msg.setHeaders(ReadOnlyHeaders.empty());
+        assertTrue(msg.getHeaders().isEmpty());
+    }
+
+    /**
+     * Builds a JMS message that only knows about its string properties.
+     */
+    private static class PropertiesMessage implements InvocationHandler {
+        final Map<String, String> props;
+        final Message message;
+        int propertyNamesCalls;
+
+        PropertiesMessage(Map<String, String> props) {
+            this.props = props;
+            this.message = (Message) Proxy.newProxyInstance(getClass().getClassLoader(),
+                    new Class<?>[] { Message.class }, this);
+        }
+
+        @Override
+        public Object invoke(Object proxy, Method method, Object[] args) {
+            switch (method.getName()) {
+                case "getStringProperty":
+                    return props.get(args[0]);
+                case "propertyExists":
+                    return props.containsKey(args[0]);
+                case "getPropertyNames":
+                    propertyNamesCalls++;
+                    return Collections.enumeration(props.keySet());
+                default:
+                    throw new UnsupportedOperationException(method.getName());
+            }
+        }
+    }
+}
@@ -0,0 +1,127 @@
+/*
+ * Copyright 2015 Red Hat, Inc. and/or its affiliates
+ * and other contributors as indicated by the @author tags.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.hawkular.bus.common;
+
+import java.util.concurrent.atomic.AtomicReference;
+
+import org.hawkular.bus.common.producer.ProducerConnectionContext;
+import org.junit.Assert;
+import org.junit.Test;
+
+public class ThreadProducerConnectionContextTest {
+
+    private static final Endpoint QUEUE = new Endpoint(Endpoint.Type.QUEUE, "threadQueue");
+    private static final Endpoint TOPIC = new Endpoint(Endpoint.Type.TOPIC, "threadTopic");
+
+    @Test
+    public void testContextsAreBoundToThreads() throws Exception {
+        JMSFakes jms = new JMSFakes(false);
+        final ConnectionContextFactory factory = new ConnectionContextFactory(true, jms.createConnectionFactory());
+
+        ProducerConnectionContext context = factory.getThreadProducerConnectionContext(QUEUE);
+        Assert.assertSame(context, factory.getThreadProducerConnectionContext(QUEUE));
+        Assert.assertNotSame(context, factory.getThreadProducerConnectionContext(TOPIC));
+
+        final AtomicReference<ProducerConnectionContext> otherContext = new AtomicReference<>();
+        Thread other = new Thread() {
+            @Override
+            public void run() {
+                try {
+                    otherContext.set(factory.getThreadProducerConnectionContext(QUEUE));
+                } catch (Exception e) {
+                    throw new RuntimeException(e);
+                }
+            }
+        };
+        other.start();
+        other.join();
+        Assert.assertNotNull(otherContext.get());
+        Assert.assertNotSame(context, otherContext.get());
+        Assert.assertEquals(1, jms.getConnectionsCreated());
+        Assert.assertEquals(3, jms.getSessionsCreated());
+        Assert.assertEquals(0, jms.getSessionsClosed());
+
+        // releasing contexts also cleans up after the thread that died
+        factory.releaseThreadProducerConnectionContexts();
+        Assert.assertEquals(3, jms.getSessionsClosed());
+        factory.getThreadProducerConnectionContext(QUEUE);
+        Assert.assertEquals(3, jms.getSessionsClosed());
+
+        factory.close();
+        Assert.assertEquals(4, jms.getSessionsClosed());
+    }
+
+    @Test
+    public void testBindingANewContextClosesThoseOfDeadThreads() throws Exception {
+        JMSFakes jms = new JMSFakes(false);
+        final ConnectionContextFactory factory = new ConnectionContextFactory(true, jms.createConnectionFactory());
+        Thread other = new Thread() {
+            @Override
+            public void run() {
+                try {
+                    factory.getThreadProducerConnectionContext(QUEUE);
+                } catch (Exception e) {
+                    throw new RuntimeException(e);
+                }
+            }
+        };
+        other.start();
+        other.join();
+        Assert.assertEquals(0, jms.getSessionsClosed());
+
+        factory.getThreadProducerConnectionContext(QUEUE);
+        Assert.assertEquals(1, jms.getSessionsClosed());
+        factory.close();
+    }
+
+    @Test
+    public void testClosedFactoryHandsOutNoContexts() throws Exception {
+        JMSFakes jms = new JMSFakes(false);
+        ConnectionContextFactory factory = new ConnectionContextFactory(true, jms.createConnectionFactory());
+        factory.getThreadProducerConnectionContext(QUEUE);
+        factory.close();
+        Assert.assertEquals(1, jms.getSessionsClosed());
+
+        try {
+            factory.getThreadProducerConnectionContext(QUEUE);
+            Assert.fail("The factory was closed");
+        } catch (IllegalStateException expected) {
+        }
+        Assert.assertEquals(1, jms.getConnectionsCreated());
+        Assert.assertEquals(1, jms.getSessionsCreated());
+    }
+
+    @Test
+    public void testContextCanBeUsedToSend() throws Exception {
+        JMSFakes jms = new JMSFakes(false);
+        try (ConnectionContextFactory factory = new ConnectionContextFactory(true, jms.createConnectionFactory())) {
+            MessageProcessor processor = new MessageProcessor();
+            processor.send(factory.getThreadProducerConnectionContext(QUEUE), new SimpleBasicMessage("one"));
+            processor.send(factory.getThreadProducerConnectionContext(QUEUE), new SimpleBasicMessage("two"));
+            Assert.assertEquals(2, jms.getSent().size());
+            Assert.assertEquals(1, jms.getSessionsCreated());
+        }
+    }
+
+    @Test(expected = IllegalStateException.class)
+    public void testConnectionMustBeReused() throws Exception {
+        try (ConnectionContextFactory factory = new ConnectionContextFactory(false,
+                new JMSFakes(false).createConnectionFactory())) {
+            factory.getThreadProducerConnectionContext(QUEUE);
+        }
+    }
+}
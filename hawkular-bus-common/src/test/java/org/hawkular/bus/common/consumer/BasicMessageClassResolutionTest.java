@@ -0,0 +1,92 @@
+/*
+ * Copyright 2015 Red Hat, Inc. and/or its affiliates
+ * and other contributors as indicated by the @author tags.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.hawkular.bus.common.consumer;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.fail;
+
+import org.hawkular.bus.common.ObjectMessage;
+import org.hawkular.bus.common.SimpleBasicMessage;
+import org.junit.Test;
+
+public class BasicMessageClassResolutionTest {
+
+    @Test
+    public void testResolvedClassesAreCached() throws Exception {
+        CountingListener listener = new CountingListener();
+        String name = SimpleBasicMessage.class.getName();
+        assertSame(SimpleBasicMessage.class, listener.resolveBasicMessageClass(name));
+        assertSame(SimpleBasicMessage.class, listener.resolveBasicMessageClass(name));
+        assertEquals(1, listener.conversions);
+    }
+
+    @Test
+    public void testUnknownClassesAreCached() throws Exception {
+        CountingListener listener = new CountingListener();
+        for (int i = 0; i < 2; i++) {
+            try {
+                listener.resolveBasicMessageClass("org.hawkular.NoSuchMessage");
+                fail("Class should not have been found");
+            } catch (ClassNotFoundException expected) {
+            }
+        }
+        assertEquals(1, listener.conversions);
+    }
+
+    @Test
+    public void testNonMessageClassesAreRejected() throws Exception {
+        CountingListener listener = new CountingListener();
+        try {
+            listener.resolveBasicMessageClass(String.class.getName());
+            fail("Only message classes should be resolved");
+        } catch (ClassNotFoundException expected) {
+        }
+    }
+
+    @Test
+    public void testRegistry() throws Exception {
+        CountingListener listener = new CountingListener();
+        BasicMessageClassRegistry registry = new BasicMessageClassRegistry()
+                .register(SimpleBasicMessage.class)
+                .register("org.hawkular.ElsewhereMessage", ObjectMessage.class);
+        listener.setMessageClassRegistry(registry);
+
+        assertSame(SimpleBasicMessage.class, listener.resolveBasicMessageClass(SimpleBasicMessage.class.getName()));
+        assertSame(ObjectMessage.class, listener.resolveBasicMessageClass("org.hawkular.ElsewhereMessage"));
+        assertNull(listener.resolveBasicMessageClass(ObjectMessage.class.getName()));
+
+        // classes can be allowed later
+        registry.register(ObjectMessage.class);
+        assertSame(ObjectMessage.class, listener.resolveBasicMessageClass(ObjectMessage.class.getName()));
+    }
+
+    private static class CountingListener extends BasicMessageListener<SimpleBasicMessage> {
+        int conversions;
+
+        CountingListener() {
+            super(SimpleBasicMessage.class);
+        }
+
+        @Override
+        protected String convertReceivedMessageClassNameToDesiredMessageClassName(String className) {
+            conversions++;
+            return null;
+        }
+    }
+}
@@ -0,0 +1,132 @@
+/*
+ * Copyright 2015 Red Hat, Inc. and/or its affiliates
+ * and other contributors as indicated by the @author tags.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.hawkular.bus.common.consumer;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+import java.lang.reflect.InvocationHandler;
+import java.lang.reflect.Method;
+import java.lang.reflect.Proxy;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.Map;
+
+import javax.jms.TextMessage;
+
+import org.hawkular.bus.common.BasicMessageWithExtraData;
+import org.hawkular.bus.common.SimpleBasicMessage;
+import org.junit.Test;
+
+public class DeferredBodyParsingTest {
+
+    @Test
+    public void testNotAcceptedMessagesAreNotDecoded() {
+        FilteringListener listener = new FilteringListener();
+        BodyCountingMessage skipped = new BodyCountingMessage("{\"message\":\"skip me\"}", "other");
+        listener.onMessage(skipped.message);
+        assertEquals(0, skipped.bodyReads);
+        assertNull(listener.received);
+
+        BodyCountingMessage accepted = new BodyCountingMessage("{\"message\":\"keep me\"}", "wanted");
+        listener.onMessage(accepted.message);
+        assertEquals(1, accepted.bodyReads);
+        assertEquals("keep me", listener.received.getMessage());
+        assertEquals("wanted", listener.received.getHeaders().get("type"));
+    }
+
+    @Test
+    public void testDeferredBodyIsDecodedOnceOnFirstAccess() {
+        FilteringListener listener = new FilteringListener();
+        listener.setDeferBodyParsing(true);
+        BodyCountingMessage msg = new BodyCountingMessage("{\"message\":\"later\"}", "wanted");
+
+        BasicMessageWithExtraData<SimpleBasicMessage> parsed = listener.parseMessage(msg.message);
+        assertTrue(parsed instanceof DeferredBasicMessageWithExtraData);
+        DeferredBasicMessageWithExtraData<SimpleBasicMessage> deferred;
+        deferred = (DeferredBasicMessageWithExtraData<SimpleBasicMessage>) parsed;
+        assertEquals("wanted", deferred.getHeaders().get("type"));
+        assertFalse(deferred.isDecoded());
+        assertEquals(0, msg.bodyReads);
+
+        assertEquals("later", deferred.getBasicMessage().getMessage());
+        assertEquals("ID:1", deferred.getBasicMessage().getMessageId().getId());
+        assertNull(deferred.getBinaryData());
+        assertTrue(deferred.isDecoded());
+        assertEquals(1, msg.bodyReads);
+    }
+
+    private static class FilteringListener extends BasicMessageListener<SimpleBasicMessage> {
+        SimpleBasicMessage received;
+
+        FilteringListener() {
+            super(SimpleBasicMessage.class);
+        }
+
+        @Override
+        protected boolean accept(Map<String, String> headers) {
+            return "wanted".equals(headers.get("type"));
+        }
+
+        @Override
+        protected void onBasicMessage(SimpleBasicMessage basicMessage) {
+            received = basicMessage;
+        }
+    }
+
+    /**
+     * Builds a JMS text message that counts how many times its body is read.
+     */
+    private static class BodyCountingMessage implements InvocationHandler {
+        final String body;
+        final Map<String, String> props = new HashMap<>();
+        final TextMessage message;
+        int bodyReads;
+
+        BodyCountingMessage(String body, String type) {
+            this.body = body;
+            this.props.put("type", type);
+            this.message = (TextMessage) Proxy.newProxyInstance(getClass().getClassLoader(),
+                    new Class<?>[] { TextMessage.class }, this);
+        }
+
+        @Override
+        public Object invoke(Object proxy, Method method, Object[] args) {
+            switch (method.getName()) {
+                case "getText":
+                    bodyReads++;
+                    return body;
+                case "getStringProperty":
+                    return props.get(args[0]);
+                case "propertyExists":
+                    return props.containsKey(args[0]);
+                case "getPropertyNames":
+                    return Collections.enumeration(props.keySet());
+                case "getJMSMessageID":
+                    return "ID:1";
+                case "getJMSCorrelationID":
+                    return null;
+                case "toString":
+                    return "BodyCountingMessage";
+                default:
+                    throw new UnsupportedOperationException(method.getName());
+            }
+        }
+    }
+}
@@ -0,0 +1,126 @@
+/*
+ * Copyright 2015 Red Hat, Inc. and/or its affiliates
+ * and other contributors as indicated by the @author tags.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.hawkular.bus.common.consumer;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+
+import javax.jms.BytesMessage;
+import javax.jms.Message;
+import javax.jms.TextMessage;
+
+import org.hawkular.bus.common.BasicMessageWithExtraData;
+import org.hawkular.bus.common.BinaryData;
+import org.hawkular.bus.common.JMSFakes;
+import org.hawkular.bus.common.MessageCodecs;
+import org.hawkular.bus.common.MessageCompressors;
+import org.hawkular.bus.common.MessageProcessor;
+import org.hawkular.bus.common.SimpleBasicMessage;
+import org.hawkular.bus.common.producer.ProducerConnectionContext;
+import org.junit.Test;
+
+public class ForwardedMessageTest {
+
+    @Test
+    public void testPlainMessageHasNoBinaryData() throws Exception {
+        JMSFakes jms = new JMSFakes(false);
+        new MessageProcessor().send(createContext(jms), new SimpleBasicMessage("plain"));
+        // text, so listeners that know nothing about codecs can read it
+        assertTrue(jms.getSent().get(0) instanceof TextMessage);
+
+        BasicMessageWithExtraData<SimpleBasicMessage> received = receive(jms.getSent().get(0));
+        assertEquals("plain", received.getBasicMessage().getMessage());
+        assertNull(received.getBinaryData());
+    }
+
+    @Test
+    public void testForwardedBinaryMessageIsSentWithoutBinaryData() throws Exception {
+        JMSFakes jms = new JMSFakes(false);
+        SimpleBasicMessage original = new SimpleBasicMessage("with binary data");
+        BytesMessage wire = jms.createBytesMessage();
+        byte[] body = readFully(new BinaryData(MessageCodecs.json().encode(original),
+                new ByteArrayInputStream(new byte[] { 1, 2, 3 })));
+        wire.writeBytes(body);
+        wire.setStringProperty(MessageProcessor.HEADER_BASIC_MESSAGE_CLASS, SimpleBasicMessage.class.getName());
+        wire.setStringProperty(MessageProcessor.HEADER_MESSAGE_CODEC, MessageCodecs.json().getName());
+        wire.setStringProperty(MessageProcessor.HEADER_BINARY_DATA, "true");
+
+        BasicMessageWithExtraData<SimpleBasicMessage> received = receive(wire);
+        assertNotNull(received.getBinaryData());
+        assertEquals(1, received.getBinaryData().read());
+
+        // send the received message on by itself
+        new MessageProcessor().send(createContext(jms), received.getBasicMessage());
+        Message forwarded = jms.getSent().get(0);
+        assertFalse(forwarded.propertyExists(MessageProcessor.HEADER_BINARY_DATA));
+        BasicMessageWithExtraData<SimpleBasicMessage> receivedAgain = receive(forwarded);
+        assertEquals("with binary data", receivedAgain.getBasicMessage().getMessage());
+        assertNull(receivedAgain.getBinaryData());
+    }
+
+    @Test
+    public void testForwardedCompressedMessageIsSentAsEncodedByTheForwarder() throws Exception {
+        JMSFakes jms = new JMSFakes(false);
+        MessageProcessor compressing = new MessageProcessor(MessageCodecs.json(), MessageCompressors.gzip(), 0);
+        compressing.send(createContext(jms), new SimpleBasicMessage("compressed"));
+        Message wire = jms.getSent().get(0);
+        assertTrue(wire instanceof BytesMessage);
+        assertNotNull(wire.getStringProperty(MessageProcessor.HEADER_MESSAGE_COMPRESSION));
+
+        BasicMessageWithExtraData<SimpleBasicMessage> received = receive(wire);
+        assertEquals("compressed", received.getBasicMessage().getMessage());
+
+        // forward it with a processor that does not compress
+        JMSFakes next = new JMSFakes(false);
+        new MessageProcessor().send(createContext(next), received.getBasicMessage());
+        Message forwarded = next.getSent().get(0);
+        assertTrue(forwarded instanceof TextMessage);
+        assertFalse(forwarded.propertyExists(MessageProcessor.HEADER_MESSAGE_COMPRESSION));
+        assertEquals(MessageCodecs.json().getName(),
+                forwarded.getStringProperty(MessageProcessor.HEADER_MESSAGE_CODEC));
+        assertEquals("compressed", receive(forwarded).getBasicMessage().getMessage());
+    }
+
+    private static ProducerConnectionContext createContext(JMSFakes jms) {
+        ProducerConnectionContext context = new ProducerConnectionContext();
+        context.setSession(jms.getSession());
+        context.setMessageProducer(jms.createProducer(null));
+        return context;
+    }
+
+    private static BasicMessageWithExtraData<SimpleBasicMessage> receive(Message message) {
+        return new BasicMessageListener<SimpleBasicMessage>(SimpleBasicMessage.class) {
+        }.parseMessage(message);
+    }
+
+    private static byte[] readFully(InputStream in) throws IOException {
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        byte[] buffer = new byte[1024];
+        for (int n = in.read(buffer); n != -1; n = in.read(buffer)) {
+            out.write(buffer, 0, n);
+        }
+        return out.toByteArray();
+    }
+}
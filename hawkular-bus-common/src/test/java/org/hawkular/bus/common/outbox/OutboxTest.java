@@ -0,0 +1,259 @@
+/*
+ * Copyright 2015 Red Hat, Inc. and/or its affiliates
+ * and other contributors as indicated by the @author tags.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.hawkular.bus.common.outbox;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.file.Files;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+
+import javax.jms.Message;
+import javax.jms.TextMessage;
+
+import org.hawkular.bus.common.Endpoint;
+import org.hawkular.bus.common.JMSFakes;
+import org.hawkular.bus.common.MessageId;
+import org.hawkular.bus.common.MessageProcessor;
+import org.hawkular.bus.common.SimpleBasicMessage;
+import org.junit.After;
+import org.junit.Assert;
+import org.junit.Before;
+import org.junit.Test;
+
+public class OutboxTest {
+
+    private static final Endpoint QUEUE = new Endpoint(Endpoint.Type.QUEUE, "outboxQueue");
+    private static final Endpoint TOPIC = new Endpoint(Endpoint.Type.TOPIC, "outboxTopic");
+
+    private File directory;
+
+    @Before
+    public void createDirectory() throws IOException {
+        directory = Files.createTempDirectory("outbox").toFile();
+    }
+
+    @After
+    public void deleteDirectory() {
+        File[] files = directory.listFiles();
+        if (files != null) {
+            for (File file : files) {
+                file.delete();
+            }
+        }
+        directory.delete();
+    }
+
+    @Test
+    public void testMessagesAreForwardedInOrder() throws Exception {
+        JMSFakes jms = new JMSFakes(false);
+        try (Outbox outbox = new Outbox(directory, jms.createConnectionFactory())) {
+            SimpleBasicMessage correlated = new SimpleBasicMessage("two");
+            correlated.setCorrelationId(new MessageId("ID:42"));
+            outbox.enqueue(QUEUE, new SimpleBasicMessage("one"));
+            outbox.enqueue(TOPIC, correlated, Collections.singletonMap("extra", "header"));
+            outbox.enqueue(QUEUE, new SimpleBasicMessage("three"));
+            Assert.assertEquals(3, outbox.getPendingCount());
+
+            outbox.start();
+            Assert.assertTrue(outbox.awaitForwarded(10, TimeUnit.SECONDS));
+        }
+
+        List<Message> sent = jms.getSent();
+        Assert.assertEquals(3, sent.size());
+        Assert.assertTrue(body(sent.get(0)).contains("\"one\""));
+        Assert.assertTrue(body(sent.get(1)).contains("\"two\""));
+        Assert.assertTrue(body(sent.get(2)).contains("\"three\""));
+        Assert.assertEquals(SimpleBasicMessage.class.getName(),
+                sent.get(1).getStringProperty(MessageProcessor.HEADER_BASIC_MESSAGE_CLASS));
+        Assert.assertEquals("json", sent.get(1).getStringProperty(MessageProcessor.HEADER_MESSAGE_CODEC));
+        Assert.assertEquals("header", sent.get(1).getStringProperty("extra"));
+        Assert.assertEquals("ID:42", sent.get(1).getJMSCorrelationID());
+    }
+
+    @Test
+    public void testReceivedTransportHeadersAreNotForwarded() throws Exception {
+        JMSFakes jms = new JMSFakes(false);
+        try (Outbox outbox = new Outbox(directory, jms.createConnectionFactory())) {
+            SimpleBasicMessage received = new SimpleBasicMessage("received compressed");
+            Map<String, String> receivedHeaders = new HashMap<>();
+            receivedHeaders.put(MessageProcessor.HEADER_MESSAGE_COMPRESSION, "gzip");
+            receivedHeaders.put("extra", "header");
+            received.setHeaders(receivedHeaders);
+            outbox.enqueue(QUEUE, received);
+            outbox.start();
+            Assert.assertTrue(outbox.awaitForwarded(10, TimeUnit.SECONDS));
+        }
+
+        Message sent = jms.getSent().get(0);
+        Assert.assertTrue(sent instanceof TextMessage);
+        Assert.assertFalse(sent.propertyExists(MessageProcessor.HEADER_MESSAGE_COMPRESSION));
+        Assert.assertEquals("header", sent.getStringProperty("extra"));
+        Assert.assertTrue(body(sent).contains("\"received compressed\""));
+    }
+
+    @Test
+    public void testPendingMessagesSurviveRestart() throws Exception {
+        JMSFakes jms = new JMSFakes(false);
+        // small segments so the messages are spread over several files
+        try (Outbox outbox = new Outbox(directory, jms.createConnectionFactory(), new MessageProcessor(), 256)) {
+            for (int i = 0; i < 10; i++) {
+                outbox.enqueue(QUEUE, new SimpleBasicMessage("message " + i));
+            }
+        }
+        Assert.assertTrue(segmentCount() > 1);
+
+        try (Outbox outbox = new Outbox(directory, jms.createConnectionFactory(), new MessageProcessor(), 256)) {
+            Assert.assertEquals(10, outbox.getPendingCount());
+            outbox.start();
+            Assert.assertTrue(outbox.awaitForwarded(10, TimeUnit.SECONDS));
+        }
+        List<Message> sent = jms.getSent();
+        Assert.assertEquals(10, sent.size());
+        for (int i = 0; i < 10; i++) {
+            Assert.assertTrue(body(sent.get(i)).contains("\"message " + i + "\""));
+        }
+        Assert.assertEquals(1, segmentCount());
+
+        try (Outbox outbox = new Outbox(directory, jms.createConnectionFactory(), new MessageProcessor(), 256)) {
+            Assert.assertEquals(0, outbox.getPendingCount());
+        }
+    }
+
+    @Test
+    public void testNullAndLongHeadersSurviveRestart() throws Exception {
+        JMSFakes jms = new JMSFakes(false);
+        char[] chars = new char[70000];
+        Arrays.fill(chars, '\u00e9');
+        String longValue = new String(chars);
+        Map<String, String> headers = new HashMap<>();
+        headers.put("nothing", null);
+        headers.put("long", longValue);
+        try (Outbox outbox = new Outbox(directory, jms.createConnectionFactory())) {
+            outbox.enqueue(QUEUE, new SimpleBasicMessage("headers"), headers);
+        }
+
+        try (Outbox outbox = new Outbox(directory, jms.createConnectionFactory())) {
+            Assert.assertEquals(1, outbox.getPendingCount());
+            outbox.start();
+            Assert.assertTrue(outbox.awaitForwarded(10, TimeUnit.SECONDS));
+        }
+        Message sent = jms.getSent().get(0);
+        Assert.assertNull(sent.getStringProperty("nothing"));
+        Assert.assertEquals(longValue, sent.getStringProperty("long"));
+        Assert.assertTrue(body(sent).contains("\"headers\""));
+    }
+
+    @Test
+    public void testTornRecordIsDiscardedOnRecovery() throws Exception {
+        JMSFakes jms = new JMSFakes(false);
+        try (Outbox outbox = new Outbox(directory, jms.createConnectionFactory())) {
+            outbox.enqueue(QUEUE, new SimpleBasicMessage("complete"));
+            outbox.enqueue(QUEUE, new SimpleBasicMessage("torn"));
+        }
+
+        // damage the end of the last record as if the process died while writing it
+        File segment = directory.listFiles((dir, name) -> name.endsWith(OutboxJournal.SEGMENT_SUFFIX))[0];
+        try (RandomAccessFile file = new RandomAccessFile(segment, "rw")) {
+            long last = file.length() - 1;
+            while (last > 0) {
+                file.seek(last);
+                if (file.read() != 0) {
+                    break;
+                }
+                last--;
+            }
+            file.seek(last);
+            file.write(0);
+        }
+
+        try (Outbox outbox = new Outbox(directory, jms.createConnectionFactory())) {
+            Assert.assertEquals(1, outbox.getPendingCount());
+            outbox.enqueue(QUEUE, new SimpleBasicMessage("after recovery"));
+            outbox.start();
+            Assert.assertTrue(outbox.awaitForwarded(10, TimeUnit.SECONDS));
+        }
+        List<Message> sent = jms.getSent();
+        Assert.assertEquals(2, sent.size());
+        Assert.assertTrue(body(sent.get(0)).contains("\"complete\""));
+        Assert.assertTrue(body(sent.get(1)).contains("\"after recovery\""));
+    }
+
+    @Test
+    public void testForwardingIsRetried() throws Exception {
+        JMSFakes jms = new JMSFakes(false);
+        jms.setFailSends(true);
+        try (Outbox outbox = new Outbox(directory, jms.createConnectionFactory())) {
+            outbox.start();
+            outbox.enqueue(QUEUE, new SimpleBasicMessage("retried"));
+            Assert.assertFalse(outbox.awaitForwarded(300, TimeUnit.MILLISECONDS));
+            Assert.assertTrue(jms.getSent().isEmpty());
+
+            jms.setFailSends(false);
+            Assert.assertTrue(outbox.awaitForwarded(10, TimeUnit.SECONDS));
+        }
+        Assert.assertEquals(1, jms.getSent().size());
+    }
+
+    @Test
+    public void testCorruptJournalStopsTheOutbox() throws Exception {
+        JMSFakes jms = new JMSFakes(false);
+        try (Outbox outbox = new Outbox(directory, jms.createConnectionFactory())) {
+            outbox.enqueue(QUEUE, new SimpleBasicMessage("damaged"));
+
+            // damage the data of the record while the outbox has it mapped, so its checksum no longer matches
+            File segment = directory.listFiles((dir, name) -> name.endsWith(OutboxJournal.SEGMENT_SUFFIX))[0];
+            try (RandomAccessFile file = new RandomAccessFile(segment, "rw")) {
+                file.seek(8);
+                int b = file.read();
+                file.seek(8);
+                file.write(b ^ 0xff);
+            }
+
+            outbox.start();
+            long deadline = System.nanoTime() + TimeUnit.SECONDS.toNanos(10);
+            while (!outbox.isFailed() && System.nanoTime() < deadline) {
+                Thread.sleep(10);
+            }
+            Assert.assertTrue(outbox.isFailed());
+            try {
+                outbox.awaitForwarded(10, TimeUnit.SECONDS);
+                Assert.fail("The outbox has stopped");
+            } catch (IllegalStateException expected) {
+            }
+            try {
+                outbox.enqueue(QUEUE, new SimpleBasicMessage("refused"));
+                Assert.fail("The outbox has stopped");
+            } catch (IOException expected) {
+            }
+        }
+        Assert.assertTrue(jms.getSent().isEmpty());
+    }
+
+    private int segmentCount() {
+        return directory.listFiles((dir, name) -> name.endsWith(OutboxJournal.SEGMENT_SUFFIX)).length;
+    }
+
+    private static String body(Message message) throws Exception {
+        return new String(JMSFakes.getBody(message), "UTF-8");
+    }
+}
@@ -0,0 +1,108 @@
+/*
+ * Copyright 2015 Red Hat, Inc. and/or its affiliates
+ * and other contributors as indicated by the @author tags.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.hawkular.bus.common.producer;
+
+import java.util.Collections;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.TimeUnit;
+
+import javax.jms.JMSException;
+
+import org.hawkular.bus.common.JMSFakes;
+import org.hawkular.bus.common.MessageId;
+import org.hawkular.bus.common.MessageProcessor;
+import org.hawkular.bus.common.SimpleBasicMessage;
+import org.junit.Assert;
+import org.junit.Test;
+
+public class AsyncSendTest {
+
+    @Test
+    public void testSendAsync() throws Exception {
+        JMSFakes jms = new JMSFakes(false);
+        SimpleBasicMessage message = new SimpleBasicMessage("async");
+        CompletableFuture<MessageId> future = new MessageProcessor().sendAsync(createContext(jms), message);
+
+        Assert.assertFalse(future.isDone());
+        Assert.assertNull(message.getMessageId());
+
+        jms.completeAsyncSends();
+        Assert.assertTrue(future.isDone());
+        Assert.assertNotNull(future.get());
+        Assert.assertEquals(future.get(), message.getMessageId());
+    }
+
+    @Test
+    public void testSendAsyncFailure() throws Exception {
+        JMSFakes jms = new JMSFakes(false);
+        ProducerConnectionContext context = createContext(jms);
+        SimpleBasicMessage message = new SimpleBasicMessage("broken");
+        message.setHeaders(Collections.singletonMap(JMSFakes.FAIL_PROPERTY, "true"));
+        CompletableFuture<MessageId> future = new MessageProcessor().sendAsync(context, message);
+
+        jms.completeAsyncSends();
+        try {
+            future.get();
+            Assert.fail("The send should have failed");
+        } catch (ExecutionException expected) {
+            Assert.assertTrue(expected.getCause() instanceof JMSException);
+        }
+        Assert.assertEquals(context.getMaxAsyncSendsInFlight(), context.getAsyncSendPermits().availablePermits());
+    }
+
+    @Test
+    public void testWindowBlocksSender() throws Exception {
+        JMSFakes jms = new JMSFakes(false);
+        final ProducerConnectionContext context = createContext(jms);
+        context.setMaxAsyncSendsInFlight(2);
+        final MessageProcessor processor = new MessageProcessor();
+
+        processor.sendAsync(context, new SimpleBasicMessage("1"));
+        processor.sendAsync(context, new SimpleBasicMessage("2"));
+        Assert.assertEquals(0, context.getAsyncSendPermits().availablePermits());
+
+        final CountDownLatch sent = new CountDownLatch(1);
+        Thread sender = new Thread() {
+            @Override
+            public void run() {
+                try {
+                    processor.sendAsync(context, new SimpleBasicMessage("3"));
+                    sent.countDown();
+                } catch (JMSException e) {
+                    throw new RuntimeException(e);
+                }
+            }
+        };
+        sender.start();
+        Assert.assertFalse("The third send should wait for room in the window",
+                sent.await(200, TimeUnit.MILLISECONDS));
+
+        jms.completeAsyncSends();
+        Assert.assertTrue(sent.await(10, TimeUnit.SECONDS));
+        sender.join();
+        Assert.assertEquals(1, jms.getPendingAsyncSends());
+    }
+
+    private static ProducerConnectionContext createContext(JMSFakes jms) {
+        ProducerConnectionContext context = new ProducerConnectionContext();
+        context.setSession(jms.getSession());
+        context.setMessageProducer(jms.createProducer(null));
+        return context;
+    }
+}
@@ -0,0 +1,151 @@
+/*
+ * Copyright 2015 Red Hat, Inc. and/or its affiliates
+ * and other contributors as indicated by the @author tags.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.hawkular.bus.common.producer;
+
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.function.Function;
+
+import javax.jms.JMSException;
+import javax.jms.Message;
+
+import org.hawkular.bus.common.BasicMessage;
+import org.hawkular.bus.common.JMSFakes;
+import org.hawkular.bus.common.MessageId;
+import org.hawkular.bus.common.MessageProcessor;
+import org.hawkular.bus.common.SimpleBasicMessage;
+import org.junit.Assert;
+import org.junit.Test;
+
+public class CoalescingProducerTest {
+
+    private static final Function<SimpleBasicMessage, String> BY_RESOURCE = m -> m.getDetails().get("resource");
+
+    @Test
+    public void testLatestMessagePerKeyIsSent() throws Exception {
+        JMSFakes jms = new JMSFakes(false);
+        CoalescingProducer<SimpleBasicMessage> producer = new CoalescingProducer<>(new MessageProcessor(),
+                createContext(jms), BY_RESOURCE, 100, 1, TimeUnit.HOURS, null);
+
+        producer.send(update("a", "down"));
+        producer.send(update("b", "up"));
+        producer.send(update("a", "unknown"));
+        producer.send(update("a", "up"));
+        Assert.assertEquals(2, producer.getPendingCount());
+        Assert.assertEquals(2, producer.getCoalescedCount());
+        Assert.assertTrue(jms.getSent().isEmpty());
+
+        Assert.assertEquals(2, producer.flush());
+        List<Message> sent = jms.getSent();
+        Assert.assertEquals(2, sent.size());
+        Assert.assertEquals("3", sent.get(0).getStringProperty(CoalescingProducer.HEADER_COALESCED_COUNT));
+        Assert.assertTrue(new String(JMSFakes.getBody(sent.get(0)), "UTF-8").contains("\"up\""));
+        Assert.assertEquals("1", sent.get(1).getStringProperty(CoalescingProducer.HEADER_COALESCED_COUNT));
+        Assert.assertEquals(0, producer.getPendingCount());
+
+        producer.send(update("c", "up"));
+        producer.close();
+        Assert.assertEquals(3, jms.getSent().size());
+    }
+
+    @Test
+    public void testNewKeyFlushesFullMap() throws Exception {
+        JMSFakes jms = new JMSFakes(false);
+        try (CoalescingProducer<SimpleBasicMessage> producer = new CoalescingProducer<>(new MessageProcessor(),
+                createContext(jms), BY_RESOURCE, 2, 1, TimeUnit.HOURS, null)) {
+            producer.send(update("a", "up"));
+            producer.send(update("b", "up"));
+            producer.send(update("b", "down"));
+            Assert.assertTrue(jms.getSent().isEmpty());
+
+            producer.send(update("c", "up"));
+            Assert.assertEquals(2, jms.getSent().size());
+            Assert.assertEquals(1, producer.getPendingCount());
+        }
+    }
+
+    @Test
+    public void testScheduledFlush() throws Exception {
+        JMSFakes jms = new JMSFakes(false);
+        ScheduledExecutorService scheduler = Executors.newSingleThreadScheduledExecutor();
+        try (CoalescingProducer<SimpleBasicMessage> producer = new CoalescingProducer<>(new MessageProcessor(),
+                createContext(jms), BY_RESOURCE, 100, 20, TimeUnit.MILLISECONDS, scheduler)) {
+            producer.send(update("a", "up"));
+            long deadline = System.currentTimeMillis() + 10000;
+            while (jms.getSent().isEmpty() && System.currentTimeMillis() < deadline) {
+                Thread.sleep(10);
+            }
+            Assert.assertEquals(1, jms.getSent().size());
+        } finally {
+            scheduler.shutdownNow();
+        }
+    }
+
+    @Test
+    public void testSendersAreNotHeldUpByAFlush() throws Exception {
+        JMSFakes jms = new JMSFakes(false);
+        final CountDownLatch sending = new CountDownLatch(1);
+        final CountDownLatch release = new CountDownLatch(1);
+        MessageProcessor slowProcessor = new MessageProcessor() {
+            @Override
+            public MessageId send(ProducerConnectionContext context, BasicMessage basicMessage,
+                    Map<String, String> headers) throws JMSException {
+                sending.countDown();
+                try {
+                    release.await(10, TimeUnit.SECONDS);
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                }
+                return super.send(context, basicMessage, headers);
+            }
+        };
+        final CoalescingProducer<SimpleBasicMessage> producer = new CoalescingProducer<>(slowProcessor,
+                createContext(jms), BY_RESOURCE, 1, 1, TimeUnit.HOURS, null);
+        producer.send(update("a", "up"));
+        Thread flusher = new Thread(() -> producer.flush());
+        flusher.start();
+        Assert.assertTrue(sending.await(10, TimeUnit.SECONDS));
+
+        // the flush is stuck sending, yet messages are still accepted
+        producer.send(update("b", "up"));
+        producer.send(update("b", "down"));
+        Assert.assertEquals(1, producer.getPendingCount());
+        Assert.assertEquals(1, producer.getCoalescedCount());
+
+        release.countDown();
+        flusher.join(10000);
+        Assert.assertEquals(1, producer.flush());
+        Assert.assertEquals(2, jms.getSent().size());
+        Assert.assertTrue(new String(JMSFakes.getBody(jms.getSent().get(1)), "UTF-8").contains("\"down\""));
+    }
+
+    private static SimpleBasicMessage update(String resource, String state) {
+        return new SimpleBasicMessage(state, Collections.singletonMap("resource", resource));
+    }
+
+    private static ProducerConnectionContext createContext(JMSFakes jms) {
+        ProducerConnectionContext context = new ProducerConnectionContext();
+        context.setSession(jms.getSession());
+        context.setMessageProducer(jms.createProducer(null));
+        return context;
+    }
+}
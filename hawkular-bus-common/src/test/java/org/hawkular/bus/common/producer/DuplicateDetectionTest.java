@@ -0,0 +1,172 @@
+/*
+ * Copyright 2015 Red Hat, Inc. and/or its affiliates
+ * and other contributors as indicated by the @author tags.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.hawkular.bus.common.producer;
+
+import java.io.ByteArrayInputStream;
+import java.util.Collections;
+
+import javax.jms.JMSException;
+import javax.jms.Message;
+
+import org.hawkular.bus.common.Endpoint;
+import org.hawkular.bus.common.JMSFakes;
+import org.hawkular.bus.common.MessageProcessor;
+import org.hawkular.bus.common.SimpleBasicMessage;
+import org.junit.Assert;
+import org.junit.Test;
+
+public class DuplicateDetectionTest {
+
+    private static final Endpoint QUEUE = new Endpoint(Endpoint.Type.QUEUE, "dedupQueue");
+
+    @Test
+    public void testByKey() throws Exception {
+        JMSFakes jms = new JMSFakes(false);
+        ProducerConnectionContext context = createContext(jms);
+        context.setDuplicateDetection(DuplicateDetection.byKey(m -> ((SimpleBasicMessage) m).getMessage()));
+
+        new MessageProcessor().send(context, new SimpleBasicMessage("order-42"));
+        Assert.assertEquals("order-42", getDuplicateId(jms.getSent().get(0)));
+    }
+
+    @Test
+    public void testByContentHash() throws Exception {
+        JMSFakes jms = new JMSFakes(false);
+        ProducerConnectionContext context = createContext(jms);
+        context.setDuplicateDetection(DuplicateDetection.byContentHash());
+        MessageProcessor processor = new MessageProcessor();
+
+        processor.send(context, new SimpleBasicMessage("hello"));
+        processor.send(context, new SimpleBasicMessage("hello"));
+        processor.send(context, new SimpleBasicMessage("goodbye"));
+        processor.send(context, new SimpleBasicMessage("hello"), Collections.singletonMap("extra", "header"));
+
+        String first = getDuplicateId(jms.getSent().get(0));
+        Assert.assertNotNull(first);
+        Assert.assertEquals(first, getDuplicateId(jms.getSent().get(1)));
+        Assert.assertNotEquals(first, getDuplicateId(jms.getSent().get(2)));
+        Assert.assertNotEquals(first, getDuplicateId(jms.getSent().get(3)));
+    }
+
+    @Test
+    public void testByContentHashWithNullHeaderValue() throws Exception {
+        DuplicateDetection detection = DuplicateDetection.byContentHash();
+        SimpleBasicMessage message = new SimpleBasicMessage("hello");
+
+        String withNull = detection.createId(message, Collections.singletonMap("extra", null),
+                detection.newContentDigest());
+        String withEmpty = detection.createId(message, Collections.singletonMap("extra", ""),
+                detection.newContentDigest());
+        Assert.assertEquals(withNull, detection.createId(message, Collections.singletonMap("extra", null),
+                detection.newContentDigest()));
+        Assert.assertNotEquals(withEmpty, withNull);
+    }
+
+    @Test
+    public void testBinaryData() throws Exception {
+        JMSFakes jms = new JMSFakes(false);
+        ProducerConnectionContext context = createContext(jms);
+        MessageProcessor processor = new MessageProcessor();
+
+        context.setDuplicateDetection(DuplicateDetection.byKey(m -> ((SimpleBasicMessage) m).getMessage()));
+        processor.sendWithBinaryData(context, new SimpleBasicMessage("file-7"), new ByteArrayInputStream(new byte[3]));
+        Assert.assertEquals("file-7", getDuplicateId(jms.getSent().get(0)));
+
+        // the binary data is not read until the message is sent, so there is no content to hash
+        context.setDuplicateDetection(DuplicateDetection.byContentHash());
+        processor.sendWithBinaryData(context, new SimpleBasicMessage("file-7"), new ByteArrayInputStream(new byte[3]));
+        Assert.assertNull(getDuplicateId(jms.getSent().get(1)));
+    }
+
+    @Test
+    public void testNoDuplicateDetection() throws Exception {
+        JMSFakes jms = new JMSFakes(false);
+        new MessageProcessor().send(createContext(jms), new SimpleBasicMessage("hello"));
+        Assert.assertNull(getDuplicateId(jms.getSent().get(0)));
+    }
+
+    @Test
+    public void testReceivedDuplicateIdIsNotForwarded() throws Exception {
+        SimpleBasicMessage received = new SimpleBasicMessage("received");
+        received.setHeaders(Collections.singletonMap(DuplicateDetection.HEADER_DUPLICATE_ID, "received-id"));
+
+        JMSFakes jms = new JMSFakes(false);
+        new MessageProcessor().send(createContext(jms), received);
+        Assert.assertNull(getDuplicateId(jms.getSent().get(0)));
+
+        ProducerConnectionContext context = createContext(jms);
+        context.setDuplicateDetection(DuplicateDetection.byKey(m -> "forwarded-id"));
+        new MessageProcessor().send(context, received);
+        Assert.assertEquals("forwarded-id", getDuplicateId(jms.getSent().get(1)));
+    }
+
+    @Test
+    public void testPooledProducerRetries() throws Exception {
+        JMSFakes jms = new JMSFakes(false);
+        try (PooledProducer producer = new PooledProducer(jms.createConnectionFactory())) {
+            producer.setDuplicateDetection(DuplicateDetection.byContentHash());
+            jms.setFailNextSends(2);
+            producer.send(QUEUE, new SimpleBasicMessage("retried"));
+
+            Assert.assertEquals(1, jms.getSent().size());
+            Assert.assertEquals(2, producer.getRetryCount());
+            Assert.assertNotNull(getDuplicateId(jms.getSent().get(0)));
+        }
+    }
+
+    @Test
+    public void testPooledProducerGivesUp() throws Exception {
+        JMSFakes jms = new JMSFakes(false);
+        try (PooledProducer producer = new PooledProducer(jms.createConnectionFactory())) {
+            producer.setDuplicateDetection(DuplicateDetection.byContentHash());
+            producer.setMaxRetries(1);
+            jms.setFailSends(true);
+            try {
+                producer.send(QUEUE, new SimpleBasicMessage("lost"));
+                Assert.fail("The send should have failed");
+            } catch (JMSException expected) {
+            }
+            Assert.assertEquals(1, producer.getRetryCount());
+        }
+    }
+
+    @Test
+    public void testPooledProducerDoesNotRetryWithoutDuplicateDetection() throws Exception {
+        JMSFakes jms = new JMSFakes(false);
+        try (PooledProducer producer = new PooledProducer(jms.createConnectionFactory())) {
+            jms.setFailNextSends(1);
+            try {
+                producer.send(QUEUE, new SimpleBasicMessage("once"));
+                Assert.fail("The send should have failed");
+            } catch (JMSException expected) {
+            }
+            Assert.assertEquals(0, producer.getRetryCount());
+            Assert.assertTrue(jms.getSent().isEmpty());
+        }
+    }
+
+    private static ProducerConnectionContext createContext(JMSFakes jms) {
+        ProducerConnectionContext context = new ProducerConnectionContext();
+        context.setSession(jms.getSession());
+        context.setMessageProducer(jms.createProducer(null));
+        return context;
+    }
+
+    private static String getDuplicateId(Message message) throws JMSException {
+        return message.getStringProperty(DuplicateDetection.HEADER_DUPLICATE_ID);
+    }
+}
@@ -0,0 +1,119 @@
+/*
+ * Copyright 2015 Red Hat, Inc. and/or its affiliates
+ * and other contributors as indicated by the @author tags.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.hawkular.bus.common.producer;
+
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+import javax.jms.JMSException;
+
+import org.hawkular.bus.common.JMSFakes;
+import org.hawkular.bus.common.MessageId;
+import org.hawkular.bus.common.MessageProcessor;
+import org.hawkular.bus.common.SimpleBasicMessage;
+import org.junit.Assert;
+import org.junit.Test;
+
+public class MessageBatchingTest {
+
+    @Test
+    public void testSendBatch() throws Exception {
+        JMSFakes jms = new JMSFakes(true);
+        SimpleBasicMessage first = new SimpleBasicMessage("first");
+        SimpleBasicMessage broken = new SimpleBasicMessage("broken");
+        broken.setHeaders(Collections.singletonMap(JMSFakes.FAIL_PROPERTY, "true"));
+        SimpleBasicMessage last = new SimpleBasicMessage("last");
+
+        BatchSendResult result = new MessageProcessor().sendBatch(createContext(jms),
+                Arrays.asList(first, broken, last));
+
+        Assert.assertEquals(1, jms.getCommits());
+        Assert.assertEquals(2, jms.getSent().size());
+        Assert.assertEquals(3, result.size());
+        Assert.assertFalse(result.isSuccessful());
+        Assert.assertEquals(Collections.singleton(1), result.getFailures().keySet());
+        Assert.assertTrue(result.getFailures().get(1) instanceof JMSException);
+
+        List<MessageId> ids = result.getMessageIds();
+        Assert.assertNotNull(ids.get(0));
+        Assert.assertNull(ids.get(1));
+        Assert.assertNotNull(ids.get(2));
+        Assert.assertEquals(ids.get(0), first.getMessageId());
+        Assert.assertNull(broken.getMessageId());
+        Assert.assertEquals(ids.get(2), last.getMessageId());
+    }
+
+    @Test
+    public void testFailedCommitRollsBack() throws Exception {
+        JMSFakes jms = new JMSFakes(true);
+        jms.setFailCommit(true);
+        SimpleBasicMessage message = new SimpleBasicMessage("message");
+        try {
+            new MessageProcessor().sendBatch(createContext(jms), Collections.singletonList(message));
+            Assert.fail("The commit should have failed");
+        } catch (JMSException expected) {
+        }
+        Assert.assertEquals(1, jms.getRollbacks());
+        Assert.assertTrue(jms.getSent().isEmpty());
+        Assert.assertNull(message.getMessageId());
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void testSendBatchNeedsTransactedSession() throws Exception {
+        new MessageProcessor().sendBatch(createContext(new JMSFakes(false)),
+                Collections.singletonList(new SimpleBasicMessage("message")));
+    }
+
+    @Test
+    public void testBatcher() throws Exception {
+        JMSFakes jms = new JMSFakes(true);
+        try (MessageBatcher batcher = new MessageBatcher(new MessageProcessor(), createContext(jms), 2, 1,
+                TimeUnit.HOURS, null)) {
+            batcher.add(new SimpleBasicMessage("1"));
+            Assert.assertEquals(1, batcher.getPendingCount());
+            Assert.assertEquals(0, jms.getCommits());
+
+            batcher.add(new SimpleBasicMessage("2"));
+            Assert.assertEquals(0, batcher.getPendingCount());
+            Assert.assertEquals(1, jms.getCommits());
+            Assert.assertEquals(2, jms.getSent().size());
+
+            batcher.add(new SimpleBasicMessage("3"));
+            BatchSendResult result = batcher.flush();
+            Assert.assertEquals(1, result.size());
+            Assert.assertTrue(result.isSuccessful());
+            Assert.assertEquals(2, jms.getCommits());
+
+            Assert.assertEquals(0, batcher.flush().size());
+            Assert.assertEquals(2, jms.getCommits());
+
+            batcher.add(new SimpleBasicMessage("4"));
+        }
+        // closing sends the last batch
+        Assert.assertEquals(3, jms.getCommits());
+        Assert.assertEquals(4, jms.getSent().size());
+    }
+
+    private static ProducerConnectionContext createContext(JMSFakes jms) {
+        ProducerConnectionContext context = new ProducerConnectionContext();
+        context.setSession(jms.getSession());
+        context.setMessageProducer(jms.createProducer(null));
+        return context;
+    }
+}
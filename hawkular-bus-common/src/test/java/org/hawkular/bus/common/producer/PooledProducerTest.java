@@ -0,0 +1,164 @@
+/*
+ * Copyright 2015 Red Hat, Inc. and/or its affiliates
+ * and other contributors as indicated by the @author tags.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.hawkular.bus.common.producer;
+
+import java.util.Collections;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+
+import javax.jms.JMSException;
+
+import org.hawkular.bus.common.Endpoint;
+import org.hawkular.bus.common.JMSFakes;
+import org.hawkular.bus.common.MessageProcessor;
+import org.hawkular.bus.common.SimpleBasicMessage;
+import org.junit.Assert;
+import org.junit.Test;
+
+public class PooledProducerTest {
+
+    private static final Endpoint QUEUE = new Endpoint(Endpoint.Type.QUEUE, "pooledQueue");
+
+    @Test
+    public void testConcurrentSends() throws Exception {
+        final JMSFakes jms = new JMSFakes(false);
+        final int threads = 8;
+        final int messagesPerThread = 50;
+        ExecutorService executor = Executors.newFixedThreadPool(threads);
+        try (final PooledProducer producer = new PooledProducer(jms.createConnectionFactory(),
+                new MessageProcessor(), null, 2)) {
+            Callable<Void> sender = new Callable<Void>() {
+                @Override
+                public Void call() throws Exception {
+                    for (int i = 0; i < messagesPerThread; i++) {
+                        producer.send(QUEUE, new SimpleBasicMessage("message " + i));
+                    }
+                    return null;
+                }
+            };
+            Future<?>[] results = new Future<?>[threads];
+            for (int i = 0; i < threads; i++) {
+                results[i] = executor.submit(sender);
+            }
+            for (Future<?> result : results) {
+                result.get(30, TimeUnit.SECONDS);
+            }
+
+            Assert.assertEquals(threads * messagesPerThread, jms.getSent().size());
+            Assert.assertEquals(1, jms.getConnectionsCreated());
+            Assert.assertTrue("Too many sessions: " + jms.getSessionsCreated(), jms.getSessionsCreated() <= 2);
+            Assert.assertEquals(jms.getSessionsCreated(), producer.getIdleCount(QUEUE));
+            Assert.assertEquals(threads * messagesPerThread, producer.getBorrowCount());
+            Assert.assertTrue(producer.getMaxBorrowWaitNanos() <= producer.getTotalBorrowWaitNanos());
+        } finally {
+            executor.shutdownNow();
+        }
+        Assert.assertEquals(jms.getSessionsCreated(), jms.getSessionsClosed());
+    }
+
+    @Test
+    public void testConnectionIsReplacedWhenItFails() throws Exception {
+        JMSFakes jms = new JMSFakes(false);
+        try (PooledProducer producer = new PooledProducer(jms.createConnectionFactory())) {
+            producer.send(QUEUE, new SimpleBasicMessage("before"));
+            Assert.assertEquals(1, producer.getIdleCount(QUEUE));
+
+            // the exception listener replaces the connection before anyone sends with it
+            jms.killConnections(true);
+            Assert.assertEquals(0, producer.getIdleCount(QUEUE));
+            producer.send(QUEUE, new SimpleBasicMessage("after"));
+            Assert.assertEquals(2, jms.getSent().size());
+            Assert.assertEquals(2, jms.getConnectionsCreated());
+            Assert.assertEquals(0, producer.getRetryCount());
+        }
+    }
+
+    @Test
+    public void testConnectionIsReplacedWhenASendFindsItDead() throws Exception {
+        JMSFakes jms = new JMSFakes(false);
+        try (PooledProducer producer = new PooledProducer(jms.createConnectionFactory())) {
+            producer.setDuplicateDetection(DuplicateDetection.byContentHash());
+            producer.send(QUEUE, new SimpleBasicMessage("before"));
+
+            // nobody is told, so the send fails and is retried with a new connection
+            jms.killConnections(false);
+            producer.send(QUEUE, new SimpleBasicMessage("after"));
+            Assert.assertEquals(2, jms.getSent().size());
+            Assert.assertEquals(2, jms.getConnectionsCreated());
+            Assert.assertEquals(1, producer.getRetryCount());
+        }
+
+        // without retries only the send that finds the connection dead fails
+        jms = new JMSFakes(false);
+        try (PooledProducer producer = new PooledProducer(jms.createConnectionFactory())) {
+            producer.send(QUEUE, new SimpleBasicMessage("before"));
+            jms.killConnections(false);
+            try {
+                producer.send(QUEUE, new SimpleBasicMessage("lost"));
+                Assert.fail("The connection was dead");
+            } catch (javax.jms.IllegalStateException expected) {
+            }
+            producer.send(QUEUE, new SimpleBasicMessage("after"));
+            Assert.assertEquals(2, jms.getSent().size());
+            Assert.assertEquals(2, jms.getConnectionsCreated());
+        }
+    }
+
+    @Test
+    public void testBorrowTimeout() throws Exception {
+        JMSFakes jms = new JMSFakes(false);
+        try (PooledProducer producer = new PooledProducer(jms.createConnectionFactory(), new MessageProcessor(),
+                null, 1)) {
+            producer.setBorrowTimeout(50, TimeUnit.MILLISECONDS);
+            ProducerConnectionContext borrowed = producer.borrow(QUEUE);
+            try {
+                producer.send(QUEUE, new SimpleBasicMessage("no room"));
+                Assert.fail("There should have been no producer available");
+            } catch (JMSException expected) {
+            }
+            Assert.assertEquals(1, producer.getBorrowTimeoutCount());
+            Assert.assertTrue(producer.getMaxBorrowWaitNanos() >= TimeUnit.MILLISECONDS.toNanos(50));
+
+            producer.release(QUEUE, borrowed, false);
+            producer.send(QUEUE, new SimpleBasicMessage("room"));
+            Assert.assertEquals(1, jms.getSent().size());
+        }
+    }
+
+    @Test
+    public void testBrokenProducerIsNotReused() throws Exception {
+        JMSFakes jms = new JMSFakes(false);
+        try (PooledProducer producer = new PooledProducer(jms.createConnectionFactory())) {
+            SimpleBasicMessage broken = new SimpleBasicMessage("broken");
+            broken.setHeaders(Collections.singletonMap(JMSFakes.FAIL_PROPERTY, "true"));
+            try {
+                producer.send(QUEUE, broken);
+                Assert.fail("The send should have failed");
+            } catch (JMSException expected) {
+            }
+            Assert.assertEquals(1, jms.getSessionsClosed());
+            Assert.assertEquals(0, producer.getIdleCount(QUEUE));
+
+            producer.send(QUEUE, new SimpleBasicMessage("fine"));
+            Assert.assertEquals(2, jms.getSessionsCreated());
+            Assert.assertEquals(1, producer.getIdleCount(QUEUE));
+        }
+    }
+}
@@ -0,0 +1,124 @@
+/*
+ * Copyright 2015 Red Hat, Inc. and/or its affiliates
+ * and other contributors as indicated by the @author tags.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.hawkular.bus.common.producer;
+
+import java.io.ByteArrayInputStream;
+import java.util.concurrent.TimeUnit;
+
+import javax.jms.JMSException;
+
+import org.hawkular.bus.common.JMSFakes;
+import org.hawkular.bus.common.MessageProcessor;
+import org.hawkular.bus.common.SimpleBasicMessage;
+import org.junit.Assert;
+import org.junit.Test;
+
+public class RateLimiterTest {
+
+    @Test
+    public void testBurstThenExhausted() {
+        RateLimiter limiter = new RateLimiter(0.1, 3);
+        Assert.assertTrue(limiter.tryAcquire());
+        Assert.assertTrue(limiter.tryAcquire());
+        Assert.assertTrue(limiter.tryAcquire());
+        Assert.assertFalse(limiter.tryAcquire());
+    }
+
+    @Test
+    public void testAcquireWaitsForToken() throws Exception {
+        RateLimiter limiter = new RateLimiter(50, 1);
+        Assert.assertTrue(limiter.tryAcquire());
+        long start = System.nanoTime();
+        limiter.acquire();
+        long waited = System.nanoTime() - start;
+        Assert.assertTrue("Waited only " + waited + "ns", waited >= TimeUnit.MILLISECONDS.toNanos(10));
+    }
+
+    @Test
+    public void testAdditiveIncreaseMultiplicativeDecrease() throws Exception {
+        RateLimiter limiter = new RateLimiter(100, 10, 1000, 10, 20, TimeUnit.MILLISECONDS);
+        limiter.recordSendLatency(TimeUnit.MILLISECONDS.toNanos(1));
+        Assert.assertEquals(110, limiter.getRate(), 0.001);
+
+        limiter.recordSendLatency(TimeUnit.MILLISECONDS.toNanos(50));
+        Assert.assertEquals(55, limiter.getRate(), 0.001);
+        // a burst of slow sends only counts once
+        limiter.recordSendLatency(TimeUnit.MILLISECONDS.toNanos(50));
+        Assert.assertEquals(55, limiter.getRate(), 0.001);
+
+        Thread.sleep(30);
+        limiter.recordSendFailure();
+        Assert.assertEquals(27.5, limiter.getRate(), 0.001);
+
+        Thread.sleep(30);
+        limiter.recordSendFailure();
+        Assert.assertEquals(13.75, limiter.getRate(), 0.001);
+        Thread.sleep(30);
+        limiter.recordSendFailure();
+        Assert.assertEquals(10, limiter.getRate(), 0.001);
+    }
+
+    @Test
+    public void testFixedRateDoesNotAdapt() {
+        RateLimiter limiter = new RateLimiter(100, 10);
+        limiter.recordSendLatency(TimeUnit.SECONDS.toNanos(10));
+        limiter.recordSendFailure();
+        Assert.assertEquals(100, limiter.getRate(), 0.001);
+    }
+
+    @Test
+    public void testTrySend() throws Exception {
+        JMSFakes jms = new JMSFakes(false);
+        ProducerConnectionContext context = new ProducerConnectionContext();
+        context.setSession(jms.getSession());
+        context.setMessageProducer(jms.createProducer(null));
+        context.setRateLimiter(new RateLimiter(0.1, 1));
+
+        MessageProcessor processor = new MessageProcessor();
+        SimpleBasicMessage first = new SimpleBasicMessage("first");
+        Assert.assertTrue(processor.trySend(context, first));
+        Assert.assertNotNull(first.getMessageId());
+        Assert.assertFalse(processor.trySend(context, new SimpleBasicMessage("second")));
+        Assert.assertEquals(1, jms.getSent().size());
+    }
+
+    @Test
+    public void testSendWithBinaryDataIsLimited() throws Exception {
+        JMSFakes jms = new JMSFakes(false);
+        ProducerConnectionContext context = new ProducerConnectionContext();
+        context.setSession(jms.getSession());
+        context.setMessageProducer(jms.createProducer(null));
+        RateLimiter limiter = new RateLimiter(0.1, 1);
+        context.setRateLimiter(limiter);
+
+        MessageProcessor processor = new MessageProcessor();
+        processor.sendWithBinaryData(context, new SimpleBasicMessage("binary"),
+                new ByteArrayInputStream(new byte[] { 1, 2, 3 }), null);
+        Assert.assertFalse("The binary send did not use the budget", limiter.tryAcquire());
+
+        limiter = new RateLimiter(100, 10, 1000, 10, 20, TimeUnit.MILLISECONDS);
+        context.setRateLimiter(limiter);
+        jms.setFailNextSends(1);
+        try {
+            processor.sendWithBinaryData(context, new SimpleBasicMessage("failed"),
+                    new ByteArrayInputStream(new byte[] { 1, 2, 3 }), null);
+            Assert.fail("The send should have failed");
+        } catch (JMSException expected) {
+        }
+        Assert.assertTrue("The failure was not recorded: " + limiter.getRate(), limiter.getRate() < 100);
+    }
+}
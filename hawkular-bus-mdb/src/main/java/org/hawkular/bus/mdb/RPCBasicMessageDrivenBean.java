@@ -16,18 +16,18 @@
  */
 package org.hawkular.bus.mdb;
 
+import javax.annotation.PreDestroy;
 import javax.jms.ConnectionFactory;
+import javax.jms.JMSException;
 
 import org.hawkular.bus.common.AbstractMessage;
-import org.hawkular.bus.common.ConnectionContextFactory;
-import org.hawkular.bus.common.Endpoint;
-import org.hawkular.bus.common.consumer.ConsumerConnectionContext;
 import org.hawkular.bus.common.consumer.RPCBasicMessageListener;
-import org.jboss.logging.Logger;
+import org.hawkular.bus.common.producer.ProducerConnectionContext;
 
 public abstract class RPCBasicMessageDrivenBean<T extends AbstractMessage, U extends AbstractMessage> extends
         RPCBasicMessageListener<T, U> {
-    private final Logger log = Logger.getLogger(RPCBasicMessageDrivenBean.class);
+    // container instances are used by one thread at a time
+    private ReplyConnectionContextPool replyConnectionContextPool;
 
     /**
      * MDB subclasses need to define this usually by returning a factory that is obtained through injection:
@@ -41,18 +41,40 @@ public abstract class RPCBasicMessageDrivenBean<T extends AbstractMessage, U ext
      */
     public abstract ConnectionFactory getConnectionFactory();
 
+    /**
+     * Borrows a context from the pool that all beans using the {@link #getConnectionFactory() connection factory}
+     * share, so responses are sent without creating a connection, session or producer for each of them.
+     */
+    @Override
+    protected ProducerConnectionContext getReplyConnectionContext() throws JMSException {
+        return getReplyConnectionContextPool().borrow();
+    }
+
+    /**
+     * Returns the context to the pool it was borrowed from, or closes it if the response could not be sent.
+     */
     @Override
-    public ConsumerConnectionContext getConsumerConnectionContext() {
-        ConsumerConnectionContext ctx = null;
-        try {
-            // here we build a faux consumer connection context whose data will be duplicated in
-            // a producer connection context so the response message can be sent. The endpoint we
-            // use here is just a dummy one - it will be replaced with the JMS ReplyTo by the superclass.
-            ConnectionContextFactory ccf = new ConnectionContextFactory(getConnectionFactory());
-            ctx = ccf.createConsumerConnectionContext(Endpoint.TEMPORARY_QUEUE);
-        } catch (Exception e) {
-            log.error("Failed to build context - will not be able to respond to message", e);
+    protected void releaseReplyConnectionContext(ProducerConnectionContext replyContext, boolean failed) {
+        // the pool was looked up when the context was borrowed
+        replyConnectionContextPool.release(replyContext, failed);
+    }
+
+    /**
+     * Lets go of the shared pool when the container discards this bean. The last bean to do so closes the pool along
+     * with the connections of its idle contexts, so nothing is left open once the beans are undeployed.
+     */
+    @PreDestroy
+    public void closeReplyConnectionContextPool() {
+        if (replyConnectionContextPool != null) {
+            replyConnectionContextPool.close();
+            replyConnectionContextPool = null;
+        }
+    }
+
+    private ReplyConnectionContextPool getReplyConnectionContextPool() throws JMSException {
+        if (replyConnectionContextPool == null) {
+            replyConnectionContextPool = ReplyConnectionContextPool.forConnectionFactory(getConnectionFactory());
         }
-        return ctx;
+        return replyConnectionContextPool;
     }
-}
\ No newline at end of file
+}
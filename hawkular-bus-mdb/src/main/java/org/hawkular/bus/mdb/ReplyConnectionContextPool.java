@@ -0,0 +1,166 @@
+/*
+ * Copyright 2015 Red Hat, Inc. and/or its affiliates
+ * and other contributors as indicated by the @author tags.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.hawkular.bus.mdb;
+
+import java.io.IOException;
+import java.util.Deque;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.ConcurrentLinkedDeque;
+
+import javax.jms.Connection;
+import javax.jms.ConnectionFactory;
+import javax.jms.JMSException;
+import javax.jms.Session;
+
+import org.hawkular.bus.common.log.MsgLogger;
+import org.hawkular.bus.common.producer.ProducerConnectionContext;
+
+/**
+ * Keeps the contexts that message-driven beans send their responses with, so that answering a request does not cost
+ * a connection, session and producer of its own. There is one pool per connection factory, shared by all beans that
+ * use the factory.
+ *
+ * Each context has a connection, session and anonymous producer of its own and nothing is shared between contexts,
+ * since containers allow only one session per connection. A context is used by one bean at a time and goes back to
+ * the pool once the response is sent, so the pool holds about as many contexts as there are beans replying at the
+ * same time. A context whose response could not be sent is closed, connection and all, so a connection that failed,
+ * e.g. because the broker was restarted, is never used again. Pooled contexts outlive the transactions they were
+ * created in, so responses are not sent as part of the bean's transaction.
+ *
+ * Each user of the pool {@link #close() closes} it when it no longer needs it, and the last one to do so closes the
+ * idle contexts.
+ */
+final class ReplyConnectionContextPool implements AutoCloseable {
+
+    // guarded by itself
+    private static final Map<ConnectionFactory, ReplyConnectionContextPool> POOLS = new HashMap<>();
+
+    private final MsgLogger msglog = MsgLogger.LOGGER;
+
+    private final ConnectionFactory connectionFactory;
+    private final Deque<ProducerConnectionContext> idle = new ConcurrentLinkedDeque<>();
+
+    // guarded by POOLS
+    private int users;
+
+    private volatile boolean closed;
+
+    /**
+     * Returns the pool of the given factory, creating it if it does not exist yet. Each call must be matched by a
+     * call to {@link #close()} once the caller no longer uses the pool.
+     *
+     * @param connectionFactory the factory the pool creates its connections with
+     * @return the pool of the factory
+     */
+    static ReplyConnectionContextPool forConnectionFactory(ConnectionFactory connectionFactory) {
+        if (connectionFactory == null) {
+            throw new IllegalArgumentException("connectionFactory must not be null");
+        }
+        synchronized (POOLS) {
+            ReplyConnectionContextPool pool = POOLS.get(connectionFactory);
+            if (pool == null) {
+                pool = new ReplyConnectionContextPool(connectionFactory);
+                POOLS.put(connectionFactory, pool);
+            }
+            pool.users++;
+            return pool;
+        }
+    }
+
+    private ReplyConnectionContextPool(ConnectionFactory connectionFactory) {
+        this.connectionFactory = connectionFactory;
+    }
+
+    /**
+     * @return an idle context, or a new one if all of them are in use
+     * @throws JMSException if a new context could not be created
+     */
+    ProducerConnectionContext borrow() throws JMSException {
+        if (closed) {
+            throw new IllegalStateException("The reply context pool has been closed");
+        }
+        // the most recently used context is taken first so that idle ones are not kept busy needlessly
+        ProducerConnectionContext context = idle.pollFirst();
+        if (context != null) {
+            return context;
+        }
+
+        Connection connection = connectionFactory.createConnection();
+        try {
+            Session session = connection.createSession(false, Session.AUTO_ACKNOWLEDGE);
+            context = new ProducerConnectionContext();
+            context.setConnection(connection);
+            context.setSession(session);
+            context.setMessageProducer(session.createProducer(null));
+            return context;
+        } catch (JMSException | RuntimeException e) {
+            connection.close();
+            throw e;
+        }
+    }
+
+    /**
+     * @param context the context that was borrowed
+     * @param broken if true, the context might no longer work so it is closed, along with its connection, rather
+     *            than used again
+     */
+    void release(ProducerConnectionContext context, boolean broken) {
+        if (!broken && !closed) {
+            idle.offerFirst(context);
+            // close() might have emptied the pool before we put the context back
+            if (!closed || !idle.remove(context)) {
+                return;
+            }
+        }
+        closeContext(context);
+    }
+
+    int getIdleCount() {
+        return idle.size();
+    }
+
+    /**
+     * Tells the pool that one of its users no longer needs it. When the last user closes the pool, its idle contexts
+     * are closed and the pool is forgotten, so the next bean to ask for one gets a new pool. Contexts that are in use
+     * are closed when they are released.
+     */
+    @Override
+    public void close() {
+        synchronized (POOLS) {
+            if (--users > 0) {
+                return;
+            }
+            if (POOLS.get(connectionFactory) == this) {
+                POOLS.remove(connectionFactory);
+            }
+        }
+        closed = true;
+        ProducerConnectionContext context;
+        while ((context = idle.pollFirst()) != null) {
+            closeContext(context);
+        }
+    }
+
+    private void closeContext(ProducerConnectionContext context) {
+        try {
+            context.close();
+        } catch (IOException e) {
+            msglog.errorFailedToCloseResourcesToRPCClient(e);
+        }
+    }
+}
@@ -0,0 +1,222 @@
+/*
+ * Copyright 2015 Red Hat, Inc. and/or its affiliates
+ * and other contributors as indicated by the @author tags.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.hawkular.bus.mdb;
+
+import java.lang.reflect.InvocationHandler;
+import java.lang.reflect.Method;
+import java.lang.reflect.Proxy;
+import java.util.ArrayList;
+import java.util.List;
+
+import javax.jms.Connection;
+import javax.jms.ConnectionFactory;
+import javax.jms.JMSException;
+import javax.jms.MessageProducer;
+import javax.jms.Session;
+
+import org.hawkular.bus.common.producer.ProducerConnectionContext;
+import org.junit.Assert;
+import org.junit.Test;
+
+public class ReplyConnectionContextPoolTest {
+
+    @Test
+    public void testContextsAreReused() throws Exception {
+        FakeBroker broker = new FakeBroker();
+        try (ReplyConnectionContextPool pool = ReplyConnectionContextPool.forConnectionFactory(broker.factory)) {
+            ProducerConnectionContext first = pool.borrow();
+            ProducerConnectionContext second = pool.borrow();
+            Assert.assertNotSame(first, second);
+            Assert.assertNotSame(first.getConnection(), second.getConnection());
+            pool.release(first, false);
+            pool.release(second, false);
+            Assert.assertEquals(2, pool.getIdleCount());
+            Assert.assertSame(second, pool.borrow());
+            Assert.assertEquals(2, broker.connections.size());
+        }
+    }
+
+    @Test
+    public void testConcurrentRepliesUseOneSessionPerConnection() throws Exception {
+        FakeBroker broker = new FakeBroker();
+        try (ReplyConnectionContextPool pool = ReplyConnectionContextPool.forConnectionFactory(broker.factory)) {
+            for (int i = 0; i < 5; i++) {
+                pool.borrow();
+            }
+            Assert.assertEquals(5, broker.connections.size());
+            for (FakeConnection connection : broker.connections) {
+                Assert.assertEquals(1, connection.sessionsCreated);
+            }
+        }
+    }
+
+    @Test
+    public void testFailedSendClosesTheWholeContext() throws Exception {
+        FakeBroker broker = new FakeBroker();
+        try (ReplyConnectionContextPool pool = ReplyConnectionContextPool.forConnectionFactory(broker.factory)) {
+            ProducerConnectionContext idle = pool.borrow();
+            ProducerConnectionContext failed = pool.borrow();
+            pool.release(idle, false);
+
+            broker.connections.get(1).dead = true;
+            pool.release(failed, true);
+            Assert.assertTrue(broker.connections.get(1).closed);
+            Assert.assertFalse(broker.connections.get(0).closed);
+            Assert.assertEquals(1, pool.getIdleCount());
+
+            Assert.assertSame(idle, pool.borrow());
+            ProducerConnectionContext next = pool.borrow();
+            Assert.assertEquals(3, broker.connections.size());
+            Assert.assertSame(broker.connections.get(2).proxy, next.getConnection());
+        }
+    }
+
+    @Test
+    public void testConnectionIsClosedWhenNoSessionCanBeCreated() throws Exception {
+        FakeBroker broker = new FakeBroker();
+        broker.deadOnCreation = true;
+        try (ReplyConnectionContextPool pool = ReplyConnectionContextPool.forConnectionFactory(broker.factory)) {
+            try {
+                pool.borrow();
+                Assert.fail("The connection could not create a session");
+            } catch (JMSException expected) {
+            }
+            Assert.assertTrue(broker.connections.get(0).closed);
+        }
+    }
+
+    @Test
+    public void testLastUserClosesThePool() throws Exception {
+        FakeBroker broker = new FakeBroker();
+        ReplyConnectionContextPool pool = ReplyConnectionContextPool.forConnectionFactory(broker.factory);
+        Assert.assertSame(pool, ReplyConnectionContextPool.forConnectionFactory(broker.factory));
+        ProducerConnectionContext inUse = pool.borrow();
+        pool.release(pool.borrow(), false);
+
+        pool.close();
+        Assert.assertFalse(broker.connections.get(1).closed);
+        Assert.assertEquals(1, pool.getIdleCount());
+
+        pool.close();
+        Assert.assertTrue(broker.connections.get(1).closed);
+        Assert.assertEquals(0, pool.getIdleCount());
+        try {
+            pool.borrow();
+            Assert.fail("The pool was closed");
+        } catch (IllegalStateException expected) {
+        }
+
+        // contexts that were in use are closed once they are given back
+        Assert.assertFalse(broker.connections.get(0).closed);
+        pool.release(inUse, false);
+        Assert.assertTrue(broker.connections.get(0).closed);
+        Assert.assertEquals(0, pool.getIdleCount());
+
+        try (ReplyConnectionContextPool newPool = ReplyConnectionContextPool.forConnectionFactory(broker.factory)) {
+            Assert.assertNotSame(pool, newPool);
+        }
+    }
+
+    /**
+     * Hands out connections whose sessions and producers do nothing, and which can be made to fail. Like containers
+     * do, a connection allows only one open session at a time.
+     */
+    private static class FakeBroker {
+        final List<FakeConnection> connections = new ArrayList<>();
+        volatile boolean deadOnCreation;
+        final ConnectionFactory factory = proxy(ConnectionFactory.class, new InvocationHandler() {
+            @Override
+            public Object invoke(Object proxy, Method method, Object[] args) {
+                if (method.getName().equals("createConnection")) {
+                    FakeConnection connection = new FakeConnection();
+                    connection.dead = deadOnCreation;
+                    connections.add(connection);
+                    return connection.proxy;
+                }
+                return defaultResult(proxy, method, args);
+            }
+        });
+    }
+
+    private static class FakeConnection implements InvocationHandler {
+        final Connection proxy = proxy(Connection.class, this);
+        volatile boolean dead;
+        volatile boolean closed;
+        volatile boolean sessionOpen;
+        volatile int sessionsCreated;
+
+        @Override
+        public synchronized Object invoke(Object proxy, Method method, Object[] args) throws Throwable {
+            switch (method.getName()) {
+                case "createSession":
+                    if (dead || closed) {
+                        throw new javax.jms.IllegalStateException("The connection is closed");
+                    }
+                    if (sessionOpen) {
+                        throw new javax.jms.IllegalStateException("Only one session per connection is allowed");
+                    }
+                    sessionOpen = true;
+                    sessionsCreated++;
+                    return proxy(Session.class, new InvocationHandler() {
+                        @Override
+                        public Object invoke(Object session, Method method, Object[] args) {
+                            switch (method.getName()) {
+                                case "createProducer":
+                                    return proxy(MessageProducer.class, new InvocationHandler() {
+                                        @Override
+                                        public Object invoke(Object producer, Method method, Object[] args) {
+                                            return defaultResult(producer, method, args);
+                                        }
+                                    });
+                                case "close":
+                                    sessionOpen = false;
+                                    return null;
+                                default:
+                                    return defaultResult(session, method, args);
+                            }
+                        }
+                    });
+                case "close":
+                    closed = true;
+                    sessionOpen = false;
+                    return null;
+                default:
+                    return defaultResult(proxy, method, args);
+            }
+        }
+    }
+
+    private static Object defaultResult(Object proxy, Method method, Object[] args) {
+        switch (method.getName()) {
+            case "hashCode":
+                return System.identityHashCode(proxy);
+            case "equals":
+                return proxy == args[0];
+            case "toString":
+                return proxy.getClass().getSimpleName();
+            default:
+                // start, close and the like
+                return null;
+        }
+    }
+
+    @SuppressWarnings("unchecked")
+    private static <T> T proxy(Class<T> type, InvocationHandler handler) {
+        return (T) Proxy.newProxyInstance(ReplyConnectionContextPoolTest.class.getClassLoader(),
+                new Class<?>[] { type }, handler);
+    }
+}
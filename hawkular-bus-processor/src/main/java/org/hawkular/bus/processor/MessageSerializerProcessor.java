@@ -0,0 +1,567 @@
+/*
+ * Copyright 2015 Red Hat, Inc. and/or its affiliates
+ * and other contributors as indicated by the @author tags.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.hawkular.bus.processor;
+
+import java.io.IOException;
+import java.io.PrintWriter;
+import java.io.Writer;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+import javax.annotation.processing.AbstractProcessor;
+import javax.annotation.processing.RoundEnvironment;
+import javax.annotation.processing.SupportedAnnotationTypes;
+import javax.lang.model.SourceVersion;
+import javax.lang.model.element.AnnotationMirror;
+import javax.lang.model.element.AnnotationValue;
+import javax.lang.model.element.Element;
+import javax.lang.model.element.ElementKind;
+import javax.lang.model.element.ExecutableElement;
+import javax.lang.model.element.Modifier;
+import javax.lang.model.element.PackageElement;
+import javax.lang.model.element.TypeElement;
+import javax.lang.model.element.VariableElement;
+import javax.lang.model.type.DeclaredType;
+import javax.lang.model.type.PrimitiveType;
+import javax.lang.model.type.TypeKind;
+import javax.lang.model.type.TypeMirror;
+import javax.lang.model.util.ElementFilter;
+import javax.lang.model.util.Elements;
+import javax.lang.model.util.Types;
+import javax.tools.Diagnostic;
+
+/**
+ * Generates a Jackson streaming serializer for each concrete message class (a subclass of
+ * {@code org.hawkular.bus.common.AbstractMessage}) in the sources being compiled. The serializers are named after
+ * the message class with {@value #SERIALIZER_SUFFIX} appended and extend
+ * {@code org.hawkular.bus.common.codec.GeneratedMessageSerializer}; the bus finds them at runtime by that name.
+ *
+ * The generated code writes the same fields the serialization mapper of {@code AbstractMessage} writes (all
+ * non-static, non-transient fields that are not {@code @JsonIgnore}d, named as in {@code @JsonProperty}), and reads
+ * them back into the same fields. A serializer is only generated when that can be done without reflection and without
+ * guessing what Jackson would do; otherwise a note is printed and the message class keeps using Jackson databind.
+ * In particular:
+ * <ul>
+ * <li>the message class must be a non-generic class with a no-arg constructor the generated class can call</li>
+ * <li>fields must be strings, primitives or their wrappers, enums or {@code Map<String, String>}</li>
+ * <li>fields must not be final; private fields need a getter and a setter the generated class can call</li>
+ * <li>the mapper hooks of {@code AbstractMessage} must not be overridden</li>
+ * <li>Jackson annotations other than {@code @JsonIgnore} and {@code @JsonProperty("name")} on fields are not
+ * supported</li>
+ * </ul>
+ */
+@SupportedAnnotationTypes("*")
+public class MessageSerializerProcessor extends AbstractProcessor {
+
+    static final String ABSTRACT_MESSAGE = "org.hawkular.bus.common.AbstractMessage";
+    static final String GENERATED_SUPERCLASS = "org.hawkular.bus.common.codec.GeneratedMessageSerializer";
+
+    /**
+     * Must be the same as {@code org.hawkular.bus.common.codec.MessageSerializer.GENERATED_CLASS_SUFFIX}.
+     */
+    static final String SERIALIZER_SUFFIX = "_MessageSerializer";
+
+    private static final String JACKSON_PACKAGE_PREFIX = "com.fasterxml.jackson.";
+    private static final String JSON_IGNORE = "com.fasterxml.jackson.annotation.JsonIgnore";
+    private static final String JSON_PROPERTY = "com.fasterxml.jackson.annotation.JsonProperty";
+    private static final Set<String> MAPPER_HOOKS = new HashSet<>(Arrays.asList(
+            "buildObjectMapperForSerialization", "buildObjectMapperForDeserialization"));
+
+    /**
+     * The property types the generated code supports, with the helper methods of the generated superclass that
+     * read and write them.
+     */
+    private enum Kind {
+        STRING("readString", "writeString"),
+        BOOLEAN("readBoolean", "writeBoolean"),
+        BYTE("readByte", "writeNumber"),
+        SHORT("readShort", "writeNumber"),
+        INT("readInteger", "writeNumber"),
+        LONG("readLong", "writeNumber"),
+        FLOAT("readFloat", "writeNumber"),
+        DOUBLE("readDouble", "writeNumber"),
+        ENUM("readEnum", "writeEnum"),
+        STRING_MAP("readStringMap", "writeStringMap");
+
+        final String reader;
+        final String writer;
+
+        Kind(String reader, String writer) {
+            this.reader = reader;
+            this.writer = writer;
+        }
+    }
+
+    /**
+     * A field of the message class and how the generated code gets to it.
+     */
+    private static final class Property {
+        String name;
+        Kind kind;
+        TypeMirror type;
+        boolean primitive;
+        String getExpression;
+        String setMethod; // null if the field is assigned directly
+        String fieldName;
+    }
+
+    /**
+     * Thrown when no serializer can be generated for a message class.
+     */
+    private static final class UnsupportedMessageException extends Exception {
+        private static final long serialVersionUID = 1L;
+        final Element element;
+
+        UnsupportedMessageException(String reason, Element element) {
+            super(reason);
+            this.element = element;
+        }
+    }
+
+    private Elements elements;
+    private Types types;
+
+    @Override
+    public SourceVersion getSupportedSourceVersion() {
+        return SourceVersion.latestSupported();
+    }
+
+    @Override
+    public boolean process(Set<? extends TypeElement> annotations, RoundEnvironment roundEnv) {
+        elements = processingEnv.getElementUtils();
+        types = processingEnv.getTypeUtils();
+
+        TypeElement abstractMessage = elements.getTypeElement(ABSTRACT_MESSAGE);
+        if (abstractMessage == null) {
+            return false; // the bus is not on the classpath so there cannot be any messages
+        }
+        TypeMirror abstractMessageType = types.erasure(abstractMessage.asType());
+
+        for (TypeElement type : ElementFilter.typesIn(roundEnv.getRootElements())) {
+            processType(type, abstractMessageType);
+        }
+
+        // we only look at the sources, other processors are free to handle whatever annotations they have
+        return false;
+    }
+
+    private void processType(TypeElement type, TypeMirror abstractMessageType) {
+        if (type.getKind() == ElementKind.CLASS && !type.getModifiers().contains(Modifier.ABSTRACT)
+                && types.isSubtype(types.erasure(type.asType()), abstractMessageType)) {
+            try {
+                List<Property> properties = collectProperties(type);
+                generate(type, properties);
+            } catch (UnsupportedMessageException e) {
+                processingEnv.getMessager().printMessage(Diagnostic.Kind.NOTE, "No serializer generated for ["
+                        + type.getQualifiedName() + "], it will use Jackson databind: " + e.getMessage(), e.element);
+            } catch (IOException e) {
+                processingEnv.getMessager().printMessage(Diagnostic.Kind.ERROR, "Cannot write serializer for ["
+                        + type.getQualifiedName() + "]: " + e, type);
+            }
+        }
+
+        for (TypeElement nested : ElementFilter.typesIn(type.getEnclosedElements())) {
+            processType(nested, abstractMessageType);
+        }
+    }
+
+    private List<Property> collectProperties(TypeElement type) throws UnsupportedMessageException {
+        if (!type.getTypeParameters().isEmpty()) {
+            throw new UnsupportedMessageException("generic message classes are not supported", type);
+        }
+        for (Element e = type; e instanceof TypeElement; e = e.getEnclosingElement()) {
+            if (e.getModifiers().contains(Modifier.PRIVATE)) {
+                throw new UnsupportedMessageException("the class is not accessible", type);
+            }
+            if (e.getEnclosingElement() instanceof TypeElement && !e.getModifiers().contains(Modifier.STATIC)) {
+                throw new UnsupportedMessageException("inner classes are not supported", type);
+            }
+        }
+        if (!hasAccessibleNoArgConstructor(type)) {
+            throw new UnsupportedMessageException("there is no accessible no-arg constructor", type);
+        }
+
+        // databind writes the fields of the superclasses first
+        List<TypeElement> hierarchy = new ArrayList<>();
+        for (TypeElement t = type; t != null; t = superclassOf(t)) {
+            hierarchy.add(0, t);
+        }
+
+        List<Property> properties = new ArrayList<>();
+        Set<String> names = new HashSet<>();
+        for (TypeElement t : hierarchy) {
+            boolean isAbstractMessage = t.getQualifiedName().contentEquals(ABSTRACT_MESSAGE);
+            if (!isAbstractMessage) {
+                checkNoJacksonAnnotations(t);
+            }
+            for (ExecutableElement method : ElementFilter.methodsIn(t.getEnclosedElements())) {
+                if (!isAbstractMessage && MAPPER_HOOKS.contains(method.getSimpleName().toString())) {
+                    throw new UnsupportedMessageException("the class overrides a mapper hook", method);
+                }
+                checkNoJacksonAnnotations(method);
+                if (isAutoDetectedIsGetter(method)) {
+                    throw new UnsupportedMessageException("the public is-getter would be serialized by databind",
+                            method);
+                }
+            }
+            for (VariableElement field : ElementFilter.fieldsIn(t.getEnclosedElements())) {
+                Property property = toProperty(type, field);
+                if (property != null) {
+                    if (!names.add(property.name)) {
+                        throw new UnsupportedMessageException("the property name [" + property.name
+                                + "] is used more than once", field);
+                    }
+                    properties.add(property);
+                }
+            }
+        }
+        return properties;
+    }
+
+    /**
+     * @return the property or <code>null</code> if the field is not serialized
+     */
+    private Property toProperty(TypeElement type, VariableElement field) throws UnsupportedMessageException {
+        Set<Modifier> modifiers = field.getModifiers();
+        if (modifiers.contains(Modifier.STATIC) || modifiers.contains(Modifier.TRANSIENT)) {
+            return null;
+        }
+
+        String name = field.getSimpleName().toString();
+        for (AnnotationMirror annotation : field.getAnnotationMirrors()) {
+            String annotationName = annotationName(annotation);
+            if (JSON_IGNORE.equals(annotationName)) {
+                return null;
+            } else if (JSON_PROPERTY.equals(annotationName)) {
+                Map<? extends ExecutableElement, ? extends AnnotationValue> values = annotation.getElementValues();
+                for (Map.Entry<? extends ExecutableElement, ? extends AnnotationValue> value : values.entrySet()) {
+                    if (!value.getKey().getSimpleName().contentEquals("value")) {
+                        throw new UnsupportedMessageException("only the value of @JsonProperty is supported", field);
+                    }
+                    String renamed = String.valueOf(value.getValue().getValue());
+                    if (!renamed.isEmpty()) {
+                        name = renamed;
+                    }
+                }
+            } else if (annotationName.startsWith(JACKSON_PACKAGE_PREFIX)) {
+                throw new UnsupportedMessageException("@" + annotationName + " is not supported", field);
+            }
+        }
+
+        if (modifiers.contains(Modifier.FINAL)) {
+            throw new UnsupportedMessageException("final fields are not supported", field);
+        }
+
+        Property property = new Property();
+        property.name = name;
+        property.fieldName = field.getSimpleName().toString();
+        property.type = field.asType();
+        property.primitive = property.type.getKind().isPrimitive();
+        property.kind = kindOf(property.type, field);
+
+        String capitalized = Character.toUpperCase(property.fieldName.charAt(0)) + property.fieldName.substring(1);
+        if (isAccessible(field, type)) {
+            property.getExpression = "message." + property.fieldName;
+            property.setMethod = null;
+        } else {
+            ExecutableElement getter = findMethod(type, "get" + capitalized, null);
+            if (getter == null && property.type.getKind() == TypeKind.BOOLEAN) {
+                getter = findMethod(type, "is" + capitalized, null);
+            }
+            if (getter == null || !types.isSameType(getter.getReturnType(), property.type)) {
+                throw new UnsupportedMessageException("the private field has no accessible getter", field);
+            }
+            ExecutableElement setter = findMethod(type, "set" + capitalized, property.type);
+            if (setter == null) {
+                throw new UnsupportedMessageException("the private field has no accessible setter", field);
+            }
+            property.getExpression = "message." + getter.getSimpleName() + "()";
+            property.setMethod = setter.getSimpleName().toString();
+        }
+        return property;
+    }
+
+    private Kind kindOf(TypeMirror type, Element field) throws UnsupportedMessageException {
+        switch (type.getKind()) {
+            case BOOLEAN:
+                return Kind.BOOLEAN;
+            case BYTE:
+                return Kind.BYTE;
+            case SHORT:
+                return Kind.SHORT;
+            case INT:
+                return Kind.INT;
+            case LONG:
+                return Kind.LONG;
+            case FLOAT:
+                return Kind.FLOAT;
+            case DOUBLE:
+                return Kind.DOUBLE;
+            case DECLARED:
+                break;
+            default:
+                throw new UnsupportedMessageException("fields of type [" + type + "] are not supported", field);
+        }
+
+        TypeElement element = (TypeElement) types.asElement(type);
+        if (element.getKind() == ElementKind.ENUM) {
+            checkNoJacksonAnnotations(element);
+            for (Element member : element.getEnclosedElements()) {
+                checkNoJacksonAnnotations(member);
+            }
+            return Kind.ENUM;
+        }
+
+        switch (element.getQualifiedName().toString()) {
+            case "java.lang.String":
+                return Kind.STRING;
+            case "java.lang.Boolean":
+                return Kind.BOOLEAN;
+            case "java.lang.Byte":
+                return Kind.BYTE;
+            case "java.lang.Short":
+                return Kind.SHORT;
+            case "java.lang.Integer":
+                return Kind.INT;
+            case "java.lang.Long":
+                return Kind.LONG;
+            case "java.lang.Float":
+                return Kind.FLOAT;
+            case "java.lang.Double":
+                return Kind.DOUBLE;
+            case "java.util.Map":
+                List<? extends TypeMirror> args = ((DeclaredType) type).getTypeArguments();
+                if (args.size() == 2 && isString(args.get(0)) && isString(args.get(1))) {
+                    return Kind.STRING_MAP;
+                }
+                break;
+            default:
+                break;
+        }
+        throw new UnsupportedMessageException("fields of type [" + type + "] are not supported", field);
+    }
+
+    private boolean isString(TypeMirror type) {
+        return type.getKind() == TypeKind.DECLARED
+                && ((TypeElement) types.asElement(type)).getQualifiedName().contentEquals("java.lang.String");
+    }
+
+    private TypeElement superclassOf(TypeElement type) {
+        TypeMirror superclass = type.getSuperclass();
+        if (superclass.getKind() != TypeKind.DECLARED) {
+            return null;
+        }
+        TypeElement element = (TypeElement) types.asElement(superclass);
+        return element.getQualifiedName().contentEquals(Object.class.getName()) ? null : element;
+    }
+
+    private boolean hasAccessibleNoArgConstructor(TypeElement type) {
+        for (ExecutableElement constructor : ElementFilter.constructorsIn(type.getEnclosedElements())) {
+            if (constructor.getParameters().isEmpty() && isAccessible(constructor, type)) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    /**
+     * Looks for a non-static method, possibly inherited, that the generated class can call.
+     *
+     * @param parameterType the type of the single parameter, or <code>null</code> for a method without parameters
+     */
+    private ExecutableElement findMethod(TypeElement type, String name, TypeMirror parameterType) {
+        for (ExecutableElement method : ElementFilter.methodsIn(elements.getAllMembers(type))) {
+            if (!method.getSimpleName().contentEquals(name) || method.getModifiers().contains(Modifier.STATIC)
+                    || !isAccessible(method, type)) {
+                continue;
+            }
+            List<? extends VariableElement> params = method.getParameters();
+            if (parameterType == null ? params.isEmpty()
+                    : (params.size() == 1 && types.isSameType(params.get(0).asType(), parameterType))) {
+                return method;
+            }
+        }
+        return null;
+    }
+
+    /**
+     * Databind auto-detects public is-getters even though the serialization mapper turns off getter detection.
+     */
+    private boolean isAutoDetectedIsGetter(ExecutableElement method) {
+        String name = method.getSimpleName().toString();
+        Set<Modifier> modifiers = method.getModifiers();
+        return name.length() > 2 && name.startsWith("is") && modifiers.contains(Modifier.PUBLIC)
+                && !modifiers.contains(Modifier.STATIC) && method.getParameters().isEmpty()
+                && method.getReturnType().getKind() == TypeKind.BOOLEAN;
+    }
+
+    /**
+     * @return true if the generated serializer, which is in the same package as the message class, can use the member
+     */
+    private boolean isAccessible(Element member, TypeElement type) {
+        Set<Modifier> modifiers = member.getModifiers();
+        if (modifiers.contains(Modifier.PUBLIC)) {
+            return true;
+        }
+        if (modifiers.contains(Modifier.PRIVATE)) {
+            return false;
+        }
+        PackageElement memberPackage = elements.getPackageOf(member);
+        return memberPackage.equals(elements.getPackageOf(type));
+    }
+
+    private void checkNoJacksonAnnotations(Element element) throws UnsupportedMessageException {
+        for (AnnotationMirror annotation : element.getAnnotationMirrors()) {
+            String annotationName = annotationName(annotation);
+            if (annotationName.startsWith(JACKSON_PACKAGE_PREFIX)) {
+                throw new UnsupportedMessageException("@" + annotationName + " is not supported", element);
+            }
+        }
+    }
+
+    private static String annotationName(AnnotationMirror annotation) {
+        return ((TypeElement) annotation.getAnnotationType().asElement()).getQualifiedName().toString();
+    }
+
+    private void generate(TypeElement type, List<Property> properties) throws IOException {
+        String packageName = elements.getPackageOf(type).getQualifiedName().toString();
+        String binaryName = elements.getBinaryName(type).toString();
+        String simpleName = (packageName.isEmpty() ? binaryName : binaryName.substring(packageName.length() + 1))
+                + SERIALIZER_SUFFIX;
+        String qualifiedName = (packageName.isEmpty() ? "" : packageName + ".") + simpleName;
+        String messageType = type.getQualifiedName().toString();
+
+        Writer writer = processingEnv.getFiler().createSourceFile(qualifiedName, type).openWriter();
+        try (PrintWriter out = new PrintWriter(writer)) {
+            if (!packageName.isEmpty()) {
+                out.println("package " + packageName + ";");
+                out.println();
+            }
+            out.println("/**");
+            out.println(" * Serializer for {@link " + messageType + "}.");
+            out.println(" * Generated by " + getClass().getName() + " - do not edit.");
+            out.println(" */");
+            out.println("public final class " + simpleName + " extends " + GENERATED_SUPERCLASS + "<" + messageType
+                    + "> {");
+            out.println();
+            out.println("    public " + simpleName + "() {");
+            out.println("        super(" + messageType + ".class);");
+            out.println("    }");
+            out.println();
+            out.println("    @Override");
+            out.println("    public void serialize(" + messageType + " message, "
+                    + "com.fasterxml.jackson.core.JsonGenerator generator) throws java.io.IOException {");
+            out.println("        generator.writeStartObject();");
+            for (Property property : properties) {
+                out.println("        " + writeStatement(property));
+            }
+            out.println("        generator.writeEndObject();");
+            out.println("    }");
+            out.println();
+            out.println("    @Override");
+            out.println("    protected " + messageType + " newMessage() {");
+            out.println("        return new " + messageType + "();");
+            out.println("    }");
+            out.println();
+            out.println("    @Override");
+            out.println("    protected boolean readProperty(" + messageType + " message, String name, "
+                    + "com.fasterxml.jackson.core.JsonParser parser) throws java.io.IOException {");
+            out.println("        switch (name) {");
+            for (Property property : properties) {
+                out.println("            case " + quote(property.name) + ": {");
+                out.println("                " + readStatement(property));
+                out.println("                return true;");
+                out.println("            }");
+            }
+            out.println("            default:");
+            out.println("                return false;");
+            out.println("        }");
+            out.println("    }");
+            out.println("}");
+        }
+    }
+
+    private String writeStatement(Property property) {
+        String name = quote(property.name);
+        if (property.primitive) {
+            // no need to box primitives just to check them for null
+            String method = (property.kind == Kind.BOOLEAN) ? "writeBooleanField" : "writeNumberField";
+            return "generator." + method + "(" + name + ", " + property.getExpression + ");";
+        }
+        return property.kind.writer + "(generator, " + name + ", " + property.getExpression + ");";
+    }
+
+    private String readStatement(Property property) {
+        String value;
+        if (property.kind == Kind.ENUM) {
+            value = property.kind.reader + "(parser, " + types.erasure(property.type) + ".class)";
+        } else {
+            value = property.kind.reader + "(parser)";
+        }
+
+        StringBuilder statement = new StringBuilder();
+        if (property.primitive) {
+            // databind sets primitives to their default value when it reads null
+            statement.append(types.boxedClass((PrimitiveType) property.type).getQualifiedName())
+                    .append(" value = ").append(value).append(";\n                ");
+            value = "(value == null) ? " + defaultValue(property.type.getKind()) + " : value";
+        }
+        if (property.setMethod != null) {
+            statement.append("message.").append(property.setMethod).append("(").append(value).append(");");
+        } else {
+            statement.append("message.").append(property.fieldName).append(" = ").append(value).append(";");
+        }
+        return statement.toString();
+    }
+
+    private static String defaultValue(TypeKind kind) {
+        switch (kind) {
+            case BOOLEAN:
+                return "false";
+            case BYTE:
+                return "(byte) 0";
+            case SHORT:
+                return "(short) 0";
+            case LONG:
+                return "0L";
+            case FLOAT:
+                return "0f";
+            case DOUBLE:
+                return "0d";
+            default:
+                return "0";
+        }
+    }
+
+    private static String quote(String s) {
+        StringBuilder quoted = new StringBuilder("\"");
+        for (char c : s.toCharArray()) {
+            if (c == '"' || c == '\\') {
+                quoted.append('\\').append(c);
+            } else if (c < 0x20 || c > 0x7e) {
+                quoted.append(String.format("\\u%04x", (int) c));
+            } else {
+                quoted.append(c);
+            }
+        }
+        return quoted.append('"').toString();
+    }
+}
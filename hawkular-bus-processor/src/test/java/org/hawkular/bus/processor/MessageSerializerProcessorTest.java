@@ -0,0 +1,180 @@
+/*
+ * Copyright 2015 Red Hat, Inc. and/or its affiliates
+ * and other contributors as indicated by the @author tags.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.hawkular.bus.processor;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+import java.io.File;
+import java.io.IOException;
+import java.net.URI;
+import java.net.URISyntaxException;
+import java.net.URL;
+import java.net.URLClassLoader;
+import java.nio.file.FileVisitResult;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.SimpleFileVisitor;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+import javax.tools.Diagnostic;
+import javax.tools.DiagnosticCollector;
+import javax.tools.JavaCompiler;
+import javax.tools.JavaFileObject;
+import javax.tools.SimpleJavaFileObject;
+import javax.tools.ToolProvider;
+
+import org.hawkular.bus.common.AbstractMessage;
+import org.hawkular.bus.common.BasicMessage;
+import org.hawkular.bus.common.JsonCodecRegistry;
+import org.hawkular.bus.common.codec.MessageSerializer;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import com.fasterxml.jackson.annotation.JsonIgnore;
+import com.fasterxml.jackson.core.JsonGenerator;
+import com.fasterxml.jackson.databind.ObjectMapper;
+
+public class MessageSerializerProcessorTest {
+
+    private static final String SUPPORTED = "package sample;\n"
+            + "public class SupportedMessage extends org.hawkular.bus.common.AbstractMessage {\n"
+            + "    public enum Color { RED, GREEN }\n"
+            + "    private String text;\n"
+            + "    int count;\n"
+            + "    Long big;\n"
+            + "    boolean flag;\n"
+            + "    Color color;\n"
+            + "    @com.fasterxml.jackson.annotation.JsonProperty(\"renamed\") String original;\n"
+            + "    @com.fasterxml.jackson.annotation.JsonIgnore String ignored;\n"
+            + "    java.util.Map<String, String> details;\n"
+            + "    public String getText() { return text; }\n"
+            + "    public void setText(String text) { this.text = text; }\n"
+            + "}\n";
+
+    private static final String UNSUPPORTED = "package sample;\n"
+            + "public class UnsupportedMessage extends org.hawkular.bus.common.AbstractMessage {\n"
+            + "    java.util.List<String> items;\n"
+            + "}\n";
+
+    private Path outputDir;
+
+    @Before
+    public void createOutputDir() throws IOException {
+        outputDir = Files.createTempDirectory("hawkular-bus-processor-test");
+    }
+
+    @After
+    public void deleteOutputDir() throws IOException {
+        Files.walkFileTree(outputDir, new SimpleFileVisitor<Path>() {
+            @Override
+            public FileVisitResult visitFile(Path file, BasicFileAttributes attrs) throws IOException {
+                Files.delete(file);
+                return FileVisitResult.CONTINUE;
+            }
+
+            @Override
+            public FileVisitResult postVisitDirectory(Path dir, IOException exc) throws IOException {
+                Files.delete(dir);
+                return FileVisitResult.CONTINUE;
+            }
+        });
+    }
+
+    @Test
+    public void testGeneratedSerializerWritesWhatDatabindWrites() throws Exception {
+        List<Diagnostic<? extends JavaFileObject>> diagnostics = compile(SUPPORTED, UNSUPPORTED);
+
+        try (URLClassLoader cl = new URLClassLoader(new URL[] { outputDir.toUri().toURL() },
+                getClass().getClassLoader())) {
+            Class<? extends BasicMessage> supported = cl.loadClass("sample.SupportedMessage")
+                    .asSubclass(BasicMessage.class);
+            MessageSerializer<? extends BasicMessage> serializer = JsonCodecRegistry.serializerFor(supported);
+            assertNotNull("Serializer should have been generated", serializer);
+            assertEquals("sample.SupportedMessage" + MessageSerializer.GENERATED_CLASS_SUFFIX,
+                    serializer.getClass().getName());
+
+            String json = "{\"text\":\"hello\",\"count\":3,\"big\":12345678901,\"flag\":true,\"color\":\"GREEN\","
+                    + "\"renamed\":\"r\",\"details\":{\"a\":\"b\"}}";
+            AbstractMessage msg = (AbstractMessage) AbstractMessage.fromJSON(
+                    json.replace("}}", "},\"unknown\":[1,{\"x\":2}]}"), supported);
+
+            ObjectMapper mapper = new ObjectMapper();
+            assertEquals(mapper.readTree(json), mapper.readTree(msg.toJSON()));
+            assertEquals(mapper.readTree(JsonCodecRegistry.writerFor(msg).writeValueAsString(msg)),
+                    mapper.readTree(msg.toJSON()));
+
+            Class<? extends BasicMessage> unsupported = cl.loadClass("sample.UnsupportedMessage")
+                    .asSubclass(BasicMessage.class);
+            assertNull(JsonCodecRegistry.serializerFor(unsupported));
+        }
+
+        boolean noted = false;
+        for (Diagnostic<? extends JavaFileObject> diagnostic : diagnostics) {
+            noted |= diagnostic.getKind() == Diagnostic.Kind.NOTE
+                    && diagnostic.getMessage(null).contains("sample.UnsupportedMessage");
+        }
+        assertTrue("Unsupported message should have been noted: " + diagnostics, noted);
+    }
+
+    private List<Diagnostic<? extends JavaFileObject>> compile(String... sources) throws Exception {
+        JavaCompiler compiler = ToolProvider.getSystemJavaCompiler();
+        assertNotNull("Tests must be run with a JDK", compiler);
+
+        List<JavaFileObject> files = new ArrayList<>();
+        for (String source : sources) {
+            String className = source.substring(source.indexOf("class ") + 6, source.indexOf(" extends"));
+            files.add(new SourceFile("sample/" + className, source));
+        }
+
+        // the sample messages need the bus and Jackson, which the generated code uses too
+        String classpath = location(AbstractMessage.class) + File.pathSeparator + location(JsonGenerator.class)
+                + File.pathSeparator + location(ObjectMapper.class) + File.pathSeparator
+                + location(JsonIgnore.class);
+
+        DiagnosticCollector<JavaFileObject> diagnostics = new DiagnosticCollector<>();
+        JavaCompiler.CompilationTask task = compiler.getTask(null, null, diagnostics,
+                Arrays.asList("-d", outputDir.toString(), "-classpath", classpath), null, files);
+        task.setProcessors(Arrays.asList(new MessageSerializerProcessor()));
+        assertTrue("Compilation failed: " + diagnostics.getDiagnostics(), task.call());
+        return diagnostics.getDiagnostics();
+    }
+
+    private static String location(Class<?> clazz) throws URISyntaxException {
+        return new File(clazz.getProtectionDomain().getCodeSource().getLocation().toURI()).getPath();
+    }
+
+    private static class SourceFile extends SimpleJavaFileObject {
+        private final String source;
+
+        SourceFile(String path, String source) {
+            super(URI.create("string:///" + path + Kind.SOURCE.extension), Kind.SOURCE);
+            this.source = source;
+        }
+
+        @Override
+        public CharSequence getCharContent(boolean ignoreEncodingErrors) {
+            return source;
+        }
+    }
+}
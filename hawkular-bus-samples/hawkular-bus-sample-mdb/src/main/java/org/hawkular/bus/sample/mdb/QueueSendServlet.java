@@ -18,8 +18,10 @@ package org.hawkular.bus.sample.mdb;
 
 import java.io.IOException;
 import java.io.PrintWriter;
-import java.util.HashMap;
+import java.util.Collections;
 import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.function.BiConsumer;
 
 import javax.jms.QueueConnectionFactory;
 import javax.naming.InitialContext;
@@ -31,15 +33,12 @@ import javax.servlet.http.HttpServletResponse;
 import org.hawkular.bus.common.BasicMessageWithExtraData;
 import org.hawkular.bus.common.ConnectionContextFactory;
 import org.hawkular.bus.common.Endpoint;
+import org.hawkular.bus.common.HeaderTemplate;
 import org.hawkular.bus.common.MessageId;
 import org.hawkular.bus.common.MessageProcessor;
 import org.hawkular.bus.common.SimpleBasicMessage;
 import org.hawkular.bus.common.producer.ProducerConnectionContext;
 
-import com.google.common.util.concurrent.FutureCallback;
-import com.google.common.util.concurrent.Futures;
-import com.google.common.util.concurrent.ListenableFuture;
-
 public class QueueSendServlet extends HttpServlet {
     private static final long serialVersionUID = 1L;
     private static final String CONN_FACTORY = "/HawkularBusConnectionFactory";
@@ -89,14 +88,16 @@ public class QueueSendServlet extends HttpServlet {
             InitialContext ctx = new InitialContext();
             QueueConnectionFactory qconFactory = (QueueConnectionFactory) ctx.lookup(CONN_FACTORY);
 
+            // the factory must stay open until the response arrives; it is closed by the callback, which must not
+            // run on the thread that delivered the response since a connection cannot be closed by its own listener
             ConnectionContextFactory ccf = new ConnectionContextFactory(qconFactory);
             ProducerConnectionContext pcc = ccf.createProducerConnectionContext(new Endpoint(Endpoint.Type.QUEUE,
                     QUEUE_NAME));
 
             SimpleBasicMessage msg = new SimpleBasicMessage(userMessage);
-            ListenableFuture<BasicMessageWithExtraData<SimpleBasicMessage>> future = new MessageProcessor().sendRPC(
+            CompletableFuture<BasicMessageWithExtraData<SimpleBasicMessage>> future = new MessageProcessor().sendRPC(
                     pcc, msg, SimpleBasicMessage.class, RPC_HEADER);
-            Futures.addCallback(future, new SimpleFutureCallback());
+            future.whenCompleteAsync(new SimpleFutureCallback(ccf));
 
             PrintWriter out = response.getWriter();
             out.println("<h1>RPC</h1>");
@@ -110,20 +111,29 @@ public class QueueSendServlet extends HttpServlet {
 
     // return the header that our sample MDBs' selectors will look at
     private static Map<String, String> createMyFilterHeader(String value) {
-        Map<String, String> map = new HashMap<String, String>(1);
-        map.put("MyFilter", value);
-        return map;
+        return HeaderTemplate.of(Collections.singletonMap("MyFilter", value));
     }
 
-    private class SimpleFutureCallback implements FutureCallback<BasicMessageWithExtraData<SimpleBasicMessage>> {
-        @Override
-        public void onSuccess(BasicMessageWithExtraData<SimpleBasicMessage> result) {
-            log("SUCCESS! Got response from MDB: " + result);
+    private class SimpleFutureCallback implements
+            BiConsumer<BasicMessageWithExtraData<SimpleBasicMessage>, Throwable> {
+        private final ConnectionContextFactory ccf;
+
+        SimpleFutureCallback(ConnectionContextFactory ccf) {
+            this.ccf = ccf;
         }
 
         @Override
-        public void onFailure(Throwable t) {
-            log("FAILURE! Did not get response from MDB", t);
+        public void accept(BasicMessageWithExtraData<SimpleBasicMessage> result, Throwable t) {
+            if (t == null) {
+                log("SUCCESS! Got response from MDB: " + result);
+            } else {
+                log("FAILURE! Did not get response from MDB", t);
+            }
+            try {
+                ccf.close();
+            } catch (Exception e) {
+                log("Failed to close the connection", e);
+            }
         }
     }
 }
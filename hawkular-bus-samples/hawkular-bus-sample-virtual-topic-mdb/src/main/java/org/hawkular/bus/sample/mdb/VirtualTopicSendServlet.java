@@ -18,7 +18,7 @@ package org.hawkular.bus.sample.mdb;
 
 import java.io.IOException;
 import java.io.PrintWriter;
-import java.util.HashMap;
+import java.util.Collections;
 import java.util.Map;
 
 import javax.jms.TopicConnectionFactory;
@@ -30,6 +30,7 @@ import javax.servlet.http.HttpServletResponse;
 
 import org.hawkular.bus.common.ConnectionContextFactory;
 import org.hawkular.bus.common.Endpoint;
+import org.hawkular.bus.common.HeaderTemplate;
 import org.hawkular.bus.common.MessageId;
 import org.hawkular.bus.common.MessageProcessor;
 import org.hawkular.bus.common.SimpleBasicMessage;
@@ -76,8 +77,6 @@ public class VirtualTopicSendServlet extends HttpServlet {
 
     // return the header that our sample MDBs' selectors will look at
     private static Map<String, String> createMyFilterHeader(String value) {
-        Map<String, String> map = new HashMap<String, String>(1);
-        map.put("MyFilter", value);
-        return map;
+        return HeaderTemplate.of(Collections.singletonMap("MyFilter", value));
     }
 }